@@ -0,0 +1,891 @@
+package tal;
+
+import java.io.*;
+import java.lang.management.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * Pruebas de rendimiento de cada fase del compilador.
+ * <p>Cada prueba se calienta durante un tiempo para que el compilador
+ * JIT optimice el código y después se mide en varias iteraciones de
+ * duración fija. Para cada prueba se muestran las operaciones por
+ * segundo, los bytes reservados por operación y las recolecciones de
+ * basura durante la medida.
+ * <p>Los resultados se pueden guardar como referencia y comparar con
+ * una referencia anterior. La comparación falla si alguna prueba es más
+ * lenta que en la referencia o si la referencia no tiene las mismas
+ * pruebas:
+ * <pre>
+ *   java -cp clases tal.Bench [-d dir] [-w seg] [-i n] [-t ms]
+ *                             [-save fichero] [-compare fichero] [filtro]
+ *   java -cp clases tal.Bench -scale sentencias
+ *   java -cp clases tal.Bench -verify programas
+ * </pre>
+ * donde {@code dir} es el directorio de los programas de ejemplo y
+ * {@code filtro} una parte del nombre de las pruebas que se ejecutan.
+ * <p>Con {@code -verify programas} se comprueba que los programas de
+ * {@link Generator} producen la misma salida sin optimizar y con cada
+ * nivel de optimización, que las operaciones sobre vectores completos
+ * no permiten superar el límite de instrucciones y que los bucles
+ * optimizados no ejecutan más instrucciones que los originales.
+ * <p>Con {@code -scale sentencias} se mide cómo crecen el tiempo y la
+ * memoria de cada fase con el tamaño de los programas de
+ * {@link Generator}, desde mil sentencias hasta el número indicado.
+ */
+public final class Bench
+{
+// Evita que el JIT elimine operaciones cuyo resultado no se usa.
+private static volatile long s_sink;
+
+// Operaciones que se preparan de una vez.
+private static final int BATCH = 64;
+
+// Diferencia a partir de la que se considera que una prueba ha empeorado.
+private static final double TOLERANCE = 0.10;
+
+private static final com.sun.management.ThreadMXBean THREADS =
+    (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+
+private interface Case
+{
+    /**
+     * Prepara las operaciones de una iteración fuera de la medida.
+     * @param ops Número de operaciones.
+     * @return tarea que ejecuta las operaciones.
+     */
+    Runnable prepare(int ops) throws IOException;
+}
+
+private static final class Score
+{
+    private final double m_ops, m_error, m_bytes;
+    private final long m_gcCount, m_gcMillis;
+
+    private Score(double ops, double error, double bytes,
+                  long gcCount, long gcMillis)
+    {
+        m_ops      = ops;
+        m_error    = error;
+        m_bytes    = bytes;
+        m_gcCount  = gcCount;
+        m_gcMillis = gcMillis;
+    }
+}
+
+private final Map<String,Case> m_cases = new LinkedHashMap<>();
+private long m_warmup = 2000, m_time = 1000;
+private int m_iterations = 5;
+
+//------------------------------------------------------------------------
+private Bench(Path dir) throws IOException
+{
+    String primos = read(dir, "primos.txt");
+    String factorial = read(dir, "factorial.txt");
+    String xor = read(dir, "xor.txt");
+    String grande = repeat(primos, 1 << 20);
+    String largo = body(primos, 500);
+
+    lex("lex.primos", primos);
+    lex("lex.1MB", grande);
+    parse("parse.primos", primos);
+    parse("parse.primos-x500", largo);
+    pipeline("pipe.primos-x500", largo);
+    validate("valida.primos", primos);
+    validate("valida.primos-err", primos.replace("d = d+1", "d = d+ $1")
+                                        .replace("t = t+1", "t = t+1)")
+                                        .replace("si(t==25)", "si(t=25)"));
+    codegen("codegen.primos", primos);
+    codegen("codegen.primos-x500", largo);
+    run("run.primos", primos);
+    run("run.primos-1000", primos.replace("n < 100", "n < 1000"));
+    run("run.primos-10000", primos.replace("n < 100", "n < 10000"));
+    run("run.primos-10000-O", optimize(primos.replace("n < 100",
+                                                      "n < 10000")));
+    run("run.primos-10000-pgo", guided(primos.replace("n < 100",
+                                                      "n < 10000")));
+    trace("run.primos-10000-traza", primos.replace("n < 100", "n < 10000"));
+    run("run.paralelo-10000", primos.replace("mientras(n < 100)",
+                                             "paralelo(n, 2, 10000)")
+                                    .replace("    n = n+1\n", "")
+                                    .replace("t==25", "t==1229"));
+    run("run.criba-100k", "entero i\nentero j\nvector c[100000]\n"+
+                          "i = 2\nmientras(i*i < 100000)\n"+
+                          "    si(c[i] == 0)\n        j = i*i\n"+
+                          "        mientras(j < 100000)\n"+
+                          "            c[j] = 1\n            j = j + i\n"+
+                          "        fin\n    fin\n    i = i + 1\nfin\n"+
+                          "imprimir(100000 - 2 - suma(c))\n"+
+                          "ordenar(c)\nllenar(c, 1)\nimprimir(suma(c))\n");
+    String llamadas = "entero n\nentero t\nentero primo\n"+
+                      "procedimiento prueba(entero m)\n    entero d\n"+
+                      "    d = 2\n"+
+                      "    mientras(d*d<=m && m/d*d != m)\n"+
+                      "        d = d+1\n    fin\n"+
+                      "    primo = 0\n    si(d*d > m)\n"+
+                      "        primo = 1\n    fin\nfin\n"+
+                      "n = 2\nmientras(n < 10000)\n    prueba(n)\n"+
+                      "    t = t + primo\n    n = n+1\nfin\n"+
+                      "imprimir(t==1229)\n";
+    run("run.llamadas-10000", llamadas);
+    run("run.llamadas-10000-O", optimize(llamadas));
+    run("run.llamadas-10000-pgo", guided(llamadas));
+    run("run.factorial", factorial);
+    run("run.factorial-20", factorial.replace("n = 10", "n = 20"));
+    run("run.xor", xor);
+
+    String gen = generate(10_000, 1);
+    lex("lex.gen-10k", gen);
+    parse("parse.gen-10k", gen);
+    pipeline("pipe.gen-10k", gen);
+    codegen("codegen.gen-10k", gen);
+    run("run.gen-1k", generate(1_000, 1));
+    run("run.gen-1k-O", optimize(generate(1_000, 1)));
+
+    read("run.leer-100k", "entero n\nentero s\n"+
+                          "mientras(leer(n))\n    s = s + n\nfin\n"+
+                          "imprimir(s)\n", numbers(100_000, 1));
+}
+
+//------------------------------------------------------------------------
+// Enteros separados por espacios, diez por linea.
+private static byte[] numbers(int n, long seed)
+{
+    Random random = new Random(seed);
+    StringBuilder s = new StringBuilder();
+
+    for(int i = 0; i < n; i++)
+    {
+        s.append(random.nextInt());
+        s.append(i % 10 == 9 ? '\n' : ' ');
+    }
+
+    return s.toString().getBytes();
+}
+
+//------------------------------------------------------------------------
+private static String generate(int sentencias, long seed)
+{
+    Generator g = new Generator(seed);
+    g.setDeclarations(16);
+    g.setStatements(sentencias);
+    g.setDepth(3);
+    return g.generate();
+}
+
+//------------------------------------------------------------------------
+// Compara la salida de programas generados sin optimizar, con cada
+// nivel de optimizacion y con el perfil de una ejecucion.
+private static int verify(int programas)
+{
+    int failed = 0;
+    long before = 0, after[] = new long[PassManager.MAX_LEVEL + 1],
+         pgo = 0;
+
+    for(int seed = 1; seed <= programas; seed++)
+    {
+        Generator g = new Generator(seed);
+        g.setDeclarations(2 + seed % 12);
+        g.setStatements(50 + seed % 200);
+        g.setDepth(seed % 5);
+        g.setExpressionDepth(seed % 4);
+        g.setStringRatio(seed % 3 * 0.25);
+        String texto = g.generate();
+
+        Program original = parse(texto).code().program();
+        OutputSink.Memory a = OutputSink.memory();
+        String ea = execute(original, a);
+        before += original.run(OutputSink.discard()).steps();
+
+        for(int level = 1; level <= PassManager.MAX_LEVEL; level++)
+        {
+            ADR adr = parse(texto);
+            adr.codeOptimize(PassManager.level(level));
+            Program optimizado = adr.code().program();
+
+            OutputSink.Memory b = OutputSink.memory();
+            String eb = execute(optimizado, b);
+
+            if(!a.toString().equals(b.toString()) ||
+               !String.valueOf(ea).equals(String.valueOf(eb)))
+            {
+                System.out.println("Semilla "+ seed +", nivel "+ level +
+                                   ": la salida no coincide");
+                failed++;
+                break;
+            }
+
+            after[level] += optimizado.run(OutputSink.discard()).steps();
+        }
+
+        Program guiado = guided(texto);
+        OutputSink.Memory c = OutputSink.memory();
+        String ec = execute(guiado, c);
+
+        if(!a.toString().equals(c.toString()) ||
+           !String.valueOf(ea).equals(String.valueOf(ec)))
+        {
+            System.out.println("Semilla "+ seed +
+                               ", con perfil: la salida no coincide");
+            failed++;
+        }
+
+        pgo += guiado.run(OutputSink.discard()).steps();
+    }
+
+    System.out.printf("%d programas, %d distintos, instrucciones "+
+                      "ejecutadas %d sin optimizar", programas, failed,
+                      before);
+
+    for(int level = 1; level <= PassManager.MAX_LEVEL; level++)
+        System.out.printf(", %d con -O%d", after[level], level);
+
+    System.out.printf(", %d con perfil\n", pgo);
+    return failed + limits() + loops();
+}
+
+// Programas que mezclan bucles con operaciones sobre vectores completos.
+private static final String LIMITS[] =
+{
+    "entero i\nvector v[3000]\n"+
+    "mientras(i < 500) i = i + 1 fin\n"+
+    "llenar(v, 7)\nordenar(v)\n"+
+    "mientras(i < 1000) i = i + 1 fin\n"+
+    "imprimir(suma(v))\n",
+
+    "entero i\nentero s\nvector a[800]\nvector b[800]\n"+
+    "mientras(i < 40)\n"+
+    "  llenar(a, i) copiar(b, a) ordenar(b) s = s + suma(b)\n"+
+    "  i = i + 1\n"+
+    "fin\n"+
+    "imprimir(s)\n"
+};
+
+// Comprueba que las ejecuciones de LIMITS con distintos limites de
+// instrucciones no los superan en mas de las instrucciones que hay
+// entre dos saltos hacia atras, que como mucho son las del programa.
+private static int limits()
+{
+    int failed = 0;
+
+    for(int i = 0; i < LIMITS.length; i++)
+    {
+        Program p = parse(LIMITS[i]).code().program();
+
+        for(long budget = 1000; budget <= 40000; budget += 1000)
+        {
+            ExecutionContext x = new ExecutionContext(p,
+                                                      OutputSink.discard());
+            x.setBudget(budget);
+            execute(p, x);
+
+            if(x.steps() > budget + p.length())
+            {
+                System.out.println("Limite "+ i +": "+ x.steps() +
+                                   " instrucciones con un limite de "+
+                                   budget);
+                failed++;
+            }
+        }
+    }
+
+    return failed;
+}
+
+// Bucles en los que sustituir los productos o inicializar las variables
+// antes de entrar costaba mas de lo que ahorraba.
+private static final String LOOPS[] =
+{
+    "entero n\nentero d\nentero c\nn = 2\n"+
+    "mientras(n < 200)\n"+
+    "  d = 2\n"+
+    "  mientras(d*d <= n && n/d*d != n) d = d + 1 fin\n"+
+    "  si(d*d > n) c = c + 1 fin\n"+
+    "  n = n + 1\n"+
+    "fin\n"+
+    "imprimir(c)\n",
+
+    "entero i\nentero s\ni = 0\n"+
+    "mientras(i < 8) s = s + i*i i = i + 1 fin\n"+
+    "imprimir(s)\n",
+
+    "entero i\nentero s\ni = 0\n"+
+    "mientras(i < 5) s = s + i*7 i = i + 1 fin\n"+
+    "imprimir(s)\n",
+
+    "entero i\nentero s\ni = 0\n"+
+    "mientras(i < 12) s = s + i*i + i*3 i = i + 2 fin\n"+
+    "imprimir(s)\n"
+};
+
+// Comprueba que los programas de LOOPS optimizados con el nivel por
+// defecto no ejecutan mas instrucciones que sin optimizar.
+private static int loops()
+{
+    int failed = 0;
+
+    for(int i = 0; i < LOOPS.length; i++)
+    {
+        Program original = parse(LOOPS[i]).code().program();
+        ADR adr = parse(LOOPS[i]);
+        adr.codeOptimize();
+        Program optimizado = adr.code().program();
+
+        long antes = original.run(OutputSink.discard()).steps(),
+             despues = optimizado.run(OutputSink.discard()).steps();
+
+        if(despues > antes)
+        {
+            System.out.println("Bucle "+ i +": "+ despues +
+                               " instrucciones optimizado y "+ antes +
+                               " sin optimizar");
+            failed++;
+        }
+    }
+
+    return failed;
+}
+
+private static String execute(Program p, OutputSink out)
+{
+    return execute(p, new ExecutionContext(p, out));
+}
+
+private static String execute(Program p, ExecutionContext x)
+{
+    try
+    {
+        p.run(x);
+        return null;
+    }
+    catch(RuntimeException ex)
+    {
+        return ex.getMessage();
+    }
+}
+
+//------------------------------------------------------------------------
+// Mide una vez cada fase con programas cada vez mas grandes.
+private static void scale(int max) throws IOException
+{
+    long thread = Thread.currentThread().getId();
+
+    // Calentamiento para no medir el interprete sin compilar.
+    for(int i = 0; i < 20; i++)
+        parse(generate(1_000, i)).code().program().run(OutputSink.discard());
+
+    System.out.printf("%10s %10s %12s %12s %12s %12s %14s\n", "sentencias",
+                      "bytes", "lex ns/B", "parse ns/s", "parse B/s",
+                      "run ns/i", "instrucciones");
+
+    for(int n = 1_000; n <= max; n *= 2)
+    {
+        String texto = generate(n, n);
+
+        long t = System.nanoTime();
+        AFD afd = new AFD(new StringReader(texto));
+
+        while(afd.read().type != Token.Type.EOF)
+            ;
+
+        long lex = System.nanoTime() - t;
+
+        long a = THREADS.getThreadAllocatedBytes(thread);
+        t = System.nanoTime();
+        Program p = parse(texto).code().program();
+        long compile = System.nanoTime() - t;
+        a = THREADS.getThreadAllocatedBytes(thread) - a;
+
+        t = System.nanoTime();
+        long steps = p.run(OutputSink.discard()).steps();
+        long run = System.nanoTime() - t;
+
+        System.out.printf("%10d %10d %12.2f %12.1f %12.1f %12.2f %14d\n",
+                          n, texto.length(), (double)lex / texto.length(),
+                          (double)compile / n, (double)a / n,
+                          (double)run / Math.max(1, steps), steps);
+    }
+}
+
+//------------------------------------------------------------------------
+private static String read(Path dir, String fichero) throws IOException
+{
+    return new String(Files.readAllBytes(dir.resolve(fichero)),
+                      StandardCharsets.UTF_8);
+}
+
+// Repite el texto hasta alcanzar el tamaño indicado. Solo vale para el
+// analizador lexico: el resultado no es un programa correcto.
+private static String repeat(String texto, int size)
+{
+    StringBuilder s = new StringBuilder(size + texto.length());
+
+    while(s.length() < size)
+        s.append(texto).append('\n');
+
+    return s.toString();
+}
+
+// Repite las sentencias de un programa a continuacion de sus
+// declaraciones, de modo que el resultado sigue siendo correcto.
+private static String body(String texto, int veces)
+{
+    int i = texto.lastIndexOf("entero ");
+    i = texto.indexOf('\n', i) + 1;
+
+    StringBuilder s = new StringBuilder(texto.substring(0, i));
+
+    for(int k = 0; k < veces; k++)
+        s.append(texto, i, texto.length()).append('\n');
+
+    return s.toString();
+}
+
+//------------------------------------------------------------------------
+private void lex(String name, String texto)
+{
+    m_cases.put(name, ops -> () ->
+    {
+        try
+        {
+            for(int i = 0; i < ops; i++)
+            {
+                AFD afd = new AFD(new StringReader(texto));
+
+                while(afd.read().type != Token.Type.EOF)
+                    ;
+
+                s_sink += afd.tokens();
+                afd.close();
+            }
+        }
+        catch(IOException ex)
+        {
+            throw new UncheckedIOException(ex);
+        }
+    });
+}
+
+private void parse(String name, String texto)
+{
+    m_cases.put(name, ops -> () ->
+    {
+        for(int i = 0; i < ops; i++)
+            s_sink += parse(texto).code().size();
+    });
+}
+
+// Analiza el texto con el analizador lexico en otro hilo.
+private void pipeline(String name, String texto)
+{
+    m_cases.put(name, ops -> () ->
+    {
+        try
+        {
+            for(int i = 0; i < ops; i++)
+            {
+                ADR adr = new ADR(new AFD(new StringReader(texto)), true);
+                adr.programa();
+                adr.close();
+                s_sink += adr.code().size();
+            }
+        }
+        catch(IOException ex)
+        {
+            throw new UncheckedIOException(ex);
+        }
+    });
+}
+
+// Valida el texto anotando los errores en un buffer que se reutiliza.
+private void validate(String name, String texto)
+{
+    m_cases.put(name, ops -> () ->
+    {
+        Diagnostics d = new Diagnostics(100);
+
+        try
+        {
+            for(int i = 0; i < ops; i++)
+            {
+                d.reset();
+                ADR adr = new ADR(new AFD(new StringReader(texto)), d);
+                adr.programa();
+                adr.close();
+                s_sink += d.total();
+            }
+        }
+        catch(IOException ex)
+        {
+            throw new UncheckedIOException(ex);
+        }
+    });
+}
+
+private void codegen(String name, String texto)
+{
+    m_cases.put(name, ops ->
+    {
+        Code code[] = new Code[ops];
+
+        for(int i = 0; i < ops; i++)
+            code[i] = parse(texto).code();
+
+        return () ->
+        {
+            for(Code c : code)
+                s_sink += c.program().length();
+        };
+    });
+}
+
+private void run(String name, String texto)
+{
+    run(name, parse(texto).code().program());
+}
+
+private void run(String name, Program p)
+{
+    OutputSink out = OutputSink.discard();
+
+    m_cases.put(name, ops -> () ->
+    {
+        for(int i = 0; i < ops; i++)
+            s_sink += p.run(out).steps();
+    });
+}
+
+// Ejecuta el programa registrando sus instrucciones en una traza.
+private void trace(String name, String texto)
+{
+    Program p = parse(texto).code().program();
+    Trace trace = new Trace(p, 1 << 16);
+    OutputSink out = OutputSink.discard();
+
+    m_cases.put(name, ops -> () ->
+    {
+        ExecutionContext x = new ExecutionContext(p, out);
+        x.setTrace(trace);
+
+        for(int i = 0; i < ops; i++)
+        {
+            p.run(x);
+            s_sink += x.steps();
+        }
+    });
+}
+
+// Ejecuta el programa optimizado leyendo los datos de memoria.
+private void read(String name, String texto, byte entrada[])
+{
+    Program p = optimize(texto);
+    OutputSink out = OutputSink.discard();
+
+    m_cases.put(name, ops -> () ->
+    {
+        ExecutionContext x = new ExecutionContext(p, out);
+
+        for(int i = 0; i < ops; i++)
+        {
+            x.setInput(InputSource.memory(entrada));
+            p.run(x);
+            s_sink += x.steps();
+        }
+    });
+}
+
+private static Program optimize(String texto)
+{
+    ADR adr = parse(texto);
+    adr.codeOptimize();
+    return adr.code().program();
+}
+
+// Optimiza el programa y aplica el perfil de una ejecucion.
+private static Program guided(String texto)
+{
+    ADR adr = parse(texto);
+    adr.codeOptimize();
+    Code code = adr.code();
+    Profile profile = new Profile(code.program());
+    ExecutionContext x = new ExecutionContext(code.program(),
+                                              OutputSink.discard());
+    x.setProfile(profile);
+    execute(code.program(), x);
+    code.applyProfile(profile);
+    return code.program();
+}
+
+private static ADR parse(String texto)
+{
+    ADR adr = new ADR(new AFD(new StringReader(texto)));
+    adr.programa();
+    return adr;
+}
+
+//------------------------------------------------------------------------
+// Ejecuta las operaciones en grupos para que lo preparado para cada
+// grupo no llene la memoria, y devuelve el tiempo de ejecucion.
+private static long time(Case c, int ops) throws IOException
+{
+    long t = 0;
+
+    for(int done = 0; done < ops; done += BATCH)
+    {
+        Runnable r = c.prepare(Math.min(BATCH, ops - done));
+        long start = System.nanoTime();
+        r.run();
+        t += System.nanoTime() - start;
+    }
+
+    return t;
+}
+
+// Numero de operaciones que tardan aproximadamente el tiempo indicado.
+private static int calibrate(Case c, long millis) throws IOException
+{
+    int ops = 1;
+
+    while(true)
+    {
+        long t = time(c, ops);
+
+        if(t >= millis * 1_000_000L / 4 || ops >= 1 << 28)
+            return (int)Math.max(1, Math.min(1 << 28, ops * millis * 1e6 / t));
+
+        ops *= 2;
+    }
+}
+
+private Score measure(Case c) throws IOException
+{
+    int ops = calibrate(c, 100);
+    long end = System.nanoTime() + m_warmup * 1_000_000L;
+
+    while(System.nanoTime() < end)
+        time(c, ops);
+
+    ops = calibrate(c, m_time);
+
+    double rate[] = new double[m_iterations];
+    long bytes = 0, gcCount = -gcCount(), gcMillis = -gcMillis();
+    long thread = Thread.currentThread().getId();
+
+    for(int i = 0; i < m_iterations; i++)
+    {
+        long t = 0;
+
+        for(int done = 0; done < ops; done += BATCH)
+        {
+            Runnable r = c.prepare(Math.min(BATCH, ops - done));
+            long a = THREADS.getThreadAllocatedBytes(thread);
+            long start = System.nanoTime();
+            r.run();
+            t += System.nanoTime() - start;
+            bytes += THREADS.getThreadAllocatedBytes(thread) - a;
+        }
+
+        rate[i] = ops * 1e9 / t;
+    }
+
+    gcCount += gcCount();
+    gcMillis += gcMillis();
+
+    double mean = Arrays.stream(rate).average().orElse(0), var = 0;
+
+    for(double r : rate)
+        var += (r - mean) * (r - mean);
+
+    double error = m_iterations > 1
+                   ? Math.sqrt(var / (m_iterations - 1)) : 0;
+
+    return new Score(mean, error, (double)bytes / ops / m_iterations,
+                     gcCount, gcMillis);
+}
+
+private static long gcCount()
+{
+    long n = 0;
+
+    for(GarbageCollectorMXBean gc :
+        ManagementFactory.getGarbageCollectorMXBeans())
+    {
+        n += Math.max(0, gc.getCollectionCount());
+    }
+
+    return n;
+}
+
+private static long gcMillis()
+{
+    long n = 0;
+
+    for(GarbageCollectorMXBean gc :
+        ManagementFactory.getGarbageCollectorMXBeans())
+    {
+        n += Math.max(0, gc.getCollectionTime());
+    }
+
+    return n;
+}
+
+//------------------------------------------------------------------------
+private static Map<String,double[]> load(String fichero) throws IOException
+{
+    Map<String,double[]> m = new HashMap<>();
+
+    for(String l : Files.readAllLines(Paths.get(fichero)))
+    {
+        if(l.isEmpty() || l.startsWith("#"))
+            continue;
+
+        String f[] = l.trim().split("\\s+");
+        m.put(f[0], new double[] {Double.parseDouble(f[1]),
+                                  Double.parseDouble(f[2])});
+    }
+
+    return m;
+}
+
+private static void save(String fichero, Map<String,Score> scores)
+    throws IOException
+{
+    try(PrintWriter out = new PrintWriter(new BufferedWriter(
+                              new FileWriter(fichero))))
+    {
+        out.println("# "+ System.getProperty("java.vm.name") +" "+
+                    System.getProperty("java.version") +", "+
+                    Runtime.getRuntime().availableProcessors() +
+                    " procesadores");
+        out.println("# prueba ops/s bytes/op");
+
+        for(Map.Entry<String,Score> e : scores.entrySet())
+        {
+            out.printf(Locale.ROOT, "%s %.1f %.1f\n", e.getKey(),
+                       e.getValue().m_ops, e.getValue().m_bytes);
+        }
+    }
+}
+
+//------------------------------------------------------------------------
+public static void main(String args[]) throws IOException
+{
+    String dir = "src/tal", saveFile = null, compareFile = null;
+    int scale = 0, programs = 0;
+    String filter = "";
+    long warmup = -1, time = -1;
+    int iterations = -1;
+
+    for(int i = 0; i < args.length; i++)
+    {
+        switch(args[i])
+        {
+            case "-d":       dir = args[++i]; break;
+            case "-w":       warmup = Long.parseLong(args[++i]) * 1000; break;
+            case "-i":       iterations = Integer.parseInt(args[++i]); break;
+            case "-t":       time = Long.parseLong(args[++i]); break;
+            case "-save":    saveFile = args[++i]; break;
+            case "-compare": compareFile = args[++i]; break;
+            case "-scale":   scale = Integer.parseInt(args[++i]); break;
+            case "-verify":  programs = Integer.parseInt(args[++i]); break;
+            default:         filter = args[i];
+        }
+    }
+
+    if(programs > 0)
+        System.exit(verify(programs) == 0 ? 0 : 1);
+
+    if(scale > 0)
+    {
+        scale(scale);
+        return;
+    }
+
+    Bench b = new Bench(Paths.get(dir));
+
+    if(warmup >= 0)
+        b.m_warmup = warmup;
+    if(time > 0)
+        b.m_time = time;
+    if(iterations > 0)
+        b.m_iterations = iterations;
+
+    Map<String,double[]> baseline = compareFile == null
+                                    ? null : load(compareFile);
+    Map<String,Score> scores = new LinkedHashMap<>();
+    int worse = 0, missing = 0;
+
+    System.out.printf("%-22s %14s %10s %12s %5s %7s%s\n", "prueba",
+                      "ops/s", "error", "bytes/op", "gc", "gc ms",
+                      baseline == null ? "" : "   referencia");
+
+    for(Map.Entry<String,Case> e : b.m_cases.entrySet())
+    {
+        if(!e.getKey().contains(filter))
+            continue;
+
+        Score s = b.measure(e.getValue());
+        scores.put(e.getKey(), s);
+
+        String cmp = "";
+        double ref[] = baseline == null ? null : baseline.get(e.getKey());
+
+        if(ref != null)
+        {
+            double d = s.m_ops / ref[0] - 1;
+            boolean slower = d < -TOLERANCE;
+
+            if(slower)
+                worse++;
+
+            cmp = String.format("   %+6.1f%% ops/s, %+.0f bytes/op%s",
+                                100 * d, s.m_bytes - ref[1],
+                                slower ? "  PEOR" : "");
+        }
+        else if(baseline != null)
+        {
+            missing++;
+            cmp = "   sin referencia";
+        }
+
+        System.out.printf("%-22s %14.1f %10.1f %12.1f %5d %7d%s\n",
+                          e.getKey(), s.m_ops, s.m_error, s.m_bytes,
+                          s.m_gcCount, s.m_gcMillis, cmp);
+    }
+
+    if(saveFile != null)
+        save(saveFile, scores);
+
+    // Una referencia que no cubre todas las pruebas esta desfasada y hay
+    // que volver a guardarla con -save.
+    if(baseline != null)
+    {
+        for(String name : new TreeSet<>(baseline.keySet()))
+        {
+            if(name.contains(filter) && !scores.containsKey(name))
+            {
+                missing++;
+                System.out.printf("%-22s %14s%s\n", name, "",
+                                  "   no existe la prueba");
+            }
+        }
+    }
+
+    if(worse > 0)
+    {
+        System.out.println("\n"+ worse +" pruebas han empeorado mas de un "+
+                           (int)(TOLERANCE * 100) +"%");
+    }
+
+    if(missing > 0)
+    {
+        System.out.println("\n"+ missing +" pruebas no coinciden con la "+
+                           "referencia "+ compareFile);
+    }
+
+    if(worse > 0 || missing > 0)
+        System.exit(1);
+}
+
+} // Bench
@@ -0,0 +1,344 @@
+package tal;
+
+import java.util.*;
+
+/**
+ * Generador de programas correctos para pruebas de rendimiento y de carga.
+ * <p>Los programas dependen solo de la semilla y de los parámetros, de
+ * modo que la misma configuración produce siempre el mismo texto. Todos
+ * los bucles {@code mientras} usan un contador propio y terminan después
+ * de un número fijo de vueltas, las divisiones son siempre entre
+ * constantes distintas de cero y las cadenas crecen de forma lineal.
+ * <pre>
+ *   java -cp clases tal.Generator [-seed n] [-decl n] [-stmt n]
+ *                                 [-depth n] [-expr n] [-iter n]
+ *                                 [-str r] [-com r]
+ * </pre>
+ */
+public final class Generator
+{
+private final long m_seed;
+private int m_declarations = 8, m_statements = 100, m_depth = 2,
+            m_expression = 3, m_iterations = 4;
+private double m_strings = 0.25, m_comments = 0.1;
+
+private Random m_random;
+private StringBuilder m_text;
+private int m_integers, m_remaining;
+
+// Contadores de los bucles que contienen la sentencia actual.
+private final List<String> m_counters = new ArrayList<>();
+
+/**
+ * Construye un generador.
+ * @param seed Semilla de los números aleatorios.
+ */
+public Generator(long seed)
+{
+    m_seed = seed;
+}
+
+/**
+ * Indica el número de variables declaradas, sin contar los contadores
+ * de los bucles.
+ * @param n Número de variables, al menos 1.
+ */
+public void setDeclarations(int n)
+{
+    m_declarations = check(n, 1);
+}
+
+/**
+ * Indica el número total de sentencias, incluidas las anidadas.
+ * @param n Número de sentencias.
+ */
+public void setStatements(int n)
+{
+    m_statements = check(n, 0);
+}
+
+/**
+ * Indica la profundidad máxima de anidamiento de {@code si} y
+ * {@code mientras}.
+ * @param n Profundidad, 0 para no generar sentencias compuestas.
+ */
+public void setDepth(int n)
+{
+    m_depth = check(n, 0);
+}
+
+/**
+ * Indica la profundidad máxima de las expresiones.
+ * @param n Profundidad, 0 para usar solo variables y constantes.
+ */
+public void setExpressionDepth(int n)
+{
+    m_expression = check(n, 0);
+}
+
+/**
+ * Indica el número de vueltas de cada bucle.
+ * @param n Número de vueltas.
+ */
+public void setIterations(int n)
+{
+    m_iterations = check(n, 0);
+}
+
+/**
+ * Indica la proporción de variables y asignaciones de cadenas.
+ * @param r Proporción entre 0 y 1.
+ */
+public void setStringRatio(double r)
+{
+    m_strings = ratio(r);
+}
+
+/**
+ * Indica la proporción de líneas con comentario.
+ * @param r Proporción entre 0 y 1.
+ */
+public void setCommentDensity(double r)
+{
+    m_comments = ratio(r);
+}
+
+//------------------------------------------------------------------------
+private static int check(int n, int min)
+{
+    if(n < min)
+        throw new IllegalArgumentException(String.valueOf(n));
+
+    return n;
+}
+
+private static double ratio(double r)
+{
+    if(!(r >= 0 && r <= 1))
+        throw new IllegalArgumentException(String.valueOf(r));
+
+    return r;
+}
+
+/**
+ * Genera un programa.
+ * @return texto del programa.
+ */
+public String generate()
+{
+    m_random = new Random(m_seed);
+    m_text = new StringBuilder();
+    m_counters.clear();
+    m_remaining = m_statements;
+
+    int strings = (int)Math.round(m_declarations * m_strings);
+
+    if(strings == m_declarations && m_declarations > 0 && m_strings < 1)
+        strings--;
+
+    m_integers = m_declarations - strings;
+
+    for(int i = 0; i < m_integers; i++)
+        line(0, "entero v"+ i);
+
+    for(int i = 0; i < strings; i++)
+        line(0, "cadena s"+ i);
+
+    for(int i = 0; i < m_depth; i++)
+        line(0, "entero i"+ i);
+
+    m_text.append('\n');
+
+    while(m_remaining > 0)
+        statement(0);
+
+    return m_text.toString();
+}
+
+//------------------------------------------------------------------------
+private void line(int level, String text)
+{
+    if(m_random.nextDouble() < m_comments)
+    {
+        if(m_random.nextBoolean())
+        {
+            indent(level);
+            m_text.append("/* bloque ").append(m_random.nextInt(1000))
+                  .append(" */\n");
+        }
+        else
+        {
+            text += " // linea "+ m_random.nextInt(1000);
+        }
+    }
+
+    indent(level);
+    m_text.append(text).append('\n');
+}
+
+private void indent(int level)
+{
+    for(int i = 0; i < level; i++)
+        m_text.append("    ");
+}
+
+//------------------------------------------------------------------------
+private void statement(int level)
+{
+    m_remaining--;
+    int kind = m_random.nextInt(level < m_depth ? 10 : 8);
+    int strings = m_declarations - m_integers;
+
+    if(kind < 8 && strings > 0 && m_random.nextDouble() < m_strings)
+    {
+        line(level, "s"+ m_random.nextInt(strings) +" = "+ string());
+    }
+    else if(kind < 6 || m_integers == 0 && kind < 8)
+    {
+        line(level, m_integers == 0
+                    ? "imprimir("+ integer(m_expression) +")"
+                    : "v"+ m_random.nextInt(m_integers) +" = "+
+                      integer(m_expression));
+    }
+    else if(kind < 8)
+    {
+        line(level, "imprimir("+ (m_random.nextBoolean()
+                                  ? integer(m_expression) : string()) +")");
+    }
+    else if(kind == 8)
+    {
+        line(level, "si("+ condition(m_expression) +")");
+        block(level + 1);
+
+        if(m_random.nextBoolean())
+        {
+            line(level, "sino");
+            block(level + 1);
+        }
+
+        line(level, "fin");
+    }
+    else
+    {
+        String i = "i"+ level;
+        line(level, i +" = 0");
+        line(level, "mientras("+ i +" < "+ m_iterations + ")");
+        m_counters.add(i);
+        block(level + 1);
+        m_counters.remove(m_counters.size() - 1);
+        line(level + 1, i +" = "+ i +" + 1");
+        line(level, "fin");
+    }
+}
+
+private void block(int level)
+{
+    int n = m_remaining == 0 ? 0 : 1 + m_random.nextInt(Math.min(8,
+                                                                m_remaining));
+    for(int i = 0; i < n && m_remaining > 0; i++)
+        statement(level);
+}
+
+//------------------------------------------------------------------------
+private String integer(int depth)
+{
+    if(depth == 0 || m_random.nextInt(4) == 0)
+    {
+        if(!m_counters.isEmpty() && m_random.nextInt(4) == 0)
+            return m_counters.get(m_random.nextInt(m_counters.size()));
+
+        return m_integers > 0 && m_random.nextBoolean()
+               ? "v"+ m_random.nextInt(m_integers)
+               : String.valueOf(m_random.nextInt(100));
+    }
+
+    switch(m_random.nextInt(6))
+    {
+        case 0:  return integer(depth - 1) +" + "+ integer(depth - 1);
+        case 1:  return integer(depth - 1) +" - "+ integer(depth - 1);
+        case 2:  return integer(depth - 1) +"*"+ integer(depth - 1);
+        case 3:  return integer(depth - 1) +"/"+ (1 + m_random.nextInt(9));
+        case 4:  return "(-"+ integer(depth - 1) +")";
+        default: return "("+ integer(depth - 1) +")";
+    }
+}
+
+// Las cadenas usan como mucho una variable para que su longitud
+// crezca de forma lineal al repetirse las asignaciones.
+private String string()
+{
+    int strings = m_declarations - m_integers;
+    StringBuilder s = new StringBuilder();
+
+    if(strings > 0 && m_random.nextBoolean())
+        s.append('s').append(m_random.nextInt(strings));
+    else
+        s.append("\"t").append(m_random.nextInt(100)).append('"');
+
+    for(int i = m_random.nextInt(3); i > 0; i--)
+    {
+        s.append(" + ");
+
+        if(m_random.nextBoolean())
+            s.append("\"").append((char)('a' + m_random.nextInt(26)))
+             .append('"');
+        else
+            s.append('(').append(integer(Math.min(1, m_expression)))
+             .append(')');
+    }
+
+    return s.toString();
+}
+
+private String condition(int depth)
+{
+    if(depth == 0 || m_random.nextInt(3) == 0)
+    {
+        String rel[] = {"==", "!=", "<", "<=", ">", ">="};
+        return integer(Math.min(1, depth)) +" "+
+               rel[m_random.nextInt(rel.length)] +" "+
+               integer(Math.min(1, depth));
+    }
+
+    switch(m_random.nextInt(4))
+    {
+        case 0:  return condition(depth - 1) +" && "+ condition(depth - 1);
+        case 1:  return condition(depth - 1) +" || "+ condition(depth - 1);
+        case 2:  return "!("+ condition(depth - 1) +")";
+        default: return "("+ condition(depth - 1) +")";
+    }
+}
+
+//------------------------------------------------------------------------
+public static void main(String args[])
+{
+    long seed = 1;
+    Map<String,String> opt = new HashMap<>();
+
+    for(int i = 0; i + 1 < args.length; i += 2)
+        opt.put(args[i], args[i + 1]);
+
+    if(opt.containsKey("-seed"))
+        seed = Long.parseLong(opt.get("-seed"));
+
+    Generator g = new Generator(seed);
+
+    if(opt.containsKey("-decl"))
+        g.setDeclarations(Integer.parseInt(opt.get("-decl")));
+    if(opt.containsKey("-stmt"))
+        g.setStatements(Integer.parseInt(opt.get("-stmt")));
+    if(opt.containsKey("-depth"))
+        g.setDepth(Integer.parseInt(opt.get("-depth")));
+    if(opt.containsKey("-expr"))
+        g.setExpressionDepth(Integer.parseInt(opt.get("-expr")));
+    if(opt.containsKey("-iter"))
+        g.setIterations(Integer.parseInt(opt.get("-iter")));
+    if(opt.containsKey("-str"))
+        g.setStringRatio(Double.parseDouble(opt.get("-str")));
+    if(opt.containsKey("-com"))
+        g.setCommentDensity(Double.parseDouble(opt.get("-com")));
+
+    System.out.print(g.generate());
+}
+
+} // Generator
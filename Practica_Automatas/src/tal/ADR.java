@@ -17,63 +17,249 @@ public class ADR extends ASin {
 		super(lex);
 	}
 
+	/**
+	 * Construye un analizador descendente recursivo que puede leer los
+	 * tokens en otro hilo.
+	 * 
+	 * @param lex       Analizador léxico.
+	 * @param pipelined {@code true} para analizar el léxico en otro hilo.
+	 */
+	public ADR(ALex lex, boolean pipelined) {
+		super(lex, pipelined);
+	}
+
+	/**
+	 * Construye un analizador descendente recursivo que valida el programa
+	 * anotando los errores y continuando en la siguiente sentencia.
+	 * 
+	 * @param lex         Analizador léxico.
+	 * @param diagnostics Destino de los errores.
+	 */
+	public ADR(ALex lex, Diagnostics diagnostics) {
+		super(lex, diagnostics);
+	}
+
 	/**
 	 * Símbolo inicial de la gramática.
 	 */
 	public void programa() {
+		parseBegin();
 		declaracion();
-		bloque();
+		bloque(EOF);
+
+		// Al validar se sigue despues de lo que sobra.
+		while (skipUnexpected(EOF)) {
+			declaracion();
+			bloque(EOF);
+		}
+
 		tokenRead(EOF);
+		parseEnd();
 	}
 
+	// Las reglas recursivas por la derecha se implementan con bucles para
+	// que la pila no crezca con el numero de declaraciones y sentencias.
+	// Al validar, un error abandona la sentencia y recover() sigue en la
+	// siguiente.
 	private void declaracion() {
-		switch (tokenType()) {
-		case ENTERO:
-			tokenRead(ENTERO);
-			tokenRead(ID);
-			codeVariableInteger();
-			declaracion();
-			break;
+		while (true) {
+			try {
+				switch (tokenType()) {
+				case ENTERO:
+					tokenRead(ENTERO);
+					tokenRead(ID);
+					codeVariableInteger();
+					break;
+
+				case CADENA:
+					tokenRead(CADENA);
+					tokenRead(ID);
+					codeVariableString();
+					break;
+
+				case ID:
+					// vector solo declara un vector si le sigue un nombre. Si
+					// no, empieza la primera sentencia.
+					if (!tokenName().equals("vector"))
+						return;
+
+					tokenRead(ID);
+
+					if (tokenType() != ID) {
+						sentencia("vector");
+						return;
+					}
+
+					tokenRead(ID);
+					codeVariableVector();
+					tokenRead(ICOR);
+					expresion();
+					tokenRead(DCOR);
+					codeVectorLength();
+					break;
+
+				case PROCEDIMIENTO:
+					procedimiento();
+					break;
+
+				default:
+					return;
+				}
+			} catch (RuntimeException ex) {
+				recover(ex);
+			}
+		}
+	}
+
+	// Al validar, lo que no puede empezar una sentencia se descarta como si
+	// se esperara el token que termina el bloque.
+	private void bloque(Token.Type fin) {
+		while (true) {
+			try {
+				switch (tokenType()) {
+				case ID:
+					String nombre = tokenName();
+					tokenRead(ID);
+					sentencia(nombre);
+					break;
+
+				case IMPRIMIR:
+					imprimir();
+					break;
 
+				case LEER:
+					leer();
+					break;
+
+				case SI:
+					condicion();
+					break;
+				case MIENTRAS:
+					iteracion();
+					break;
+				case PARALELO:
+					paralelo();
+					break;
+
+				case ENTERO:
+				case CADENA:
+				case PROCEDIMIENTO:
+				case SINO:
+				case FIN:
+				case EOF:
+					return;
+
+				default:
+					if (!skipUnexpected(fin))
+						return;
+				}
+			} catch (RuntimeException ex) {
+				recover(ex);
+			}
+		}
+	}
+
+	// El identificador ya se ha leido. llenar, copiar y ordenar no son
+	// palabras reservadas: solo son operaciones sobre vectores cuando les
+	// sigue un parentesis, de modo que tambien pueden ser variables.
+	private void sentencia(String nombre) {
+		if (tokenType() != IPAR)
+			asignacion();
+		else if (nombre.equals("llenar"))
+			llenar();
+		else if (nombre.equals("copiar"))
+			copiar();
+		else if (nombre.equals("ordenar"))
+			ordenar();
+		else
+			llamada();
+	}
+
+	private void procedimiento() {
+		tokenRead(PROCEDIMIENTO);
+		tokenRead(ID);
+		codeProcedure();
+		tokenRead(IPAR);
+
+		if (tokenType() != DPAR) {
+			parametro();
+
+			while (tokenType() == COMA) {
+				tokenRead(COMA);
+				parametro();
+			}
+		}
+
+		tokenRead(DPAR);
+		codeParameters();
+		declaracion();
+		bloque(FIN);
+		tokenRead(FIN);
+		codeEndProcedure();
+	}
+
+	private void parametro() {
+		switch (tokenType()) {
 		case CADENA:
 			tokenRead(CADENA);
 			tokenRead(ID);
-			codeVariableString();
-			declaracion();
+			codeParameterString();
 			break;
-		
-		}
-	}
 
-	private void bloque() {
-		switch (tokenType()) {
 		case ID:
-			asignacion();
-			bloque();
-			break;
+			// vector no es una palabra reservada. Otro nombre es un error.
+			if (!tokenName().equals("vector"))
+				tokenRead(ENTERO);
 
-		case IMPRIMIR:
-			imprimir();
-			bloque();
+			tokenRead(ID);
+			tokenRead(ID);
+			codeParameterVector();
 			break;
 
-		case SI:
-			condicion();
-			bloque();
-			break;
-		case MIENTRAS:
-			iteracion();
-			bloque();
+		default:
+			tokenRead(ENTERO);
+			tokenRead(ID);
+			codeParameterInteger();
 			break;
 		}
 	}
 
+	// El identificador ya se ha leido en bloque.
+	private void llamada() {
+		codeCall();
+		tokenRead(IPAR);
+
+		if (tokenType() != DPAR) {
+			expresion();
+			codeArgument();
+
+			while (tokenType() == COMA) {
+				tokenRead(COMA);
+				expresion();
+				codeArgument();
+			}
+		}
+
+		tokenRead(DPAR);
+		codeCallEnd();
+	}
+
+	// El identificador ya se ha leido en bloque.
 	private void asignacion() {
-		tokenRead(ID);
-		codeVariableAssignment();
-		tokenRead(ASIGN);
-		expresion();
-		codeAssignment();
+		if (tokenType() == ICOR) {
+			codeVariableElement();
+			tokenRead(ICOR);
+			expresion();
+			tokenRead(DCOR);
+			tokenRead(ASIGN);
+			expresion();
+			codeElementAssignment();
+		} else {
+			codeVariableAssignment();
+			tokenRead(ASIGN);
+			expresion();
+			codeAssignment();
+		}
 	}
 
 	private void imprimir() {
@@ -84,13 +270,21 @@ public class ADR extends ASin {
 		codePrint();
 	}
 
+	private void leer() {
+		tokenRead(LEER);
+		tokenRead(IPAR);
+		tokenRead(ID);
+		codeRead();
+		tokenRead(DPAR);
+	}
+
 	private void condicion() {
 		tokenRead(SI);
 		tokenRead(IPAR);
 		expresion();
 		codeIf();
 		tokenRead(DPAR);
-		bloque();
+		bloque(FIN);
 		sino();
 		tokenRead(FIN);
 		codeEnd();
@@ -100,7 +294,7 @@ public class ADR extends ASin {
 		if (tokenType() == SINO) {
 			tokenRead(SINO);
 			codeElse();
-			bloque();
+			bloque(FIN);
 		}
 	}
 
@@ -111,11 +305,52 @@ public class ADR extends ASin {
 		expresion();
 		codeIf();
 		tokenRead(DPAR);
-		bloque();
+		bloque(FIN);
 		tokenRead(FIN);
 		codeEnd();
 	}
 
+	private void paralelo() {
+		tokenRead(PARALELO);
+		tokenRead(IPAR);
+		tokenRead(ID);
+		codeParallelVariable();
+		tokenRead(COMA);
+		expresion();
+		tokenRead(COMA);
+		expresion();
+		tokenRead(DPAR);
+		codeParallel();
+		bloque(FIN);
+		tokenRead(FIN);
+		codeEnd();
+	}
+
+	private void llenar() {
+		tokenRead(IPAR);
+		expresion();
+		tokenRead(COMA);
+		expresion();
+		tokenRead(DPAR);
+		codeFill();
+	}
+
+	private void copiar() {
+		tokenRead(IPAR);
+		expresion();
+		tokenRead(COMA);
+		expresion();
+		tokenRead(DPAR);
+		codeCopy();
+	}
+
+	private void ordenar() {
+		tokenRead(IPAR);
+		expresion();
+		tokenRead(DPAR);
+		codeSort();
+	}
+
 	private void expresion() {
 		vor();
 		vor1();
@@ -222,14 +457,42 @@ public class ADR extends ASin {
 	private void valor() {
 		switch (tokenType()) {
 		case ID:
+			String nombre = tokenName();
 			tokenRead(ID);
+
+			// suma no es una palabra reservada: solo suma un vector si le
+			// sigue un parentesis.
+			if (tokenType() == IPAR && nombre.equals("suma")) {
+				tokenRead(IPAR);
+				expresion();
+				tokenRead(DPAR);
+				codeSum();
+				break;
+			}
+
 			codeVariableExpression();
+
+			if (tokenType() == ICOR) {
+				tokenRead(ICOR);
+				expresion();
+				tokenRead(DCOR);
+				codeElement();
+			}
 			break;
 
 		case INTVAL:
 			tokenRead(INTVAL);
 			codeInteger();
 			break;
+
+		case LEER:
+			tokenRead(LEER);
+			tokenRead(IPAR);
+			tokenRead(ID);
+			codeReadExpression();
+			tokenRead(DPAR);
+			break;
+
 		default:
 			tokenRead(STRVAL);
 			codeString();
@@ -20,6 +20,16 @@ public class AFD extends ALex {
 		setStart(this::inicio);
 	}
 
+	/**
+	 * Construye el autómata sobre un flujo de caracteres.
+	 * 
+	 * @param reader Texto que se debe analizar.
+	 */
+	public AFD(Reader reader) {
+		super(reader);
+		setStart(this::inicio);
+	}
+
 	private void inicio() {
 		if (isDigitChar())
 			state(this::intval);
@@ -35,6 +45,10 @@ public class AFD extends ALex {
 			state(this::mientras);
 		else if (isChar('i'))
 			state(this::imprimir);
+		else if (isChar('l'))
+			state(this::leer);
+		else if (isChar('p'))
+			state(this::paralelo);
 		else if (isIdCharStart())
 			state(this::id);
 		else if (isSpaceChar())
@@ -62,6 +76,12 @@ public class AFD extends ALex {
 			state(this::dpar);
 		else if (isChar('('))
 			state(this::ipar);
+		else if (isChar(','))
+			state(this::coma);
+		else if (isChar('['))
+			state(this::icor);
+		else if (isChar(']'))
+			state(this::dcor);
 		else if (isSpaceChar())
 			restart();
 		else if (isEofChar())
@@ -79,9 +99,13 @@ public class AFD extends ALex {
 			token(INTVAL);
 	}
 
+	// Al final del fichero sin cerrar la cadena o el comentario no se
+	// puede seguir leyendo.
 	private void strval() {
 		if (isChar('"'))
 			stateNoChar(this::strval1);
+		else if (isEofChar())
+			error("Cadena sin terminar");
 		else
 			state(this::strval);
 	}
@@ -389,6 +413,218 @@ public class AFD extends ALex {
 
 	}
 
+	private void leer() {
+		if (isChar('e'))
+			state(this::leer1);
+		else if (isIdChar())
+			state(this::id);
+		else
+			token(ID);
+	}
+
+	private void leer1() {
+		if (isChar('e'))
+			state(this::leer2);
+		else if (isIdChar())
+			state(this::id);
+		else
+			token(ID);
+	}
+
+	private void leer2() {
+		if (isChar('r'))
+			state(this::leer3);
+		else if (isIdChar())
+			state(this::id);
+		else
+			token(ID);
+	}
+
+	private void leer3() {
+		if (isIdChar())
+			state(this::id);
+		else
+			token(LEER);
+	}
+
+	private void paralelo() {
+		if (isChar('a'))
+			state(this::paralelo1);
+		else if (isChar('r'))
+			state(this::procedimiento1);
+		else if (isIdChar())
+			state(this::id);
+		else
+			token(ID);
+	}
+
+	private void paralelo1() {
+		if (isChar('r'))
+			state(this::paralelo2);
+		else if (isIdChar())
+			state(this::id);
+		else
+			token(ID);
+	}
+
+	private void paralelo2() {
+		if (isChar('a'))
+			state(this::paralelo3);
+		else if (isIdChar())
+			state(this::id);
+		else
+			token(ID);
+	}
+
+	private void paralelo3() {
+		if (isChar('l'))
+			state(this::paralelo4);
+		else if (isIdChar())
+			state(this::id);
+		else
+			token(ID);
+	}
+
+	private void paralelo4() {
+		if (isChar('e'))
+			state(this::paralelo5);
+		else if (isIdChar())
+			state(this::id);
+		else
+			token(ID);
+	}
+
+	private void paralelo5() {
+		if (isChar('l'))
+			state(this::paralelo6);
+		else if (isIdChar())
+			state(this::id);
+		else
+			token(ID);
+	}
+
+	private void paralelo6() {
+		if (isChar('o'))
+			state(this::paralelo7);
+		else if (isIdChar())
+			state(this::id);
+		else
+			token(ID);
+	}
+
+	private void paralelo7() {
+		if (isIdChar())
+			state(this::id);
+		else
+			token(PARALELO);
+	}
+
+	private void procedimiento1() {
+		if (isChar('o'))
+			state(this::procedimiento2);
+		else if (isIdChar())
+			state(this::id);
+		else
+			token(ID);
+	}
+
+	private void procedimiento2() {
+		if (isChar('c'))
+			state(this::procedimiento3);
+		else if (isIdChar())
+			state(this::id);
+		else
+			token(ID);
+	}
+
+	private void procedimiento3() {
+		if (isChar('e'))
+			state(this::procedimiento4);
+		else if (isIdChar())
+			state(this::id);
+		else
+			token(ID);
+	}
+
+	private void procedimiento4() {
+		if (isChar('d'))
+			state(this::procedimiento5);
+		else if (isIdChar())
+			state(this::id);
+		else
+			token(ID);
+	}
+
+	private void procedimiento5() {
+		if (isChar('i'))
+			state(this::procedimiento6);
+		else if (isIdChar())
+			state(this::id);
+		else
+			token(ID);
+	}
+
+	private void procedimiento6() {
+		if (isChar('m'))
+			state(this::procedimiento7);
+		else if (isIdChar())
+			state(this::id);
+		else
+			token(ID);
+	}
+
+	private void procedimiento7() {
+		if (isChar('i'))
+			state(this::procedimiento8);
+		else if (isIdChar())
+			state(this::id);
+		else
+			token(ID);
+	}
+
+	private void procedimiento8() {
+		if (isChar('e'))
+			state(this::procedimiento9);
+		else if (isIdChar())
+			state(this::id);
+		else
+			token(ID);
+	}
+
+	private void procedimiento9() {
+		if (isChar('n'))
+			state(this::procedimiento10);
+		else if (isIdChar())
+			state(this::id);
+		else
+			token(ID);
+	}
+
+	private void procedimiento10() {
+		if (isChar('t'))
+			state(this::procedimiento11);
+		else if (isIdChar())
+			state(this::id);
+		else
+			token(ID);
+	}
+
+	private void procedimiento11() {
+		if (isChar('o'))
+			state(this::procedimiento12);
+		else if (isIdChar())
+			state(this::id);
+		else
+			token(ID);
+	}
+
+	private void procedimiento12() {
+		if (isIdChar())
+			state(this::id);
+		else
+			token(PROCEDIMIENTO);
+	}
+
 	private void fin() {
 		if (isChar('i'))
 			state(this::fin1);
@@ -449,7 +685,7 @@ public class AFD extends ALex {
 	}
 
 	private void comLim() {
-		if (isChar('\n'))
+		if (isChar('\n') || isEofChar())
 			restart();
 		else
 			stateNoChar(this::comLim);
@@ -458,6 +694,8 @@ public class AFD extends ALex {
 	private void comBloq() {
 		if (isChar('*'))
 			stateNoChar(this::comBloq1);
+		else if (isEofChar())
+			error("Comentario sin terminar");
 		else
 			stateNoChar(this::comBloq);
 	}
@@ -467,6 +705,8 @@ public class AFD extends ALex {
 			restart();
 		else if (isChar('*'))
 			stateNoChar(this::comBloq1);
+		else if (isEofChar())
+			error("Comentario sin terminar");
 		else
 			stateNoChar(this::comBloq);
 	}
@@ -509,6 +749,18 @@ public class AFD extends ALex {
 		token(DPAR);
 	}
 
+	private void coma() {
+		token(COMA);
+	}
+
+	private void icor() {
+		token(ICOR);
+	}
+
+	private void dcor() {
+		token(DCOR);
+	}
+
 	private void sum() {
 		token(SUM);
 	}
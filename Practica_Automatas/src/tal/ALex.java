@@ -11,11 +11,23 @@ public class ALex
 private final Reader m_is;
 private char m_char;
 private boolean m_charReaded, m_reading;
-private int m_row = 1, m_column;
+private int m_row = 1, m_column, m_startRow, m_startColumn;
+
+// Posicion del primer caracter leido del token, aunque se descarte como
+// las comillas de las cadenas.
+private int m_firstRow, m_firstColumn;
 private final StringBuilder m_name = new StringBuilder();
 private Token m_token;
 private Runnable m_state, m_start;
 
+// Errores de la validacion, o null si se lanza una excepcion.
+private Diagnostics m_diagnostics;
+
+// Evento JFR con las estadisticas del analisis.
+private final Events.Lex m_event = new Events.Lex();
+private final boolean m_timed;
+private long m_tokens, m_chars, m_lexTime;
+
 /**
  * Construye un analizador léxico.
  * @param fichero Fichero de texto que se debe analizar.
@@ -23,7 +35,19 @@ private Runnable m_state, m_start;
  */
 public ALex(String fichero) throws IOException
 {
-    m_is = new BufferedReader(new FileReader(fichero));
+    this(new FileReader(fichero));
+}
+
+/**
+ * Construye un analizador léxico que lee de un flujo de caracteres.
+ * @param reader Texto que se debe analizar.
+ */
+public ALex(Reader reader)
+{
+    m_is = reader instanceof BufferedReader ? reader
+                                            : new BufferedReader(reader);
+    m_event.begin();
+    m_timed = m_event.isEnabled();
 }
 
 /**
@@ -55,9 +79,39 @@ public final void restart()
  */
 public final void close() throws IOException
 {
+    commitEvent();
     m_is.close();
 }
 
+//------------------------------------------------------------------------
+// Anota los caracteres no permitidos en lugar de lanzar una excepcion.
+final void setDiagnostics(Diagnostics diagnostics)
+{
+    m_diagnostics = diagnostics;
+}
+
+//------------------------------------------------------------------------
+private void commitEvent()
+{
+    if(m_timed && m_event.shouldCommit())
+    {
+        m_event.end();
+        m_event.tokens     = m_tokens;
+        m_event.characters = m_chars;
+        m_event.lexTime    = m_lexTime;
+        m_event.commit();
+    }
+}
+
+/**
+ * Número de tokens leídos hasta ahora.
+ * @return tokens leídos.
+ */
+public final long tokens()
+{
+    return m_tokens;
+}
+
 /**
  * Lee el siguiente token del fichero de texto.
  * @return Token leído.
@@ -65,6 +119,7 @@ public final void close() throws IOException
  */
 public final Token read() throws IOException
 {
+    long start = m_timed ? System.nanoTime() : 0;
     m_reading = true;
     restart();
 
@@ -74,6 +129,11 @@ public final Token read() throws IOException
         m_state.run();
     }
 
+    m_tokens++;
+
+    if(m_timed)
+        m_lexTime += System.nanoTime() - start;
+
     return m_token;
 }
 
@@ -87,6 +147,7 @@ private void readChar() throws IOException
     {
         m_char = (char)m_is.read();
         m_column++;
+        m_chars++;
 
         if(m_char == '\n')
         {
@@ -98,14 +159,52 @@ private void readChar() throws IOException
 
 /**
  * Interrumpe la compilación con una excepción en caso de que se lea un
- * carácter no permitido.
+ * carácter no permitido. Al validar anota el error y descarta el
+ * carácter y el token que se estaba leyendo.
  */
 public final void error()
 {
+    if(m_diagnostics != null)
+    {
+        m_diagnostics.lexical(m_row, m_column, m_char);
+        restart();
+        return;
+    }
+
     throw new RuntimeException("Caracter no permitido en "+
                                m_row +":"+ m_column +" : "+ m_char);
 }
 
+/**
+ * Interrumpe la compilación con una excepción en caso de que el fichero
+ * termine sin cerrar una cadena o un comentario. El error se sitúa en el
+ * primer carácter del token, como las comillas o el <code>/*</code> que
+ * lo abren. Al validar anota el error y descarta el token.
+ * @param mensaje Descripción del error, como "Cadena sin terminar".
+ */
+public final void error(String mensaje)
+{
+    if(m_diagnostics != null)
+    {
+        m_diagnostics.unterminated(m_firstRow, m_firstColumn, mensaje);
+        restart();
+        return;
+    }
+
+    throw new RuntimeException(mensaje +" en "+
+                               m_firstRow +":"+ m_firstColumn);
+}
+
+// Anota la posicion del caracter que saca al automata del estado inicial.
+private void first()
+{
+    if(m_state == m_start)
+    {
+        m_firstRow    = m_row;
+        m_firstColumn = m_column;
+    }
+}
+
 /**
  * Cuando un estado del autómata termine de leer un token debe llamar
  * a esta función. Los estados que llamen a esta función serán finales.
@@ -113,8 +212,14 @@ public final void error()
  */
 public final void token(Token.Type tipo)
 {
+    if(m_name.length() == 0)
+    {
+        m_startRow    = m_row;
+        m_startColumn = m_column;
+    }
+
     m_token = new Token(tipo, m_name.toString(),
-                        m_row, m_column - m_name.length());
+                        m_startRow, m_startColumn);
     m_reading = false;
     m_charReaded = true;
 }
@@ -126,6 +231,15 @@ public final void token(Token.Type tipo)
  */
 public final void state(Runnable estado)
 {
+    first();
+
+    if(m_name.length() == 0)
+    {
+        // Posicion del primer caracter del token.
+        m_startRow    = m_row;
+        m_startColumn = m_column;
+    }
+
     m_name.append(m_char);
     m_state = estado;
 }
@@ -140,6 +254,8 @@ public final void state(Runnable estado)
  */
 public final void stateNoChar(Runnable estado)
 {
+    first();
+
     if(estado == m_start)
         m_name.setLength(0);
 
@@ -1,6 +1,7 @@
 package tal;
 
 import java.io.*;
+import java.util.*;
 
 /**
  * Clase base para implementar analizadores sintácticos
@@ -9,17 +10,75 @@ import java.io.*;
 public class ASin
 {
 private final ALex m_lex;
+private final TokenPipe m_pipe;
 private final Code m_code;
 private Token m_token, m_previous;
+private Events.Parse m_event;
+
+// Errores de la validacion, o null si se compila.
+private final Diagnostics m_diagnostics;
+
+// Excepcion sin pila con la que se abandona la sentencia en la que se
+// encuentra un error al validar. Como no guarda nada se reutiliza.
+private static final RuntimeException RECOVER = new Recover();
+
+private static final class Recover extends RuntimeException
+{
+    private static final long serialVersionUID = 1L;
+
+    Recover()
+    {
+        super(null, null, false, false);
+    }
+}
 
 /**
  * Construye un analizador sintáctico a partir de un analizador léxico.
  * @param lex analizador léxico.
  */
 public ASin(ALex lex)
+{
+    this(lex, false);
+}
+
+/**
+ * Construye un analizador sintáctico que puede ejecutar el analizador
+ * léxico en otro hilo. En ese caso se debe llamar a {@link #close()}
+ * aunque falle el análisis, para terminar el hilo.
+ * @param lex analizador léxico.
+ * @param pipelined {@code true} para leer los tokens en otro hilo
+ *                  mientras se analiza la sintaxis.
+ */
+public ASin(ALex lex, boolean pipelined)
 {
     m_lex = lex;
+    m_pipe = pipelined ? new TokenPipe(lex) : null;
     m_code = new Code();
+    m_diagnostics = null;
+    ASin.this.tokenRead();
+}
+
+/**
+ * Construye un analizador sintáctico que valida el programa sin
+ * detenerse en los errores.
+ * <p>Los errores léxicos y sintácticos se anotan en {@code diagnostics}
+ * y el análisis continúa en la siguiente sentencia o declaración. Los
+ * de generación de código, como una variable no declarada, se anotan
+ * sin abandonar la sentencia. A partir del primer error léxico o
+ * sintáctico no se genera código, de modo que solo se debe usar para
+ * validar.
+ * @param lex analizador léxico.
+ * @param diagnostics Destino de los errores.
+ * @see #recover(RuntimeException)
+ */
+public ASin(ALex lex, Diagnostics diagnostics)
+{
+    m_lex = lex;
+    m_pipe = null;
+    m_code = new Code();
+    m_diagnostics = Objects.requireNonNull(diagnostics);
+    m_code.setDiagnostics(diagnostics);
+    lex.setDiagnostics(diagnostics);
     ASin.this.tokenRead();
 }
 
@@ -29,11 +88,21 @@ public ASin(ALex lex)
  */
 public void close() throws IOException
 {
-    m_lex.close();
+    if(m_pipe != null)
+        m_pipe.close();
+    else
+        m_lex.close();
 }
 
 private void tokenRead()
 {
+    if(m_pipe != null)
+    {
+        m_previous = m_token;
+        m_token = m_pipe.read();
+        return;
+    }
+
     try
     {
         m_previous = m_token;
@@ -47,15 +116,57 @@ private void tokenRead()
     }
 }
 
+/**
+ * Indica que empieza el análisis del programa.
+ * Se debe llamar al principio del símbolo inicial de la gramática.
+ */
+public void parseBegin()
+{
+    m_code.m_started = System.nanoTime();
+    m_event = new Events.Parse();
+
+    if(m_event.isEnabled())
+    {
+        m_event.allocated = Events.allocated();
+        m_event.begin();
+    }
+}
+
+/**
+ * Indica que ha terminado el análisis del programa.
+ * Se debe llamar al final del símbolo inicial de la gramática.
+ */
+public void parseEnd()
+{
+    if(m_event != null && m_event.shouldCommit())
+    {
+        m_event.end();
+        m_event.tokens    = m_pipe != null ? m_pipe.tokens()
+                                           : m_lex.tokens();
+        m_event.commands  = m_code.size();
+        m_event.allocated = Events.allocated() - m_event.allocated;
+        m_event.commit();
+    }
+
+    m_event = null;
+}
+
 /**
  * Comprueba si el siguiente token es el correcto y lee el siguiente.
- * Si el token no era correcto lanza una excepción.
+ * Si el token no era correcto lanza una excepción. Al validar anota
+ * antes el error y la excepción no guarda la pila.
  * @param t Tipo del token esperado.
  */
 public void tokenRead(Token.Type t)
 {
     if(m_token.type != t)
     {
+        if(m_diagnostics != null)
+        {
+            m_diagnostics.syntax(m_token, t);
+            throw RECOVER;
+        }
+
         throw new RuntimeException(
             "Error ("+ m_token.row +":"+ m_token.column +
             "): "+ m_token +". Esperaba: "+ t);
@@ -64,6 +175,79 @@ public void tokenRead(Token.Type t)
     tokenRead();
 }
 
+/**
+ * Continúa el análisis después de un error en una sentencia o
+ * declaración. Si se está validando, anota el error si no lo estaba ya
+ * y descarta los tokens hasta el principio de la siguiente sentencia o
+ * declaración, el final de un bloque o el final del fichero. Si no, lanza
+ * otra vez la excepción.
+ * <p>Una sentencia empieza con una palabra reservada o con un
+ * identificador al principio de una línea.
+ * @param ex Excepción lanzada al analizar la sentencia.
+ */
+public void recover(RuntimeException ex)
+{
+    if(m_diagnostics == null)
+        throw ex;
+
+    if(ex != RECOVER)
+        m_diagnostics.semantic(m_token, ex.getMessage());
+
+    while(!synchronizes())
+        tokenRead();
+}
+
+/**
+ * Continúa el análisis cuando el siguiente token no puede empezar una
+ * sentencia. Si se está validando, anota el error y descarta los tokens
+ * hasta la siguiente sentencia o declaración.
+ * @param t Tipo del token esperado, que termina el bloque.
+ * @return {@code true} si se está validando y se ha descartado algún
+ *         token, {@code false} si no se está validando o se ha llegado al
+ *         final del fichero.
+ */
+public boolean skipUnexpected(Token.Type t)
+{
+    if(m_diagnostics == null || m_token.type == Token.Type.EOF)
+        return false;
+
+    m_diagnostics.syntax(m_token, t);
+
+    do
+    {
+        tokenRead();
+    }
+    while(!synchronizes());
+
+    return true;
+}
+
+// Indica si el siguiente token puede empezar una sentencia o terminar un
+// bloque.
+private boolean synchronizes()
+{
+    switch(m_token.type)
+    {
+        case ENTERO: case CADENA: case PROCEDIMIENTO: case SI: case SINO:
+        case MIENTRAS: case FIN: case IMPRIMIR: case PARALELO: case EOF:
+            return true;
+
+        // Tambien pueden ir en una expresion.
+        case ID: case LEER:
+            return m_previous == null || m_token.row > m_previous.row;
+
+        default:
+            return false;
+    }
+}
+
+// Indica si se genera codigo, lo que deja de hacerse al validar despues
+// del primer error que no sea del generador de codigo.
+private boolean emit()
+{
+    return m_diagnostics == null || m_diagnostics.generating();
+}
+
 /**
  * Obtiene el tipo del siguiente token.
  * @return tipo del siguiente token.
@@ -87,7 +271,8 @@ public String tokenName()
  */
 public void codeVariableInteger()
 {
-    m_code.declareVariableInteger(m_previous);
+    if(emit())
+        m_code.declareVariableInteger(m_previous);
 }
 
 /**
@@ -95,7 +280,8 @@ public void codeVariableInteger()
  */
 public void codeVariableString()
 {
-    m_code.declareVariableString(m_previous);
+    if(emit())
+        m_code.declareVariableString(m_previous);
 }
 
 /**
@@ -104,7 +290,8 @@ public void codeVariableString()
  */
 public void codeVariableAssignment()
 {
-    m_code.addVariableAssignment(m_previous);
+    if(emit())
+        m_code.addVariableAssignment(m_previous);
 }
 
 /**
@@ -112,7 +299,8 @@ public void codeVariableAssignment()
  */
 public void codeVariableExpression()
 {
-    m_code.addVariableExpression(m_previous);
+    if(emit())
+        m_code.addVariableExpression(m_previous);
 }
 
 /**
@@ -120,7 +308,8 @@ public void codeVariableExpression()
  */
 public void codeAssignment()
 {
-    m_code.addAssignment(m_previous);
+    if(emit())
+        m_code.addAssignment(m_previous);
 }
 
 /**
@@ -128,7 +317,27 @@ public void codeAssignment()
  */
 public void codePrint()
 {
-    m_code.addPrint(m_previous);
+    if(emit())
+        m_code.addPrint(m_previous);
+}
+
+/**
+ * Genera código para leer el valor de una variable de la entrada.
+ */
+public void codeRead()
+{
+    if(emit())
+        m_code.addRead(m_previous);
+}
+
+/**
+ * Genera código para leer el valor de una variable de la entrada en una
+ * expresión, que vale falso si la entrada ha terminado.
+ */
+public void codeReadExpression()
+{
+    if(emit())
+        m_code.addReadExpression(m_previous);
 }
 
 /**
@@ -136,7 +345,8 @@ public void codePrint()
  */
 public void codeIf()
 {
-    m_code.addIf(m_previous);
+    if(emit())
+        m_code.addIf(m_previous);
 }
 
 /**
@@ -144,16 +354,18 @@ public void codeIf()
  */
 public void codeElse()
 {
-    m_code.addElse(m_previous);
+    if(emit())
+        m_code.addElse(m_previous);
 }
 
 /**
- * Genera código para indicar el final de una sentencia 'if'
- * o de un bucle 'while'.
+ * Genera código para indicar el final de una sentencia 'if',
+ * de un bucle 'while' o de un bucle 'paralelo'.
  */
 public void codeEnd()
 {
-    m_code.addEnd(m_previous);
+    if(emit())
+        m_code.addEnd(m_previous);
 }
 
 /**
@@ -161,7 +373,194 @@ public void codeEnd()
  */
 public void codeWhile()
 {
-    m_code.addWhile(m_previous);
+    if(emit())
+        m_code.addWhile(m_previous);
+}
+
+/**
+ * Genera código para declarar un vector. Su declaración se completa con
+ * {@link #codeVectorLength()} después de la expresión de su longitud.
+ */
+public void codeVariableVector()
+{
+    if(emit())
+        m_code.declareVariableVector(m_previous);
+}
+
+/**
+ * Genera código para crear el vector declarado con la longitud que hay
+ * en la pila.
+ */
+public void codeVectorLength()
+{
+    if(emit())
+        m_code.addVectorLength(m_previous);
+}
+
+/**
+ * Genera código para la variable de asignación de un elemento de un
+ * vector.
+ */
+public void codeVariableElement()
+{
+    if(emit())
+        m_code.addVariableElement(m_previous);
+}
+
+/**
+ * Genera código para asignar un elemento de un vector.
+ */
+public void codeElementAssignment()
+{
+    if(emit())
+        m_code.addElementAssignment(m_previous);
+}
+
+/**
+ * Genera código para obtener un elemento de un vector.
+ */
+public void codeElement()
+{
+    if(emit())
+        m_code.addElement(m_previous);
+}
+
+/**
+ * Genera código para dar el mismo valor a todos los elementos de un
+ * vector.
+ */
+public void codeFill()
+{
+    if(emit())
+        m_code.addFill(m_previous);
+}
+
+/**
+ * Genera código para copiar un vector sobre otro.
+ */
+public void codeCopy()
+{
+    if(emit())
+        m_code.addCopy(m_previous);
+}
+
+/**
+ * Genera código para ordenar un vector de menor a mayor.
+ */
+public void codeSort()
+{
+    if(emit())
+        m_code.addSort(m_previous);
+}
+
+/**
+ * Genera código para sumar los elementos de un vector.
+ */
+public void codeSum()
+{
+    if(emit())
+        m_code.addSum(m_previous);
+}
+
+/**
+ * Genera código para la variable de un bucle 'paralelo'.
+ */
+public void codeParallelVariable()
+{
+    if(emit())
+        m_code.addParallelVariable(m_previous);
+}
+
+/**
+ * Genera código para un bucle 'paralelo' una vez leídos sus límites.
+ */
+public void codeParallel()
+{
+    if(emit())
+        m_code.addParallel(m_previous);
+}
+
+/**
+ * Genera código para el principio de un procedimiento.
+ */
+public void codeProcedure()
+{
+    if(emit())
+        m_code.addProcedure(m_previous);
+}
+
+/**
+ * Genera código para un parámetro entero de un procedimiento.
+ */
+public void codeParameterInteger()
+{
+    if(emit())
+        m_code.addParameter(m_previous, Code.Type.INTEGER);
+}
+
+/**
+ * Genera código para un parámetro de tipo cadena de un procedimiento.
+ */
+public void codeParameterString()
+{
+    if(emit())
+        m_code.addParameter(m_previous, Code.Type.STRING);
+}
+
+/**
+ * Genera código para un parámetro de tipo vector de un procedimiento.
+ */
+public void codeParameterVector()
+{
+    if(emit())
+        m_code.addParameter(m_previous, Code.Type.VECTOR);
+}
+
+/**
+ * Genera código para recibir los argumentos una vez leídos todos los
+ * parámetros del procedimiento.
+ */
+public void codeParameters()
+{
+    if(emit())
+        m_code.addParameters(m_previous);
+}
+
+/**
+ * Genera código para el final de un procedimiento.
+ */
+public void codeEndProcedure()
+{
+    if(emit())
+        m_code.addEndProcedure(m_previous);
+}
+
+/**
+ * Genera código para el principio de una llamada a un procedimiento.
+ */
+public void codeCall()
+{
+    if(emit())
+        m_code.addCall(m_previous);
+}
+
+/**
+ * Indica que se ha generado el código de un argumento de la llamada.
+ */
+public void codeArgument()
+{
+    if(emit())
+        m_code.addArgument();
+}
+
+/**
+ * Genera código para una llamada a un procedimiento una vez leídos
+ * sus argumentos.
+ */
+public void codeCallEnd()
+{
+    if(emit())
+        m_code.addCallEnd(m_previous);
 }
 
 /**
@@ -184,7 +583,8 @@ public void codeWhile()
  */
 public void codeOperator(String operador)
 {
-    m_code.addOperator(operador);
+    if(emit())
+        m_code.addOperator(operador);
 }
 
 /**
@@ -192,7 +592,8 @@ public void codeOperator(String operador)
  */
 public void codeInteger()
 {
-    m_code.addInteger(m_previous);
+    if(emit())
+        m_code.addInteger(m_previous);
 }
 
 /**
@@ -200,7 +601,45 @@ public void codeInteger()
  */
 public void codeString()
 {
-    m_code.addString(m_previous);
+    if(emit())
+        m_code.addString(m_previous);
+}
+
+/**
+ * Obtiene el código generado.
+ * @return código generado.
+ */
+public Code code()
+{
+    return m_code;
+}
+
+/**
+ * Optimiza el código generado.
+ */
+public void codeOptimize()
+{
+    m_code.optimize();
+}
+
+/**
+ * Indica las variables declaradas que reciben su valor antes de cada
+ * ejecución.
+ * @param names Nombres de las variables.
+ * @see Code#setInputs(String...)
+ */
+public void codeInputs(String... names)
+{
+    m_code.setInputs(names);
+}
+
+/**
+ * Optimiza el código generado con las pasadas indicadas.
+ * @param passes Pasadas de optimización.
+ */
+public void codeOptimize(PassManager passes)
+{
+    m_code.optimize(passes);
 }
 
 /**
@@ -212,6 +651,35 @@ public String codeGet()
     return m_code.toString();
 }
 
+/**
+ * Guarda el código generado en un fichero binario.
+ * @param fichero Fichero de destino.
+ * @throws IOException
+ * @see Program#read(String)
+ */
+public void codeWrite(String fichero) throws IOException
+{
+    m_code.write(fichero);
+}
+
+/**
+ * Indica dónde se debe escribir la salida del código generado.
+ * @param out Destino de la salida.
+ */
+public void codeOutput(OutputSink out)
+{
+    m_code.setOutput(out);
+}
+
+/**
+ * Indica de dónde lee el código generado con {@code leer}.
+ * @param in Origen de la entrada.
+ */
+public void codeInput(InputSource in)
+{
+    m_code.setInput(in);
+}
+
 /**
  * Ejecuta el código generado.
  */
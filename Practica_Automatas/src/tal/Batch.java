@@ -0,0 +1,658 @@
+package tal;
+
+import java.io.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Ejecución por lotes de un programa sobre los registros de un fichero
+ * CSV.
+ * <p>Cada columna del fichero cuyo nombre coincide con una variable
+ * declarada da valor a esa variable, y el programa se ejecuta una vez
+ * por registro con el resto de variables a su valor inicial. Las
+ * variables deben indicarse antes con {@link Code#setInputs(String...)}
+ * para que la optimización no suponga que empiezan a cero.
+ * <p>El fichero se lee en bloques de líneas completas que se reparten
+ * entre varios hilos. Cada hilo separa las columnas de todo el bloque
+ * y después ejecuta el programa para cada registro reutilizando el
+ * mismo contexto. La salida de cada bloque se acumula en memoria y se
+ * escribe en el orden del fichero.
+ * <p>La primera línea tiene los nombres de las columnas. Los campos van
+ * separados por comas y pueden ir entre comillas dobles, con las
+ * comillas repetidas dentro del campo; no pueden contener saltos de
+ * línea. Un campo vacío deja la variable a su valor inicial y las
+ * líneas en blanco se ignoran.
+ */
+public final class Batch
+{
+private static final int BLOCK = 1 << 18;
+
+private static final Charset CHARSET = Charset.defaultCharset();
+
+private final Program m_program;
+private final String  m_columns[];
+private final int     m_slot[];
+private final boolean m_string[];
+
+private int m_threads = Runtime.getRuntime().availableProcessors();
+private PrintStream m_errors = System.err;
+private long m_records, m_failed;
+
+// Estado de cada hilo, que se reutiliza entre bloques.
+private final ThreadLocal<Worker> m_workers =
+    ThreadLocal.withInitial(Worker::new);
+
+//------------------------------------------------------------------------
+/**
+ * Construye la ejecución por lotes de un programa.
+ * @param program Programa que se ejecuta para cada registro.
+ * @param columns Nombres de las columnas del fichero. Las que no
+ *                corresponden a ninguna variable entera o de tipo
+ *                cadena se ignoran.
+ */
+public Batch(Program program, String columns[])
+{
+    m_program = Objects.requireNonNull(program);
+    m_columns = columns.clone();
+    m_slot    = new int[columns.length];
+    m_string  = new boolean[columns.length];
+
+    for(int i = 0; i < columns.length; i++)
+    {
+        // Las variables auxiliares y las de los procedimientos no son
+        // columnas.
+        int slot = columns[i].startsWith("$") ||
+                   columns[i].indexOf('.') >= 0 ? -1
+                                                : program.slot(columns[i]);
+
+        if(slot >= 0 && program.isVector(slot))
+            slot = -1;
+
+        m_slot[i] = slot;
+        m_string[i] = slot >= 0 && program.isString(slot);
+    }
+}
+
+/**
+ * Lee los nombres de las columnas de la primera línea de un fichero.
+ * @param fichero Fichero CSV.
+ * @return nombres de las columnas.
+ * @throws IOException
+ */
+public static String[] header(String fichero) throws IOException
+{
+    try(BufferedReader in = Files.newBufferedReader(Paths.get(fichero),
+                                                    CHARSET))
+    {
+        String line = in.readLine();
+
+        if(line == null)
+            throw new IOException("Fichero vacio: "+ fichero);
+
+        byte[] b = line.getBytes(CHARSET);
+        List<String> names = new ArrayList<>();
+        Fields f = new Fields(b, 0, b.length);
+
+        do
+        {
+            names.add(f.string().trim());
+        }
+        while(f.next());
+
+        return names.toArray(new String[0]);
+    }
+}
+
+/**
+ * Indica el número de hilos de la ejecución.
+ * @param threads Número de hilos, 1 para ejecutar en el hilo actual.
+ */
+public void setThreads(int threads)
+{
+    if(threads < 1)
+        throw new IllegalArgumentException("threads: "+ threads);
+
+    m_threads = threads;
+}
+
+/**
+ * Indica dónde se escriben los errores de los registros, con el número
+ * de línea del fichero.
+ * @param errors Destino de los errores.
+ */
+public void setErrors(PrintStream errors)
+{
+    m_errors = Objects.requireNonNull(errors);
+}
+
+/**
+ * Número de registros con error en la última ejecución.
+ * @return registros con error.
+ */
+public long failed()
+{
+    return m_failed;
+}
+
+//------------------------------------------------------------------------
+/**
+ * Ejecuta el programa para cada registro del fichero.
+ * @param fichero Fichero CSV con los nombres de las columnas en la
+ *                primera línea.
+ * @param out Destino de la salida.
+ * @return número de registros.
+ * @throws IOException
+ */
+public long run(String fichero, OutputSink out) throws IOException
+{
+    m_records = 0;
+    m_failed  = 0;
+
+    if(m_threads == 1)
+        return run(fichero, out, null);
+
+    ExecutorService executor = Executors.newFixedThreadPool(m_threads, r ->
+    {
+        Thread t = new Thread(r, "tal-batch");
+        t.setDaemon(true);
+        return t;
+    });
+
+    try
+    {
+        return run(fichero, out, executor);
+    }
+    finally
+    {
+        executor.shutdownNow();
+    }
+}
+
+//------------------------------------------------------------------------
+private long run(String fichero, OutputSink out, ExecutorService executor)
+    throws IOException
+{
+    Deque<Future<Result>> pending = new ArrayDeque<>();
+    long line = 2;
+
+    try(InputStream in = Files.newInputStream(Paths.get(fichero)))
+    {
+        byte[] block = new byte[BLOCK];
+        int length = 0;
+        boolean header = true, eof = false;
+
+        while(!eof)
+        {
+            int n = in.read(block, length, block.length - length);
+
+            if(n < 0)
+                eof = true;
+            else
+                length += n;
+
+            if(!eof && length < block.length)
+                continue;
+
+            // Los bloques terminan en la ultima linea completa. Si una
+            // linea no cabe en el bloque se amplia.
+            int end = eof ? length : after(block, 0, length), start = 0;
+
+            if(end < 0)
+            {
+                block = Arrays.copyOf(block, block.length * 2);
+                continue;
+            }
+
+            if(header)
+            {
+                int i = 0;
+
+                while(i < end && block[i] != '\n')
+                    i++;
+
+                start = Math.min(i + 1, end);
+                header = false;
+            }
+
+            byte[] next = new byte[Math.max(BLOCK, length - end)];
+            System.arraycopy(block, end, next, 0, length - end);
+
+            if(start < end)
+            {
+                Chunk c = new Chunk(block, start, end);
+
+                if(executor == null)
+                {
+                    line = write(process(c), out, line);
+                }
+                else
+                {
+                    if(pending.size() >= 2 * m_threads)
+                        line = write(get(pending.removeFirst()), out, line);
+
+                    pending.addLast(executor.submit(() -> process(c)));
+                }
+            }
+
+            block  = next;
+            length = length - end;
+        }
+
+        while(!pending.isEmpty())
+            line = write(get(pending.removeFirst()), out, line);
+    }
+
+    return m_records;
+}
+
+// Posicion siguiente al ultimo salto de linea, o -1 si no hay ninguno.
+private static int after(byte[] b, int from, int to)
+{
+    for(int i = to; --i >= from;)
+    {
+        if(b[i] == '\n')
+            return i + 1;
+    }
+
+    return -1;
+}
+
+private static Result get(Future<Result> f) throws IOException
+{
+    try
+    {
+        return f.get();
+    }
+    catch(InterruptedException ex)
+    {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException();
+    }
+    catch(ExecutionException ex)
+    {
+        Throwable t = ex.getCause();
+
+        if(t instanceof RuntimeException)
+            throw (RuntimeException)t;
+        if(t instanceof Error)
+            throw (Error)t;
+
+        throw new AssertionError(t);
+    }
+}
+
+// Escribe la salida y los errores de un bloque. Devuelve el numero de
+// linea del siguiente bloque.
+private long write(Result r, OutputSink out, long line)
+{
+    r.output.writeTo(out);
+    m_records += r.records;
+    m_failed += r.errors.size();
+
+    for(int i = 0; i < r.errors.size(); i++)
+    {
+        m_errors.println("Linea "+ (line + r.errorLines[i]) +": "+
+                         r.errors.get(i));
+    }
+
+    return line + r.lines;
+}
+
+//------------------------------------------------------------------------
+// Bloque de lineas completas del fichero.
+private static final class Chunk
+{
+    final byte[] data;
+    final int start, end;
+
+    Chunk(byte[] data, int start, int end)
+    {
+        this.data  = data;
+        this.start = start;
+        this.end   = end;
+    }
+}
+
+// Resultado de un bloque.
+private static final class Result
+{
+    final OutputSink.Memory output;
+    final List<String> errors = new ArrayList<>();
+    int errorLines[] = new int[4];
+    int records, lines;
+
+    Result(OutputSink.Memory output)
+    {
+        this.output = output;
+    }
+
+    void error(int line, String message)
+    {
+        if(errors.size() == errorLines.length)
+            errorLines = Arrays.copyOf(errorLines, errorLines.length * 2);
+
+        errorLines[errors.size()] = line;
+        errors.add(message);
+    }
+}
+
+// Columnas de los registros de un bloque y contexto de ejecucion.
+private final class Worker
+{
+    final ExecutionContext x =
+        new ExecutionContext(m_program, OutputSink.discard());
+
+    long   m_num[][] = new long[m_columns.length][];
+    String m_ref[][] = new String[m_columns.length][];
+    int    m_line[]  = new int[0];
+    String m_error[] = new String[0];
+
+    void ensure(int records)
+    {
+        if(m_line.length >= records)
+            return;
+
+        int n = Math.max(records, m_line.length * 2);
+        m_line  = new int[n];
+        m_error = new String[n];
+
+        for(int c = 0; c < m_columns.length; c++)
+        {
+            if(m_slot[c] < 0)
+                continue;
+
+            if(m_string[c])
+                m_ref[c] = new String[n];
+            else
+                m_num[c] = new long[n];
+        }
+    }
+}
+
+//------------------------------------------------------------------------
+private Result process(Chunk c)
+{
+    Worker w = m_workers.get();
+    byte[] b = c.data;
+    int lines = 0;
+
+    for(int i = c.start; i < c.end; i++)
+    {
+        if(b[i] == '\n')
+            lines++;
+    }
+
+    if(c.end > c.start && b[c.end - 1] != '\n')
+        lines++;
+
+    w.ensure(lines);
+    int records = parse(w, b, c.start, c.end);
+
+    Result r = new Result(OutputSink.memory());
+    r.lines = lines;
+    r.records = records;
+
+    ExecutionContext x = w.x;
+    x.setOutput(r.output);
+    long steps = 0;
+
+    for(int i = 0; i < records; i++)
+    {
+        if(w.m_error[i] != null)
+        {
+            r.error(w.m_line[i], w.m_error[i]);
+            continue;
+        }
+
+        for(int k = 0; k < m_slot.length; k++)
+        {
+            int slot = m_slot[k];
+
+            if(slot < 0)
+                continue;
+
+            if(m_string[k])
+                x.setString(slot, w.m_ref[k][i]);
+            else
+                x.setInteger(slot, w.m_num[k][i]);
+        }
+
+        try
+        {
+            m_program.execute(x);
+        }
+        catch(RuntimeException ex)
+        {
+            r.error(w.m_line[i], ex.getMessage());
+        }
+
+        steps += x.steps();
+    }
+
+    x.setOutput(OutputSink.discard());
+    Metrics.ran(records, steps, m_program.maxStack(),
+                r.output.written());
+    return r;
+}
+
+// Separa las columnas de los registros de un bloque. Devuelve el
+// numero de registros.
+private int parse(Worker w, byte[] b, int start, int end)
+{
+    int records = 0, line = 0;
+
+    while(start < end)
+    {
+        int eol = start;
+
+        while(eol < end && b[eol] != '\n')
+            eol++;
+
+        int next = eol + 1;
+
+        if(eol > start && b[eol - 1] == '\r')
+            eol--;
+
+        if(!blank(b, start, eol))
+        {
+            w.m_line[records] = line;
+            w.m_error[records] = fields(w, records, b, start, eol);
+            records++;
+        }
+
+        start = next;
+        line++;
+    }
+
+    return records;
+}
+
+private static boolean blank(byte[] b, int start, int end)
+{
+    for(int i = start; i < end; i++)
+    {
+        if(b[i] != ' ' && b[i] != '\t')
+            return false;
+    }
+
+    return true;
+}
+
+// Guarda los campos de un registro. Devuelve el error o null.
+private String fields(Worker w, int record, byte[] b, int start, int end)
+{
+    Fields f = new Fields(b, start, end);
+
+    for(int k = 0; k < m_columns.length; k++)
+    {
+        if(k > 0 && !f.next())
+            return "Faltan columnas a partir de "+ m_columns[k];
+
+        if(m_slot[k] < 0)
+        {
+            f.skip();
+        }
+        else if(m_string[k])
+        {
+            w.m_ref[k][record] = f.string();
+        }
+        else
+        {
+            if(!f.integer())
+                return "Valor entero incorrecto en la columna "+
+                       m_columns[k];
+
+            w.m_num[k][record] = f.value;
+        }
+
+        if(f.error)
+            return "Comillas incorrectas en la columna "+ m_columns[k];
+    }
+
+    return f.next() ? "Sobran columnas en el registro" : null;
+}
+
+//------------------------------------------------------------------------
+// Recorrido de los campos de una linea.
+private static final class Fields
+{
+    final byte[] b;
+    final int end;
+    int pos;
+    long value;
+    boolean error;
+
+    Fields(byte[] b, int start, int end)
+    {
+        this.b   = b;
+        this.pos = start;
+        this.end = end;
+    }
+
+    // Pasa al campo siguiente si hay una coma.
+    boolean next()
+    {
+        if(pos < end && b[pos] == ',')
+        {
+            pos++;
+            return true;
+        }
+
+        return false;
+    }
+
+    void skip()
+    {
+        if(pos < end && b[pos] == '"')
+        {
+            quoted(null);
+        }
+        else
+        {
+            while(pos < end && b[pos] != ',')
+                pos++;
+        }
+    }
+
+    // Lee un entero directamente de los bytes. Un campo vacio vale 0.
+    boolean integer()
+    {
+        int p = pos;
+        long v = 0;
+
+        while(p < end && b[p] == ' ')
+            p++;
+
+        if(p < end && b[p] != ',')
+        {
+            boolean negative = b[p] == '-';
+
+            if(negative || b[p] == '+')
+                p++;
+
+            if(p == end || b[p] < '0' || b[p] > '9')
+                return false;
+
+            // Se acumula en negativo para admitir Long.MIN_VALUE.
+            while(p < end && b[p] >= '0' && b[p] <= '9')
+            {
+                int d = b[p++] - '0';
+
+                if(v < (Long.MIN_VALUE + d) / 10)
+                    return false;
+
+                v = v * 10 - d;
+            }
+
+            while(p < end && b[p] == ' ')
+                p++;
+
+            if(p < end && b[p] != ',' || !negative && v == Long.MIN_VALUE)
+                return false;
+
+            if(!negative)
+                v = -v;
+        }
+
+        pos = p;
+        value = v;
+        return true;
+    }
+
+    String string()
+    {
+        if(pos < end && b[pos] == '"')
+        {
+            ByteArrayOutputStream s = new ByteArrayOutputStream();
+            quoted(s);
+            return s.toString(CHARSET);
+        }
+
+        int p = pos;
+
+        while(pos < end && b[pos] != ',')
+            pos++;
+
+        return new String(b, p, pos - p, CHARSET);
+    }
+
+    // Recorre un campo entre comillas, guardando su contenido si se
+    // indica un destino.
+    void quoted(ByteArrayOutputStream s)
+    {
+        pos++;
+
+        for(;;)
+        {
+            if(pos == end)
+            {
+                error = true;
+                return;
+            }
+
+            byte c = b[pos++];
+
+            if(c == '"')
+            {
+                if(pos < end && b[pos] == '"')
+                {
+                    pos++;
+                }
+                else
+                {
+                    if(pos < end && b[pos] != ',')
+                        error = true;
+
+                    return;
+                }
+            }
+
+            if(s != null)
+                s.write(c);
+        }
+    }
+}
+
+} // Batch
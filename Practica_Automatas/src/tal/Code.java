@@ -1,71 +1,110 @@
 package tal;
 
+import java.io.*;
 import java.util.*;
 
 /**
  * Esta clase se utiliza en <code>ASin</code> para la generación
  * de código.
+ * <p>El código generado se convierte en un {@link Program} inmutable
+ * que se ejecuta con su propio {@link ExecutionContext}.
  */
 public class Code
 {
-private static enum Type
+/** Versión del compilador y del formato de los ficheros compilados. */
+public static final int VERSION = 7;
+
+static enum Type
 {
-    VOID, INTEGER, STRING, BOOLEAN
+    VOID, INTEGER, STRING, BOOLEAN, VECTOR
 }
 
-private static enum Action
+static enum Action
 {
-    DECLARE, ASSIGN, PRINT, IF, ELSE, WHILE,
+    DECLARE, ASSIGN, PRINT, READ, IF, ELSE, WHILE, PARALLEL, REDUCE,
     GOTO, END, VARIABLE, CONSTANT, ADD, SUBTRACT, NEGATE,
     MULTIPLY, DIVIDE, EQUAL, UNEQUAL, LESS, LESSEQ,
-    GREATER, GREATEREQ, NOT, OR, AND
-}
+    GREATER, GREATEREQ, NOT, OR, AND,
+    LOAD, STORE, FILL, COPY, SORT, SUM,
+    CALL, ENTER, PARAM, RETURN,
 
-private static class Variable
-{
-    private String name;
-    private Type   type;
-    private Object value;
+    // Generadas por Optimizer.
+    STEP
 }
 
-private static class Command
+static class Variable
 {
-    private int line, row, column;
-    private Action  action;
-    private Type    type;
-    private Object  value;
-    private Command next;
+    int     slot;
+    String  name;
+    Type    type;
+    boolean input;      // recibe su valor antes de ejecutar
 }
 
-private static class Node
+static class Command
 {
-    private Type   type;
-    private Object value;
+    int line, row, column;
+    Action  action;
+    Type    type;
+    Object  value;
+    Command next;
 }
 
-private interface RunCommand
+// Procedimiento. Su codigo va entre un GOTO que lo salta y el END
+// siguiente a su RETURN; las llamadas saltan a su ENTER.
+private static class Procedure
 {
-    Command run(Command c);
+    String  name;
+    List<Variable> params = new ArrayList<>();
+    Command skip, enter;
+    int     first;      // posicion de su primera variable
+    boolean recursive;
 }
 
-private final RunCommand m_run[] = new RunCommand[Action.values().length];
-
 // Datos de compilacion.
 private Token m_token;
 
-// Datos de compilacion y ejecucion
+// Codigo generado
 private final Map<String,Variable> m_variables = new HashMap<>();
 private Command m_first, m_last;
 
 // Pila para implementar los saltos en condiciones y bucles
 private final LinkedList<Command> m_control = new LinkedList<>();
 
-// Pila de ejecucion
-private final ArrayDeque<Node> m_stack = new ArrayDeque<>();
+// Procedimientos definidos, el que se esta definiendo y la llamada
+// cuyos argumentos se estan generando, con el numero de argumentos.
+private final Map<String,Procedure> m_procedures = new HashMap<>();
+private Procedure m_procedure, m_call;
+private int m_arguments;
+
+// Programa ejecutable generado a partir del codigo.
+private Program m_program;
+
+// Superinstrucciones elegidas con el perfil de una ejecucion.
+private byte m_super[][] = new byte[0][];
+
+// Momento en que empezo el analisis, para medir la compilacion.
+long m_started;
+
+// Destino de la sentencia imprimir. Si no se indica, la salida
+// estandar se abre al ejecutar para no reservar su buffer al compilar.
+private OutputSink m_out;
+
+// Origen de la sentencia leer. Si no se indica se lee la entrada
+// estandar.
+private InputSource m_in;
+
+// Traza de las ejecuciones, o null si no se registran.
+private Trace m_trace;
+
+// Errores de la validacion, o null si se compila. Las variables no
+// declaradas se sustituyen por otras para seguir generando codigo.
+private Diagnostics m_diagnostics;
+private Map<String,Variable> m_undeclared;
 
 //------------------------------------------------------------------------
 private void add(Command nodo)
 {
+    m_program = null;
     nodo.line   = m_last==null ? 0 : m_last.line + 1;
     nodo.row    = m_token.row;
     nodo.column = m_token.column;
@@ -84,11 +123,32 @@ private void add(Command nodo)
 }
 
 //------------------------------------------------------------------------
+// Al validar el error se anota y se sigue generando codigo; al compilar
+// se lanza la excepcion.
 private void error(String mensaje)
 {
+    error(m_token.row, m_token.column, mensaje, m_token.name);
+}
+
+private void error(int row, int column, String mensaje, String nombre)
+{
+    if(m_diagnostics != null)
+    {
+        m_diagnostics.semantic(row, column, mensaje, nombre);
+        return;
+    }
+
     throw new RuntimeException(
-        "Error ("+ m_token.row +":"+ m_token.column +
-        "): "+ mensaje +" "+ m_token.name);
+        "Error ("+ row +":"+ column +"): "+ mensaje +
+        (nombre != null ? " "+ nombre : ""));
+}
+
+//------------------------------------------------------------------------
+// Anota los errores del generador en lugar de lanzar excepciones.
+void setDiagnostics(Diagnostics diagnostics)
+{
+    m_diagnostics = diagnostics;
+    m_undeclared = new HashMap<>();
 }
 
 //------------------------------------------------------------------------
@@ -104,7 +164,7 @@ private Command newCommand(Action accion, Type tipo, Object value)
 }
 
 //------------------------------------------------------------------------
-private void declareVariable(Type tipo)
+private Variable newVariable(Type tipo)
 {
     String nombre = m_token.name;
 
@@ -112,12 +172,145 @@ private void declareVariable(Type tipo)
         error("Ya existe la variable");
 
     Variable v = new Variable();
+    v.slot   = m_variables.size();
     v.name   = nombre;
-    v.type     = tipo;
-    v.value    = tipo == Type.STRING ? "" : 0;
+    v.type   = tipo;
     m_variables.put(nombre, v);
+    return v;
+}
+
+//------------------------------------------------------------------------
+private void declareVariable(Type tipo)
+{
+    add(newCommand(Action.DECLARE, tipo, newVariable(tipo)));
+}
+
+//------------------------------------------------------------------------
+// Las llamadas apilan la direccion de vuelta y saltan al ENTER, que
+// guarda las variables del procedimiento si es recursivo. Los PARAM
+// sacan los argumentos de la pila y el RETURN restaura las variables
+// y vuelve.
+public void addProcedure(Token token)
+{
+    m_token = token;
+
+    if(m_procedure != null)
+    {
+        error("No se puede definir dentro de otro procedimiento");
+
+        // El fin de este procedimiento cerraria el otro.
+        if(m_diagnostics != null)
+            m_diagnostics.stop();
+    }
+
+    if(m_procedures.containsKey(token.name))
+        error("Ya existe el procedimiento");
+
+    Procedure p = new Procedure();
+    p.name  = token.name;
+    p.first = m_variables.size();
+    p.skip  = newCommand(Action.GOTO, Type.VOID, null);
+    p.enter = newCommand(Action.ENTER, Type.VOID, 0L);
+    add(p.skip);
+    add(p.enter);
+    m_procedures.put(p.name, p);
+    m_procedure = p;
+}
+
+//------------------------------------------------------------------------
+public void addParameter(Token token, Type tipo)
+{
+    m_token = token;
+    m_procedure.params.add(newVariable(tipo));
+}
+
+//------------------------------------------------------------------------
+public void addParameters(Token token)
+{
+    m_token = token;
+    List<Variable> params = m_procedure.params;
 
-    add(newCommand(Action.DECLARE, tipo, v));
+    // El ultimo argumento es el que esta en la cima de la pila.
+    for(int i = params.size() - 1; i >= 0; i--)
+        add(newCommand(Action.PARAM, Type.VOID, params.get(i)));
+}
+
+//------------------------------------------------------------------------
+public void addEndProcedure(Token token)
+{
+    m_token = token;
+    Procedure p = m_procedure;
+    List<Variable> locals = new ArrayList<>();
+
+    for(Variable v : m_variables.values())
+    {
+        if(v.slot >= p.first)
+            locals.add(v);
+    }
+
+    // Solo los procedimientos recursivos guardan sus variables, que
+    // ocupan posiciones seguidas.
+    long frame = 0;
+
+    if(p.recursive && !locals.isEmpty())
+        frame = p.first | (long)locals.size() << 32;
+
+    Command fin = newCommand(Action.END, Type.VOID, null);
+    p.enter.value = frame;
+    add(newCommand(Action.RETURN, Type.VOID, frame));
+    add(fin);
+    p.skip.value = fin;
+
+    // Las variables locales dejan de verse fuera del procedimiento.
+    for(Variable v : locals)
+    {
+        m_variables.remove(v.name);
+        v.name = p.name +"."+ v.name;
+        m_variables.put(v.name, v);
+    }
+
+    m_procedure = null;
+}
+
+//------------------------------------------------------------------------
+public void addCall(Token token)
+{
+    m_token = token;
+    Procedure p = m_procedures.get(token.name);
+
+    if(p == null)
+        error("No existe el procedimiento");
+    else if(p == m_procedure)
+        p.recursive = true;
+
+    m_call = p;
+    m_arguments = 0;
+}
+
+//------------------------------------------------------------------------
+public void addArgument()
+{
+    m_arguments++;
+}
+
+//------------------------------------------------------------------------
+public void addCallEnd(Token token)
+{
+    m_token = token;
+    Procedure p = m_call;
+
+    // Al validar, la llamada a un procedimiento que no existe ya tiene su
+    // error.
+    if(p == null)
+        return;
+
+    if(m_arguments != p.params.size())
+    {
+        error(token.row, token.column,
+              "Numero de argumentos incorrecto en la llamada a", p.name);
+    }
+
+    add(newCommand(Action.CALL, Type.VOID, p.enter));
 }
 
 //------------------------------------------------------------------------
@@ -134,6 +327,23 @@ public void declareVariableString(Token token)
     declareVariable(Type.STRING);
 }
 
+//------------------------------------------------------------------------
+// El DECLARE de un vector saca su longitud de la pila, asi que se añade
+// despues de la expresion.
+public void declareVariableVector(Token token)
+{
+    m_token = token;
+    pushCtrl(newCommand(Action.DECLARE, Type.VECTOR,
+                        newVariable(Type.VECTOR)));
+}
+
+//------------------------------------------------------------------------
+public void addVectorLength(Token token)
+{
+    m_token = token;
+    add(popCtrl());
+}
+
 //------------------------------------------------------------------------
 public void addAssignment(Token token)
 {
@@ -148,6 +358,63 @@ public void addPrint(Token token)
     add(newCommand(Action.PRINT, Type.VOID, null));
 }
 
+//------------------------------------------------------------------------
+// Al validar, una variable no declarada se anota la primera vez que
+// aparece y se sustituye por otra del tipo que se espera, para no dar
+// errores de tipo por su causa.
+private Variable variable(Token token, Type tipo)
+{
+    Variable v = m_variables.get(token.name);
+
+    if(v != null)
+        return v;
+
+    if(m_diagnostics == null)
+    {
+        throw new RuntimeException(
+            "No existe la variable: "+ token.name);
+    }
+
+    v = m_undeclared.get(token.name);
+
+    if(v == null)
+    {
+        m_diagnostics.undeclared(token.row, token.column, token.name);
+        v = new Variable();
+        v.name = token.name;
+        v.type = tipo;
+        m_undeclared.put(token.name, v);
+    }
+
+    return v;
+}
+
+//------------------------------------------------------------------------
+public void addRead(Token token)
+{
+    m_token = token;
+    add(newCommand(Action.READ, Type.VOID, scalar(token)));
+}
+
+//------------------------------------------------------------------------
+public void addReadExpression(Token token)
+{
+    m_token = token;
+    add(newCommand(Action.READ, Type.BOOLEAN, scalar(token)));
+}
+
+//------------------------------------------------------------------------
+// Variable a la que se puede asignar un valor: entera o de tipo cadena.
+private Variable scalar(Token token)
+{
+    Variable v = variable(token, Type.INTEGER);
+
+    if(v.type == Type.VECTOR)
+        error("No se puede asignar el vector");
+
+    return v;
+}
+
 //------------------------------------------------------------------------
 private void pushCtrl(Command n)
 {
@@ -195,10 +462,41 @@ public void addWhile(Token token)
     pushCtrl(c);
 }
 
+//------------------------------------------------------------------------
+public void addParallelVariable(Token token)
+{
+    m_token = token;
+    Variable v = variable(token, Type.INTEGER);
+
+    if(v.type != Type.INTEGER)
+        error("No es entera la variable");
+
+    Command c = newCommand(Action.VARIABLE, Type.VOID, v);
+    add(c);
+    pushCtrl(c);
+}
+
+//------------------------------------------------------------------------
+public void addParallel(Token token)
+{
+    m_token = token;
+    Command c = newCommand(Action.PARALLEL, Type.VOID, null);
+    add(c);
+    pushCtrl(c);
+}
+
 //------------------------------------------------------------------------
 public void addEnd(Token token)
 {
     m_token = token;
+
+    if(!m_control.isEmpty() &&
+       m_control.getFirst().action == Action.PARALLEL)
+    {
+        addEndParallel();
+        return;
+    }
+
     Command gotoInicio = null;
 
     boolean bucle = m_control.size() >= 2 &&
@@ -223,449 +521,574 @@ public void addEnd(Token token)
 }
 
 //------------------------------------------------------------------------
-public void addVariableAssignment(Token token)
+// El cuerpo de un bucle paralelo termina con las variables de reduccion
+// y un END, que es el destino del comando PARALLEL.
+private void addEndParallel()
 {
-    m_token = token;
-    Variable v = m_variables.get(token.name);
+    Command paralelo = popCtrl();
+    Variable index = (Variable)popCtrl().value;
+    List<Command> body = reachable(paralelo.next);
 
-    if(v == null)
+    for(Command c : body)
     {
-        throw new RuntimeException(
-            "No existe la variable: "+ token.name);
+        // Las vueltas no se ejecutan en orden.
+        if(c.action == Action.READ)
+        {
+            error(c.row, c.column, "No se puede leer dentro de paralelo",
+                  null);
+        }
     }
 
-    add(newCommand(Action.VARIABLE, Type.VOID, v));
+    for(Variable v : reductions(body, index))
+        add(newCommand(Action.REDUCE, Type.VOID, v));
+
+    Command fin = newCommand(Action.END, Type.VOID, null);
+    add(fin);
+    paralelo.value = fin;
 }
 
 //------------------------------------------------------------------------
-public void addVariableExpression(Token token)
+// Comandos desde el indicado hasta el final seguidos de los de los
+// procedimientos a los que llaman, cada uno una vez.
+private static List<Command> reachable(Command first)
 {
-    m_token = token;
-    Variable v = m_variables.get(token.name);
+    List<Command> list = new ArrayList<>();
+    Set<Command> called = new HashSet<>();
 
-    if(v == null)
+    for(Command c = first; c != null; c = c.next)
+        list.add(c);
+
+    for(int i = 0; i < list.size(); i++)
     {
-        throw new RuntimeException(
-            "No existe la variable: "+ token.name);
+        Command c = list.get(i);
+
+        // Un procedimiento recursivo todavia no tiene RETURN.
+        if(c.action == Action.CALL && called.add((Command)c.value))
+        {
+            for(Command d = ((Command)c.value).next;
+                d != null && d.action != Action.RETURN; d = d.next)
+            {
+                list.add(d);
+            }
+        }
     }
 
-    add(newCommand(Action.VARIABLE, v.type, v));
+    return list;
 }
 
 //------------------------------------------------------------------------
-public void addInteger(Token token)
+// Variables de reduccion de un bucle paralelo: enteros que en el cuerpo
+// solo se usan en asignaciones v = v + e, donde e no depende de v. Como
+// la suma es conmutativa cada hilo puede acumular su parte por separado.
+private static List<Variable> reductions(List<Command> body, Variable index)
 {
-    m_token = token;
-    Object valor = Long.parseLong(token.name);
-    add(newCommand(Action.CONSTANT, Type.INTEGER, valor));
-}
+    Map<Variable,Boolean> candidates = new LinkedHashMap<>();
+    Set<Command> accumulators = new HashSet<>();
 
-//------------------------------------------------------------------------
-public void addString(Token token)
-{
-    m_token = token;
-    add(newCommand(Action.CONSTANT, Type.STRING, token.name));
+    for(int a = 0; a < body.size(); a++)
+    {
+        Command c = body.get(a);
+
+        if(c.action != Action.VARIABLE || c.type != Type.VOID)
+            continue;
+
+        Variable v = (Variable)c.value;
+        int z = assignment(body, a);
+
+        if(v.type == Type.INTEGER && v != index && z > a + 3 &&
+           isExpression(body.get(a + 1), v) &&
+           body.get(z - 1).action == Action.ADD &&
+           isOperand(body, a + 2, z - 1, v))
+        {
+            accumulators.add(body.get(a + 1));
+            candidates.putIfAbsent(v, true);
+        }
+        else
+        {
+            candidates.put(v, false);
+        }
+    }
+
+    // Cualquier otro uso impide la reduccion.
+    for(Command c : body)
+    {
+        if((c.action == Action.VARIABLE && c.type != Type.VOID &&
+            !accumulators.contains(c) || c.action == Action.PARAM ||
+            c.action == Action.DECLARE) && candidates.containsKey(c.value))
+        {
+            candidates.put((Variable)c.value, false);
+        }
+    }
+
+    List<Variable> list = new ArrayList<>();
+
+    for(Map.Entry<Variable,Boolean> e : candidates.entrySet())
+    {
+        if(e.getValue())
+            list.add(e.getKey());
+    }
+
+    return list;
 }
 
 //------------------------------------------------------------------------
-public void addOperator(String operator)
+// Posicion del ASSIGN de la asignacion que empieza en a, o -1.
+private static int assignment(List<Command> body, int a)
 {
-    Action action;
+    int depth = 0;
 
-    switch(operator)
+    for(int i = a + 1; i < body.size(); i++)
     {
-        case "+":  action = Action.ADD;       break;
-        case "-":  action = Action.SUBTRACT;  break;
-        case "-1": action = Action.NEGATE;    break;
-        case "*":  action = Action.MULTIPLY;  break;
-        case "/":  action = Action.DIVIDE;    break;
-        case "==": action = Action.EQUAL;     break;
-        case "!=": action = Action.UNEQUAL;   break;
-        case "<":  action = Action.LESS;      break;
-        case "<=": action = Action.LESSEQ;    break;
-        case ">":  action = Action.GREATER;   break;
-        case ">=": action = Action.GREATEREQ; break;
-        case "!":  action = Action.NOT;       break;
-        case "||": action = Action.OR;        break;
-        case "&&": action = Action.AND;       break;
-        default: throw new IllegalArgumentException(operator);
+        Command c = body.get(i);
+
+        if(c.action == Action.ASSIGN)
+            return depth == 1 ? i : -1;
+
+        if(!isOperation(c))
+            return -1;
+
+        depth += depth(c);
     }
 
-    add(newCommand(action, Type.VOID, null));
+    return -1;
 }
 
 //------------------------------------------------------------------------
-@Override public String toString()
+// Indica si los comandos desde from hasta to calculan un unico valor,
+// sin usar la variable indicada.
+private static boolean isOperand(List<Command> body, int from, int to,
+                                 Variable v)
 {
-    StringBuilder s = new StringBuilder();
-    Command n = m_first;
+    int depth = 0;
 
-    while(n != null)
+    for(int i = from; i < to; i++)
     {
-        s.append(String.format("%5d:  ", n.line));
+        Command c = body.get(i);
 
-        Type tipo = n.value instanceof Variable ?
-                      ((Variable)n.value).type : n.type;
-        switch(tipo)
-        {
-            case VOID:    s.append("     "); break;
-            case INTEGER: s.append("int  "); break;
-            case STRING:  s.append("str  "); break;
-            case BOOLEAN: s.append("bool "); break;
-            default: throw new AssertionError();
-        }
+        if(c.action == Action.VARIABLE && c.value == v)
+            return false;
 
-        switch(n.action)
-        {
-            case DECLARE:   s.append("decl  "); break;
-            case ASSIGN:    s.append(":=    "); break;
-            case PRINT:     s.append("print "); break;
-            case IF:        s.append("if    "); break;
-            case ELSE:      s.append("else  "); break;
-            case WHILE:     s.append("while "); break;
-            case GOTO:      s.append("goto  "); break;
-            case END:       s.append("end   "); break;
-            case VARIABLE:  s.append("var   "); break;
-            case CONSTANT:  s.append("cte   "); break;
-            case ADD:       s.append("+     "); break;
-            case SUBTRACT:  s.append("-     "); break;
-            case NEGATE:    s.append("-1    "); break;
-            case MULTIPLY:  s.append("*     "); break;
-            case DIVIDE:    s.append("/     "); break;
-            case EQUAL:     s.append("==    "); break;
-            case UNEQUAL:   s.append("!=    "); break;
-            case LESS:      s.append("<     "); break;
-            case LESSEQ:    s.append("<=    "); break;
-            case GREATER:   s.append(">     "); break;
-            case GREATEREQ: s.append("<=    "); break;
-            case NOT:       s.append("!     "); break;
-            case OR:        s.append("||    "); break;
-            case AND:       s.append("&&    "); break;
-            default: throw new AssertionError();
-        }
+        depth += depth(c);
 
-        if(n.value instanceof Variable)
-            s.append(((Variable)n.value).name);
-        else if(n.action == Action.GOTO || n.action == Action.IF)
-            s.append(((Command)n.value).line);
-        else if(n.type == Type.STRING)
-            s.append("\""+ n.value +"\"");
-        else if(n.type == Type.INTEGER)
-            s.append(n.value);
-
-        s.append("\n");
-        n = n.next;
+        if(depth < 1)
+            return false;
     }
 
-    return s.toString();
+    return depth == 1;
 }
 
 //------------------------------------------------------------------------
-private void stackPush(Type type, Object value)
+private static boolean isExpression(Command c, Variable v)
 {
-    Node n  = new Node();
-    n.type  = type;
-    n.value = value;
-    m_stack.addFirst(n);
+    return c.action == Action.VARIABLE && c.type != Type.VOID &&
+           c.value == v;
 }
 
 //------------------------------------------------------------------------
-private Node stackPop()
+private static boolean isOperation(Command c)
 {
-    if(m_stack.isEmpty())
-        throw new RuntimeException("Pila vacia.");
-
-    return m_stack.removeFirst();
+    switch(c.action)
+    {
+        case VARIABLE:
+            return c.type != Type.VOID;
+        case CONSTANT: case ADD: case SUBTRACT: case NEGATE: case MULTIPLY:
+        case DIVIDE: case EQUAL: case UNEQUAL: case LESS: case LESSEQ:
+        case GREATER: case GREATEREQ: case NOT: case OR: case AND:
+        case LOAD: case SUM:
+            return true;
+        default:
+            return false;
+    }
 }
 
 //------------------------------------------------------------------------
-private void checkTypes(Command c, Node n1, Type t2)
+// Cambio en la pila de un comando de una expresion.
+private static int depth(Command c)
 {
-    if(n1.type != t2)
+    switch(c.action)
     {
-        throw new RuntimeException(
-            "Tipos incompatibles en "+ c.row +"."+ c.column);
+        case VARIABLE: case CONSTANT:   return 1;
+        case NEGATE: case NOT: case SUM: return 0;
+        default:                        return -1;
     }
 }
 
 //------------------------------------------------------------------------
-private RunCommand newRunNext()
+public void addVariableAssignment(Token token)
 {
-    return c -> c.next;
+    m_token = token;
+    add(newCommand(Action.VARIABLE, Type.VOID, scalar(token)));
 }
 
 //------------------------------------------------------------------------
-private RunCommand newRunAssign() { return c ->
+public void addVariableElement(Token token)
 {
-    Node n2 = stackPop(),
-         n1 = stackPop();
+    m_token = token;
+    Variable v = variable(token, Type.VECTOR);
 
-    if(n1.type != Type.VOID)
-        throw new RuntimeException("No es una variable de asignacion.");
+    if(v.type != Type.VECTOR)
+        error("No es un vector");
 
-    Variable v = (Variable)n1.value;
-    checkTypes(c, n2, v.type);
-    v.value = n2.value;
-    return c.next;
-};}
+    add(newCommand(Action.VARIABLE, Type.VOID, v));
+}
 
 //------------------------------------------------------------------------
-private RunCommand newRunPrint() { return c ->
+public void addElementAssignment(Token token)
 {
-    System.out.println(stackPop().value);
-    return c.next;
-};}
+    m_token = token;
+    add(newCommand(Action.STORE, Type.VOID, null));
+}
 
 //------------------------------------------------------------------------
-private RunCommand newRunIf() { return c ->
+public void addElement(Token token)
 {
-    Node n = stackPop();
-    checkTypes(c, n, Type.BOOLEAN);
-    return (Boolean)n.value ? c.next : (Command)c.value;
-};}
+    m_token = token;
+    add(newCommand(Action.LOAD, Type.VOID, null));
+}
 
 //------------------------------------------------------------------------
-private RunCommand newRunGoto()
+public void addFill(Token token)
 {
-    return c -> (Command)c.value;
+    m_token = token;
+    add(newCommand(Action.FILL, Type.VOID, null));
 }
 
 //------------------------------------------------------------------------
-private RunCommand newRunVariable() {return c ->
+public void addCopy(Token token)
 {
-    Variable v = (Variable)c.value;
-
-    if(c.type == Type.VOID)
-    {
-        // Variable de asignacion.
-        stackPush(c.type, c.value);
-    }
-    else
-    {
-        // Variable de expresion.
-        assert c.type == v.type;
-        stackPush(v.type, v.value);
-    }
+    m_token = token;
+    add(newCommand(Action.COPY, Type.VOID, null));
+}
 
-    return c.next;
-};}
+//------------------------------------------------------------------------
+public void addSort(Token token)
+{
+    m_token = token;
+    add(newCommand(Action.SORT, Type.VOID, null));
+}
 
 //------------------------------------------------------------------------
-private RunCommand newRunConstant() {return c ->
+public void addSum(Token token)
 {
-    stackPush(c.type, c.value);
-    return c.next;
-};}
+    m_token = token;
+    add(newCommand(Action.SUM, Type.VOID, null));
+}
 
 //------------------------------------------------------------------------
-private RunCommand newRunAdd() {return c ->
+public void addVariableExpression(Token token)
 {
-    Node n2 = stackPop(),
-         n1 = stackPop();
+    m_token = token;
+    Variable v = variable(token, Type.INTEGER);
+    add(newCommand(Action.VARIABLE, v.type, v));
+}
 
-    if(n1.type == Type.STRING || n2.type == Type.STRING)
-    {
-        stackPush(Type.STRING, n1.value +""+ n2.value);
-    }
-    else
-    {
-        checkTypes(c, n1, Type.INTEGER);
-        checkTypes(c, n2, Type.INTEGER);
-        stackPush(Type.INTEGER, (Long)n1.value + (Long)n2.value);
-    }
+//------------------------------------------------------------------------
+public void addInteger(Token token)
+{
+    m_token = token;
+    Object valor = Long.parseLong(token.name);
+    add(newCommand(Action.CONSTANT, Type.INTEGER, valor));
+}
 
-    return c.next;
-};}
+//------------------------------------------------------------------------
+public void addString(Token token)
+{
+    m_token = token;
+    add(newCommand(Action.CONSTANT, Type.STRING, token.name));
+}
 
 //------------------------------------------------------------------------
-private RunCommand newRunSubtract() {return c ->
+public void addOperator(String operator)
 {
-    Node n2 = stackPop(),
-         n1 = stackPop();
+    Action action;
 
-    checkTypes(c, n1, Type.INTEGER);
-    checkTypes(c, n2, Type.INTEGER);
-    stackPush(Type.INTEGER, (Long)n1.value - (Long)n2.value);
-    return c.next;
-};}
+    switch(operator)
+    {
+        case "+":  action = Action.ADD;       break;
+        case "-":  action = Action.SUBTRACT;  break;
+        case "-1": action = Action.NEGATE;    break;
+        case "*":  action = Action.MULTIPLY;  break;
+        case "/":  action = Action.DIVIDE;    break;
+        case "==": action = Action.EQUAL;     break;
+        case "!=": action = Action.UNEQUAL;   break;
+        case "<":  action = Action.LESS;      break;
+        case "<=": action = Action.LESSEQ;    break;
+        case ">":  action = Action.GREATER;   break;
+        case ">=": action = Action.GREATEREQ; break;
+        case "!":  action = Action.NOT;       break;
+        case "||": action = Action.OR;        break;
+        case "&&": action = Action.AND;       break;
+        default: throw new IllegalArgumentException(operator);
+    }
+
+    add(newCommand(action, Type.VOID, null));
+}
 
 //------------------------------------------------------------------------
-private RunCommand newRunNegate() {return c ->
+/**
+ * Indica si el programa declara fuera de los procedimientos una
+ * variable entera o de tipo cadena, que puede recibir su valor antes
+ * de ejecutarse.
+ * @param name Nombre de la variable.
+ * @return true si está declarada.
+ */
+public boolean isDeclared(String name)
 {
-    Node n = stackPop();
-    checkTypes(c, n, Type.INTEGER);
-    stackPush(Type.INTEGER, -(Long)n.value);
-    return c.next;
-};}
+    Variable v = m_variables.get(name);
+    return v != null && !v.name.startsWith("$") && v.name.indexOf('.') < 0 &&
+           v.type != Type.VECTOR;
+}
 
 //------------------------------------------------------------------------
-private RunCommand newRunMultiply() {return c ->
+/**
+ * Indica las variables declaradas que reciben su valor antes de cada
+ * ejecución con {@link ExecutionContext#setInteger(int, long)} o
+ * {@link ExecutionContext#setString(int, String)}. Se debe llamar antes
+ * de optimizar para que las pasadas no supongan que empiezan con su
+ * valor inicial.
+ * @param names Nombres de las variables.
+ */
+public void setInputs(String... names)
 {
-    Node n2 = stackPop(),
-         n1 = stackPop();
+    for(String name : names)
+    {
+        if(!isDeclared(name))
+            throw new IllegalArgumentException("No existe la variable: "+ name);
 
-    checkTypes(c, n1, Type.INTEGER);
-    checkTypes(c, n2, Type.INTEGER);
-    stackPush(Type.INTEGER, (Long)n1.value * (Long)n2.value);
-    return c.next;
-};}
+        m_variables.get(name).input = true;
+    }
+}
 
 //------------------------------------------------------------------------
-private RunCommand newRunDivide() {return c ->
+/**
+ * Optimiza el código generado con las pasadas del nivel
+ * {@link PassManager#DEFAULT_LEVEL}.
+ */
+public void optimize()
 {
-    Node n2 = stackPop(),
-         n1 = stackPop();
-
-    checkTypes(c, n1, Type.INTEGER);
-    checkTypes(c, n2, Type.INTEGER);
-    stackPush(Type.INTEGER, (Long)n1.value / (Long)n2.value);
-    return c.next;
-};}
+    optimize(PassManager.level(PassManager.DEFAULT_LEVEL));
+}
 
 //------------------------------------------------------------------------
-private RunCommand newRunEqual() {return c ->
+/**
+ * Optimiza el código generado.
+ * @param passes Pasadas que se aplican.
+ */
+public void optimize(PassManager passes)
 {
-    Node n2 = stackPop(),
-         n1 = stackPop();
-
-    checkTypes(c, n1, Type.INTEGER);
-    checkTypes(c, n2, Type.INTEGER);
-    stackPush(Type.BOOLEAN, n1.value.equals(n2.value));
-    return c.next;
-};}
+    passes.run(this);
+}
 
 //------------------------------------------------------------------------
-private RunCommand newRunUnequal() {return c ->
+/**
+ * Optimiza el código con el perfil de una ejecución: elige las
+ * superinstrucciones del programa y pone primero la rama más frecuente
+ * de cada {@code si} con {@code sino}. Se debe llamar después de las
+ * demás optimizaciones.
+ * @param profile Perfil de una ejecución de {@link #program()}.
+ */
+public void applyProfile(Profile profile)
 {
-    Node n2 = stackPop(),
-         n1 = stackPop();
+    if(profile.program() != program())
+        throw new IllegalArgumentException("El perfil es de otro programa.");
 
-    checkTypes(c, n1, Type.INTEGER);
-    checkTypes(c, n2, Type.INTEGER);
-    stackPush(Type.BOOLEAN, !n1.value.equals(n2.value));
-    return c.next;
-};}
+    m_super = new ProfileGuided(this, profile).apply();
+    m_program = null;
+}
 
 //------------------------------------------------------------------------
-private RunCommand newRunLess() {return c ->
+Command first()
 {
-    Node n2 = stackPop(),
-         n1 = stackPop();
-
-    checkTypes(c, n1, Type.INTEGER);
-    checkTypes(c, n2, Type.INTEGER);
-    stackPush(Type.BOOLEAN, (Long)n1.value < (Long)n2.value);
-    return c.next;
-};}
+    return m_first;
+}
 
 //------------------------------------------------------------------------
-private RunCommand newRunLessEq() {return c ->
+// Sustituye la lista de comandos y vuelve a numerar las lineas.
+void relink(Command first)
 {
-    Node n2 = stackPop(),
-         n1 = stackPop();
+    int line = 0;
+    m_first = first;
+    m_last = null;
+    m_program = null;
 
-    checkTypes(c, n1, Type.INTEGER);
-    checkTypes(c, n2, Type.INTEGER);
-    stackPush(Type.BOOLEAN, (Long)n1.value <= (Long)n2.value);
-    return c.next;
-};}
+    for(Command c = first; c != null; c = c.next)
+    {
+        c.line = line++;
+        m_last = c;
+    }
+}
 
 //------------------------------------------------------------------------
-private RunCommand newRunGreater() {return c ->
+// Crea una variable auxiliar. Su nombre no puede coincidir con el de
+// una variable del programa.
+Variable temporary(Type tipo)
 {
-    Node n2 = stackPop(),
-         n1 = stackPop();
+    Variable v = new Variable();
+    v.slot = m_variables.size();
+    v.name = "$t"+ v.slot;
+    v.type = tipo;
+    m_variables.put(v.name, v);
+    return v;
+}
 
-    checkTypes(c, n1, Type.INTEGER);
-    checkTypes(c, n2, Type.INTEGER);
-    stackPush(Type.BOOLEAN, (Long)n1.value > (Long)n2.value);
-    return c.next;
-};}
+//------------------------------------------------------------------------
+/**
+ * Número de comandos generados.
+ * @return número de comandos.
+ */
+public int size()
+{
+    return m_last == null ? 0 : m_last.line + 1;
+}
 
 //------------------------------------------------------------------------
-private RunCommand newRunGreaterEq() {return c ->
+/**
+ * Obtiene el programa ejecutable correspondiente al código generado.
+ * @return programa listo para ejecutarse.
+ */
+public Program program()
 {
-    Node n2 = stackPop(),
-         n1 = stackPop();
+    if(m_program != null)
+        return m_program;
+
+    Events.Codegen event = new Events.Codegen();
+
+    if(event.isEnabled())
+    {
+        event.allocated = Events.allocated();
+        event.begin();
+    }
+
+    int n = size();
+    String names[] = new String[m_variables.size()];
+    byte slotType[] = new byte[names.length];
+
+    for(Variable v : m_variables.values())
+    {
+        names[v.slot] = v.name;
+        slotType[v.slot] = (byte)v.type.ordinal();
+    }
+
+    byte action[] = new byte[n], type[] = new byte[n];
+    long operand[] = new long[n];
+    int row[] = new int[n], column[] = new int[n];
+    Map<String,Integer> strings = new LinkedHashMap<>();
+
+    for(Command c = m_first; c != null; c = c.next)
+    {
+        int pc = c.line;
+        action[pc] = (byte)c.action.ordinal();
+        type[pc]   = (byte)c.type.ordinal();
+        row[pc]    = c.row;
+        column[pc] = c.column;
+
+        if(c.value instanceof Variable)
+            operand[pc] = ((Variable)c.value).slot;
+        else if(c.value instanceof Command)
+            operand[pc] = ((Command)c.value).line;
+        else if(c.value instanceof Long)
+            operand[pc] = (Long)c.value;
+        else if(c.value instanceof String)
+            operand[pc] = strings.computeIfAbsent((String)c.value,
+                                                  k -> strings.size());
+    }
+
+    m_program = new Program(names, slotType, action, type, operand,
+                            strings.keySet().toArray(new String[0]),
+                            new LineTable(row, column), m_super);
+
+    if(m_started != 0)
+    {
+        Metrics.compiled(System.nanoTime() - m_started);
+        m_started = 0;
+    }
+
+    if(event.shouldCommit())
+    {
+        event.end();
+        event.instructions = n;
+        event.slots        = names.length;
+        event.maxStack     = m_program.maxStack();
+        event.allocated    = Events.allocated() - event.allocated;
+        event.commit();
+    }
 
-    checkTypes(c, n1, Type.INTEGER);
-    checkTypes(c, n2, Type.INTEGER);
-    stackPush(Type.BOOLEAN, (Long)n1.value >= (Long)n2.value);
-    return c.next;
-};}
+    return m_program;
+}
 
 //------------------------------------------------------------------------
-private RunCommand newRunNot() {return c ->
+/**
+ * Guarda el programa generado en un fichero binario.
+ * @param fichero Fichero de destino.
+ * @throws IOException
+ * @see Program#read(String)
+ */
+public void write(String fichero) throws IOException
 {
-    Node n = stackPop();
-    checkTypes(c, n, Type.BOOLEAN);
-    stackPush(Type.BOOLEAN, !(Boolean)n.value);
-    return c.next;
-};}
+    program().write(fichero);
+}
 
 //------------------------------------------------------------------------
-private RunCommand newRunOr() {return c ->
+@Override public String toString()
 {
-    Node n2 = stackPop(),
-         n1 = stackPop();
-
-    checkTypes(c, n1, Type.BOOLEAN);
-    checkTypes(c, n2, Type.BOOLEAN);
-    stackPush(Type.BOOLEAN, (Boolean)n1.value || (Boolean)n2.value);
-    return c.next;
-};}
+    return program().toString();
+}
 
 //------------------------------------------------------------------------
-private RunCommand newRunAnd() {return c ->
+/**
+ * Indica dónde se debe escribir la salida de {@code imprimir}.
+ * Por defecto se escribe en la salida estándar.
+ * @param out Destino de la salida.
+ */
+public void setOutput(OutputSink out)
 {
-    Node n2 = stackPop(),
-         n1 = stackPop();
-
-    checkTypes(c, n1, Type.BOOLEAN);
-    checkTypes(c, n2, Type.BOOLEAN);
-    stackPush(Type.BOOLEAN, (Boolean)n1.value && (Boolean)n2.value);
-    return c.next;
-};}
+    m_out = Objects.requireNonNull(out);
+}
 
 //------------------------------------------------------------------------
-private void inicializarRun()
+/**
+ * Registra las últimas instrucciones de cada ejecución en una traza que
+ * se vuelca a un fichero si falla.
+ * @param records Número de instrucciones que se conservan.
+ * @param fichero Fichero donde se vuelca la traza.
+ * @return traza, que también se puede volcar con
+ *         {@link Trace#dump(String)} al terminar.
+ */
+public Trace setTrace(int records, String fichero)
 {
-    RunCommand runNext = newRunNext();
+    m_trace = new Trace(program(), records);
+    m_trace.dumpOnError(fichero);
+    return m_trace;
+}
 
-    m_run[Action.DECLARE  .ordinal()] = runNext;
-    m_run[Action.ASSIGN   .ordinal()] = newRunAssign();
-    m_run[Action.PRINT    .ordinal()] = newRunPrint();
-    m_run[Action.IF       .ordinal()] = newRunIf();
-    m_run[Action.ELSE     .ordinal()] = runNext;
-    m_run[Action.WHILE    .ordinal()] = runNext;
-    m_run[Action.GOTO     .ordinal()] = newRunGoto();
-    m_run[Action.END      .ordinal()] = runNext;
-    m_run[Action.VARIABLE .ordinal()] = newRunVariable();
-    m_run[Action.CONSTANT .ordinal()] = newRunConstant();
-    m_run[Action.ADD      .ordinal()] = newRunAdd();
-    m_run[Action.SUBTRACT .ordinal()] = newRunSubtract();
-    m_run[Action.NEGATE   .ordinal()] = newRunNegate();
-    m_run[Action.MULTIPLY .ordinal()] = newRunMultiply();
-    m_run[Action.DIVIDE   .ordinal()] = newRunDivide();
-    m_run[Action.EQUAL    .ordinal()] = newRunEqual();
-    m_run[Action.UNEQUAL  .ordinal()] = newRunUnequal();
-    m_run[Action.LESS     .ordinal()] = newRunLess();
-    m_run[Action.LESSEQ   .ordinal()] = newRunLessEq();
-    m_run[Action.GREATER  .ordinal()] = newRunGreater();
-    m_run[Action.GREATEREQ.ordinal()] = newRunGreaterEq();
-    m_run[Action.NOT      .ordinal()] = newRunNot();
-    m_run[Action.OR       .ordinal()] = newRunOr();
-    m_run[Action.AND      .ordinal()] = newRunAnd();
+//------------------------------------------------------------------------
+/**
+ * Indica de dónde lee la sentencia {@code leer}. Por defecto se lee la
+ * entrada estándar.
+ * @param in Origen de la entrada.
+ */
+public void setInput(InputSource in)
+{
+    m_in = Objects.requireNonNull(in);
 }
 
 //------------------------------------------------------------------------
 public void run()
 {
-    inicializarRun();
-    Command c = m_first;
+    if(m_out == null)
+        m_out = OutputSink.stdout();
+
+    if(m_in == null)
+        m_in = InputSource.stdin();
+
+    ExecutionContext x = new ExecutionContext(program(), m_out);
+    x.setInput(m_in);
+
+    // Si el codigo ha cambiado desde que se creo, la traza ya no vale.
+    if(m_trace != null && m_trace.program() == program())
+        x.setTrace(m_trace);
 
-    while(c != null)
-        c = m_run[c.action.ordinal()].run(c);
+    program().run(x);
 }
 
 } // Code
@@ -0,0 +1,251 @@
+package tal;
+
+import java.io.*;
+import java.nio.file.*;
+import java.security.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Caché de programas compilados.
+ * <p>La clave es un resumen SHA-256 de la versión del compilador y de
+ * los bytes del programa fuente, de modo que un programa que no ha
+ * cambiado no vuelve a pasar por <code>AFD</code>, <code>ADR</code>
+ * ni por la generación de código.
+ * <p>Tiene un nivel en memoria, que descarta los programas usados hace
+ * más tiempo cuando se llena, y un nivel opcional en disco que guarda
+ * los programas con {@link Program#write(String)}.
+ * <p>Los programas devueltos son inmutables y se pueden ejecutar a la
+ * vez desde varios hilos, cada uno con su {@link ExecutionContext}.
+ */
+public class CodeCache
+{
+private final int m_size;
+private final Path m_directory;
+private final Map<String,Program> m_memory;
+
+private final AtomicLong m_hits      = new AtomicLong(),
+                         m_diskHits  = new AtomicLong(),
+                         m_misses    = new AtomicLong(),
+                         m_evictions = new AtomicLong();
+
+/**
+ * Construye una caché solo en memoria.
+ * @param size Número máximo de programas en memoria.
+ */
+public CodeCache(int size)
+{
+    this(size, null);
+}
+
+/**
+ * Construye una caché en memoria y en disco.
+ * @param size Número máximo de programas en memoria.
+ * @param directorio Directorio para los programas compilados,
+ *                   o {@code null} para no usar el disco.
+ */
+public CodeCache(int size, String directorio)
+{
+    if(size < 1)
+        throw new IllegalArgumentException("size: "+ size);
+
+    m_size = size;
+    m_directory = directorio == null ? null : Paths.get(directorio);
+    m_memory = new LinkedHashMap<String,Program>(16, 0.75f, true)
+    {
+        @Override protected boolean removeEldestEntry(
+            Map.Entry<String,Program> eldest)
+        {
+            if(size() <= m_size)
+                return false;
+
+            m_evictions.incrementAndGet();
+            return true;
+        }
+    };
+}
+
+/**
+ * Obtiene el programa compilado de un fichero fuente.
+ * @param fichero Fichero fuente.
+ * @return programa listo para ejecutarse.
+ * @throws IOException
+ */
+public Program compile(String fichero) throws IOException
+{
+    return compile(Files.readAllBytes(Paths.get(fichero)));
+}
+
+/**
+ * Obtiene el programa compilado de un texto fuente.
+ * @param fuente Bytes del programa fuente.
+ * @return programa listo para ejecutarse.
+ * @throws IOException
+ */
+public Program compile(byte fuente[]) throws IOException
+{
+    String key = key(fuente);
+    Program code;
+
+    synchronized(m_memory)
+    {
+        code = m_memory.get(key);
+    }
+
+    if(code != null)
+    {
+        m_hits.incrementAndGet();
+        Metrics.cacheHit();
+        return code;
+    }
+
+    Path file = m_directory == null ? null
+                                    : m_directory.resolve(key +".talc");
+
+    if(file != null && Files.isRegularFile(file))
+    {
+        try
+        {
+            code = Program.read(file.toString());
+            m_diskHits.incrementAndGet();
+            Metrics.cacheDiskHit();
+        }
+        catch(IOException ex)
+        {
+            // Fichero dañado o de otra version: se vuelve a compilar.
+            code = null;
+        }
+    }
+
+    if(code == null)
+    {
+        m_misses.incrementAndGet();
+        Metrics.cacheMiss();
+        ADR adr = new ADR(new AFD(new InputStreamReader(
+                              new ByteArrayInputStream(fuente))),
+                          TokenPipe.worthwhile(fuente.length));
+
+        try
+        {
+            adr.programa();
+        }
+        finally
+        {
+            adr.close();
+        }
+
+        code = adr.code().program();
+
+        if(file != null)
+            store(code, file);
+    }
+
+    synchronized(m_memory)
+    {
+        m_memory.put(key, code);
+    }
+
+    return code;
+}
+
+//------------------------------------------------------------------------
+private static void store(Program code, Path file) throws IOException
+{
+    Files.createDirectories(file.getParent());
+    Path tmp = Files.createTempFile(file.getParent(), "tal", ".tmp");
+
+    try
+    {
+        code.write(tmp.toString());
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING,
+                              StandardCopyOption.ATOMIC_MOVE);
+    }
+    finally
+    {
+        Files.deleteIfExists(tmp);
+    }
+}
+
+//------------------------------------------------------------------------
+private static String key(byte fuente[])
+{
+    MessageDigest md;
+
+    try
+    {
+        md = MessageDigest.getInstance("SHA-256");
+    }
+    catch(NoSuchAlgorithmException ex)
+    {
+        throw new AssertionError(ex);
+    }
+
+    int v = Code.VERSION;
+    md.update(new byte[] {(byte)(v >>> 24), (byte)(v >>> 16),
+                          (byte)(v >>> 8),  (byte)v});
+    md.update(fuente);
+
+    StringBuilder sb = new StringBuilder();
+
+    for(byte b : md.digest())
+        sb.append(String.format("%02x", b));
+
+    return sb.toString();
+}
+
+/**
+ * Vacía el nivel en memoria de la caché.
+ */
+public void clear()
+{
+    synchronized(m_memory)
+    {
+        m_memory.clear();
+    }
+}
+
+/**
+ * Número de programas encontrados en memoria.
+ * @return aciertos en memoria.
+ */
+public long hits()
+{
+    return m_hits.get();
+}
+
+/**
+ * Número de programas encontrados en disco.
+ * @return aciertos en disco.
+ */
+public long diskHits()
+{
+    return m_diskHits.get();
+}
+
+/**
+ * Número de programas que se han tenido que compilar.
+ * @return fallos.
+ */
+public long misses()
+{
+    return m_misses.get();
+}
+
+/**
+ * Número de programas descartados de memoria por falta de espacio.
+ * @return programas descartados.
+ */
+public long evictions()
+{
+    return m_evictions.get();
+}
+
+//------------------------------------------------------------------------
+@Override public String toString()
+{
+    return "CodeCache: "+ hits() +" aciertos, "+ diskHits() +
+           " en disco, "+ misses() +" fallos, "+ evictions() +
+           " descartes";
+}
+
+} // CodeCache
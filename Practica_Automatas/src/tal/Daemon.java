@@ -0,0 +1,397 @@
+package tal;
+
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.nio.file.attribute.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Servidor que mantiene la máquina virtual en marcha para compilar y
+ * ejecutar programas sin pagar el arranque en cada invocación.
+ * <p>Escucha en un socket local de dominio Unix. Cada petición indica
+ * un fichero fuente o el texto del programa; los programas compilados
+ * se guardan en una {@link CodeCache} y la salida se devuelve al
+ * cliente a medida que se produce.
+ * <p>Protocolo: el cliente envía un byte {@code 'P'} (ruta) o
+ * {@code 'T'} (texto) seguido de la longitud y los bytes del
+ * contenido. El servidor responde con bloques formados por un byte de
+ * tipo, la longitud y los datos: bloques {@code 'O'} con la salida y
+ * un último bloque {@code 'R'} con el estado de la ejecución y el
+ * mensaje de error. Los bloques de más de {@value #MAX_FRAME} bytes se
+ * rechazan.
+ * <p>Solo el propietario del servidor puede conectarse al socket, ya que
+ * el servidor compila cualquier fichero que pueda leer.
+ */
+public class Daemon implements Closeable
+{
+private static final byte PATH = 'P', TEXT = 'T', OUTPUT = 'O', RESULT = 'R';
+
+// Longitud maxima de una peticion o de un bloque de la respuesta, para
+// que un cliente no pueda hacer que el servidor reserve mucha memoria.
+private static final int MAX_FRAME = 1 << 24;
+
+// Programa para calentar el compilador y el interprete al arrancar.
+private static final String WARMUP =
+    "entero n entero d cadena s n = 2\n"+
+    "mientras(n < 60) d = 2\n"+
+    "  mientras(d*d <= n && n/d*d != n) d = d+1 fin\n"+
+    "  si(d*d > n) s = s + n + \" \" sino s = s + \"\" fin\n"+
+    "  n = n+1\n"+
+    "fin imprimir(s)\n";
+
+private final Path m_path;
+private final ServerSocketChannel m_server;
+private final CodeCache m_cache;
+private final ScriptService m_service;
+private final ExecutorService m_connections =
+    Executors.newCachedThreadPool(r ->
+{
+    Thread t = new Thread(r, "tal-daemon");
+    t.setDaemon(true);
+    return t;
+});
+
+/**
+ * Construye el servidor y abre el socket, al que solo puede acceder el
+ * propietario.
+ * @param socket Fichero del socket. Si es el socket de un servidor que
+ *               ya no está en marcha se sustituye.
+ * @param cache Caché de programas compilados.
+ * @param service Servicio que ejecuta los programas.
+ * @throws IOException si el fichero existe y no es un socket abandonado.
+ */
+public Daemon(String socket, CodeCache cache, ScriptService service)
+    throws IOException
+{
+    m_path    = Paths.get(socket);
+    m_cache   = cache;
+    m_service = service;
+
+    if(Files.exists(m_path, LinkOption.NOFOLLOW_LINKS))
+    {
+        if(!isSocket(m_path))
+            throw new FileAlreadyExistsException(socket, null,
+                                                 "No es un socket");
+        if(isListening(m_path))
+            throw new FileAlreadyExistsException(socket, null,
+                                                 "Hay otro servidor");
+
+        Files.delete(m_path);
+    }
+
+    m_server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+
+    try
+    {
+        m_server.bind(UnixDomainSocketAddress.of(m_path));
+        Files.setPosixFilePermissions(m_path,
+            EnumSet.of(PosixFilePermission.OWNER_READ,
+                       PosixFilePermission.OWNER_WRITE));
+    }
+    catch(IOException | RuntimeException ex)
+    {
+        m_server.close();
+        throw ex;
+    }
+}
+
+// Indica si un fichero es un socket, sin seguir los enlaces.
+private static boolean isSocket(Path p) throws IOException
+{
+    try
+    {
+        int mode = (Integer)Files.getAttribute(p, "unix:mode",
+                                               LinkOption.NOFOLLOW_LINKS);
+        return (mode & 0170000) == 0140000;
+    }
+    catch(UnsupportedOperationException | IllegalArgumentException ex)
+    {
+        // Sin la vista unix solo se sabe que no es un fichero normal, un
+        // directorio ni un enlace.
+        return Files.readAttributes(p, BasicFileAttributes.class,
+                                    LinkOption.NOFOLLOW_LINKS).isOther();
+    }
+}
+
+// Indica si hay un servidor escuchando en el socket.
+private static boolean isListening(Path p)
+{
+    try
+    {
+        SocketChannel.open(UnixDomainSocketAddress.of(p)).close();
+        return true;
+    }
+    catch(IOException ex)
+    {
+        return false;
+    }
+}
+
+/**
+ * Ejecuta varias veces un programa de ejemplo para que el compilador
+ * JIT optimice el analizador y el intérprete antes de la primera
+ * petición.
+ * @param veces Número de repeticiones.
+ */
+public void warmUp(int veces)
+{
+    byte source[] = WARMUP.getBytes(StandardCharsets.UTF_8);
+
+    for(int i = 0; i < veces; i++)
+    {
+        ADR adr = new ADR(new AFD(new StringReader(WARMUP)));
+        adr.programa();
+        adr.code().program().run(OutputSink.discard());
+    }
+
+    try
+    {
+        m_cache.compile(source);
+    }
+    catch(IOException ex)
+    {
+        throw new UncheckedIOException(ex);
+    }
+}
+
+/**
+ * Atiende peticiones hasta que se cierra el servidor.
+ * @throws IOException
+ */
+public void serve() throws IOException
+{
+    try
+    {
+        while(true)
+        {
+            SocketChannel ch = m_server.accept();
+            m_connections.execute(() -> handle(ch));
+        }
+    }
+    catch(ClosedChannelException ex)
+    {
+        // Servidor cerrado.
+    }
+}
+
+//------------------------------------------------------------------------
+private void handle(SocketChannel ch)
+{
+    try(SocketChannel c = ch)
+    {
+        ByteBuffer head = ByteBuffer.allocate(5);
+        readFully(c, head);
+        byte kind = head.get();
+        int length = head.getInt();
+
+        if((kind != PATH && kind != TEXT) || length < 0 || length > MAX_FRAME)
+        {
+            reply(c, ScriptService.Status.ERROR, "Peticion incorrecta: "+
+                  (char)kind +" de "+ length +" bytes");
+            return;
+        }
+
+        ByteBuffer body = ByteBuffer.allocate(length);
+        readFully(c, body);
+
+        FrameSink out = new FrameSink(c);
+        ScriptService.Status status;
+        String error;
+
+        try
+        {
+            Program p = kind == PATH
+                ? m_cache.compile(new String(body.array(),
+                                             StandardCharsets.UTF_8))
+                : m_cache.compile(body.array());
+
+            ScriptService.Result r = m_service.run(p, out);
+            status = r.status;
+            error  = r.error;
+        }
+        catch(IOException | RuntimeException ex)
+        {
+            out.flush();
+            status = ScriptService.Status.ERROR;
+            error  = String.valueOf(ex.getMessage());
+        }
+        catch(Error ex)
+        {
+            // Un programa que agota la memoria o la pila al compilarlo no
+            // debe cerrar la conexion sin respuesta.
+            out.flush();
+            status = ScriptService.Status.ERROR;
+            error  = ex.toString();
+        }
+
+        reply(c, status, error);
+    }
+    catch(IOException | UncheckedIOException ex)
+    {
+        // El cliente ha cerrado la conexion.
+    }
+}
+
+// Envia el bloque con el resultado de la ejecucion.
+private static void reply(SocketChannel c, ScriptService.Status status,
+                          String error) throws IOException
+{
+    byte msg[] = error == null ? new byte[0]
+                               : error.getBytes(StandardCharsets.UTF_8);
+
+    if(msg.length >= MAX_FRAME)
+        msg = Arrays.copyOf(msg, MAX_FRAME - 1);
+
+    ByteBuffer r = ByteBuffer.allocate(6 + msg.length);
+    r.put(RESULT).putInt(1 + msg.length);
+    r.put((byte)status.ordinal()).put(msg).flip();
+
+    while(r.hasRemaining())
+        c.write(r);
+}
+
+//------------------------------------------------------------------------
+private static void readFully(SocketChannel c, ByteBuffer b)
+    throws IOException
+{
+    while(b.hasRemaining())
+    {
+        if(c.read(b) < 0)
+            throw new EOFException();
+    }
+
+    b.flip();
+}
+
+/**
+ * Cierra el socket y termina el servidor.
+ * @throws IOException
+ */
+@Override public void close() throws IOException
+{
+    m_server.close();
+    m_connections.shutdown();
+    m_service.close();
+
+    // Si otro proceso ha puesto otro fichero en su lugar no se borra.
+    if(Files.exists(m_path, LinkOption.NOFOLLOW_LINKS) && isSocket(m_path))
+        Files.delete(m_path);
+}
+
+//------------------------------------------------------------------------
+// Envia la salida del programa al cliente en bloques.
+private static final class FrameSink extends OutputSink
+{
+    private final SocketChannel m_channel;
+    private final ByteBuffer m_head = ByteBuffer.allocate(5);
+
+    private FrameSink(SocketChannel channel)
+    {
+        super(1 << 14);
+        m_channel = channel;
+        setFlush(Flush.LINES, 256);
+    }
+
+    @Override protected void drain(ByteBuffer buffer) throws IOException
+    {
+        m_head.clear();
+        m_head.put(OUTPUT).putInt(buffer.remaining()).flip();
+
+        while(m_head.hasRemaining())
+            m_channel.write(m_head);
+
+        while(buffer.hasRemaining())
+            m_channel.write(buffer);
+    }
+}
+
+/**
+ * Envía una petición al servidor y copia la salida del programa en la
+ * salida estándar.
+ * @param socket Fichero del socket del servidor.
+ * @param fichero Fichero fuente, o {@code "-"} para enviar el texto
+ *                leído de la entrada estándar.
+ * @return estado de la ejecución.
+ * @throws IOException
+ */
+public static ScriptService.Status submit(String socket, String fichero)
+    throws IOException
+{
+    byte kind, body[];
+
+    if(fichero.equals("-"))
+    {
+        kind = TEXT;
+        body = System.in.readAllBytes();
+    }
+    else
+    {
+        kind = PATH;
+        body = Paths.get(fichero).toAbsolutePath().toString()
+                    .getBytes(StandardCharsets.UTF_8);
+    }
+
+    if(body.length > MAX_FRAME)
+        throw new IOException("Peticion demasiado grande: "+ body.length);
+
+    try(SocketChannel c = SocketChannel.open(
+            UnixDomainSocketAddress.of(socket)))
+    {
+        ByteBuffer req = ByteBuffer.allocate(5 + body.length);
+        req.put(kind).putInt(body.length).put(body).flip();
+
+        while(req.hasRemaining())
+            c.write(req);
+
+        WritableByteChannel stdout = Channels.newChannel(
+            new FileOutputStream(FileDescriptor.out));
+        ByteBuffer head = ByteBuffer.allocate(5);
+
+        while(true)
+        {
+            head.clear();
+            readFully(c, head);
+            byte type = head.get();
+            int length = head.getInt();
+
+            if((type != OUTPUT && type != RESULT) || length < 0 ||
+               length > MAX_FRAME || (type == RESULT && length == 0))
+            {
+                throw new IOException("Respuesta incorrecta: "+ (char)type +
+                                      " de "+ length +" bytes");
+            }
+
+            ByteBuffer block = ByteBuffer.allocate(length);
+            readFully(c, block);
+
+            if(type == RESULT)
+            {
+                int code = block.get();
+
+                if(code < 0 || code >= ScriptService.Status.values().length)
+                    throw new IOException("Estado incorrecto: "+ code);
+
+                ScriptService.Status status =
+                    ScriptService.Status.values()[code];
+
+                if(status != ScriptService.Status.OK)
+                {
+                    System.err.println(status +": "+
+                        StandardCharsets.UTF_8.decode(block));
+                }
+
+                return status;
+            }
+
+            while(block.hasRemaining())
+                stdout.write(block);
+        }
+    }
+}
+
+} // Daemon
@@ -0,0 +1,262 @@
+package tal;
+
+import java.util.*;
+
+/**
+ * Errores encontrados al validar un programa sin compilarlo.
+ * <p>Los errores se guardan en un buffer reservado al construirlo, de
+ * modo que anotarlos no construye excepciones ni cadenas: solo se guarda
+ * su posición y los tokens implicados. El texto de cada error, igual al
+ * de la excepción que se lanzaría al compilar, se construye al llamar a
+ * {@link #format(String)}. Si hay más errores que sitio se cuentan pero
+ * no se guardan.
+ * <p>Los errores del generador de código, como una variable no declarada,
+ * se anotan sin abandonar la sentencia y se sigue generando código para
+ * encontrar los siguientes. Después de cualquier otro error el código
+ * ya no tiene sentido y se deja de generar.
+ * <p>Se puede reutilizar para varios programas llamando a
+ * {@link #reset()} antes de cada uno.
+ * @see ADR#ADR(ALex, Diagnostics)
+ */
+public final class Diagnostics
+{
+// Tipos de error.
+private static final byte LEXICAL = 0, SYNTAX = 1, SEMANTIC = 2,
+                          UNTERMINATED = 3, UNDECLARED = 4, CODE = 5;
+
+private final byte m_kind[];
+private final int m_row[], m_column[];
+
+// Caracter no permitido o token esperado.
+private final int m_value[];
+
+// Token encontrado o mensaje del error semantico o del token sin terminar.
+private final Object m_object[];
+
+// Nombre al que se refiere un error del generador de codigo.
+private final String m_name[];
+
+private int m_count, m_lastRow, m_lastColumn;
+
+// Se ha llegado al final del fichero dentro de una cadena o un comentario.
+private boolean m_ended;
+
+// Ha habido algun error despues del cual no se genera codigo.
+private boolean m_stopped;
+private long m_total;
+
+//------------------------------------------------------------------------
+/**
+ * Construye un buffer de errores vacío.
+ * @param capacity Número de errores que se guardan como mucho.
+ */
+public Diagnostics(int capacity)
+{
+    if(capacity <= 0)
+        throw new IllegalArgumentException("capacity: "+ capacity);
+
+    m_kind   = new byte[capacity];
+    m_row    = new int[capacity];
+    m_column = new int[capacity];
+    m_value  = new int[capacity];
+    m_object = new Object[capacity];
+    m_name   = new String[capacity];
+}
+
+/**
+ * Descarta los errores anotados.
+ */
+public void reset()
+{
+    Arrays.fill(m_object, 0, m_count, null);
+    Arrays.fill(m_name, 0, m_count, null);
+    m_count = 0;
+    m_total = 0;
+    m_ended = false;
+    m_stopped = false;
+}
+
+/**
+ * Número de errores encontrados, incluidos los que no caben.
+ * @return errores encontrados.
+ */
+public long total()
+{
+    return m_total;
+}
+
+/**
+ * Indica si se puede seguir generando código, porque solo ha habido
+ * errores del generador de código.
+ * @return {@code true} si se sigue generando código.
+ */
+public boolean generating()
+{
+    return !m_stopped;
+}
+
+/**
+ * Número de errores guardados.
+ * @return errores guardados.
+ */
+public int count()
+{
+    return m_count;
+}
+
+//------------------------------------------------------------------------
+// Caracter no permitido por el analizador lexico.
+void lexical(int row, int column, char c)
+{
+    add(LEXICAL, row, column, c, null, null);
+}
+
+// Cadena o comentario sin cerrar al final del fichero, en la posicion
+// en que empieza. Los errores que vengan despues estan en el final del
+// fichero y son consecuencia de este.
+void unterminated(int row, int column, String message)
+{
+    add(UNTERMINATED, row, column, 0, message, null);
+    m_ended = true;
+}
+
+// Token distinto del que pide la gramatica.
+void syntax(Token found, Token.Type expected)
+{
+    add(SYNTAX, found.row, found.column, expected.ordinal(), found, null);
+}
+
+// Error al generar el codigo, con el mensaje de la excepcion.
+void semantic(Token at, String message)
+{
+    add(SEMANTIC, at.row, at.column, 0, message, null);
+}
+
+// Variable no declarada. El generador usa otra en su lugar y sigue.
+void undeclared(int row, int column, String name)
+{
+    add(UNDECLARED, row, column, 0, null, name);
+}
+
+// Error del generador de codigo que no le impide seguir, con un mensaje
+// fijo y el nombre al que se refiere, o null.
+void semantic(int row, int column, String message, String name)
+{
+    add(CODE, row, column, 0, message, name);
+}
+
+// Deja de generar codigo despues de un error del generador que deja el
+// codigo sin sentido, como un procedimiento dentro de otro.
+void stop()
+{
+    m_stopped = true;
+}
+
+// Un error en la misma posicion que el anterior es consecuencia de aquel,
+// como el fin de un bloque que ya se ha abandonado, y no se anota.
+private void add(byte kind, int row, int column, int value, Object object,
+                 String name)
+{
+    if(kind != UNDECLARED && kind != CODE)
+        m_stopped = true;
+
+    if(m_ended || m_total > 0 && row == m_lastRow && column == m_lastColumn)
+        return;
+
+    m_total++;
+    m_lastRow = row;
+    m_lastColumn = column;
+
+    if(m_count == m_kind.length)
+        return;
+
+    m_kind[m_count]   = kind;
+    m_row[m_count]    = row;
+    m_column[m_count] = column;
+    m_value[m_count]  = value;
+    m_object[m_count] = object;
+    m_name[m_count]   = name;
+    m_count++;
+}
+
+//------------------------------------------------------------------------
+/**
+ * Fila de un error.
+ * @param i Número del error, menor que {@link #count()}.
+ * @return fila en el fichero fuente.
+ */
+public int row(int i)
+{
+    Objects.checkIndex(i, m_count);
+    return m_row[i];
+}
+
+/**
+ * Columna de un error.
+ * @param i Número del error, menor que {@link #count()}.
+ * @return columna en el fichero fuente.
+ */
+public int column(int i)
+{
+    Objects.checkIndex(i, m_count);
+    return m_column[i];
+}
+
+/**
+ * Texto de un error.
+ * @param i Número del error, menor que {@link #count()}.
+ * @return mensaje del error.
+ */
+public String message(int i)
+{
+    Objects.checkIndex(i, m_count);
+
+    switch(m_kind[i])
+    {
+        case LEXICAL:
+            return "Caracter no permitido en "+ m_row[i] +":"+
+                   m_column[i] +" : "+ (char)m_value[i];
+
+        case SYNTAX:
+            return "Error ("+ m_row[i] +":"+ m_column[i] +"): "+
+                   m_object[i] +". Esperaba: "+
+                   Token.Type.values()[m_value[i]];
+
+        case UNTERMINATED:
+            return m_object[i] +" en "+ m_row[i] +":"+ m_column[i];
+
+        case UNDECLARED:
+            return "No existe la variable: "+ m_name[i];
+
+        case CODE:
+            return "Error ("+ m_row[i] +":"+ m_column[i] +"): "+
+                   m_object[i] + (m_name[i] != null ? " "+ m_name[i] : "");
+
+        default:
+            return (String)m_object[i];
+    }
+}
+
+/**
+ * Texto de todos los errores, uno por línea precedido del nombre del
+ * fichero.
+ * @param fichero Nombre del fichero validado.
+ * @return errores guardados y, si no caben todos, cuántos faltan.
+ */
+public String format(String fichero)
+{
+    StringBuilder s = new StringBuilder();
+
+    for(int i = 0; i < m_count; i++)
+        s.append(fichero).append(": ").append(message(i)).append('\n');
+
+    if(m_total > m_count)
+    {
+        s.append(fichero).append(": ").append(m_total - m_count)
+         .append(" errores mas\n");
+    }
+
+    return s.toString();
+}
+
+} // Diagnostics
@@ -0,0 +1,144 @@
+package tal;
+
+import java.lang.management.*;
+
+import jdk.jfr.*;
+
+/**
+ * Eventos de Java Flight Recorder de cada fase del compilador.
+ * <p>Los eventos están siempre compilados y solo tienen coste cuando
+ * hay una grabación activa que los incluye, por ejemplo con
+ * {@code -XX:StartFlightRecording}. Las estimaciones de memoria son
+ * los bytes reservados por el hilo durante la fase.
+ */
+final class Events
+{
+private static final com.sun.management.ThreadMXBean THREADS;
+
+static
+{
+    ThreadMXBean t = ManagementFactory.getThreadMXBean();
+
+    THREADS = t instanceof com.sun.management.ThreadMXBean &&
+              ((com.sun.management.ThreadMXBean)t)
+                  .isThreadAllocatedMemorySupported()
+              ? (com.sun.management.ThreadMXBean)t : null;
+}
+
+private Events()
+{
+}
+
+/**
+ * Bytes reservados hasta ahora por el hilo actual.
+ * @return bytes reservados, o -1 si no se pueden medir.
+ */
+static long allocated()
+{
+    return THREADS == null ? -1 : THREADS.getThreadAllocatedBytes(
+                                      Thread.currentThread().getId());
+}
+
+//------------------------------------------------------------------------
+@Name("tal.Lex")
+@Label("Analisis lexico")
+@Category({"TAL", "Compilador"})
+@Description("Lectura de tokens de un fichero con AFD.")
+static final class Lex extends Event
+{
+    @Label("Tokens")
+    long tokens;
+
+    @Label("Caracteres leidos")
+    @DataAmount(DataAmount.BYTES)
+    long characters;
+
+    @Label("Tiempo en el automata")
+    @Timespan(Timespan.NANOSECONDS)
+    long lexTime;
+}
+
+//------------------------------------------------------------------------
+@Name("tal.Parse")
+@Label("Analisis sintactico")
+@Category({"TAL", "Compilador"})
+@Description("Ejecucion de ADR.programa, incluida la lectura de tokens.")
+static final class Parse extends Event
+{
+    @Label("Tokens")
+    long tokens;
+
+    @Label("Comandos generados")
+    long commands;
+
+    @Label("Memoria reservada")
+    @DataAmount(DataAmount.BYTES)
+    long allocated;
+}
+
+//------------------------------------------------------------------------
+@Name("tal.Codegen")
+@Label("Generacion de codigo")
+@Category({"TAL", "Compilador"})
+@Description("Conversion del codigo generado en un Program.")
+static final class Codegen extends Event
+{
+    @Label("Instrucciones")
+    long instructions;
+
+    @Label("Variables")
+    long slots;
+
+    @Label("Profundidad de la pila")
+    long maxStack;
+
+    @Label("Memoria reservada")
+    @DataAmount(DataAmount.BYTES)
+    long allocated;
+}
+
+//------------------------------------------------------------------------
+@Name("tal.Optimize")
+@Label("Optimizacion")
+@Category({"TAL", "Compilador"})
+@Description("Ejecucion de una pasada de optimizacion. Las pasadas sobre "+
+             "la forma SSA cuentan valores en lugar de comandos.")
+static final class Optimize extends Event
+{
+    @Label("Pasada")
+    String pass;
+
+    @Label("Comandos antes")
+    long before;
+
+    @Label("Comandos despues")
+    long after;
+
+    @Label("Memoria reservada")
+    @DataAmount(DataAmount.BYTES)
+    long allocated;
+}
+
+//------------------------------------------------------------------------
+@Name("tal.Run")
+@Label("Ejecucion")
+@Category({"TAL", "Interprete"})
+@Description("Ejecucion de un Program.")
+static final class Run extends Event
+{
+    @Label("Instrucciones del programa")
+    long instructions;
+
+    @Label("Instrucciones ejecutadas")
+    long steps;
+
+    @Label("Salida")
+    @DataAmount(DataAmount.BYTES)
+    long output;
+
+    @Label("Memoria reservada")
+    @DataAmount(DataAmount.BYTES)
+    long allocated;
+}
+
+} // Events
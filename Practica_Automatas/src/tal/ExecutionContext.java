@@ -0,0 +1,482 @@
+package tal;
+
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Estado de una ejecución de un {@link Program}: valores de las
+ * variables, pila de ejecución y destino de la salida.
+ * <p>Cada hilo que ejecute un programa debe usar su propio contexto.
+ * El programa no se modifica durante la ejecución, de modo que el mismo
+ * programa se puede ejecutar a la vez en varios hilos.
+ */
+public final class ExecutionContext
+{
+// Valores de las variables, indexados por su posicion.
+final long   m_num[];
+final Object m_ref[];
+
+// Pila de ejecucion: tipo y valor de cada elemento.
+final byte   m_stackType[];
+final long   m_stackNum[];
+final Object m_stackRef[];
+int m_sp;
+
+// Pila de llamadas: direcciones de vuelta y variables que guardan los
+// procedimientos recursivos. Crece segun se necesita.
+long   m_frameNum[] = new long[0];
+Object m_frameRef[] = new Object[0];
+int m_fp;
+
+// Elementos que puede tener la pila de llamadas.
+private static final int FRAMES = 1 << 22;
+
+OutputSink m_out;
+InputSource m_in = InputSource.empty();
+
+// Variables de entrada, que no se ponen a su valor inicial al
+// declararlas, o null si no hay ninguna.
+boolean m_bound[];
+
+// Limites de la ejecucion. Se comprueban en los saltos hacia atras de los
+// bucles cuando el numero de instrucciones ejecutadas llega a m_check.
+// Durante la ejecucion m_steps son las instrucciones ejecutadas por este
+// hilo y al terminar tambien las de m_forked.
+private long m_budget = Long.MAX_VALUE, m_timeout, m_deadline;
+long m_check, m_steps;
+
+// Instrucciones ejecutadas por otros hilos en los bucles paralelos y
+// elementos recorridos por las operaciones sobre vectores completos.
+long m_forked;
+
+// Instrucciones que se pueden ejecutar: el limite, o en los tramos de un
+// bucle paralelo las que se han tomado del limite compartido.
+private long m_allowed = Long.MAX_VALUE;
+private Shared m_shared;
+
+// Longitud maxima de los vectores.
+int m_maxVector = MAX_VECTOR;
+
+/** Longitud máxima de los vectores si no se indica otra. */
+public static final int MAX_VECTOR = 1 << 24;
+
+// Numero de instrucciones entre dos consultas del reloj.
+private static final long CLOCK = 1 << 16;
+
+// Instrucciones que toma un tramo de un bucle paralelo cada vez, como
+// mucho, y parte de las que quedan que puede tomar.
+private static final long GRANT = 1 << 12, SHARE = 64;
+
+// Error de los tramos que se interrumpen porque ha fallado otro.
+static final LimitException CANCELLED =
+    new LimitException("Bucle paralelo interrumpido.", false);
+
+// Perfil de ejecucion, o null si no se esta midiendo.
+Profile m_profile;
+
+// Traza de la ejecucion, o null si no se registra.
+Trace m_trace;
+
+// Instruccion en ejecucion, publicada para el perfilador por muestreo.
+volatile boolean m_sampled;
+volatile int m_pc = -1;
+
+/**
+ * Construye un contexto para ejecutar el programa indicado.
+ * @param program Programa que se va a ejecutar.
+ * @param out Destino de la salida de {@code imprimir}.
+ */
+public ExecutionContext(Program program, OutputSink out)
+{
+    int slots = program.slots(),
+        depth = program.maxStack();
+
+    m_num       = new long[slots];
+    m_ref       = new Object[slots];
+    m_stackType = new byte[depth];
+    m_stackNum  = new long[depth];
+    m_stackRef  = new Object[depth];
+    m_out       = Objects.requireNonNull(out);
+}
+
+/**
+ * Obtiene el destino de la salida.
+ * @return destino de la salida.
+ */
+public OutputSink output()
+{
+    return m_out;
+}
+
+/**
+ * Cambia el destino de la salida.
+ * @param out Destino de la salida.
+ */
+public void setOutput(OutputSink out)
+{
+    m_out = Objects.requireNonNull(out);
+}
+
+/**
+ * Obtiene el origen de la sentencia {@code leer}.
+ * @return origen de la entrada.
+ */
+public InputSource input()
+{
+    return m_in;
+}
+
+/**
+ * Cambia el origen de la sentencia {@code leer}. Por defecto la entrada
+ * está vacía.
+ * @param in Origen de la entrada.
+ */
+public void setInput(InputSource in)
+{
+    m_in = Objects.requireNonNull(in);
+}
+
+/**
+ * Limita el número de instrucciones de cada ejecución.
+ * @param instrucciones Número máximo de instrucciones,
+ *                      o {@code Long.MAX_VALUE} para no limitarlo.
+ */
+public void setBudget(long instrucciones)
+{
+    if(instrucciones < 0)
+        throw new IllegalArgumentException("budget: "+ instrucciones);
+
+    m_budget = instrucciones;
+}
+
+/**
+ * Limita la longitud de los vectores que se declaran. Declarar uno más
+ * largo interrumpe la ejecución con una excepción.
+ * @param elementos Número máximo de elementos de cada vector.
+ */
+public void setMaxVectorLength(int elementos)
+{
+    if(elementos < 0)
+        throw new IllegalArgumentException("elementos: "+ elementos);
+
+    m_maxVector = elementos;
+}
+
+/**
+ * Limita el tiempo de cada ejecución.
+ * @param nanos Tiempo máximo en nanosegundos desde que empieza la
+ *              ejecución, o 0 para no limitarlo.
+ */
+public void setTimeout(long nanos)
+{
+    if(nanos < 0)
+        throw new IllegalArgumentException("timeout: "+ nanos);
+
+    m_timeout = nanos;
+}
+
+/**
+ * Activa la medición de cada instrucción en las siguientes ejecuciones.
+ * Los datos se acumulan en el perfil indicado.
+ * @param profile Perfil del programa, o {@code null} para desactivarlo.
+ */
+public void setProfile(Profile profile)
+{
+    m_profile = profile;
+}
+
+/**
+ * Activa el registro de cada instrucción en las siguientes ejecuciones.
+ * Si también hay un perfil, solo se mide el perfil.
+ * @param trace Traza del programa, o {@code null} para desactivarla.
+ */
+public void setTrace(Trace trace)
+{
+    m_trace = trace;
+}
+
+/**
+ * Número de instrucciones ejecutadas en la última ejecución.
+ * @return instrucciones ejecutadas.
+ */
+public long steps()
+{
+    return m_steps;
+}
+
+//------------------------------------------------------------------------
+// Prepara los limites al empezar una ejecucion.
+void start()
+{
+    m_sp     = 0;
+    m_fp     = 0;
+    m_steps  = 0;
+    m_forked = 0;
+
+    if(m_timeout > 0)
+        m_deadline = System.nanoTime() + m_timeout;
+
+    m_allowed = m_budget;
+    m_shared  = null;
+    m_check   = m_timeout > 0 ? Math.min(m_budget, CLOCK) : m_budget;
+}
+
+//------------------------------------------------------------------------
+// Reserva sitio para n elementos mas en la pila de llamadas. Devuelve
+// false si se supera su limite.
+boolean reserve(int n)
+{
+    int size = m_fp + n;
+
+    if(size <= m_frameNum.length)
+        return true;
+
+    if(size > FRAMES)
+        return false;
+
+    size = Math.max(size, Math.min(FRAMES, 2 * m_frameNum.length + 16));
+    m_frameNum = Arrays.copyOf(m_frameNum, size);
+    m_frameRef = Arrays.copyOf(m_frameRef, size);
+    return true;
+}
+
+//------------------------------------------------------------------------
+// Limite compartido por los tramos de un bucle paralelo: instrucciones
+// que quedan, que los tramos toman en grupos, y si ha fallado alguno.
+static final class Shared
+{
+    private final AtomicLong m_left;
+    private volatile boolean m_failed;
+
+    private Shared(long left)
+    {
+        m_left = new AtomicLong(Math.max(left, 0));
+    }
+}
+
+// Limite de los tramos de un bucle paralelo que empieza en este
+// contexto: lo que queda del suyo. En un tramo, los bucles anidados
+// comparten el del bucle exterior.
+Shared share()
+{
+    return m_shared != null ? m_shared
+                            : new Shared(m_budget - m_steps - m_forked);
+}
+
+// Contexto para un tramo de un bucle paralelo, con las variables y los
+// limites de este. Cada hilo comprueba los limites por su cuenta y toma
+// las instrucciones del limite compartido.
+ExecutionContext fork(Program program, OutputSink out, Shared shared)
+{
+    ExecutionContext y = new ExecutionContext(program, out);
+    System.arraycopy(m_num, 0, y.m_num, 0, m_num.length);
+    System.arraycopy(m_ref, 0, y.m_ref, 0, m_ref.length);
+    y.m_budget    = m_budget;
+    y.m_maxVector = m_maxVector;
+    y.m_timeout   = m_timeout;
+    y.m_deadline  = m_deadline;
+    y.m_shared    = shared;
+    y.m_allowed   = 0;
+    y.m_check     = 0;
+    return y;
+}
+
+// Suma a este contexto las instrucciones de un tramo que ha terminado.
+// Si el tramo las ha tomado del mismo limite compartido que este ya
+// estan descontadas de lo que este puede ejecutar.
+void join(ExecutionContext y)
+{
+    long used = y.m_steps + y.m_forked;
+    m_forked += used;
+
+    if(y.m_shared == m_shared)
+        m_allowed += used;
+    else
+        m_check -= used;
+}
+
+// Al terminar un tramo devuelve las instrucciones que ha tomado y no ha
+// ejecutado. Si ha fallado interrumpe los demas tramos.
+void release(boolean failed)
+{
+    long used = m_steps + m_forked;
+    m_shared.m_left.addAndGet(m_allowed - used);
+    m_allowed = used;
+
+    if(failed)
+        m_shared.m_failed = true;
+}
+
+// Indica si ha fallado otro tramo del bucle paralelo.
+boolean cancelled()
+{
+    return m_shared != null && m_shared.m_failed;
+}
+
+//------------------------------------------------------------------------
+// Se llama en un salto hacia atras cuando se alcanza m_check. Las
+// instrucciones de los bucles paralelos y los elementos de las
+// operaciones sobre vectores tambien cuentan.
+void check(long steps)
+{
+    long total = steps + m_forked;
+
+    if(cancelled())
+        throw CANCELLED;
+
+    if(total > m_allowed && !take(total - m_allowed))
+    {
+        throw new LimitException(
+            "Limite de "+ m_budget +" instrucciones superado.", false);
+    }
+
+    if(m_timeout > 0 && System.nanoTime() - m_deadline > 0)
+        throw new LimitException("Tiempo de ejecucion agotado.", true);
+
+    m_check = (m_timeout > 0 ? Math.min(m_allowed, total + CLOCK)
+                             : m_allowed) - m_forked;
+}
+
+//------------------------------------------------------------------------
+// Cuenta una operacion sobre n elementos de un vector como n
+// instrucciones. Se comprueba antes de hacerla junto con las instrucciones
+// ya ejecutadas, para que un vector largo no pueda superar el limite en
+// una sola instruccion. Si no cabe no se cuenta.
+void charge(long n)
+{
+    long free = m_allowed - m_steps - m_forked;
+
+    if(n > free && !take(n - free))
+    {
+        throw new LimitException(
+            "Limite de "+ m_budget +" instrucciones superado.", false);
+    }
+
+    m_forked += n;
+    m_check  -= n;
+}
+
+// Toma del limite compartido las instrucciones que faltan, y algunas mas
+// para no volver enseguida. Devuelve false si no quedan suficientes.
+private boolean take(long need)
+{
+    if(m_shared == null)
+        return false;
+
+    AtomicLong left = m_shared.m_left;
+
+    for(;;)
+    {
+        long l = left.get();
+
+        if(l < need)
+            return false;
+
+        long grant = Math.max(need, Math.min(GRANT, l / SHARE));
+
+        if(left.compareAndSet(l, l - grant))
+        {
+            m_allowed += grant;
+            return true;
+        }
+    }
+}
+
+/**
+ * Excepción que interrumpe una ejecución que ha superado
+ * su límite de instrucciones o de tiempo.
+ */
+public static final class LimitException extends RuntimeException
+{
+    private static final long serialVersionUID = 1L;
+    private final boolean m_time;
+
+    private LimitException(String message, boolean time)
+    {
+        super(message, null, false, false);
+        m_time = time;
+    }
+
+    /**
+     * Indica si se ha agotado el tiempo o el número de instrucciones.
+     * @return true si se ha agotado el tiempo.
+     */
+    public boolean isTimeout()
+    {
+        return m_time;
+    }
+}
+
+/**
+ * Obtiene el valor de una variable entera tras la ejecución.
+ * @param slot Posición de la variable.
+ * @return valor de la variable.
+ * @see Program#slot(String)
+ */
+public long getInteger(int slot)
+{
+    return m_num[slot];
+}
+
+/**
+ * Obtiene el valor de una variable de tipo cadena tras la ejecución.
+ * @param slot Posición de la variable.
+ * @return valor de la variable.
+ * @see Program#slot(String)
+ */
+public String getString(int slot)
+{
+    Object v = m_ref[slot];
+    return v == null ? "" : v.toString();
+}
+
+/**
+ * Obtiene un vector tras la ejecución. La siguiente ejecución con el
+ * mismo contexto vuelve a usar el mismo vector si tiene la misma
+ * longitud.
+ * @param slot Posición del vector.
+ * @return elementos del vector, o null si no se ha declarado.
+ * @see Program#slot(String)
+ */
+public long[] getVector(int slot)
+{
+    Object v = m_ref[slot];
+    return v instanceof long[] ? (long[])v : null;
+}
+
+/**
+ * Da valor a una variable entera antes de la ejecución. Su declaración
+ * ya no la pone a cero, de modo que el programa empieza con este valor
+ * en esta y en las siguientes ejecuciones con el mismo contexto.
+ * @param slot Posición de la variable.
+ * @param value Valor de la variable.
+ * @see Code#setInputs(String...)
+ */
+public void setInteger(int slot, long value)
+{
+    bind(slot);
+    m_num[slot] = value;
+}
+
+/**
+ * Da valor a una variable de tipo cadena antes de la ejecución. Su
+ * declaración ya no la pone a la cadena vacía.
+ * @param slot Posición de la variable.
+ * @param value Valor de la variable.
+ * @see #setInteger(int, long)
+ */
+public void setString(int slot, String value)
+{
+    bind(slot);
+    m_ref[slot] = Objects.requireNonNull(value);
+}
+
+private void bind(int slot)
+{
+    if(m_bound == null)
+        m_bound = new boolean[m_num.length];
+
+    m_bound[slot] = true;
+}
+
+} // ExecutionContext
@@ -0,0 +1,323 @@
+package tal;
+
+import java.util.*;
+
+import tal.Code.Action;
+import tal.Code.Command;
+import tal.Code.Type;
+
+/**
+ * Expansión de las llamadas a procedimientos sobre la lista de comandos
+ * de {@link Code}.
+ * <p>Cada procedimiento está entre un {@code GOTO} que lo salta y su
+ * {@code END}, tal como lo genera {@link Code#addProcedure(Token)}: un
+ * {@code ENTER}, un {@code PARAM} por parámetro, el cuerpo y un
+ * {@code RETURN}. Una llamada se sustituye por una copia del cuerpo
+ * precedida de la asignación de cada argumento a su parámetro cuando:
+ * <ul>
+ * <li>el procedimiento no es recursivo,
+ * <li>y es su única llamada, o el cuerpo tiene como mucho
+ *     {@value #SMALL} comandos, o la llamada está dentro de un bucle y
+ *     el cuerpo tiene como mucho {@value #HOT} comandos.
+ * </ul>
+ * El programa no puede crecer más del doble más {@value #GROWTH}
+ * comandos. Al terminar se eliminan los procedimientos a los que ya no
+ * se llama, de modo que si se han expandido todas las llamadas las
+ * demás pasadas ven un programa sin procedimientos.
+ * <p>Los procedimientos no recursivos tienen sus variables en posiciones
+ * fijas, así que la copia usa las mismas variables que el original.
+ */
+final class Inliner
+{
+// Limites del tamaño de los cuerpos que se expanden.
+private static final int SMALL = 24, HOT = 128, GROWTH = 256;
+
+private final Code m_code;
+
+// Procedimiento indexado por su ENTER.
+private static final class Procedure
+{
+    private Command enter;
+    private final List<Command> params = new ArrayList<>();
+    private boolean recursive;
+    private int calls;
+}
+
+//------------------------------------------------------------------------
+Inliner(Code code)
+{
+    m_code = code;
+}
+
+//------------------------------------------------------------------------
+void inline()
+{
+    Map<Command,Procedure> procedures = procedures(m_code.first());
+
+    if(procedures.isEmpty())
+        return;
+
+    List<Command> out = new ArrayList<>();
+    int size = m_code.size(), limit = 2 * size + GROWTH;
+
+    // Bucles abiertos: el WHILE al que vuelve su GOTO o el END de un
+    // bucle paralelo.
+    Deque<Command> loops = new ArrayDeque<>();
+    Command c = m_code.first();
+
+    while(c != null)
+    {
+        Command next = c.next;
+        Procedure p = c.action == Action.CALL ? procedures.get(c.value)
+                                              : null;
+        List<Command> body = p == null ? null : body(p);
+
+        if(body != null && !p.recursive &&
+           (p.calls == 1 || body.size() <= SMALL ||
+            !loops.isEmpty() && body.size() <= HOT) &&
+           size + 2 * p.params.size() + body.size() - 1 <= limit)
+        {
+            arguments(p, out);
+            Command copy = copy(body);
+
+            if(copy != null)
+            {
+                Command last = copy;
+
+                while(last.next != null)
+                    last = last.next;
+
+                last.next = next;
+                next = copy;
+            }
+
+            size += 2 * p.params.size() + body.size() - 1;
+        }
+        else
+        {
+            out.add(c);
+
+            if(c.action == Action.WHILE)
+                loops.push(c);
+            else if(c.action == Action.PARALLEL)
+                loops.push((Command)c.value);
+            else if(!loops.isEmpty() && (c == loops.peek() ||
+                    c.action == Action.GOTO && c.value == loops.peek()))
+                loops.pop();
+        }
+
+        c = next;
+    }
+
+    m_code.relink(link(removeUnused(out)));
+}
+
+//------------------------------------------------------------------------
+// Busca los procedimientos y cuenta sus llamadas.
+private static Map<Command,Procedure> procedures(Command first)
+{
+    Map<Command,Procedure> procedures = new HashMap<>();
+
+    for(Command c = first; c != null; c = c.next)
+    {
+        if(c.action == Action.GOTO && c.next != null &&
+           c.next.action == Action.ENTER)
+        {
+            Procedure p = new Procedure();
+            p.enter = c.next;
+
+            for(Command d = p.enter.next; d.action == Action.PARAM;
+                d = d.next)
+            {
+                p.params.add(0, d);
+            }
+
+            procedures.put(p.enter, p);
+        }
+    }
+
+    for(Command c = first; c != null; c = c.next)
+    {
+        if(c.action == Action.CALL)
+            procedures.get(c.value).calls++;
+    }
+
+    // Solo se puede llamar a los procedimientos ya definidos, asi que
+    // no hay recursion indirecta.
+    for(Procedure p : procedures.values())
+    {
+        for(Command c = p.enter; c.action != Action.RETURN; c = c.next)
+        {
+            if(c.action == Action.CALL && c.value == p.enter)
+                p.recursive = true;
+        }
+    }
+
+    return procedures;
+}
+
+//------------------------------------------------------------------------
+// Comandos entre los PARAM y el RETURN, tal como estaban al empezar la
+// pasada. Las llamadas del cuerpo se deciden otra vez al recorrer la
+// copia, segun el sitio donde queda.
+private static List<Command> body(Procedure p)
+{
+    List<Command> body = new ArrayList<>();
+    Command c = p.enter.next;
+
+    while(c.action == Action.PARAM)
+        c = c.next;
+
+    for(; c.action != Action.RETURN; c = c.next)
+        body.add(c);
+
+    return body;
+}
+
+//------------------------------------------------------------------------
+// Sustituye los argumentos de la llamada, que son los ultimos comandos
+// de la lista, por la asignacion de cada uno a su parametro. Los
+// argumentos no pueden usar los parametros, asi que da igual asignarlos
+// a la vez o uno detras de otro.
+private static void arguments(Procedure p, List<Command> out)
+{
+    int n = p.params.size(), end = out.size();
+    List<List<Command>> args = new ArrayList<>();
+
+    for(int i = n - 1; i >= 0; i--)
+    {
+        int start = end, depth = 0;
+
+        // Los argumentos estan en notacion postfija: el primero empieza
+        // donde la pila tiene un valor mas.
+        while(depth != 1)
+            depth += depth(out.get(--start));
+
+        args.add(0, new ArrayList<>(out.subList(start, end)));
+        end = start;
+    }
+
+    out.subList(end, out.size()).clear();
+
+    for(int i = 0; i < n; i++)
+    {
+        Command param = p.params.get(i);
+        out.add(command(param, Action.VARIABLE, Type.VOID, param.value));
+        out.addAll(args.get(i));
+        out.add(command(param, Action.ASSIGN, Type.VOID, null));
+    }
+}
+
+//------------------------------------------------------------------------
+// Cambio en la pila de un comando de una expresion.
+private static int depth(Command c)
+{
+    switch(c.action)
+    {
+        case VARIABLE: case CONSTANT: case READ: return 1;
+        case NEGATE: case NOT: case SUM:          return 0;
+        default:                                 return -1;
+    }
+}
+
+//------------------------------------------------------------------------
+// Copia una lista de comandos enlazados, con los saltos al destino
+// correspondiente de la copia.
+private static Command copy(List<Command> body)
+{
+    Map<Command,Command> copies = new HashMap<>();
+    Command first = null, prev = null;
+
+    for(Command c : body)
+    {
+        Command d = command(c, c.action, c.type, c.value);
+        copies.put(c, d);
+
+        if(prev == null)
+            first = d;
+        else
+            prev.next = d;
+
+        prev = d;
+    }
+
+    for(Command d : copies.values())
+    {
+        if(d.value instanceof Command && copies.containsKey(d.value))
+            d.value = copies.get(d.value);
+    }
+
+    return first;
+}
+
+//------------------------------------------------------------------------
+// Quita los procedimientos a los que no se llama. Al quitar uno pueden
+// quedar otros sin llamadas.
+private static List<Command> removeUnused(List<Command> list)
+{
+    for(;;)
+    {
+        Map<Command,Integer> calls = new HashMap<>();
+
+        for(Command c : list)
+        {
+            if(c.action == Action.CALL)
+                calls.merge((Command)c.value, 1, Integer::sum);
+        }
+
+        List<Command> used = new ArrayList<>();
+        boolean removed = false;
+
+        for(int i = 0; i < list.size(); i++)
+        {
+            Command c = list.get(i);
+
+            if(c.action == Action.GOTO && i + 1 < list.size() &&
+               list.get(i + 1).action == Action.ENTER &&
+               !calls.containsKey(list.get(i + 1)))
+            {
+                while(list.get(i) != c.value)
+                    i++;
+
+                removed = true;
+            }
+            else
+            {
+                used.add(c);
+            }
+        }
+
+        if(!removed)
+            return list;
+
+        list = used;
+    }
+}
+
+//------------------------------------------------------------------------
+private static Command link(List<Command> list)
+{
+    for(int i = 0; i + 1 < list.size(); i++)
+        list.get(i).next = list.get(i + 1);
+
+    if(list.isEmpty())
+        return null;
+
+    list.get(list.size() - 1).next = null;
+    return list.get(0);
+}
+
+//------------------------------------------------------------------------
+private static Command command(Command at, Action action, Type type,
+                               Object value)
+{
+    Command c = new Command();
+    c.row    = at.row;
+    c.column = at.column;
+    c.action = action;
+    c.type   = type;
+    c.value  = value;
+    return c;
+}
+
+} // Inliner
@@ -0,0 +1,365 @@
+package tal;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * Origen de los datos de la sentencia {@code leer}.
+ * <p>La entrada es una secuencia de palabras separadas por espacios,
+ * tabuladores o saltos de línea. Los enteros se convierten directamente
+ * desde los bytes del buffer, sin pasar por {@code String}, y las
+ * cadenas se decodifican con el juego de caracteres por defecto.
+ * <p>Los ficheros se proyectan en memoria por ventanas, de modo que se
+ * leen sin copiar sus datos aunque no quepan en memoria. La entrada
+ * estándar y los demás canales se leen con un buffer propio.
+ */
+public abstract class InputSource implements Closeable
+{
+private static final int SIZE = 1 << 16;
+
+// Tamaño de las ventanas de los ficheros proyectados en memoria.
+private static final int WINDOW = 1 << 28;
+
+// Con 18 cifras o menos un entero no puede desbordar.
+private static final int DIGITS = 18;
+
+private static final Charset CHARSET = Charset.defaultCharset();
+
+// Bytes pendientes de leer entre la posicion y el limite.
+private ByteBuffer m_buffer;
+private boolean m_end;
+
+/**
+ * Construye un origen con los primeros datos de la entrada.
+ * @param buffer Buffer preparado para leer.
+ */
+protected InputSource(ByteBuffer buffer)
+{
+    m_buffer = buffer;
+}
+
+/**
+ * Obtiene más datos de la entrada.
+ * @param buffer Buffer actual. Los bytes entre su posición y su límite
+ *               todavía no se han leído y deben estar al principio del
+ *               buffer devuelto.
+ * @return buffer preparado para leer con los bytes pendientes seguidos
+ *         de los nuevos, que no tiene más bytes pendientes que el
+ *         actual si la entrada ha terminado.
+ * @throws IOException
+ */
+protected abstract ByteBuffer refill(ByteBuffer buffer) throws IOException;
+
+//------------------------------------------------------------------------
+/**
+ * Salta los espacios hasta la siguiente palabra.
+ * @return true si queda alguna palabra en la entrada.
+ */
+public final boolean hasNext()
+{
+    for(;;)
+    {
+        ByteBuffer b = m_buffer;
+        int i = b.position(), limit = b.limit();
+
+        while(i < limit && (b.get(i) & 0xFF) <= ' ')
+            i++;
+
+        b.position(i);
+
+        if(i < limit)
+            return true;
+
+        if(!more())
+            return false;
+    }
+}
+
+/**
+ * Lee la siguiente palabra como un número entero.
+ * @return valor leído.
+ * @throws NoSuchElementException si la entrada ha terminado.
+ * @throws NumberFormatException si la palabra no es un entero.
+ */
+public final long readInteger()
+{
+    int end = word();
+    ByteBuffer b = m_buffer;
+    int i = b.position();
+    boolean negative = b.get(i) == '-';
+
+    if(negative || b.get(i) == '+')
+        i++;
+
+    if(i == end)
+        throw badInteger(end);
+
+    // Se acumula en negativo para admitir Long.MIN_VALUE.
+    long v = 0;
+
+    if(end - i <= DIGITS)
+    {
+        for(; i < end; i++)
+        {
+            int d = b.get(i) - '0';
+
+            if(d < 0 || d > 9)
+                throw badInteger(end);
+
+            v = v * 10 - d;
+        }
+    }
+    else
+    {
+        for(; i < end; i++)
+        {
+            int d = b.get(i) - '0';
+
+            if(d < 0 || d > 9 || v < (Long.MIN_VALUE + d) / 10)
+                throw badInteger(end);
+
+            v = v * 10 - d;
+        }
+    }
+
+    if(!negative)
+    {
+        if(v == Long.MIN_VALUE)
+            throw badInteger(end);
+
+        v = -v;
+    }
+
+    b.position(end);
+    return v;
+}
+
+/**
+ * Lee la siguiente palabra como una cadena.
+ * @return palabra leída.
+ * @throws NoSuchElementException si la entrada ha terminado.
+ */
+public final String readString()
+{
+    int end = word();
+    ByteBuffer b = m_buffer;
+    int start = b.position();
+    String s;
+
+    if(b.hasArray())
+    {
+        s = new String(b.array(), b.arrayOffset() + start, end - start,
+                       CHARSET);
+    }
+    else
+    {
+        byte[] bytes = new byte[end - start];
+        b.get(start, bytes);
+        s = new String(bytes, CHARSET);
+    }
+
+    b.position(end);
+    return s;
+}
+
+/**
+ * Libera los recursos de la entrada.
+ * @throws IOException
+ */
+@Override public void close() throws IOException
+{
+}
+
+//------------------------------------------------------------------------
+// Busca la siguiente palabra, que queda entre la posicion del buffer y
+// la posicion devuelta.
+private int word()
+{
+    if(!hasNext())
+        throw new NoSuchElementException("No quedan datos en la entrada.");
+
+    for(;;)
+    {
+        ByteBuffer b = m_buffer;
+        int i = b.position(), limit = b.limit();
+
+        while(i < limit && (b.get(i) & 0xFF) > ' ')
+            i++;
+
+        if(i < limit || !more())
+            return i;
+    }
+}
+
+private boolean more()
+{
+    if(m_end)
+        return false;
+
+    int pending = m_buffer.remaining();
+
+    try
+    {
+        m_buffer = refill(m_buffer);
+    }
+    catch(IOException ex)
+    {
+        throw new UncheckedIOException(ex);
+    }
+
+    m_end = m_buffer.remaining() <= pending;
+    return !m_end;
+}
+
+private NumberFormatException badInteger(int end)
+{
+    ByteBuffer b = m_buffer;
+    byte[] bytes = new byte[Math.min(end - b.position(), 40)];
+    b.get(b.position(), bytes);
+    b.position(end);
+
+    return new NumberFormatException("Entero incorrecto en la entrada: "+
+                                     new String(bytes, CHARSET));
+}
+
+//------------------------------------------------------------------------
+/**
+ * Origen que lee la entrada estándar.
+ * @return origen creado.
+ */
+public static InputSource stdin()
+{
+    return new ChannelSource(Channels.newChannel(
+               new FileInputStream(FileDescriptor.in)), false);
+}
+
+/**
+ * Origen que lee un fichero proyectándolo en memoria.
+ * @param fichero Fichero de entrada.
+ * @return origen creado.
+ * @throws IOException
+ */
+public static InputSource file(String fichero) throws IOException
+{
+    return new MappedSource(FileChannel.open(Paths.get(fichero)));
+}
+
+/**
+ * Origen que lee de un canal. El canal no se cierra.
+ * @param channel Canal de entrada.
+ * @return origen creado.
+ */
+public static InputSource channel(ReadableByteChannel channel)
+{
+    return new ChannelSource(channel, false);
+}
+
+/**
+ * Origen que lee unos datos en memoria.
+ * @param data Datos de la entrada, que no se copian.
+ * @return origen creado.
+ */
+public static InputSource memory(byte[] data)
+{
+    return new InputSource(ByteBuffer.wrap(data))
+    {
+        @Override protected ByteBuffer refill(ByteBuffer buffer)
+        {
+            return buffer;
+        }
+    };
+}
+
+/**
+ * Origen sin datos.
+ * @return origen creado.
+ */
+public static InputSource empty()
+{
+    return memory(new byte[0]);
+}
+
+//------------------------------------------------------------------------
+private static final class ChannelSource extends InputSource
+{
+    private final ReadableByteChannel m_channel;
+    private final boolean m_close;
+
+    private ChannelSource(ReadableByteChannel channel, boolean close)
+    {
+        super(ByteBuffer.allocate(SIZE).flip());
+        m_channel = channel;
+        m_close   = close;
+    }
+
+    @Override protected ByteBuffer refill(ByteBuffer buffer)
+        throws IOException
+    {
+        buffer.compact();
+
+        // Una palabra ocupa todo el buffer.
+        if(!buffer.hasRemaining())
+        {
+            buffer.flip();
+            buffer = ByteBuffer.allocate(buffer.capacity() * 2).put(buffer);
+        }
+
+        int n;
+
+        do
+        {
+            n = m_channel.read(buffer);
+        }
+        while(n == 0);
+
+        return buffer.flip();
+    }
+
+    @Override public void close() throws IOException
+    {
+        if(m_close)
+            m_channel.close();
+    }
+}
+
+//------------------------------------------------------------------------
+private static final class MappedSource extends InputSource
+{
+    private final FileChannel m_channel;
+    private final long m_size;
+
+    // Posicion en el fichero del principio de la ventana actual.
+    private long m_offset;
+
+    private MappedSource(FileChannel channel) throws IOException
+    {
+        super(channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                          Math.min(channel.size(), WINDOW)));
+        m_channel = channel;
+        m_size    = channel.size();
+    }
+
+    @Override protected ByteBuffer refill(ByteBuffer buffer)
+        throws IOException
+    {
+        long start = m_offset + buffer.position();
+
+        if(start + buffer.remaining() >= m_size)
+            return buffer;
+
+        m_offset = start;
+        return m_channel.map(FileChannel.MapMode.READ_ONLY, start,
+                             Math.min(m_size - start, WINDOW));
+    }
+
+    @Override public void close() throws IOException
+    {
+        m_channel.close();
+    }
+}
+
+} // InputSource
@@ -0,0 +1,1954 @@
+package tal;
+
+import java.util.*;
+
+import tal.Code.Action;
+import tal.Code.Command;
+import tal.Code.Type;
+import tal.Code.Variable;
+
+/**
+ * Representación intermedia en forma SSA del código generado.
+ * <p>Los comandos de {@link Code} se reparten en bloques básicos que
+ * empiezan en los destinos de los saltos ({@code WHILE}, {@code ELSE} y
+ * {@code END}) y terminan en un {@code IF} o un {@code GOTO}. Cada
+ * asignación de una variable define un valor nuevo y los bloques donde
+ * se juntan varios caminos tienen una función phi por variable. La
+ * construcción sigue el método de Braun et al., que trabaja bloque a
+ * bloque sin calcular las fronteras de dominancia.
+ * <p>Las operaciones sin efectos se pueden mover o eliminar; las
+ * declaraciones, las sentencias {@code imprimir} y {@code leer} y las
+ * divisiones que pueden fallar se quedan en su bloque y en su orden. Si alguna
+ * operación tiene tipos que no coinciden, y por tanto fallaría al
+ * ejecutarse, no se construye la representación. Las variables de
+ * entrada ({@link Code#setInputs(String...)}) empiezan con un valor
+ * desconocido en lugar de su valor inicial, y {@code leer} da a su
+ * variable un valor desconocido. Una lectura dentro de una expresión
+ * solo se trata si es la condición completa de un {@code si} o de un
+ * {@code mientras}.
+ * <p>{@link #lower()} vuelve a generar la lista de comandos. Los valores
+ * de una misma variable que no están vivos a la vez comparten su
+ * posición, de modo que casi todas las copias de las phi desaparecen.
+ * Los valores finales de las variables declaradas se guardan al final
+ * del programa, pero si la ejecución termina con un error pueden no
+ * coincidir con los del programa sin optimizar.
+ */
+final class Ir
+{
+// Las expresiones mas grandes se guardan en una variable aunque se usen
+// una sola vez, para que no crezcan sin limite al sustituirlas.
+private static final int MAX_INLINE = 32;
+
+// Limite de los contadores de usos.
+private static final int MAX_REFS = 1 << 20;
+
+private final Code m_code;
+private final List<Block> m_blocks = new ArrayList<>();
+private final List<Variable> m_declared = new ArrayList<>();
+private Value m_final[];
+private Block m_exit;
+
+// Variables declaradas en el bloque de entrada que aun conservan su valor
+// inicial mientras se genera ese bloque.
+private Set<Variable> m_fresh;
+private int m_slots, m_values, m_blockIds;
+
+//------------------------------------------------------------------------
+// Valor calculado por el programa.
+static final class Value
+{
+    final int id;
+    final Action op;        // null en las phi
+    final Type type;
+    final Command at;       // posicion en el fuente
+    Value args[];
+    Object constant;        // constante, o variable de DECLARE y phi
+    Variable home;          // variable a la que se asigno
+    Block block;
+    Value forward;          // valor que lo sustituye
+    boolean pinned, live;
+
+    // Generacion de codigo.
+    int index = -1, state, refs, size;
+    boolean stored, conflict;
+    Variable slot;
+
+    Value(int id, Action op, Type type, Command at)
+    {
+        this.id   = id;
+        this.op   = op;
+        this.type = type;
+        this.at   = at;
+    }
+
+    boolean isPhi()
+    {
+        return op == null;
+    }
+
+    boolean isConstant()
+    {
+        return op == Action.CONSTANT;
+    }
+
+    // Operacion sin efectos, o division que puede fallar.
+    boolean isOperation()
+    {
+        return op != null && op != Action.CONSTANT && op != Action.PRINT &&
+               op != Action.DECLARE && op != Action.VARIABLE &&
+               op != Action.READ;
+    }
+
+    // Valor de una variable de entrada al empezar.
+    boolean isInput()
+    {
+        return op == Action.VARIABLE;
+    }
+}
+
+//------------------------------------------------------------------------
+// Bloque basico.
+static final class Block
+{
+    final int id;
+    final Command start;
+    final List<Value> phis = new ArrayList<>(), code = new ArrayList<>();
+    final List<Block> preds = new ArrayList<>();
+    Block taken, other;     // siguiente bloque y destino del IF
+    Value cond;
+    Action label;
+    Command jump;
+
+    // Construccion.
+    Value defs[];
+    List<Value> incomplete = new ArrayList<>();
+    boolean sealed, filled;
+
+    // Dominadores.
+    int order;
+    Block idom;
+    final List<Block> dominated = new ArrayList<>();
+
+    // Generacion de codigo.
+    List<Stmt> stmts;
+    List<Command> cmds;
+    BitSet use, def, liveIn, liveOut;
+    Command branch;
+    boolean dropped;
+
+    Block(int id, Command start)
+    {
+        this.id    = id;
+        this.start = start;
+    }
+
+    Block[] successors()
+    {
+        return taken == null ? new Block[0]
+             : other == null ? new Block[] {taken}
+             : new Block[] {taken, other};
+    }
+}
+
+//------------------------------------------------------------------------
+// Sentencia del codigo que se genera.
+private static enum Kind
+{
+    DECLARE, DEF, PRINT, READ, COPY, STORE, BRANCH
+}
+
+private static final class Stmt
+{
+    final Kind kind;
+    final Value value;
+    Variable dests[];
+    Value sources[], phis[];
+
+    Stmt(Kind kind, Value value)
+    {
+        this.kind  = kind;
+        this.value = value;
+    }
+}
+
+//------------------------------------------------------------------------
+private Ir(Code code)
+{
+    m_code = code;
+}
+
+/**
+ * Construye la representación del código.
+ * @param code Código generado.
+ * @return representación, o null si el código tiene operaciones que
+ *         fallarían por sus tipos o comandos que no se pueden tratar.
+ */
+static Ir build(Code code)
+{
+    Ir ir = new Ir(code);
+    return ir.construct() ? ir : null;
+}
+
+/**
+ * Número de valores de la representación.
+ * @return número de valores y funciones phi.
+ */
+int size()
+{
+    int n = 0;
+
+    for(Block b : m_blocks)
+        n += b.phis.size() + b.code.size();
+
+    return n;
+}
+
+//------------------------------------------------------------------------
+private boolean construct()
+{
+    List<Command> list = new ArrayList<>();
+
+    for(Command c = m_code.first(); c != null; c = c.next)
+    {
+        // Los elementos de los vectores no tienen forma SSA, y las
+        // llamadas que no se han expandido tampoco.
+        if(c.action == Action.STEP || c.action == Action.PARALLEL ||
+           c.action == Action.CALL || c.action == Action.ENTER ||
+           c.action == Action.PARAM || c.action == Action.RETURN ||
+           c.value instanceof Variable &&
+           ((Variable)c.value).type == Type.VECTOR ||
+           c.line != list.size())
+        {
+            return false;
+        }
+
+        if(c.value instanceof Variable)
+            m_slots = Math.max(m_slots, ((Variable)c.value).slot + 1);
+
+        list.add(c);
+    }
+
+    int n = list.size();
+
+    if(n == 0)
+        return false;
+
+    // Los bloques empiezan en los destinos de los saltos y despues de
+    // cada salto.
+    boolean leader[] = new boolean[n + 1];
+    leader[0] = true;
+
+    for(Command c : list)
+    {
+        if(c.action == Action.IF || c.action == Action.GOTO)
+        {
+            leader[c.line + 1] = true;
+            leader[((Command)c.value).line] = true;
+        }
+    }
+
+    List<Block> all = new ArrayList<>();
+    Block at[] = new Block[n];
+
+    for(int i = 0; i < n; i++)
+    {
+        if(leader[i])
+            all.add(new Block(all.size(), list.get(i)));
+
+        at[i] = all.get(all.size() - 1);
+    }
+
+    m_blockIds = all.size();
+
+    for(Block b : all)
+    {
+        Action a = b.start.action;
+
+        if(a == Action.WHILE || a == Action.ELSE || a == Action.END)
+            b.label = a;
+    }
+
+    for(int i = 0; i < n; i++)
+    {
+        if(i + 1 < n && at[i + 1] == at[i])
+            continue;
+
+        Block b = at[i], next = i + 1 < n ? at[i + 1] : null;
+        Command c = list.get(i);
+
+        switch(c.action)
+        {
+            case IF:
+                if(next == null)
+                    return false;
+
+                b.jump  = c;
+                b.taken = next;
+                b.other = at[((Command)c.value).line];
+                break;
+            case GOTO:
+                b.jump  = c;
+                b.taken = at[((Command)c.value).line];
+                break;
+            default:
+                b.taken = next;
+        }
+    }
+
+    // Bloques alcanzables desde el principio.
+    boolean seen[] = new boolean[all.size()];
+    Deque<Block> work = new ArrayDeque<>();
+    work.push(all.get(0));
+    seen[0] = true;
+
+    while(!work.isEmpty())
+    {
+        for(Block s : work.pop().successors())
+        {
+            if(!seen[s.id])
+            {
+                seen[s.id] = true;
+                work.push(s);
+            }
+        }
+    }
+
+    for(Block b : all)
+    {
+        if(seen[b.id])
+            m_blocks.add(b);
+    }
+
+    m_exit = m_blocks.get(m_blocks.size() - 1);
+
+    if(m_exit != all.get(all.size() - 1))
+        return false;
+
+    for(Block b : m_blocks)
+    {
+        for(Block s : b.successors())
+            s.preds.add(b);
+    }
+
+    for(Block b : m_blocks)
+    {
+        b.defs = new Value[m_slots];
+        b.sealed = b.preds.isEmpty();
+    }
+
+    for(Block b : m_blocks)
+    {
+        if(!fill(b, list, at))
+            return false;
+
+        b.filled = true;
+
+        for(Block s : b.successors())
+            seal(s);
+    }
+
+    m_final = new Value[m_declared.size()];
+
+    for(int i = 0; i < m_final.length; i++)
+        m_final[i] = read(m_declared.get(i), m_exit);
+
+    for(Block b : m_blocks)
+        b.defs = null;
+
+    return true;
+}
+
+//------------------------------------------------------------------------
+// Convierte los comandos de un bloque en valores.
+private boolean fill(Block b, List<Command> list, Block at[])
+{
+    Deque<Value> stack = new ArrayDeque<>();
+
+    for(int i = b.start.line; i < list.size() && at[i] == b; i++)
+    {
+        Command c = list.get(i);
+        Variable v;
+        Value l, r;
+
+        switch(c.action)
+        {
+            case DECLARE:
+                v = (Variable)c.value;
+                m_declared.add(v);
+                l = value(b, Action.DECLARE, Type.VOID, c);
+                l.constant = v;
+                l.pinned = true;
+
+                if(v.input)
+                {
+                    r = value(b, Action.VARIABLE, v.type, c);
+                    r.constant = v;
+                    r.home = v;
+                    r.args = new Value[0];
+                    l.args = new Value[] {r};
+                    write(v, b, r);
+                }
+                else
+                {
+                    write(v, b, constant(c, v.type, initial(v.type)));
+                }
+                break;
+
+            case VARIABLE:
+                v = (Variable)c.value;
+
+                if(c.type == Type.VOID)
+                {
+                    l = new Value(-1, Action.VARIABLE, Type.VOID, c);
+                    l.constant = v;
+                    stack.push(l);
+                }
+                else
+                {
+                    stack.push(read(v, b));
+                }
+                break;
+
+            case CONSTANT:
+                stack.push(constant(c, c.type, c.value));
+                break;
+
+            case READ:
+                v = (Variable)c.value;
+                r = value(b, Action.READ, v.type, c);
+                r.constant = v;
+                r.home = v;
+                r.args = new Value[0];
+                r.pinned = true;
+                write(v, b, r);
+
+                if(c.type == Type.BOOLEAN)
+                {
+                    // Condicion de la lectura: solo puede ir en el IF
+                    // que termina el bloque.
+                    if(i + 1 == list.size() || at[i + 1] != b ||
+                       list.get(i + 1).action != Action.IF)
+                    {
+                        return false;
+                    }
+
+                    l = new Value(-1, Action.READ, Type.BOOLEAN, c);
+                    l.args = new Value[] {r};
+                    stack.push(l);
+                }
+                break;
+
+            case ASSIGN:
+                r = stack.poll();
+                l = stack.poll();
+
+                if(r == null || l == null || l.op != Action.VARIABLE ||
+                   r.type != ((Variable)l.constant).type)
+                {
+                    return false;
+                }
+
+                v = (Variable)l.constant;
+
+                if(r.home == null && !r.isConstant())
+                    r.home = v;
+
+                write(v, b, r);
+                break;
+
+            case PRINT:
+                r = stack.poll();
+
+                if(r == null || r.type == Type.VOID)
+                    return false;
+
+                l = value(b, Action.PRINT, Type.VOID, c);
+                l.args = new Value[] {r};
+                l.pinned = true;
+                break;
+
+            case IF:
+                r = stack.poll();
+
+                if(r == null || r.type != Type.BOOLEAN)
+                    return false;
+
+                b.cond = r;
+                break;
+
+            case GOTO: case WHILE: case ELSE: case END:
+                break;
+
+            case NEGATE: case NOT:
+                l = stack.poll();
+
+                if(l == null || !operation(b, c, l, null, stack))
+                    return false;
+                break;
+
+            case ADD: case SUBTRACT: case MULTIPLY: case DIVIDE:
+            case EQUAL: case UNEQUAL: case LESS: case LESSEQ:
+            case GREATER: case GREATEREQ: case OR: case AND:
+                r = stack.poll();
+                l = stack.poll();
+
+                if(l == null || !operation(b, c, l, r, stack))
+                    return false;
+                break;
+
+            default:
+                return false;
+        }
+    }
+
+    return stack.isEmpty();
+}
+
+//------------------------------------------------------------------------
+private boolean operation(Block b, Command c, Value l, Value r,
+                          Deque<Value> stack)
+{
+    Type t = type(c.action, l.type, r == null ? null : r.type);
+
+    if(t == null)
+        return false;
+
+    Value v = value(b, c.action, t, c);
+    v.args = r == null ? new Value[] {l} : new Value[] {l, r};
+    v.pinned = c.action == Action.DIVIDE && !nonZero(r);
+    stack.push(v);
+    return true;
+}
+
+//------------------------------------------------------------------------
+// Tipo del resultado, o null si la operacion falla por sus tipos.
+private static Type type(Action action, Type l, Type r)
+{
+    switch(action)
+    {
+        case ADD:
+            if(l == Type.STRING && (r == Type.STRING || r == Type.INTEGER) ||
+               r == Type.STRING && l == Type.INTEGER)
+            {
+                return Type.STRING;
+            }
+
+            return l == Type.INTEGER && r == Type.INTEGER ? l : null;
+
+        case SUBTRACT: case MULTIPLY: case DIVIDE:
+            return l == Type.INTEGER && r == Type.INTEGER ? l : null;
+
+        case NEGATE:
+            return l == Type.INTEGER ? l : null;
+
+        case EQUAL: case UNEQUAL: case LESS: case LESSEQ:
+        case GREATER: case GREATEREQ:
+            return l == Type.INTEGER && r == Type.INTEGER
+                   ? Type.BOOLEAN : null;
+
+        case NOT:
+            return l == Type.BOOLEAN ? l : null;
+
+        case OR: case AND:
+            return l == Type.BOOLEAN && r == Type.BOOLEAN ? l : null;
+
+        default:
+            return null;
+    }
+}
+
+//------------------------------------------------------------------------
+private static boolean nonZero(Value v)
+{
+    return v.isConstant() && (Long)v.constant != 0;
+}
+
+private static Object initial(Type type)
+{
+    return type == Type.STRING ? (Object)"" : (Object)0L;
+}
+
+//------------------------------------------------------------------------
+private Value value(Block b, Action op, Type type, Command at)
+{
+    Value v = new Value(m_values++, op, type, at);
+    v.block = b;
+    b.code.add(v);
+    return v;
+}
+
+private Value constant(Command at, Type type, Object value)
+{
+    Value v = new Value(m_values++, Action.CONSTANT, type, at);
+    v.constant = value;
+    return v;
+}
+
+private Value phi(Variable v, Block b)
+{
+    Value p = new Value(m_values++, null, v.type, b.start);
+    p.constant = v;
+    p.home = v;
+    p.block = b;
+    p.args = new Value[b.preds.size()];
+    b.phis.add(p);
+    return p;
+}
+
+//------------------------------------------------------------------------
+private static void write(Variable v, Block b, Value value)
+{
+    b.defs[v.slot] = value;
+}
+
+private Value read(Variable v, Block b)
+{
+    Value d = b.defs[v.slot];
+    return d != null ? d : readRecursive(v, b);
+}
+
+// Un bloque sin cerrar puede tener todavia predecesores sin tratar, asi
+// que recibe una phi cuyos operandos se ponen al cerrarlo.
+private Value readRecursive(Variable v, Block b)
+{
+    Value val;
+
+    if(!b.sealed)
+    {
+        val = phi(v, b);
+        b.incomplete.add(val);
+    }
+    else if(b.preds.isEmpty())
+    {
+        val = constant(b.start, v.type, initial(v.type));
+    }
+    else if(b.preds.size() == 1)
+    {
+        val = read(v, b.preds.get(0));
+    }
+    else
+    {
+        val = phi(v, b);
+        write(v, b, val);
+        operands(val);
+    }
+
+    write(v, b, val);
+    return val;
+}
+
+private void operands(Value phi)
+{
+    Block b = phi.block;
+
+    for(int i = 0; i < phi.args.length; i++)
+        phi.args[i] = read((Variable)phi.constant, b.preds.get(i));
+}
+
+// Cierra un bloque cuando ya se han tratado todos sus predecesores.
+private void seal(Block b)
+{
+    if(b.sealed)
+        return;
+
+    for(Block p : b.preds)
+    {
+        if(!p.filled)
+            return;
+    }
+
+    b.sealed = true;
+
+    for(Value phi : b.incomplete)
+        operands(phi);
+
+    b.incomplete = null;
+}
+
+//------------------------------------------------------------------------
+static Value resolve(Value v)
+{
+    while(v.forward != null)
+        v = v.forward;
+
+    return v;
+}
+
+// Quita los valores sustituidos y hace que los operandos apunten a los
+// que los sustituyen.
+private void normalize()
+{
+    for(Block b : m_blocks)
+    {
+        b.phis.removeIf(v -> v.forward != null);
+        b.code.removeIf(v -> v.forward != null);
+
+        for(Value v : b.phis)
+            resolveArgs(v);
+
+        for(Value v : b.code)
+            resolveArgs(v);
+
+        if(b.cond != null)
+            b.cond = resolve(b.cond);
+    }
+
+    for(int i = 0; i < m_final.length; i++)
+        m_final[i] = resolve(m_final[i]);
+}
+
+private static void resolveArgs(Value v)
+{
+    if(v.args != null)
+    {
+        for(int i = 0; i < v.args.length; i++)
+            v.args[i] = resolve(v.args[i]);
+    }
+}
+
+private static boolean same(Value a, Value b)
+{
+    return a == b || a.isConstant() && b.isConstant() &&
+                     a.type == b.type && a.constant.equals(b.constant);
+}
+
+// Valor unico que recibe una phi sin contarse a si misma, o null si
+// recibe varios distintos.
+private Value unique(Value phi)
+{
+    Value one = null;
+
+    for(Value a : phi.args)
+    {
+        a = resolve(a);
+
+        if(a == phi || one != null && same(a, one))
+            continue;
+
+        if(one != null)
+            return null;
+
+        one = a;
+    }
+
+    return one != null ? one
+                       : constant(phi.at, phi.type, initial(phi.type));
+}
+
+//------------------------------------------------------------------------
+/**
+ * Propagación de copias: las phi que reciben siempre el mismo valor se
+ * sustituyen por él. Las asignaciones entre variables ya no generan
+ * valores al construir la representación.
+ * @return número de phi eliminadas.
+ */
+int copyPropagation()
+{
+    int n = 0;
+
+    for(boolean changed = true; changed; )
+    {
+        changed = false;
+
+        for(Block b : m_blocks)
+        {
+            for(Value phi : b.phis)
+            {
+                Value one = phi.forward == null ? unique(phi) : null;
+
+                if(one != null)
+                {
+                    phi.forward = one;
+                    changed = true;
+                    n++;
+                }
+            }
+        }
+    }
+
+    normalize();
+    return n;
+}
+
+//------------------------------------------------------------------------
+/**
+ * Calcula las operaciones cuyos operandos son constantes. Las divisiones
+ * entre cero se dejan para que fallen al ejecutarse.
+ * @return número de valores sustituidos por constantes.
+ */
+int fold()
+{
+    int n = 0;
+
+    for(boolean changed = true; changed; )
+    {
+        changed = false;
+
+        for(Block b : m_blocks)
+        {
+            for(Value phi : b.phis)
+            {
+                Value one = phi.forward == null ? unique(phi) : null;
+
+                if(one != null && one.isConstant())
+                {
+                    phi.forward = one;
+                    changed = true;
+                    n++;
+                }
+            }
+
+            for(Value v : b.code)
+            {
+                if(v.forward != null || !v.isOperation())
+                    continue;
+
+                Value l = resolve(v.args[0]),
+                      r = v.args.length > 1 ? resolve(v.args[1]) : null;
+
+                if(v.pinned && nonZero(r))
+                    v.pinned = false;
+
+                if(!l.isConstant() || r != null && !r.isConstant())
+                    continue;
+
+                Object k = evaluate(v.op, v.type, l, r);
+
+                if(k != null)
+                {
+                    v.forward = constant(v.at, v.type, k);
+                    changed = true;
+                    n++;
+                }
+            }
+        }
+    }
+
+    normalize();
+    return n;
+}
+
+private static Object evaluate(Action op, Type type, Value l, Value r)
+{
+    if(type == Type.STRING)
+        return text(l) + text(r);
+
+    long a = (Long)l.constant, b = r == null ? 0 : (Long)r.constant;
+
+    switch(op)
+    {
+        case ADD:       return a + b;
+        case SUBTRACT:  return a - b;
+        case MULTIPLY:  return a * b;
+        case DIVIDE:    return b == 0 ? null : (Object)(a / b);
+        case NEGATE:    return -a;
+        case EQUAL:     return a == b ? 1L : 0L;
+        case UNEQUAL:   return a != b ? 1L : 0L;
+        case LESS:      return a <  b ? 1L : 0L;
+        case LESSEQ:    return a <= b ? 1L : 0L;
+        case GREATER:   return a >  b ? 1L : 0L;
+        case GREATEREQ: return a >= b ? 1L : 0L;
+        case NOT:       return a ^ 1;
+        case OR:        return a | b;
+        case AND:       return a & b;
+        default:        return null;
+    }
+}
+
+private static String text(Value v)
+{
+    return v.type == Type.STRING ? (String)v.constant
+                                 : String.valueOf((long)(Long)v.constant);
+}
+
+//------------------------------------------------------------------------
+/**
+ * Numeración global de valores: recorre el árbol de dominadores y
+ * sustituye cada operación por otra igual que la domina.
+ * @return número de valores sustituidos.
+ */
+int gvn()
+{
+    dominators();
+
+    Map<String,Value> table = new HashMap<>();
+    List<String> log = new ArrayList<>();
+    Deque<Object> work = new ArrayDeque<>();
+    int n = 0;
+
+    work.push(m_blocks.get(0));
+
+    while(!work.isEmpty())
+    {
+        Object o = work.pop();
+
+        if(o instanceof Integer)
+        {
+            // Sale del bloque: olvida sus valores.
+            for(int i = log.size(); i > (Integer)o; i--)
+                table.remove(log.remove(i - 1));
+
+            continue;
+        }
+
+        Block b = (Block)o;
+        work.push(log.size());
+
+        for(Block d : b.dominated)
+            work.push(d);
+
+        for(Value v : b.phis)
+            n += number(v, table, log);
+
+        for(Value v : b.code)
+        {
+            if(v.isOperation() && !v.pinned)
+                n += number(v, table, log);
+        }
+    }
+
+    normalize();
+    return n;
+}
+
+private static int number(Value v, Map<String,Value> table,
+                          List<String> log)
+{
+    String k = key(v);
+    Value e = table.get(k);
+
+    if(e != null)
+    {
+        v.forward = e;
+        return 1;
+    }
+
+    table.put(k, v);
+    log.add(k);
+    return 0;
+}
+
+private static String key(Value v)
+{
+    StringBuilder s = new StringBuilder();
+    String a[] = new String[v.args.length];
+
+    if(v.isPhi())
+        s.append("phi").append(v.block.id);
+    else
+        s.append(v.op.ordinal()).append(':').append(v.type.ordinal());
+
+    for(int i = 0; i < a.length; i++)
+    {
+        Value x = resolve(v.args[i]);
+
+        if(!x.isConstant())
+            a[i] = "#"+ x.id;
+        else if(x.type == Type.STRING)
+            a[i] = "s"+ ((String)x.constant).length() +":"+ x.constant;
+        else
+            a[i] = "c"+ x.type.ordinal() +":"+ x.constant;
+    }
+
+    if(commutative(v))
+        Arrays.sort(a);
+
+    for(String x : a)
+        s.append('|').append(x);
+
+    return s.toString();
+}
+
+private static boolean commutative(Value v)
+{
+    switch(v.isPhi() ? Action.VARIABLE : v.op)
+    {
+        case ADD:
+            return v.type == Type.INTEGER;
+        case MULTIPLY: case EQUAL: case UNEQUAL: case OR: case AND:
+            return true;
+        default:
+            return false;
+    }
+}
+
+//------------------------------------------------------------------------
+// Dominadores inmediatos con el algoritmo de Cooper, Harvey y Kennedy.
+private void dominators()
+{
+    List<Block> rpo = postorder();
+    Collections.reverse(rpo);
+
+    for(int i = 0; i < rpo.size(); i++)
+    {
+        Block b = rpo.get(i);
+        b.order = i;
+        b.idom = null;
+        b.dominated.clear();
+    }
+
+    Block entry = rpo.get(0);
+    entry.idom = entry;
+
+    for(boolean changed = true; changed; )
+    {
+        changed = false;
+
+        for(Block b : rpo)
+        {
+            if(b == entry)
+                continue;
+
+            Block idom = null;
+
+            for(Block p : b.preds)
+            {
+                if(p.idom != null)
+                    idom = idom == null ? p : intersect(p, idom);
+            }
+
+            if(b.idom != idom)
+            {
+                b.idom = idom;
+                changed = true;
+            }
+        }
+    }
+
+    for(Block b : rpo)
+    {
+        if(b != entry)
+            b.idom.dominated.add(b);
+    }
+}
+
+private static Block intersect(Block a, Block b)
+{
+    while(a != b)
+    {
+        while(a.order > b.order)
+            a = a.idom;
+
+        while(b.order > a.order)
+            b = b.idom;
+    }
+
+    return a;
+}
+
+private List<Block> postorder()
+{
+    List<Block> order = new ArrayList<>();
+    Set<Block> seen = new HashSet<>();
+    Deque<Block> stack = new ArrayDeque<>();
+    Deque<Integer> next = new ArrayDeque<>();
+
+    stack.push(m_blocks.get(0));
+    next.push(0);
+    seen.add(m_blocks.get(0));
+
+    while(!stack.isEmpty())
+    {
+        Block b = stack.peek();
+        Block s[] = b.successors();
+        int i = next.pop();
+
+        if(i < s.length)
+        {
+            next.push(i + 1);
+
+            if(seen.add(s[i]))
+            {
+                stack.push(s[i]);
+                next.push(0);
+            }
+        }
+        else
+        {
+            stack.pop();
+            order.add(b);
+        }
+    }
+
+    return order;
+}
+
+//------------------------------------------------------------------------
+/**
+ * Eliminación de código muerto: quita los valores que no llegan a una
+ * sentencia {@code imprimir}, a una condición, a una división que puede
+ * fallar o al valor final de una variable.
+ * @return número de valores eliminados.
+ */
+int deadCode()
+{
+    mark();
+    int n = 0;
+
+    for(Block b : m_blocks)
+    {
+        int size = b.phis.size() + b.code.size();
+        b.phis.removeIf(v -> !v.live);
+        b.code.removeIf(v -> !v.live);
+        n += size - b.phis.size() - b.code.size();
+    }
+
+    return n;
+}
+
+private void mark()
+{
+    normalize();
+    Deque<Value> work = new ArrayDeque<>();
+
+    for(Block b : m_blocks)
+    {
+        for(Value v : b.phis)
+            v.live = false;
+
+        for(Value v : b.code)
+            v.live = false;
+    }
+
+    for(Block b : m_blocks)
+    {
+        for(Value v : b.code)
+        {
+            if(v.pinned)
+                live(v, work);
+        }
+
+        if(b.cond != null)
+            live(b.cond, work);
+    }
+
+    for(Value v : m_final)
+        live(v, work);
+
+    while(!work.isEmpty())
+    {
+        Value v = work.pop();
+
+        if(v.args != null)
+        {
+            for(Value a : v.args)
+                live(a, work);
+        }
+    }
+}
+
+private static void live(Value v, Deque<Value> work)
+{
+    if(!v.live && !v.isConstant())
+    {
+        v.live = true;
+        work.push(v);
+    }
+}
+
+//------------------------------------------------------------------------
+/**
+ * Genera de nuevo la lista de comandos del código a partir de la
+ * representación.
+ */
+void lower()
+{
+    mark();
+    List<Block> layout = split();
+    List<Value> order = topological();
+
+    // Las operaciones que se usan varias veces se guardan en una variable
+    // cuando sale mas barato que calcularlas en cada uso.
+    for(Value x : order)
+    {
+        int size = 1;
+
+        for(Value a : x.args)
+            size += a.isOperation() && !a.stored ? a.size : 1;
+
+        x.size = Math.min(size, MAX_REFS);
+        x.stored = x.pinned || x.type != Type.BOOLEAN && size > MAX_INLINE;
+    }
+
+    for(Block b : layout)
+    {
+        for(Value v : b.code)
+        {
+            if(v.live && v.op == Action.PRINT)
+                refer(v.args[0], 1);
+        }
+
+        if(b.cond != null)
+            refer(b.cond, 1);
+
+        for(Value phi : copies(b))
+            refer(phi.args[b.taken.preds.indexOf(b)], 1);
+    }
+
+    for(Value v : m_final)
+        refer(v, 1);
+
+    for(int i = order.size() - 1; i >= 0; i--)
+    {
+        Value x = order.get(i);
+
+        if(!x.stored && x.type != Type.BOOLEAN && x.refs > 1 &&
+           x.size + 2 + x.refs < x.size * x.refs)
+        {
+            x.stored = true;
+        }
+
+        for(Value a : x.args)
+            refer(a, x.stored ? 1 : x.refs);
+    }
+
+    for(Value x : order)
+    {
+        if(x.pinned && x.refs == 1 && x.size <= MAX_INLINE && adjacent(x))
+            x.stored = false;
+    }
+
+    // Valores que se guardan en una variable. Las variables de entrada
+    // estan siempre en su posicion y los valores leidos se guardan donde
+    // los deja leer.
+    List<Value> resident = new ArrayList<>();
+
+    for(Block b : m_blocks)
+    {
+        for(Value v : b.code)
+        {
+            if(v.live && (v.isInput() || v.op == Action.READ))
+                resident(v, resident);
+        }
+    }
+
+    for(Block b : layout)
+    {
+        for(Value phi : b.phis)
+        {
+            if(phi.live)
+                resident(phi, resident);
+        }
+    }
+
+    for(Value x : order)
+    {
+        if(x.stored)
+            resident(x, resident);
+    }
+
+    for(Block b : layout)
+        statements(b);
+
+    Set<Long> interfere = liveness(layout, resident);
+    assign(resident, interfere);
+
+    for(Block b : layout)
+        emit(b);
+
+    m_code.relink(link(layout));
+}
+
+//------------------------------------------------------------------------
+// Parte las aristas de un IF hacia un bloque con phi, donde se ponen sus
+// copias, y devuelve el orden de los bloques con las nuevas aristas
+// delante de su destino.
+private List<Block> split()
+{
+    Map<Block,List<Block>> before = new HashMap<>();
+
+    for(Block b : m_blocks)
+    {
+        if(b.other == null)
+            continue;
+
+        if(hasPhis(b.taken))
+            b.taken = edge(b, b.taken, b.taken.preds.indexOf(b), before);
+
+        if(hasPhis(b.other))
+            b.other = edge(b, b.other, b.other.preds.lastIndexOf(b), before);
+    }
+
+    List<Block> layout = new ArrayList<>();
+
+    for(Block b : m_blocks)
+    {
+        layout.addAll(before.getOrDefault(b, Collections.emptyList()));
+        layout.add(b);
+    }
+
+    return layout;
+}
+
+private Block edge(Block from, Block to, int index,
+                   Map<Block,List<Block>> before)
+{
+    Block e = new Block(m_blockIds++, to.start);
+    e.taken = to;
+    e.preds.add(from);
+    to.preds.set(index, e);
+    before.computeIfAbsent(to, k -> new ArrayList<>()).add(e);
+    return e;
+}
+
+private static boolean hasPhis(Block b)
+{
+    for(Value phi : b.phis)
+    {
+        if(phi.live)
+            return true;
+    }
+
+    return false;
+}
+
+// Phi del sucesor que hay que copiar al final del bloque.
+private static List<Value> copies(Block b)
+{
+    if(b.taken == null || b.other != null || !hasPhis(b.taken))
+        return Collections.emptyList();
+
+    List<Value> phis = new ArrayList<>();
+
+    for(Value phi : b.taken.phis)
+    {
+        if(phi.live)
+            phis.add(phi);
+    }
+
+    return phis;
+}
+
+// Operaciones vivas con sus operandos antes que ellas.
+private List<Value> topological()
+{
+    List<Value> order = new ArrayList<>();
+    Deque<Value> stack = new ArrayDeque<>();
+
+    for(Block b : m_blocks)
+    {
+        for(Value v : b.code)
+        {
+            if(!v.live || !v.isOperation() || v.state != 0)
+                continue;
+
+            stack.push(v);
+
+            while(!stack.isEmpty())
+            {
+                Value x = stack.peek();
+
+                if(x.state == 0)
+                {
+                    x.state = 1;
+
+                    for(Value a : x.args)
+                    {
+                        if(a.isOperation() && a.state == 0)
+                            stack.push(a);
+                    }
+                }
+                else
+                {
+                    stack.pop();
+
+                    if(x.state == 1)
+                    {
+                        x.state = 2;
+                        order.add(x);
+                    }
+                }
+            }
+        }
+    }
+
+    return order;
+}
+
+// Indica si una division que puede fallar se usa en la primera sentencia
+// de su bloque con efectos que va detras de ella, de modo que se puede
+// calcular dentro de esa sentencia sin cambiar el orden de los errores.
+private boolean adjacent(Value x)
+{
+    Block b = x.block;
+    List<Value> later = b.code.subList(b.code.indexOf(x) + 1, b.code.size());
+
+    for(Value v : later)
+    {
+        if(!v.live || !v.pinned && !v.stored)
+            continue;
+
+        if(v.op == Action.DECLARE ? false
+           : v.op == Action.PRINT ? inlines(v.args[0], x)
+           : Arrays.stream(v.args).anyMatch(a -> inlines(a, x)))
+        {
+            return true;
+        }
+
+        if(v.pinned)
+            return false;
+    }
+
+    for(Value phi : copies(b))
+    {
+        if(inlines(phi.args[b.taken.preds.indexOf(b)], x))
+            return true;
+    }
+
+    return b.cond != null && inlines(b.cond, x);
+}
+
+// Indica si x se calcula al evaluar v.
+private static boolean inlines(Value v, Value x)
+{
+    if(v == x)
+        return true;
+
+    if(!v.isOperation() || v.stored)
+        return false;
+
+    for(Value a : v.args)
+    {
+        if(inlines(a, x))
+            return true;
+    }
+
+    return false;
+}
+
+private static void refer(Value v, int n)
+{
+    if(v.isOperation())
+        v.refs = Math.min(v.refs + n, MAX_REFS);
+}
+
+private static void resident(Value v, List<Value> resident)
+{
+    v.index = resident.size();
+    resident.add(v);
+}
+
+//------------------------------------------------------------------------
+private void statements(Block b)
+{
+    List<Stmt> s = b.stmts = new ArrayList<>();
+
+    for(Value v : b.code)
+    {
+        if(!v.live)
+            continue;
+
+        if(v.op == Action.DECLARE)
+            s.add(new Stmt(Kind.DECLARE, v));
+        else if(v.op == Action.PRINT)
+            s.add(new Stmt(Kind.PRINT, v));
+        else if(v.op == Action.READ && !tests(b, v))
+            s.add(new Stmt(Kind.READ, v));
+        else if(v.stored)
+            s.add(new Stmt(Kind.DEF, v));
+    }
+
+    if(b == m_exit && m_final.length > 0)
+    {
+        Stmt st = new Stmt(Kind.STORE, null);
+        st.dests = m_declared.toArray(new Variable[0]);
+        st.sources = m_final.clone();
+        s.add(st);
+    }
+
+    List<Value> phis = copies(b);
+
+    if(!phis.isEmpty())
+    {
+        int k = b.taken.preds.indexOf(b);
+        Stmt st = new Stmt(Kind.COPY, null);
+        st.phis = phis.toArray(new Value[0]);
+        st.sources = new Value[st.phis.length];
+
+        for(int i = 0; i < st.phis.length; i++)
+            st.sources[i] = st.phis[i].args[k];
+
+        s.add(st);
+    }
+
+    if(b.cond != null)
+        s.add(new Stmt(Kind.BRANCH, b.cond));
+}
+
+// Indica si el bloque termina con un salto segun el resultado de la
+// lectura.
+private static boolean tests(Block b, Value read)
+{
+    return b.cond != null && b.cond.op == Action.READ &&
+           b.cond.args[0] == read;
+}
+
+// Valores guardados que lee una sentencia.
+private static BitSet uses(Stmt st)
+{
+    BitSet u = new BitSet();
+
+    switch(st.kind)
+    {
+        case DEF:
+            for(Value a : st.value.args)
+                leaves(a, u);
+            break;
+        case PRINT:
+            leaves(st.value.args[0], u);
+            break;
+        case BRANCH:
+            if(st.value.op != Action.READ)
+                leaves(st.value, u);
+            break;
+        case COPY: case STORE:
+            for(Value a : st.sources)
+                leaves(a, u);
+            break;
+        default:
+    }
+
+    return u;
+}
+
+private static void leaves(Value v, BitSet out)
+{
+    if(v.index >= 0)
+    {
+        out.set(v.index);
+    }
+    else if(!v.isConstant())
+    {
+        for(Value a : v.args)
+            leaves(a, out);
+    }
+}
+
+private static Value[] defs(Stmt st)
+{
+    return st.kind == Kind.DEF || st.kind == Kind.READ
+                                ? new Value[] {st.value}
+         : st.kind == Kind.COPY ? st.phis
+         : st.kind == Kind.DECLARE && st.value.args != null ||
+           st.kind == Kind.BRANCH && st.value.op == Action.READ
+                                ? st.value.args : new Value[0];
+}
+
+//------------------------------------------------------------------------
+// Calcula que valores guardados estan vivos a la vez. Solo interesan
+// los que se asignan a la misma variable, que son los que pueden
+// compartir su posicion.
+private static Set<Long> liveness(List<Block> layout, List<Value> resident)
+{
+    for(Block b : layout)
+    {
+        b.use = new BitSet();
+        b.def = new BitSet();
+        b.liveIn = new BitSet();
+        b.liveOut = new BitSet();
+
+        for(Stmt st : b.stmts)
+        {
+            BitSet u = uses(st);
+            u.andNot(b.def);
+            b.use.or(u);
+
+            for(Value d : defs(st))
+                b.def.set(d.index);
+        }
+    }
+
+    for(boolean changed = true; changed; )
+    {
+        changed = false;
+
+        for(int i = layout.size() - 1; i >= 0; i--)
+        {
+            Block b = layout.get(i);
+
+            for(Block s : b.successors())
+                b.liveOut.or(s.liveIn);
+
+            BitSet in = (BitSet)b.liveOut.clone();
+            in.andNot(b.def);
+            in.or(b.use);
+
+            if(!in.equals(b.liveIn))
+            {
+                b.liveIn = in;
+                changed = true;
+            }
+        }
+    }
+
+    Set<Long> interfere = new HashSet<>();
+
+    for(Block b : layout)
+    {
+        BitSet live = (BitSet)b.liveOut.clone();
+
+        for(int i = b.stmts.size() - 1; i >= 0; i--)
+        {
+            Stmt st = b.stmts.get(i);
+            Value d[] = defs(st);
+
+            for(int j = 0; j < d.length; j++)
+            {
+                for(int k = live.nextSetBit(0); k >= 0;
+                        k = live.nextSetBit(k + 1))
+                {
+                    Value y = resident.get(k);
+
+                    // Una copia no hace que su origen y su destino
+                    // interfieran, porque tienen el mismo valor.
+                    if(y != d[j] && y.home != null && y.home == d[j].home &&
+                       (st.kind != Kind.COPY || st.sources[j] != y))
+                    {
+                        interfere.add(pair(y, d[j]));
+                    }
+                }
+            }
+
+            if(st.kind == Kind.DECLARE)
+            {
+                for(int k = live.nextSetBit(0); k >= 0;
+                        k = live.nextSetBit(k + 1))
+                {
+                    Value y = resident.get(k);
+
+                    if(y.home == st.value.constant && !y.isInput())
+                        y.conflict = true;
+                }
+            }
+
+            for(Value x : d)
+                live.clear(x.index);
+
+            live.or(uses(st));
+        }
+    }
+
+    return interfere;
+}
+
+private static long pair(Value a, Value b)
+{
+    int x = Math.min(a.index, b.index), y = Math.max(a.index, b.index);
+    return (long)x << 32 | y;
+}
+
+// Cada valor guardado usa su variable si no interfiere con los que ya la
+// usan, o una variable auxiliar propia.
+private void assign(List<Value> resident, Set<Long> interfere)
+{
+    Map<Variable,List<Value>> groups = new HashMap<>();
+
+    for(Value v : resident)
+    {
+        List<Value> g = v.home == null || v.conflict ? null
+                      : groups.computeIfAbsent(v.home, k -> new ArrayList<>());
+
+        if(v.isInput())
+        {
+            g.add(v);
+            v.slot = v.home;
+            continue;
+        }
+
+        if(g != null)
+        {
+            boolean free = true;
+
+            for(Value x : g)
+            {
+                if(interfere.contains(pair(x, v)))
+                {
+                    free = false;
+                    break;
+                }
+            }
+
+            if(free)
+            {
+                g.add(v);
+                v.slot = v.home;
+                continue;
+            }
+        }
+
+        v.slot = m_code.temporary(v.type);
+    }
+}
+
+//------------------------------------------------------------------------
+private void emit(Block b)
+{
+    List<Command> out = b.cmds = new ArrayList<>();
+    m_fresh = b.preds.isEmpty() ? new HashSet<>() : null;
+
+    if(b.label != null)
+        out.add(command(b.start, b.label, Type.VOID, null));
+
+    for(Stmt st : b.stmts)
+    {
+        Value v = st.value;
+
+        switch(st.kind)
+        {
+            case DECLARE:
+                Variable d = (Variable)v.constant;
+                out.add(command(v.at, Action.DECLARE, d.type, d));
+
+                if(m_fresh != null && !d.input)
+                    m_fresh.add(d);
+                break;
+
+            case DEF:
+                out.add(command(v.at, Action.VARIABLE, Type.VOID, v.slot));
+                operation(v, out);
+                out.add(command(v.at, Action.ASSIGN, Type.VOID, null));
+                written(v.slot);
+                break;
+
+            case PRINT:
+                expression(v.args[0], out);
+                out.add(command(v.at, Action.PRINT, Type.VOID, null));
+                break;
+
+            case READ:
+                out.add(command(v.at, Action.READ, Type.VOID, v.slot));
+                written(v.slot);
+                break;
+
+            case COPY:
+                Variable slots[] = new Variable[st.phis.length];
+
+                for(int i = 0; i < slots.length; i++)
+                    slots[i] = st.phis[i].slot;
+
+                parallel(slots, st.sources, b.jump != null ? b.jump
+                                                           : b.start, out);
+                break;
+
+            case STORE:
+                parallel(st.dests, st.sources, b.start, out);
+                break;
+
+            case BRANCH:
+                if(v.op == Action.READ)
+                    out.add(command(v.at, Action.READ, Type.BOOLEAN,
+                                    v.args[0].slot));
+                else
+                    expression(v, out);
+
+                b.branch = command(b.jump, Action.IF, Type.VOID, null);
+                out.add(b.branch);
+                break;
+        }
+    }
+}
+
+private void expression(Value v, List<Command> out)
+{
+    if(v.isConstant())
+        out.add(command(v.at, Action.CONSTANT, v.type, v.constant));
+    else if(v.index >= 0)
+        out.add(command(v.at, Action.VARIABLE, v.type, v.slot));
+    else
+        operation(v, out);
+}
+
+private void operation(Value v, List<Command> out)
+{
+    for(Value a : v.args)
+        expression(a, out);
+
+    out.add(command(v.at, v.op, Type.VOID, null));
+}
+
+// Asignacion simultanea: una variable no se escribe mientras otra
+// asignacion pendiente la lea. Los ciclos se rompen guardando uno de los
+// valores en una variable auxiliar.
+private void parallel(Variable dests[], Value sources[], Command at,
+                      List<Command> out)
+{
+    Variable from[] = new Variable[dests.length];
+    List<Integer> pending = new ArrayList<>();
+
+    for(int i = 0; i < dests.length; i++)
+    {
+        if((sources[i].index < 0 || sources[i].slot != dests[i]) &&
+           !holds(dests[i], sources[i]))
+        {
+            pending.add(i);
+        }
+    }
+
+    while(!pending.isEmpty())
+    {
+        int pick = -1;
+
+        for(int i : pending)
+        {
+            boolean read = false;
+
+            for(int j : pending)
+            {
+                if(j != i && (from[j] != null ? from[j] == dests[i]
+                                              : reads(sources[j], dests[i])))
+                {
+                    read = true;
+                    break;
+                }
+            }
+
+            if(!read)
+            {
+                pick = i;
+                break;
+            }
+        }
+
+        if(pick < 0)
+        {
+            int i = pending.stream().filter(k -> from[k] == null)
+                           .findFirst().get();
+            Variable t = m_code.temporary(dests[i].type);
+            store(t, sources[i], from[i], at, out);
+            from[i] = t;
+            continue;
+        }
+
+        store(dests[pick], sources[pick], from[pick], at, out);
+        pending.remove(Integer.valueOf(pick));
+    }
+}
+
+private void store(Variable dest, Value source, Variable from, Command at,
+                   List<Command> out)
+{
+    out.add(command(at, Action.VARIABLE, Type.VOID, dest));
+
+    if(from != null)
+        out.add(command(at, Action.VARIABLE, from.type, from));
+    else
+        expression(source, out);
+
+    out.add(command(at, Action.ASSIGN, Type.VOID, null));
+    written(dest);
+}
+
+// Indica si la variable ya tiene el valor porque es el inicial y no se ha
+// escrito desde su declaracion.
+private boolean holds(Variable slot, Value v)
+{
+    return m_fresh != null && m_fresh.contains(slot) && v.isConstant() &&
+           v.type == slot.type && v.constant.equals(initial(slot.type));
+}
+
+private void written(Variable slot)
+{
+    if(m_fresh != null)
+        m_fresh.remove(slot);
+}
+
+private static boolean reads(Value v, Variable slot)
+{
+    if(v.index >= 0)
+        return v.slot == slot;
+
+    if(!v.isConstant())
+    {
+        for(Value a : v.args)
+        {
+            if(reads(a, slot))
+                return true;
+        }
+    }
+
+    return false;
+}
+
+//------------------------------------------------------------------------
+// Encadena los bloques y pone los saltos. Los bloques vacios se quitan y
+// los saltos a ellos van al bloque que les sigue.
+private Command link(List<Block> layout)
+{
+    List<Block> kept = new ArrayList<>();
+
+    for(Block b : layout)
+    {
+        b.dropped = b.cmds.isEmpty() && b != m_exit;
+
+        if(!b.dropped)
+            kept.add(b);
+    }
+
+    Map<Command,Block> targets = new HashMap<>();
+
+    for(int i = 0; i < kept.size(); i++)
+    {
+        Block b = kept.get(i),
+              next = i + 1 < kept.size() ? kept.get(i + 1) : null,
+              t = target(b.taken);
+
+        if(b.branch != null)
+            targets.put(b.branch, target(b.other));
+
+        if(t != null && t != next)
+        {
+            Command jump = command(b.jump != null ? b.jump : b.start,
+                                   Action.GOTO, Type.VOID, null);
+            b.cmds.add(jump);
+            targets.put(jump, t);
+        }
+    }
+
+    if(m_exit.cmds.isEmpty() && targets.containsValue(m_exit))
+        m_exit.cmds.add(command(m_exit.start, Action.END, Type.VOID, null));
+
+    for(Map.Entry<Command,Block> e : targets.entrySet())
+        e.getKey().value = e.getValue().cmds.get(0);
+
+    Command first = null, last = null;
+
+    for(Block b : kept)
+    {
+        for(Command c : b.cmds)
+        {
+            if(first == null)
+                first = c;
+            else
+                last.next = c;
+
+            last = c;
+        }
+    }
+
+    if(last != null)
+        last.next = null;
+
+    return first;
+}
+
+private static Block target(Block b)
+{
+    while(b != null && b.dropped)
+        b = b.taken;
+
+    return b;
+}
+
+private static Command command(Command at, Action action, Type type,
+                               Object value)
+{
+    Command c = new Command();
+    c.row    = at.row;
+    c.column = at.column;
+    c.action = action;
+    c.type   = type;
+    c.value  = value;
+    return c;
+}
+
+} // Ir
@@ -0,0 +1,220 @@
+package tal;
+
+import java.util.*;
+
+/**
+ * Tabla de posiciones en el fichero fuente de las instrucciones de un
+ * {@link Program}, que solo se consulta al informar de un error o al
+ * perfilar.
+ * <p>Como la {@code LineNumberTable} de la máquina virtual de Java,
+ * guarda una entrada por cada grupo de instrucciones consecutivas con la
+ * misma fila y columna. Cada entrada son tres enteros de longitud
+ * variable: la distancia a la instrucción de la entrada anterior y la
+ * diferencia de fila y de columna. Cada {@value #INDEX} entradas se
+ * guarda el estado completo para empezar a decodificar desde ahí.
+ */
+final class LineTable
+{
+// Entradas entre dos puntos de entrada del indice.
+private static final int INDEX = 32;
+
+private final byte m_data[];
+
+// Por cada punto de entrada: instruccion, fila, columna y posicion en
+// m_data de la entrada siguiente.
+private final int m_index[];
+
+//------------------------------------------------------------------------
+/**
+ * Construye la tabla de las posiciones indicadas.
+ * @param row Fila de cada instrucción.
+ * @param column Columna de cada instrucción.
+ */
+LineTable(int row[], int column[])
+{
+    // Se recorren dos veces: la primera para reservar justo los bytes
+    // necesarios, ya que la tabla se crea con cada programa.
+    byte data[] = null;
+
+    for(int pass = 0; pass < 2; pass++)
+    {
+        int pc = 0, r = 0, c = 0, at = 0;
+
+        for(int i = 0; i < row.length; i++)
+        {
+            if(i == 0 || row[i] != r || column[i] != c)
+            {
+                at = write(data, at, i - pc);
+                at = write(data, at, row[i] - r);
+                at = write(data, at, column[i] - c);
+                pc = i;
+                r = row[i];
+                c = column[i];
+            }
+        }
+
+        if(data == null)
+            data = new byte[at];
+    }
+
+    m_data  = data;
+    m_index = index(m_data, row.length);
+}
+
+//------------------------------------------------------------------------
+/**
+ * Construye la tabla a partir de sus datos codificados.
+ * @param data Datos obtenidos con {@link #data()}.
+ * @param length Número de instrucciones del programa.
+ * @throws IllegalArgumentException si los datos no son correctos.
+ */
+LineTable(byte data[], int length)
+{
+    m_data  = data.clone();
+    m_index = index(m_data, length);
+}
+
+//------------------------------------------------------------------------
+/**
+ * Datos codificados de la tabla, para guardarla en un fichero.
+ * @return datos de la tabla.
+ */
+byte[] data()
+{
+    return m_data.clone();
+}
+
+//------------------------------------------------------------------------
+// Recorre los datos comprobando que las instrucciones estan en orden.
+private static int[] index(byte data[], int length)
+{
+    int index[] = new int[4 * (1 + data.length / (3 * INDEX))];
+    int at[] = {0}, pc = 0, r = 0, c = 0, entries = 0, points = 0;
+
+    while(at[0] < data.length)
+    {
+        int d = read(data, at);
+
+        if(entries > 0 ? d <= 0 : d != 0)
+            throw new IllegalArgumentException("Tabla de posiciones incorrecta");
+
+        pc += d;
+        r  += read(data, at);
+        c  += read(data, at);
+
+        if(pc >= length)
+            throw new IllegalArgumentException("Tabla de posiciones incorrecta");
+
+        if(entries++ % INDEX == 0)
+        {
+            index[points++] = pc;
+            index[points++] = r;
+            index[points++] = c;
+            index[points++] = at[0];
+        }
+    }
+
+    if(entries == 0 && length > 0)
+        throw new IllegalArgumentException("Tabla de posiciones incorrecta");
+
+    return points == index.length ? index : Arrays.copyOf(index, points);
+}
+
+//------------------------------------------------------------------------
+/**
+ * Fila de una instrucción.
+ * @param pc Posición de la instrucción.
+ * @return fila en el fichero fuente.
+ */
+int row(int pc)
+{
+    return (int)(find(pc) >>> 32);
+}
+
+/**
+ * Columna de una instrucción.
+ * @param pc Posición de la instrucción.
+ * @return columna en el fichero fuente.
+ */
+int column(int pc)
+{
+    return (int)find(pc);
+}
+
+// Fila y columna de la instruccion, en la parte alta y baja.
+private long find(int pc)
+{
+    // Ultimo punto de entrada que no pasa de la instruccion.
+    int lo = 0, hi = m_index.length / 4 - 1;
+
+    while(lo < hi)
+    {
+        int mid = (lo + hi + 1) >>> 1;
+
+        if(m_index[4 * mid] <= pc)
+            lo = mid;
+        else
+            hi = mid - 1;
+    }
+
+    int k = 4 * lo, at[] = {m_index[k + 3]},
+        p = m_index[k], r = m_index[k + 1], c = m_index[k + 2];
+
+    while(at[0] < m_data.length)
+    {
+        int d = read(m_data, at);
+
+        if(p + d > pc)
+            break;
+
+        p += d;
+        r += read(m_data, at);
+        c += read(m_data, at);
+    }
+
+    return (long)r << 32 | c & 0xFFFFFFFFL;
+}
+
+//------------------------------------------------------------------------
+// Entero de longitud variable con codificacion zigzag, para que las
+// diferencias negativas ocupen poco.
+private static int read(byte data[], int at[])
+{
+    int v = 0, shift = 0, b;
+
+    do
+    {
+        if(at[0] >= data.length || shift > 28)
+            throw new IllegalArgumentException("Tabla de posiciones incorrecta");
+
+        b = data[at[0]++];
+        v |= (b & 0x7F) << shift;
+        shift += 7;
+    }
+    while((b & 0x80) != 0);
+
+    return (v >>> 1) ^ -(v & 1);
+}
+
+// Escribe un entero en data desde la posicion at y devuelve la posicion
+// siguiente. Si data es null solo cuenta los bytes.
+private static int write(byte data[], int at, int value)
+{
+    int v = (value << 1) ^ (value >> 31);
+
+    while((v & ~0x7F) != 0)
+    {
+        if(data != null)
+            data[at] = (byte)((v & 0x7F) | 0x80);
+
+        at++;
+        v >>>= 7;
+    }
+
+    if(data != null)
+        data[at] = (byte)v;
+
+    return at + 1;
+}
+
+} // LineTable
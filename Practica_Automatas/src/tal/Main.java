@@ -1,23 +1,144 @@
 package tal;
 
 import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.stream.*;
 
 /**
  * Programa principal del compilador.
  */
 public class Main
 {
+// Limites por defecto de cada ejecucion del servidor.
+private static final long BUDGET = 1_000_000_000, TIMEOUT = 10_000;
+
 //------------------------------------------------------------------------
 public static void main(String args[]) throws IOException
 {
-    if(args.length != 1)
+    if(args.length >= 2 && args[0].matches("-O[0-9]?"))
+    {
+        int nivel = args[0].length() == 2 ? PassManager.DEFAULT_LEVEL
+                                          : args[0].charAt(2) - '0';
+        optimizar(PassManager.level(nivel),
+                  Arrays.copyOfRange(args, 1, args.length));
+    }
+    else if(args.length >= 3 && args[0].equals("-passes"))
+    {
+        optimizar(PassManager.parse(args[1]),
+                  Arrays.copyOfRange(args, 2, args.length));
+    }
+    else if(args.length == 1)
+    {
+        leerTokens(args[0]);
+        compilar(args[0]);
+    }
+    else if(args.length == 3 && args[0].equals("-c"))
+    {
+        guardar(args[1], args[2], null);
+    }
+    else if(args.length == 4 && args[0].equals("-c"))
+    {
+        guardar(args[1], args[2], args[3], null);
+    }
+    else if(args.length == 2 && args[0].equals("-x"))
+    {
+        ejecutar(args[1]);
+    }
+    else if(args.length == 3 && args[0].equals("-i"))
+    {
+        leer(args[2], args[1]);
+    }
+    else if((args.length == 2 || args.length == 3) && args[0].equals("-p"))
+    {
+        perfilar(args[1], args.length == 3 ? args[2] : null);
+    }
+    else if(args.length == 3 && args[0].equals("-t"))
+    {
+        entrenar(args[1], args[2]);
+    }
+    else if(args.length == 4 && args[0].equals("-r"))
+    {
+        trazar(args[2], Integer.parseInt(args[1]), args[3]);
+    }
+    else if(args.length == 3 && args[0].equals("-v"))
+    {
+        verTraza(args[1], args[2]);
+    }
+    else if(args.length == 3 && args[0].equals("-m"))
+    {
+        muestrear(args[2], Integer.parseInt(args[1]));
+    }
+    else if((args.length == 3 || args.length == 4) && args[0].equals("-b"))
     {
-        System.out.println("Parametros:  nombre_fichero");
-        return;
+        lotes(args[1], args[2],
+              args.length == 4 ? Integer.parseInt(args[3]) : 0);
     }
+    else if(args.length >= 2 && args[0].equals("-l"))
+    {
+        if(validar(Arrays.copyOfRange(args, 1, args.length)) > 0)
+            System.exit(1);
+    }
+    else if(args.length >= 2 && args.length <= 4 && args[0].equals("-d"))
+    {
+        servidor(args[1],
+                 args.length >= 3 ? Long.parseLong(args[2]) : BUDGET,
+                 args.length == 4 ? Long.parseLong(args[3]) : TIMEOUT);
+    }
+    else if(args.length == 3 && args[0].equals("-e"))
+    {
+        if(Daemon.submit(args[1], args[2]) != ScriptService.Status.OK)
+            System.exit(1);
+    }
+    else
+    {
+        ayuda();
+    }
+}
+
+//------------------------------------------------------------------------
+private static void ayuda()
+{
+    System.out.println("Parametros:  nombre_fichero");
+    System.out.println("             [optimizacion] nombre_fichero");
+    System.out.println("             [optimizacion] -c nombre_fichero "+
+                       "fichero_compilado [perfil]");
+    System.out.println("             -x fichero_compilado");
+    System.out.println("             optimizacion -x nombre_fichero");
+    System.out.println("             -i fichero_entrada nombre_fichero");
+    System.out.println("             -p nombre_fichero [pilas_plegadas]");
+    System.out.println("             -t nombre_fichero perfil");
+    System.out.println("             -r registros nombre_fichero traza");
+    System.out.println("             -v nombre_fichero traza");
+    System.out.println("             -m muestras_por_segundo nombre_fichero");
+    System.out.println("             -b nombre_fichero datos.csv [hilos]");
+    System.out.println("             -l nombre_fichero|directorio...");
+    System.out.println("             -d socket [instrucciones [ms]]");
+    System.out.println("             -e socket nombre_fichero|-");
+    System.out.println("optimizacion: -O[nivel] | -passes "+
+                       String.join(",", PassManager.available()));
+    System.out.println("Sin -c ni -x se ejecutan el programa original y "+
+                       "el optimizado");
+    System.out.println("y se comparan sus salidas.");
+}
 
-    leerTokens(args[0]);
-    compilar(args[0]);
+//------------------------------------------------------------------------
+// Las opciones -O y -passes eligen las pasadas con las que se compila
+// (-c) o se ejecuta una sola vez (-x) el programa. Sin ninguno de los
+// dos se comprueba el programa optimizado con el original.
+private static void optimizar(PassManager pasadas, String args[])
+    throws IOException
+{
+    if(args.length == 1)
+        optimizar(args[0], pasadas);
+    else if(args.length == 3 && args[0].equals("-c"))
+        guardar(args[1], args[2], pasadas);
+    else if(args.length == 4 && args[0].equals("-c"))
+        guardar(args[1], args[2], args[3], pasadas);
+    else if(args.length == 2 && args[0].equals("-x"))
+        ejecutar(args[1], pasadas);
+    else
+        ayuda();
 }
 
 //------------------------------------------------------------------------
@@ -49,4 +170,369 @@ private static void compilar(String fichero) throws IOException
     adr.codeRun();
 }
 
+//------------------------------------------------------------------------
+// Ejecuta el programa optimizado y comprueba que su salida es la misma
+// que la del programa sin optimizar.
+private static void optimizar(String fichero, PassManager pasadas)
+    throws IOException
+{
+    ADR adr = new ADR(new AFD(fichero));
+    adr.programa();
+    adr.close();
+    Program original = adr.code().program();
+
+    adr = new ADR(new AFD(fichero));
+    adr.programa();
+    adr.close();
+    adr.codeOptimize(pasadas);
+    Program optimizado = adr.code().program();
+
+    System.out.println("\nCodigo optimizado ("+ pasadas +"):\n");
+    System.out.println(optimizado);
+
+    OutputSink.Memory antes = OutputSink.memory(),
+                      despues = OutputSink.memory();
+    ExecutionContext x = new ExecutionContext(original, antes),
+                     y = new ExecutionContext(optimizado, despues);
+
+    // Los dos programas leen la misma entrada.
+    if(original.reads())
+    {
+        byte entrada[] = System.in.readAllBytes();
+        x.setInput(InputSource.memory(entrada));
+        y.setInput(InputSource.memory(entrada));
+    }
+
+    String error = ejecutar(original, x), errorOptimizado;
+    long t = System.nanoTime();
+    errorOptimizado = ejecutar(optimizado, y);
+    t = System.nanoTime() - t;
+
+    System.out.println("\nEjecucion:\n");
+    System.out.print(despues);
+
+    if(errorOptimizado != null)
+        System.out.println(errorOptimizado);
+
+    System.out.printf("\nInstrucciones ejecutadas: %d sin optimizar, "+
+                      "%d optimizado (%.3f ms)\n", x.steps(), y.steps(),
+                      t / 1e6);
+
+    if(!antes.toString().equals(despues.toString()) ||
+       !String.valueOf(error).equals(String.valueOf(errorOptimizado)))
+    {
+        System.err.println("ERROR: la salida del programa optimizado "+
+                           "no coincide con la del original.");
+        System.exit(1);
+    }
+}
+
+//------------------------------------------------------------------------
+private static String ejecutar(Program p, ExecutionContext x)
+{
+    try
+    {
+        p.run(x);
+        return null;
+    }
+    catch(RuntimeException ex)
+    {
+        return ex.getMessage();
+    }
+}
+
+//------------------------------------------------------------------------
+// Los ficheros grandes se analizan con el analizador lexico en otro
+// hilo. Sin pasadas el programa se guarda sin optimizar.
+private static void guardar(String fichero, String compilado,
+                            PassManager pasadas) throws IOException
+{
+    ADR adr = new ADR(new AFD(fichero),
+                      TokenPipe.worthwhile(Files.size(Paths.get(fichero))));
+
+    try
+    {
+        adr.programa();
+    }
+    finally
+    {
+        adr.close();
+    }
+
+    if(pasadas != null)
+        adr.codeOptimize(pasadas);
+
+    adr.codeWrite(compilado);
+}
+
+//------------------------------------------------------------------------
+// Guarda el programa optimizado con el perfil obtenido con -t. Sin
+// pasadas se usa el nivel de optimizacion por defecto.
+private static void guardar(String fichero, String compilado, String perfil,
+                            PassManager pasadas) throws IOException
+{
+    ADR adr = new ADR(new AFD(fichero));
+    adr.programa();
+    adr.close();
+
+    if(pasadas != null)
+        adr.codeOptimize(pasadas);
+    else
+        adr.codeOptimize();
+
+    Code code = adr.code();
+    code.applyProfile(Profile.read(perfil, code.program()));
+    System.out.println(code.program());
+    adr.codeWrite(compilado);
+}
+
+//------------------------------------------------------------------------
+private static void ejecutar(String compilado) throws IOException
+{
+    Program p = Program.read(compilado);
+    ExecutionContext x = new ExecutionContext(p, OutputSink.stdout());
+    x.setInput(InputSource.stdin());
+    p.run(x);
+}
+
+//------------------------------------------------------------------------
+// Compila el programa con las pasadas indicadas y lo ejecuta una sola
+// vez, sin compararlo con el original.
+private static void ejecutar(String fichero, PassManager pasadas)
+    throws IOException
+{
+    ADR adr = new ADR(new AFD(fichero));
+    adr.programa();
+    adr.close();
+    adr.codeOptimize(pasadas);
+
+    Program p = adr.code().program();
+    ExecutionContext x = new ExecutionContext(p, OutputSink.stdout());
+    x.setInput(InputSource.stdin());
+    p.run(x);
+}
+
+//------------------------------------------------------------------------
+// Ejecuta el programa optimizado leyendo los datos de un fichero
+// proyectado en memoria.
+private static void leer(String fichero, String entrada) throws IOException
+{
+    ADR adr = new ADR(new AFD(fichero));
+    adr.programa();
+    adr.close();
+    adr.codeOptimize();
+
+    try(InputSource in = InputSource.file(entrada))
+    {
+        adr.codeInput(in);
+        adr.codeRun();
+    }
+}
+
+//------------------------------------------------------------------------
+private static void perfilar(String fichero, String pilas)
+    throws IOException
+{
+    AFD afd = new AFD(fichero);
+    ADR adr = new ADR(afd);
+    adr.programa();
+    adr.close();
+
+    Program p = adr.code().program();
+    Profile profile = new Profile(p);
+    ExecutionContext x = new ExecutionContext(p, OutputSink.stdout());
+    x.setInput(InputSource.stdin());
+    x.setProfile(profile);
+    p.run(x);
+
+    System.out.println("\nPerfil por instruccion:\n");
+    System.out.println(profile.listing());
+    System.out.println("Perfil por linea:\n");
+    System.out.println(profile.lines(
+        Files.readAllLines(Paths.get(fichero))));
+
+    if(pilas != null)
+        profile.writeCollapsed(pilas);
+}
+
+//------------------------------------------------------------------------
+// Ejecuta el programa optimizado y guarda su perfil para compilarlo
+// despues con -c.
+private static void entrenar(String fichero, String perfil)
+    throws IOException
+{
+    ADR adr = new ADR(new AFD(fichero));
+    adr.programa();
+    adr.close();
+    adr.codeOptimize();
+
+    Program p = adr.code().program();
+    Profile profile = new Profile(p);
+    ExecutionContext x = new ExecutionContext(p, OutputSink.stdout());
+    x.setInput(InputSource.stdin());
+    x.setProfile(profile);
+    p.run(x);
+
+    System.out.println("\nPerfil de entrenamiento:\n");
+    System.out.println(profile.summary(5));
+    profile.write(perfil);
+}
+
+//------------------------------------------------------------------------
+// Ejecuta el programa guardando sus ultimas instrucciones. La traza se
+// vuelca al terminar y tambien si falla.
+private static void trazar(String fichero, int registros, String traza)
+    throws IOException
+{
+    ADR adr = new ADR(new AFD(fichero));
+    adr.programa();
+    adr.close();
+
+    Trace trace = adr.code().setTrace(registros, traza);
+    adr.codeRun();
+    trace.dump(traza);
+}
+
+//------------------------------------------------------------------------
+private static void verTraza(String fichero, String traza)
+    throws IOException
+{
+    ADR adr = new ADR(new AFD(fichero));
+    adr.programa();
+    adr.close();
+
+    System.out.print(Trace.decode(traza, adr.code().program()));
+}
+
+//------------------------------------------------------------------------
+private static void muestrear(String fichero, int frecuencia)
+    throws IOException
+{
+    AFD afd = new AFD(fichero);
+    ADR adr = new ADR(afd);
+    adr.programa();
+    adr.close();
+
+    Program p = adr.code().program();
+    Sampler sampler = new Sampler(p, frecuencia);
+    ExecutionContext x = new ExecutionContext(p, OutputSink.stdout());
+    x.setInput(InputSource.stdin());
+    sampler.start(x);
+
+    try
+    {
+        p.run(x);
+    }
+    finally
+    {
+        try
+        {
+            sampler.stop();
+        }
+        catch(InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    System.out.println("\nPuntos calientes:\n");
+    System.out.println(sampler.report(
+        Files.readAllLines(Paths.get(fichero)), 20));
+}
+
+//------------------------------------------------------------------------
+// Ejecuta el programa optimizado para cada registro de un fichero CSV.
+// Las columnas con el nombre de una variable declarada le dan valor.
+private static void lotes(String fichero, String datos, int hilos)
+    throws IOException
+{
+    String columnas[] = Batch.header(datos);
+
+    ADR adr = new ADR(new AFD(fichero));
+    adr.programa();
+    adr.close();
+
+    List<String> entradas = new ArrayList<>();
+
+    for(String c : columnas)
+    {
+        if(adr.code().isDeclared(c))
+            entradas.add(c);
+    }
+
+    adr.codeInputs(entradas.toArray(new String[0]));
+    adr.codeOptimize();
+
+    Batch batch = new Batch(adr.code().program(), columnas);
+
+    if(hilos > 0)
+        batch.setThreads(hilos);
+
+    OutputSink out = OutputSink.stdout();
+    long t = System.nanoTime();
+    long registros = batch.run(datos, out);
+    out.close();
+    t = System.nanoTime() - t;
+
+    System.err.printf("%d registros, %d con error, %.3f s, "+
+                      "%.0f registros/s\n", registros, batch.failed(),
+                      t / 1e9, registros / (t / 1e9));
+}
+
+//------------------------------------------------------------------------
+// Valida los ficheros indicados y los de los directorios, sin generar
+// codigo. Devuelve el numero de ficheros con errores.
+private static long validar(String nombres[]) throws IOException
+{
+    List<String> ficheros = new ArrayList<>();
+
+    for(String n : nombres)
+    {
+        Path p = Paths.get(n);
+
+        if(!Files.isDirectory(p))
+        {
+            ficheros.add(n);
+            continue;
+        }
+
+        try(Stream<Path> s = Files.walk(p))
+        {
+            s.filter(Files::isRegularFile).sorted()
+             .forEach(f -> ficheros.add(f.toString()));
+        }
+    }
+
+    Validator validator = new Validator();
+    long t = System.nanoTime();
+    long n = validator.run(ficheros, System.out);
+    t = System.nanoTime() - t;
+
+    System.err.printf("%d ficheros, %d con errores, %d errores, %.3f s, "+
+                      "%.0f ficheros/s\n", n, validator.failed(),
+                      validator.errors(), t / 1e9, n / (t / 1e9));
+
+    return validator.failed();
+}
+
+//------------------------------------------------------------------------
+// Cada peticion se ejecuta como mucho con el numero de instrucciones y
+// los milisegundos indicados, para que un programa que no termina no
+// ocupe un hilo del servidor para siempre.
+private static void servidor(String socket, long instrucciones, long ms)
+    throws IOException
+{
+    CodeCache cache = new CodeCache(1024);
+    ScriptService service = new ScriptService(instrucciones, ms);
+
+    try(Daemon d = new Daemon(socket, cache, service))
+    {
+        d.warmUp(2000);
+        Metrics.reset();
+        Metrics.register();
+        System.out.println("Esperando peticiones en "+ socket);
+        d.serve();
+    }
+}
+
 } // Main
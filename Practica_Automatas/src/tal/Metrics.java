@@ -0,0 +1,283 @@
+package tal;
+
+import java.lang.management.*;
+import java.util.concurrent.atomic.*;
+
+import javax.management.*;
+
+/**
+ * Contadores globales del compilador y del intérprete.
+ * <p>Los contadores se actualizan siempre y se pueden consultar por JMX
+ * después de llamar a {@link #register()}, con el nombre
+ * {@value #NAME}. Son contadores repartidos entre hilos
+ * ({@link LongAdder}), de modo que muchas compilaciones y ejecuciones
+ * simultáneas no compiten por la misma variable.
+ */
+public final class Metrics
+{
+/** Nombre del MBean en el servidor de la plataforma. */
+public static final String NAME = "tal:type=Metrics";
+
+// Histograma de la duración de las compilaciones: el grupo i cuenta
+// las que han durado menos de 2^i microsegundos.
+private static final int BUCKETS = 32;
+
+private static final LongAdder
+    s_compiled     = new LongAdder(),
+    s_compileNanos = new LongAdder(),
+    s_latency[]    = new LongAdder[BUCKETS],
+    s_runs         = new LongAdder(),
+    s_instructions = new LongAdder(),
+    s_output       = new LongAdder(),
+    s_hits         = new LongAdder(),
+    s_diskHits     = new LongAdder(),
+    s_misses       = new LongAdder();
+
+private static final LongAccumulator s_maxStack =
+    new LongAccumulator(Math::max, 0);
+
+static
+{
+    for(int i = 0; i < BUCKETS; i++)
+        s_latency[i] = new LongAdder();
+}
+
+private static final View s_view = new View();
+
+private Metrics()
+{
+}
+
+/**
+ * Registra el MBean en el servidor de la plataforma. Si ya estaba
+ * registrado no hace nada.
+ */
+public static synchronized void register()
+{
+    try
+    {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(NAME);
+
+        if(!server.isRegistered(name))
+            server.registerMBean(s_view, name);
+    }
+    catch(JMException ex)
+    {
+        throw new IllegalStateException(ex);
+    }
+}
+
+/**
+ * Pone a cero todos los contadores.
+ */
+public static void reset()
+{
+    s_view.reset();
+}
+
+//------------------------------------------------------------------------
+static void compiled(long nanos)
+{
+    s_compiled.increment();
+    s_compileNanos.add(nanos);
+
+    long micros = nanos / 1000;
+    int bucket = 64 - Long.numberOfLeadingZeros(micros);
+    s_latency[Math.min(bucket, BUCKETS - 1)].increment();
+}
+
+static void ran(long steps, int maxStack, long output)
+{
+    ran(1, steps, maxStack, output);
+}
+
+static void ran(long runs, long steps, int maxStack, long output)
+{
+    s_runs.add(runs);
+    s_instructions.add(steps);
+    s_output.add(output);
+    s_maxStack.accumulate(maxStack);
+}
+
+static void cacheHit()
+{
+    s_hits.increment();
+}
+
+static void cacheDiskHit()
+{
+    s_diskHits.increment();
+}
+
+static void cacheMiss()
+{
+    s_misses.increment();
+}
+
+//------------------------------------------------------------------------
+/**
+ * Atributos y operaciones que se publican por JMX.
+ */
+public static interface MetricsMXBean
+{
+    /** @return programas compilados. */
+    long getScriptsCompiled();
+    /** @return duración media de las compilaciones en microsegundos. */
+    double getCompileMeanMicros();
+    /**
+     * @return histograma de la duración de las compilaciones. La
+     *         posición i cuenta las que han durado menos de 2^i
+     *         microsegundos y al menos 2^(i-1).
+     */
+    long[] getCompileLatencyHistogram();
+    /** @return cota superior de la mediana en microsegundos. */
+    long getCompileP50Micros();
+    /** @return cota superior del percentil 99 en microsegundos. */
+    long getCompileP99Micros();
+    /** @return ejecuciones terminadas. */
+    long getRuns();
+    /** @return instrucciones ejecutadas. */
+    long getInstructionsExecuted();
+    /**
+     * @return instrucciones ejecutadas por segundo desde la consulta
+     *         anterior de este atributo.
+     */
+    double getInstructionsPerSecond();
+    /** @return mayor profundidad de la pila de operandos. */
+    long getOperandStackHighWaterMark();
+    /** @return bytes escritos por las sentencias {@code imprimir}. */
+    long getOutputBytes();
+    /** @return programas encontrados en la memoria de una caché. */
+    long getCacheHits();
+    /** @return programas encontrados en el disco de una caché. */
+    long getCacheDiskHits();
+    /** @return programas que no estaban en una caché. */
+    long getCacheMisses();
+    /** Pone a cero todos los contadores. */
+    void reset();
+}
+
+//------------------------------------------------------------------------
+private static final class View implements MetricsMXBean
+{
+    private long m_lastInstructions, m_lastTime = System.nanoTime();
+
+    @Override public long getScriptsCompiled()
+    {
+        return s_compiled.sum();
+    }
+
+    @Override public double getCompileMeanMicros()
+    {
+        long n = s_compiled.sum();
+        return n == 0 ? 0.0 : s_compileNanos.sum() / 1e3 / n;
+    }
+
+    @Override public long[] getCompileLatencyHistogram()
+    {
+        long h[] = new long[BUCKETS];
+
+        for(int i = 0; i < BUCKETS; i++)
+            h[i] = s_latency[i].sum();
+
+        return h;
+    }
+
+    @Override public long getCompileP50Micros()
+    {
+        return percentile(0.50);
+    }
+
+    @Override public long getCompileP99Micros()
+    {
+        return percentile(0.99);
+    }
+
+    private long percentile(double p)
+    {
+        long h[] = getCompileLatencyHistogram(), total = 0;
+
+        for(long c : h)
+            total += c;
+
+        long rank = (long)Math.ceil(p * total), seen = 0;
+
+        for(int i = 0; i < BUCKETS; i++)
+        {
+            seen += h[i];
+
+            if(seen >= rank && seen > 0)
+                return 1L << i;
+        }
+
+        return 0;
+    }
+
+    @Override public long getRuns()
+    {
+        return s_runs.sum();
+    }
+
+    @Override public long getInstructionsExecuted()
+    {
+        return s_instructions.sum();
+    }
+
+    @Override public synchronized double getInstructionsPerSecond()
+    {
+        long now = System.nanoTime(), n = s_instructions.sum();
+        double rate = now == m_lastTime ? 0.0
+                    : (n - m_lastInstructions) * 1e9 / (now - m_lastTime);
+
+        m_lastInstructions = n;
+        m_lastTime = now;
+        return rate;
+    }
+
+    @Override public long getOperandStackHighWaterMark()
+    {
+        return s_maxStack.get();
+    }
+
+    @Override public long getOutputBytes()
+    {
+        return s_output.sum();
+    }
+
+    @Override public long getCacheHits()
+    {
+        return s_hits.sum();
+    }
+
+    @Override public long getCacheDiskHits()
+    {
+        return s_diskHits.sum();
+    }
+
+    @Override public long getCacheMisses()
+    {
+        return s_misses.sum();
+    }
+
+    @Override public synchronized void reset()
+    {
+        s_compiled.reset();
+        s_compileNanos.reset();
+
+        for(LongAdder a : s_latency)
+            a.reset();
+
+        s_runs.reset();
+        s_instructions.reset();
+        s_output.reset();
+        s_hits.reset();
+        s_diskHits.reset();
+        s_misses.reset();
+        s_maxStack.reset();
+        m_lastInstructions = 0;
+        m_lastTime = System.nanoTime();
+    }
+}
+
+} // Metrics
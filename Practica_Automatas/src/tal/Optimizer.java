@@ -0,0 +1,889 @@
+package tal;
+
+import java.util.*;
+
+import tal.Code.Action;
+import tal.Code.Command;
+import tal.Code.Type;
+import tal.Code.Variable;
+
+/**
+ * Optimización de los bucles {@code mientras} sobre la lista de
+ * comandos de {@link Code}.
+ * <p>Cada bucle empieza en un comando {@code WHILE} y termina en el
+ * {@code GOTO} que vuelve a él seguido de su {@code END}, tal como los
+ * genera {@link Code#addEnd(Token)}. Los comandos están en notación
+ * postfija, así que una subexpresión ocupa siempre un tramo seguido de
+ * comandos que termina en su operador.
+ * <p>Se hacen dos transformaciones:
+ * <ul>
+ * <li>Las subexpresiones cuyas variables no se asignan dentro del bucle
+ *     se calculan una vez antes del {@code WHILE} y se guardan en
+ *     variables auxiliares.
+ * <li>Los productos {@code d*d} y {@code d*k} de una variable de
+ *     inducción, que solo cambia con {@code d = d + c}, se guardan en
+ *     variables auxiliares que se actualizan con sumas mediante un
+ *     comando {@code STEP} después de cada incremento. Solo se hace
+ *     si el bucle da un número conocido de vueltas, suficiente para que
+ *     los productos que se ejecutan en todas las vueltas ahorren más
+ *     de lo que cuesta inicializarlos y actualizarlos.
+ * </ul>
+ * Solo se mueven las expresiones que no pueden fallar al ejecutarse,
+ * de modo que el programa optimizado produce la misma salida y los
+ * mismos errores que el original.
+ */
+final class Optimizer
+{
+private final Code m_code;
+
+// Inicializacion de las variables auxiliares constantes, que se hace
+// una sola vez al principio del programa.
+private final Chain m_prologue = new Chain();
+
+// Subexpresion del bucle.
+private static final class Node
+{
+    private int first, last;
+    private Command op;
+    private Node left, right;
+    private Type type;          // null si puede fallar
+    private boolean invariant;
+}
+
+// Asignacion del bucle.
+private static final class Assignment
+{
+    private int index;
+    private Variable target;
+    private Node value;
+}
+
+// Producto de una variable de induccion que se puede sustituir.
+private static final class Product
+{
+    private Node node, d, k;
+    private Variable v;
+    private String key;
+}
+
+// Lista de comandos que se inserta en el codigo.
+private static final class Chain
+{
+    private Command first, last;
+
+    private void add(Command c)
+    {
+        if(first == null)
+            first = c;
+        else
+            last.next = c;
+
+        last = c;
+    }
+}
+
+//------------------------------------------------------------------------
+Optimizer(Code code)
+{
+    m_code = code;
+}
+
+//------------------------------------------------------------------------
+void loops()
+{
+    Command first = m_code.first(), prev = null, before = null;
+
+    // Variables con valor constante conocido: las que reciben una constante
+    // en las asignaciones seguidas que hay justo antes del comando actual.
+    Map<Variable,Long> known = new HashMap<>();
+
+    // Los bucles exteriores se tratan antes que los interiores para que
+    // las expresiones salgan lo mas afuera posible.
+    for(Command c = first; c != null; before = prev, prev = c, c = c.next)
+    {
+        if(c.action == Action.ASSIGN && before != null &&
+           before.action == Action.VARIABLE && before.type == Type.VOID &&
+           prev.action == Action.CONSTANT && prev.type == Type.INTEGER)
+        {
+            known.put((Variable)before.value, (Long)prev.value);
+        }
+        else if(c.action != Action.VARIABLE && c.action != Action.CONSTANT)
+        {
+            if(c.action == Action.WHILE)
+            {
+                Chain pre = loop(c, known);
+
+                if(pre.first != null)
+                {
+                    pre.last.next = c;
+
+                    if(prev == null)
+                        first = pre.first;
+                    else
+                        prev.next = pre.first;
+                }
+            }
+
+            known.clear();
+        }
+    }
+
+    if(m_prologue.first != null)
+    {
+        m_prologue.last.next = first;
+        first = m_prologue.first;
+    }
+
+    m_code.relink(first);
+}
+
+//------------------------------------------------------------------------
+// Optimiza un bucle y devuelve los comandos que hay que poner delante.
+// Recibe las variables cuyo valor al entrar en el bucle es una constante.
+private Chain loop(Command start, Map<Variable,Long> known)
+{
+    List<Command> body = new ArrayList<>();
+    Command c = start;
+
+    while(c.action != Action.GOTO || c.value != start)
+    {
+        body.add(c);
+        c = c.next;
+    }
+
+    body.add(c);
+    body.add(c.next);
+
+    // Variables que cambian dentro del bucle.
+    Set<Integer> assigned = new HashSet<>();
+
+    for(Command b : body)
+    {
+        // Los DECLARE vienen de los procedimientos expandidos.
+        if(b.action == Action.VARIABLE && b.type == Type.VOID ||
+           b.action == Action.READ || b.action == Action.DECLARE)
+        {
+            assigned.add(((Variable)b.value).slot);
+        }
+        else if(b.action == Action.STEP)
+        {
+            assigned.add(((Variable)b.value).slot);
+            assigned.add(((Variable)b.value).slot + 1);
+        }
+    }
+
+    List<Node> roots = new ArrayList<>();
+    List<Assignment> assignments = new ArrayList<>();
+
+    if(!parse(body, assigned, roots, assignments))
+        return new Chain();
+
+    Chain pre = new Chain();
+    Map<Integer,Node> cut = new HashMap<>();
+    Map<Integer,Command> replacement = new HashMap<>();
+    Map<Integer,List<Command>> after = new HashMap<>();
+
+    hoist(start, body, roots, pre, cut, replacement);
+    reduce(start, body, assignments, roots, pre, cut, replacement, after,
+           known);
+
+    // Vuelve a enlazar los comandos del bucle.
+    Command prev = null;
+
+    for(int i = 0; i < body.size(); i++)
+    {
+        Command next = replacement.get(i);
+
+        if(next == null)
+            next = body.get(i);
+        else
+            i = cut.get(i).last;
+
+        if(prev != null)
+            prev.next = next;
+
+        prev = next;
+
+        for(Command s : after.getOrDefault(i, Collections.emptyList()))
+        {
+            prev.next = s;
+            prev = s;
+        }
+    }
+
+    return pre;
+}
+
+//------------------------------------------------------------------------
+// Reconstruye los arboles de las expresiones del bucle. Devuelve false
+// si el codigo no tiene la forma esperada.
+private static boolean parse(List<Command> body, Set<Integer> assigned,
+                             List<Node> roots, List<Assignment> assignments)
+{
+    Deque<Node> stack = new ArrayDeque<>();
+
+    for(int i = 0; i < body.size(); i++)
+    {
+        Command c = body.get(i);
+        Node n = new Node();
+        n.first = n.last = i;
+        n.op = c;
+
+        switch(c.action)
+        {
+            case VARIABLE:
+                Variable v = (Variable)c.value;
+                n.type = c.type == Type.VOID ? Type.VOID : v.type;
+                n.invariant = !assigned.contains(v.slot);
+                stack.push(n);
+                break;
+
+            case CONSTANT:
+                n.type = c.type;
+                n.invariant = true;
+                stack.push(n);
+                break;
+
+            case NEGATE: case NOT:
+                if(stack.isEmpty())
+                    return false;
+
+                n.left = stack.pop();
+                n.first = n.left.first;
+                n.invariant = n.left.invariant;
+                n.type = type(c.action, n.left, null);
+                stack.push(n);
+                break;
+
+            case ASSIGN:
+                if(stack.size() < 2)
+                    return false;
+
+                Assignment a = new Assignment();
+                a.index = i;
+                a.value = stack.pop();
+
+                if(stack.peek().type != Type.VOID)
+                    return false;
+
+                a.target = (Variable)stack.pop().op.value;
+                assignments.add(a);
+                roots.add(a.value);
+                break;
+
+            case READ:
+                if(c.type == Type.VOID)
+                {
+                    if(!stack.isEmpty())
+                        return false;
+                }
+                else
+                {
+                    n.type = c.type;
+                    stack.push(n);
+                }
+                break;
+
+            case PRINT: case IF:
+                if(stack.isEmpty())
+                    return false;
+
+                roots.add(stack.pop());
+                break;
+
+            case DECLARE: case ELSE: case WHILE: case GOTO: case END:
+            case STEP:
+                if(!stack.isEmpty())
+                    return false;
+                break;
+
+            case PARALLEL: case REDUCE:
+                // Los bucles paralelos no se mueven.
+                return false;
+
+            case CALL: case ENTER: case PARAM: case RETURN:
+                // Las llamadas pueden cambiar cualquier variable.
+                return false;
+
+            case LOAD: case STORE: case FILL: case COPY: case SORT: case SUM:
+                // Los elementos de los vectores pueden cambiar en cualquier
+                // sentencia.
+                return false;
+
+            default:
+                if(stack.size() < 2)
+                    return false;
+
+                n.right = stack.pop();
+                n.left  = stack.pop();
+                n.first = n.left.first;
+                n.invariant = n.left.invariant && n.right.invariant;
+                n.type = type(c.action, n.left, n.right);
+                stack.push(n);
+        }
+    }
+
+    return stack.isEmpty();
+}
+
+//------------------------------------------------------------------------
+// Tipo del resultado de una operacion, o null si puede fallar al
+// ejecutarse: tipos incompatibles o division por una variable.
+private static Type type(Action action, Node left, Node right)
+{
+    Type l = left.type, r = right == null ? null : right.type;
+
+    switch(action)
+    {
+        case ADD:
+            if(l == Type.STRING && (r == Type.STRING || r == Type.INTEGER) ||
+               r == Type.STRING && l == Type.INTEGER)
+            {
+                return Type.STRING;
+            }
+
+            return l == Type.INTEGER && r == Type.INTEGER ? l : null;
+
+        case SUBTRACT: case MULTIPLY:
+            return l == Type.INTEGER && r == Type.INTEGER ? l : null;
+
+        case DIVIDE:
+            return l == Type.INTEGER && r == Type.INTEGER &&
+                   right.op.action == Action.CONSTANT &&
+                   (Long)right.op.value != 0 ? l : null;
+
+        case NEGATE:
+            return l == Type.INTEGER ? l : null;
+
+        case EQUAL: case UNEQUAL: case LESS: case LESSEQ:
+        case GREATER: case GREATEREQ:
+            return l == Type.INTEGER && r == Type.INTEGER
+                   ? Type.BOOLEAN : null;
+
+        case NOT:
+            return l == Type.BOOLEAN ? l : null;
+
+        case OR: case AND:
+            return l == Type.BOOLEAN && r == Type.BOOLEAN ? l : null;
+
+        default:
+            return null;
+    }
+}
+
+//------------------------------------------------------------------------
+// Saca del bucle las subexpresiones invariantes mas grandes. Las que
+// son iguales comparten la misma variable auxiliar.
+private void hoist(Command start, List<Command> body, List<Node> roots,
+                   Chain pre, Map<Integer,Node> cut,
+                   Map<Integer,Command> replacement)
+{
+    Map<String,Variable> temps = new HashMap<>();
+    Deque<Node> pending = new ArrayDeque<>(roots);
+
+    while(!pending.isEmpty())
+    {
+        Node n = pending.pop();
+
+        if(n.left == null)
+            continue;
+
+        boolean movable = n.invariant &&
+                          (n.type == Type.INTEGER || n.type == Type.STRING);
+        if(!movable)
+        {
+            pending.push(n.left);
+
+            if(n.right != null)
+                pending.push(n.right);
+
+            continue;
+        }
+
+        String key = key(body, n);
+        Variable t = temps.get(key);
+
+        if(t == null)
+        {
+            t = m_code.temporary(n.type);
+            temps.put(key, t);
+            pre.add(command(start, Action.VARIABLE, Type.VOID, t));
+
+            for(int i = n.first; i <= n.last; i++)
+                pre.add(body.get(i));
+
+            pre.add(command(start, Action.ASSIGN, Type.VOID, null));
+        }
+
+        cut.put(n.first, n);
+        replacement.put(n.first, command(n.op, Action.VARIABLE, n.type, t));
+    }
+}
+
+//------------------------------------------------------------------------
+// Texto que identifica una subexpresion.
+private static String key(List<Command> body, Node n)
+{
+    StringBuilder s = new StringBuilder();
+
+    for(int i = n.first; i <= n.last; i++)
+    {
+        Command c = body.get(i);
+        s.append(c.action.ordinal()).append(':')
+         .append(c.type.ordinal()).append(':');
+
+        if(c.value instanceof Variable)
+            s.append(((Variable)c.value).slot);
+        else if(c.value instanceof String)
+            s.append(((String)c.value).length()).append(':').append(c.value);
+        else
+            s.append(c.value);
+
+        s.append(' ');
+    }
+
+    return s.toString();
+}
+
+//------------------------------------------------------------------------
+// Sustituye los productos de las variables de induccion si compensa. Si
+// se conoce el valor de una variable al entrar en el bucle los productos
+// se inicializan con constantes.
+private void reduce(Command start, List<Command> body,
+                    List<Assignment> assignments, List<Node> roots,
+                    Chain pre, Map<Integer,Node> cut,
+                    Map<Integer,Command> replacement,
+                    Map<Integer,List<Command>> after,
+                    Map<Variable,Long> known)
+{
+    Map<Variable,Long> steps = inductions(assignments);
+
+    if(steps.isEmpty())
+        return;
+
+    List<Product> products = products(roots, cut, steps);
+
+    if(products.isEmpty() ||
+       !profitable(body, roots, assignments, steps, products, known))
+    {
+        return;
+    }
+
+    Map<String,Variable> temps = new HashMap<>();
+
+    for(Product p : products)
+    {
+        Node n = p.node, d = p.d, k = p.k;
+        Variable v = p.v, t = temps.get(p.key);
+
+        if(t == null)
+        {
+            t = m_code.temporary(Type.INTEGER);
+            Variable b = m_code.temporary(Type.INTEGER),
+                     c = m_code.temporary(Type.INTEGER);
+            temps.put(p.key, t);
+
+            long step = steps.get(v);
+            Long value = known.get(v);
+            Command at = start;
+
+            if(same(d, k))
+            {
+                // t = d*d,  b = 2*c*d + c*c,  c = 2*c*c
+                if(value != null)
+                {
+                    assign(pre, at, t, constant(at, value * value));
+                    assign(pre, at, b, constant(at, 2 * step * value +
+                                                    step * step));
+                }
+                else
+                {
+                    assign(pre, at, t, copy(at, d.op), copy(at, d.op),
+                           command(at, Action.MULTIPLY, Type.VOID, null));
+                    assign(pre, at, b, copy(at, d.op),
+                           constant(at, 2 * step),
+                           command(at, Action.MULTIPLY, Type.VOID, null),
+                           constant(at, step * step),
+                           command(at, Action.ADD, Type.VOID, null));
+                }
+
+                assign(m_prologue, at, c, constant(at, 2 * step * step));
+            }
+            else
+            {
+                // t = d*k,  b = c*k,  c = 0, que ya es su valor inicial.
+                if(value != null && k.op.action == Action.CONSTANT)
+                {
+                    assign(pre, at, t,
+                           constant(at, value * (Long)k.op.value));
+                }
+                else
+                {
+                    assign(pre, at, t,
+                           value != null ? constant(at, value)
+                                      : copy(at, d.op),
+                           copy(at, k.op),
+                           command(at, Action.MULTIPLY, Type.VOID, null));
+                }
+
+                if(k.op.action == Action.CONSTANT)
+                {
+                    assign(m_prologue, at, b,
+                           constant(at, step * (Long)k.op.value));
+                }
+                else
+                {
+                    assign(pre, at, b, copy(at, k.op), constant(at, step),
+                           command(at, Action.MULTIPLY, Type.VOID, null));
+                }
+            }
+
+            for(Assignment a : assignments)
+            {
+                if(a.target == v)
+                {
+                    Command s = command(a.value.op, Action.STEP,
+                                        Type.VOID, t);
+                    after.computeIfAbsent(a.index, i -> new ArrayList<>())
+                         .add(s);
+                }
+            }
+        }
+
+        cut.put(n.first, n);
+        replacement.put(n.first, command(n.op, Action.VARIABLE,
+                                         Type.INTEGER, t));
+    }
+}
+
+//------------------------------------------------------------------------
+// Productos d*d, d*k o k*d de una variable de induccion d, con k
+// constante o invariante, que no estan dentro de una expresion movida.
+private static List<Product> products(List<Node> roots,
+                                      Map<Integer,Node> cut,
+                                      Map<Variable,Long> steps)
+{
+    List<Product> products = new ArrayList<>();
+    Deque<Node> pending = new ArrayDeque<>(roots);
+
+    while(!pending.isEmpty())
+    {
+        Node n = pending.pop();
+
+        if(n.left == null || cut.get(n.first) == n)
+            continue;
+
+        pending.push(n.left);
+
+        if(n.right != null)
+            pending.push(n.right);
+
+        if(n.op.action != Action.MULTIPLY ||
+           n.left.left != null || n.right.left != null)
+        {
+            continue;
+        }
+
+        Node d = n.left, k = n.right;
+
+        if(!isInduction(d, steps))
+        {
+            d = n.right;
+            k = n.left;
+        }
+
+        if(!isInduction(d, steps) ||
+           !(k.invariant && k.type == Type.INTEGER || same(d, k)))
+        {
+            continue;
+        }
+
+        Product p = new Product();
+        p.node = n;
+        p.d = d;
+        p.k = k;
+        p.v = (Variable)d.op.value;
+        p.key = same(d, k) ? "d:"+ p.v.slot
+              : "k:"+ p.v.slot +":"+ k.op.action +":"+ k.op.value;
+        products.add(p);
+    }
+
+    return products;
+}
+
+//------------------------------------------------------------------------
+// Indica si las instrucciones que ahorran los productos en las vueltas
+// del bucle superan las que cuesta inicializarlos al entrar y
+// actualizarlos despues de cada incremento. Solo cuentan los productos
+// de la condicion y los que no estan dentro de un si o de otro bucle,
+// que se ejecutan en todas las vueltas. Los costes son los comandos que
+// genera reduce(), contando una vez por entrada en el bucle los del
+// principio del programa; si no hay ganancia neta no se sustituye.
+private static boolean profitable(List<Command> body, List<Node> roots,
+                                  List<Assignment> assignments,
+                                  Map<Variable,Long> steps,
+                                  List<Product> products,
+                                  Map<Variable,Long> known)
+{
+    int level[] = levels(body);
+    long trips = trips(roots, level, assignments, steps, known);
+
+    if(trips < 0)
+        return false;
+
+    // Cada producto sustituido pasa de tres instrucciones a una.
+    long saved = 0, cost = 0;
+    Set<String> keys = new HashSet<>();
+
+    for(Product p : products)
+    {
+        int at = level[p.node.last];
+
+        if(at == 0)
+            saved += 2 * (trips + 1);
+        else if(at == 1)
+            saved += 2 * trips;
+
+        if(!keys.add(p.key))
+            continue;
+
+        // Asignaciones de t, b y c antes del bucle o al principio del
+        // programa: tres comandos mas los de su expresion.
+        boolean constant = p.k.op.action == Action.CONSTANT,
+                initial = known.containsKey(p.v);
+
+        if(same(p.d, p.k))
+            cost += initial ? 3 + 3 + 3 : 5 + 7 + 3;
+        else
+            cost += (initial && constant ? 3 : 5) + (constant ? 3 : 5);
+
+        // Un STEP por vuelta despues de cada incremento.
+        for(Assignment a : assignments)
+        {
+            if(a.target == p.v)
+                cost += trips;
+        }
+    }
+
+    return saved > cost;
+}
+
+// Profundidad de cada comando del bucle: 0 en la condicion, 1 en el
+// cuerpo y mas dentro de los si y de los bucles interiores.
+private static int[] levels(List<Command> body)
+{
+    int level[] = new int[body.size()], open = 0;
+
+    for(int i = 0; i < body.size(); i++)
+    {
+        Command c = body.get(i);
+
+        if(c.action == Action.END)
+            open--;
+
+        level[i] = open;
+
+        if(c.action == Action.IF)
+            open++;
+    }
+
+    return level;
+}
+
+// Numero de vueltas de un bucle cuya condicion es v < C, v <= C, v > C o
+// v >= C, con v una variable de induccion de valor inicial conocido que
+// se incrementa en todas las vueltas. Devuelve -1 si no se sabe.
+private static long trips(List<Node> roots, int level[],
+                          List<Assignment> assignments,
+                          Map<Variable,Long> steps,
+                          Map<Variable,Long> known)
+{
+    Node c = null;
+
+    for(Node r : roots)
+    {
+        if(level[r.last] == 0)
+            c = r;
+    }
+
+    if(c == null || c.right == null || c.left.left != null ||
+       c.right.left != null || c.left.op.action != Action.VARIABLE ||
+       !isConstant(c.right))
+    {
+        return -1;
+    }
+
+    Variable v = (Variable)c.left.op.value;
+    Long value = known.get(v);
+
+    if(value == null || !steps.containsKey(v))
+        return -1;
+
+    long step = 0;
+
+    for(Assignment a : assignments)
+    {
+        if(a.target == v)
+        {
+            if(level[a.index] != 1)
+                return -1;
+
+            step += steps.get(v);
+        }
+    }
+
+    try
+    {
+        long limit = (Long)c.right.op.value, trips;
+
+        switch(c.op.action)
+        {
+            case LESS:
+                if(step <= 0)
+                    return -1;
+
+                trips = -Math.floorDiv(Math.subtractExact(value, limit),
+                                       step);
+                break;
+
+            case LESSEQ:
+                if(step <= 0)
+                    return -1;
+
+                trips = Math.floorDiv(Math.subtractExact(limit, value),
+                                      step) + 1;
+                break;
+
+            case GREATER:
+                if(step >= 0)
+                    return -1;
+
+                trips = -Math.floorDiv(Math.subtractExact(limit, value),
+                                       -step);
+                break;
+
+            case GREATEREQ:
+                if(step >= 0)
+                    return -1;
+
+                trips = Math.floorDiv(Math.subtractExact(value, limit),
+                                      -step) + 1;
+                break;
+
+            default:
+                return -1;
+        }
+
+        return Math.max(trips, 0);
+    }
+    catch(ArithmeticException ex)
+    {
+        return -1;
+    }
+}
+
+//------------------------------------------------------------------------
+// Variables enteras que dentro del bucle solo cambian sumando siempre
+// la misma constante, con el valor de esa constante.
+private static Map<Variable,Long> inductions(List<Assignment> assignments)
+{
+    Map<Variable,Long> steps = new HashMap<>();
+    Set<Variable> rejected = new HashSet<>();
+
+    for(Assignment a : assignments)
+    {
+        Variable v = a.target;
+        Long step = step(a);
+
+        if(v.type != Type.INTEGER || step == null ||
+           steps.containsKey(v) && !steps.get(v).equals(step))
+        {
+            rejected.add(v);
+        }
+        else
+        {
+            steps.put(v, step);
+        }
+    }
+
+    steps.keySet().removeAll(rejected);
+    return steps;
+}
+
+// Incremento de una asignacion d = d + c, d = c + d o d = d - c.
+private static Long step(Assignment a)
+{
+    Node n = a.value, l = n.left, r = n.right;
+
+    if(r == null || l.left != null || r.left != null)
+        return null;
+
+    boolean add = n.op.action == Action.ADD,
+            sub = n.op.action == Action.SUBTRACT;
+
+    if((add || sub) && isVariable(l, a.target) && isConstant(r))
+        return sub ? -(Long)r.op.value : (Long)r.op.value;
+
+    if(add && isConstant(l) && isVariable(r, a.target))
+        return (Long)l.op.value;
+
+    return null;
+}
+
+private static boolean isVariable(Node n, Variable v)
+{
+    return n.op.action == Action.VARIABLE && n.op.value == v;
+}
+
+private static boolean isConstant(Node n)
+{
+    return n.op.action == Action.CONSTANT && n.type == Type.INTEGER;
+}
+
+private static boolean isInduction(Node n, Map<Variable,Long> steps)
+{
+    return n.op.action == Action.VARIABLE && steps.containsKey(n.op.value);
+}
+
+private static boolean same(Node a, Node b)
+{
+    return a.op.action == Action.VARIABLE && b.op.action == Action.VARIABLE &&
+           a.op.value == b.op.value;
+}
+
+//------------------------------------------------------------------------
+private static void assign(Chain pre, Command at, Variable v,
+                           Command... expression)
+{
+    pre.add(command(at, Action.VARIABLE, Type.VOID, v));
+
+    for(Command c : expression)
+        pre.add(c);
+
+    pre.add(command(at, Action.ASSIGN, Type.VOID, null));
+}
+
+private static Command constant(Command at, long value)
+{
+    return command(at, Action.CONSTANT, Type.INTEGER, value);
+}
+
+private static Command copy(Command at, Command c)
+{
+    return command(at, c.action, c.type, c.value);
+}
+
+// Crea un comando en la misma posicion del fichero fuente que otro.
+private static Command command(Command at, Action action, Type type,
+                               Object value)
+{
+    Command c = new Command();
+    c.row    = at.row;
+    c.column = at.column;
+    c.action = action;
+    c.type   = type;
+    c.value  = value;
+    return c;
+}
+
+} // Optimizer
@@ -0,0 +1,384 @@
+package tal;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * Destino de la salida de la sentencia {@code imprimir}.
+ * <p>Los valores se escriben directamente como bytes en un buffer
+ * propio, sin pasar por {@code String} en el caso de los enteros,
+ * y el buffer se vuelca según la política indicada con
+ * {@link #setFlush(Flush, int)}.
+ */
+public abstract class OutputSink implements Closeable
+{
+/** Momentos en los que se vuelca el buffer. */
+public static enum Flush
+{
+    /** Solo al terminar la ejecución. */
+    END,
+    /** Cada cierto número de líneas. */
+    LINES,
+    /** Tras cada línea. */
+    LINE
+}
+
+private static final int SIZE = 1 << 16;
+private static final byte[] NEWLINE = System.lineSeparator().getBytes();
+private static final byte[] TRUE = "true".getBytes(),
+                            FALSE = "false".getBytes();
+
+private static final Charset CHARSET = Charset.defaultCharset();
+
+private final ByteBuffer m_buffer;
+private final byte[] m_digits = new byte[20];
+private Flush m_flush = Flush.END;
+private int m_lines = 1, m_pending;
+private long m_written;
+
+/**
+ * Construye un destino con un buffer del tamaño indicado.
+ * @param size Tamaño del buffer en bytes.
+ */
+protected OutputSink(int size)
+{
+    m_buffer = ByteBuffer.allocate(size);
+}
+
+/**
+ * Recibe los bytes acumulados en el buffer.
+ * Al volver, el buffer se considera consumido.
+ * @param buffer Buffer preparado para leer.
+ * @throws IOException
+ */
+protected abstract void drain(ByteBuffer buffer) throws IOException;
+
+/**
+ * Indica cuándo se debe volcar el buffer.
+ * @param flush Política de volcado.
+ * @param lines Número de líneas para {@link Flush#LINES}.
+ */
+public final void setFlush(Flush flush, int lines)
+{
+    if(lines < 1)
+        throw new IllegalArgumentException("lines: "+ lines);
+
+    m_flush = flush;
+    m_lines = flush == Flush.LINE ? 1 : lines;
+}
+
+/**
+ * Escribe un número entero.
+ * @param value Número a escribir.
+ */
+public final void print(long value)
+{
+    byte[] d = m_digits;
+    int i = d.length;
+    boolean negative = value < 0;
+
+    // Se trabaja con negativos para no desbordar en Long.MIN_VALUE.
+    if(!negative)
+        value = -value;
+
+    do
+    {
+        d[--i] = (byte)('0' - value % 10);
+        value /= 10;
+    }
+    while(value != 0);
+
+    if(negative)
+        put((byte)'-');
+
+    put(d, i, d.length - i);
+}
+
+/**
+ * Escribe un valor lógico.
+ * @param value Valor a escribir.
+ */
+public final void print(boolean value)
+{
+    byte[] b = value ? TRUE : FALSE;
+    put(b, 0, b.length);
+}
+
+/**
+ * Escribe una cadena de caracteres.
+ * @param value Cadena a escribir.
+ */
+public final void print(CharSequence value)
+{
+    int length = value.length();
+
+    for(int i = 0; i < length; i++)
+    {
+        char c = value.charAt(i);
+
+        if(c >= 0x80)
+        {
+            byte[] b = value.subSequence(i, length)
+                            .toString().getBytes(CHARSET);
+            put(b, 0, b.length);
+            return;
+        }
+
+        put((byte)c);
+    }
+}
+
+/**
+ * Escribe bytes ya codificados, por ejemplo la salida acumulada en otro
+ * destino.
+ * @param b Bytes a escribir.
+ * @param offset Posición del primero.
+ * @param length Número de bytes.
+ */
+public final void write(byte[] b, int offset, int length)
+{
+    Objects.checkFromIndexSize(offset, length, b.length);
+    put(b, offset, length);
+}
+
+/**
+ * Termina la línea actual y vuelca el buffer si corresponde.
+ */
+public final void println()
+{
+    put(NEWLINE, 0, NEWLINE.length);
+
+    if(m_flush != Flush.END && ++m_pending >= m_lines)
+        flush();
+}
+
+/**
+ * Vuelca el contenido del buffer.
+ */
+public final void flush()
+{
+    m_pending = 0;
+
+    if(m_buffer.position() > 0)
+        drain();
+}
+
+/**
+ * Número de bytes escritos desde que se creó el destino.
+ * @return bytes escritos.
+ */
+public final long written()
+{
+    return m_written + m_buffer.position();
+}
+
+/**
+ * Vuelca el buffer y libera los recursos del destino.
+ * @throws IOException
+ */
+@Override public void close() throws IOException
+{
+    flush();
+}
+
+//------------------------------------------------------------------------
+private void put(byte b)
+{
+    if(!m_buffer.hasRemaining())
+        drain();
+
+    m_buffer.put(b);
+}
+
+//------------------------------------------------------------------------
+private void put(byte[] b, int offset, int length)
+{
+    while(length > 0)
+    {
+        if(!m_buffer.hasRemaining())
+            drain();
+
+        int n = Math.min(length, m_buffer.remaining());
+        m_buffer.put(b, offset, n);
+        offset += n;
+        length -= n;
+    }
+}
+
+//------------------------------------------------------------------------
+private void drain()
+{
+    m_written += m_buffer.position();
+    m_buffer.flip();
+
+    try
+    {
+        drain(m_buffer);
+    }
+    catch(IOException ex)
+    {
+        throw new UncheckedIOException(ex);
+    }
+    finally
+    {
+        m_buffer.clear();
+    }
+}
+
+/**
+ * Destino que escribe en la salida estándar.
+ * @return destino creado.
+ */
+public static OutputSink stdout()
+{
+    return new ChannelSink(Channels.newChannel(
+               new FileOutputStream(FileDescriptor.out)), false);
+}
+
+/**
+ * Destino que escribe en un fichero mediante un {@code FileChannel}.
+ * @param fichero Fichero que se crea o se sobrescribe.
+ * @return destino creado.
+ * @throws IOException
+ */
+public static OutputSink file(String fichero) throws IOException
+{
+    return new ChannelSink(FileChannel.open(Paths.get(fichero),
+               StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+               StandardOpenOption.TRUNCATE_EXISTING), true);
+}
+
+/**
+ * Destino que escribe en un canal. El canal no se cierra.
+ * @param channel Canal de destino.
+ * @return destino creado.
+ */
+public static OutputSink channel(WritableByteChannel channel)
+{
+    return new ChannelSink(channel, false);
+}
+
+/**
+ * Destino que guarda la salida en memoria.
+ * @return destino creado.
+ */
+public static Memory memory()
+{
+    return new Memory();
+}
+
+/**
+ * Destino que descarta la salida una vez formateada.
+ * Se utiliza para medir la ejecución sin coste de entrada/salida.
+ * @return destino creado.
+ */
+public static OutputSink discard()
+{
+    return new OutputSink(SIZE)
+    {
+        @Override protected void drain(ByteBuffer buffer)
+        {
+        }
+    };
+}
+
+//------------------------------------------------------------------------
+private static final class ChannelSink extends OutputSink
+{
+    private final WritableByteChannel m_channel;
+    private final boolean m_close;
+
+    private ChannelSink(WritableByteChannel channel, boolean close)
+    {
+        super(SIZE);
+        m_channel = channel;
+        m_close   = close;
+    }
+
+    @Override protected void drain(ByteBuffer buffer) throws IOException
+    {
+        while(buffer.hasRemaining())
+            m_channel.write(buffer);
+    }
+
+    @Override public void close() throws IOException
+    {
+        super.close();
+
+        if(m_close)
+            m_channel.close();
+    }
+}
+
+/**
+ * Destino que acumula la salida en memoria.
+ */
+public static final class Memory extends OutputSink
+{
+    private byte[] m_data = new byte[256];
+    private int m_size;
+
+    private Memory()
+    {
+        super(4096);
+    }
+
+    @Override protected void drain(ByteBuffer buffer)
+    {
+        int n = buffer.remaining();
+
+        if(m_size + n > m_data.length)
+        {
+            m_data = Arrays.copyOf(m_data,
+                         Math.max(m_data.length * 2, m_size + n));
+        }
+
+        buffer.get(m_data, m_size, n);
+        m_size += n;
+    }
+
+    /**
+     * Descarta la salida acumulada.
+     */
+    public void reset()
+    {
+        flush();
+        m_size = 0;
+    }
+
+    /**
+     * Escribe la salida acumulada en otro destino sin copiarla.
+     * @param out Destino.
+     */
+    public void writeTo(OutputSink out)
+    {
+        flush();
+        out.write(m_data, 0, m_size);
+    }
+
+    /**
+     * Obtiene una copia de la salida acumulada.
+     * @return bytes escritos.
+     */
+    public byte[] toByteArray()
+    {
+        flush();
+        return Arrays.copyOf(m_data, m_size);
+    }
+
+    /**
+     * Obtiene la salida acumulada como texto.
+     * @return texto escrito.
+     */
+    @Override public String toString()
+    {
+        flush();
+        return new String(m_data, 0, m_size, CHARSET);
+    }
+}
+
+} // OutputSink
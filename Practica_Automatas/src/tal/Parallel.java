@@ -0,0 +1,279 @@
+package tal;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import tal.Code.Action;
+import tal.Code.Type;
+
+/**
+ * Bucle {@code paralelo(i, desde, hasta)} de un {@link Program}.
+ * <p>Las vueltas, con {@code i} desde {@code desde} hasta
+ * {@code hasta - 1}, se reparten en tramos consecutivos que se ejecutan
+ * en un {@link ForkJoinPool} con un contexto propio cada uno:
+ * <ul>
+ * <li>Las variables que se asignan en el cuerpo son locales de cada
+ *     vuelta: empiezan con el valor que tenían al entrar en el bucle y
+ *     al terminar conservan el de la última vuelta.
+ * <li>Las variables de reducción, que solo se usan como
+ *     {@code v = v + e}, empiezan en cero en cada tramo y al final se
+ *     suman al valor que tenían antes del bucle.
+ * <li>La salida de cada tramo se guarda en memoria y se escribe en el
+ *     orden de las vueltas.
+ * <li>Los vectores se comparten: cada vuelta debe asignar elementos
+ *     distintos. Los que declaran los procedimientos a los que se llama
+ *     son propios de cada vuelta.
+ * </ul>
+ * Así el resultado no depende del número de hilos. Los tramos toman las
+ * instrucciones que ejecutan de lo que queda del límite del bucle, de
+ * modo que entre todos no lo pueden superar. Si una vuelta falla se
+ * interrumpen los demás tramos, se escribe la salida de los tramos
+ * anteriores y se lanza su excepción.
+ */
+final class Parallel
+{
+// Tramos por hilo, para repartir vueltas de distinto coste.
+private static final int CHUNKS = 8;
+
+// Hilos de los bucles paralelos, que se crean con el primero.
+private static final class Pool
+{
+    static final ForkJoinPool POOL = new ForkJoinPool(
+        Runtime.getRuntime().availableProcessors());
+}
+
+private final Program m_program;
+
+// El cuerpo va desde m_start hasta m_stop, donde empiezan los REDUCE.
+private final int m_start, m_stop;
+
+// Variables que se asignan en el cuerpo y variables de reduccion.
+private final int m_private[], m_reduce[];
+
+// Variables que se declaran en los procedimientos a los que se llama.
+private final int m_declared[];
+
+//------------------------------------------------------------------------
+Parallel(Program program, int pc)
+{
+    int end = (int)program.operand(pc), stop = end;
+
+    while(program.action(stop - 1) == Action.REDUCE)
+        stop--;
+
+    Set<Integer> reduce = new TreeSet<>();
+
+    for(int i = stop; i < end; i++)
+        reduce.add((int)program.operand(i));
+
+    Set<Integer> assigned = new TreeSet<>(), declared = new TreeSet<>();
+    List<Integer> code = new ArrayList<>();
+    Set<Integer> called = new HashSet<>();
+
+    for(int i = pc + 1; i < stop; i++)
+        code.add(i);
+
+    // Tambien cuentan los procedimientos a los que se llama.
+    for(int k = 0; k < code.size(); k++)
+    {
+        int i = code.get(k), slot = (int)program.operand(i);
+
+        switch(program.action(i))
+        {
+            case VARIABLE:
+                if(program.type(i) == Type.VOID)
+                    assigned.add(slot);
+                break;
+            case READ: case PARAM:
+                assigned.add(slot);
+                break;
+            case DECLARE:
+                assigned.add(slot);
+                declared.add(slot);
+                break;
+            case STEP:
+                assigned.add(slot);
+                assigned.add(slot + 1);
+                break;
+            case CALL:
+                if(called.add(slot))
+                {
+                    for(int j = slot + 1; j < program.length() &&
+                        program.action(j) != Action.RETURN; j++)
+                    {
+                        code.add(j);
+                    }
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    assigned.removeAll(reduce);
+
+    m_program  = program;
+    m_start    = pc + 1;
+    m_stop     = stop;
+    m_private  = toArray(assigned);
+    m_reduce   = toArray(reduce);
+    m_declared = toArray(declared);
+}
+
+private static int[] toArray(Set<Integer> set)
+{
+    return set.stream().mapToInt(Integer::intValue).toArray();
+}
+
+//------------------------------------------------------------------------
+/**
+ * Ejecuta las vueltas del bucle y deja la variable del bucle con el
+ * valor que tendría tras el bucle {@code mientras} equivalente.
+ * @param x Contexto de la ejecución, que se bloquea hasta que terminan
+ *          todas las vueltas.
+ * @param index Posición de la variable del bucle.
+ * @param from Primer valor de la variable.
+ * @param to Valor de la variable que ya no se ejecuta.
+ */
+void run(ExecutionContext x, int index, long from, long to)
+{
+    long n = from < to ? to - from : 0;
+
+    if(n < 0)
+        n = Long.MAX_VALUE;
+
+    ForkJoinPool pool = Pool.POOL;
+    int chunks = (int)Math.min(n, (long)CHUNKS * pool.getParallelism());
+    Chunk tasks[] = new Chunk[chunks];
+    ExecutionContext.Shared shared = x.share();
+    long size = chunks == 0 ? 0 : n / chunks,
+         rest = chunks == 0 ? 0 : n % chunks,
+         a    = from;
+
+    for(int k = 0; k < chunks; k++)
+    {
+        long b = a + size + (k < rest ? 1 : 0);
+        tasks[k] = new Chunk(x, shared, index, a, b);
+        a = b;
+    }
+
+    // Un tramo se ejecuta en el hilo actual, y los bucles anidados
+    // reparten sus tramos entre los hilos que ya estan trabajando.
+    if(chunks == 1)
+        tasks[0].invoke();
+    else if(chunks > 1 && ForkJoinTask.getPool() == pool)
+        ForkJoinTask.invokeAll(tasks);
+    else if(chunks > 1)
+        pool.invoke(ForkJoinTask.adapt(() -> ForkJoinTask.invokeAll(tasks)));
+
+    // Las instrucciones de todos los tramos cuentan, tambien las de los
+    // que se han interrumpido.
+    RuntimeException error = null;
+
+    for(Chunk c : tasks)
+    {
+        x.join(c.m_context);
+
+        if(error == null && c.m_error != null &&
+           c.m_error != ExecutionContext.CANCELLED)
+        {
+            error = c.m_error;
+        }
+    }
+
+    for(Chunk c : tasks)
+    {
+        // La salida de un tramo interrumpido no es la de todas sus
+        // vueltas.
+        if(error != null && c.m_error != error && !c.m_done)
+            throw error;
+
+        c.m_out.writeTo(x.m_out);
+
+        if(error != null && c.m_error == error)
+            throw error;
+
+        for(int r : m_reduce)
+            x.m_num[r] += c.m_context.m_num[r];
+    }
+
+    if(chunks > 0)
+    {
+        ExecutionContext last = tasks[chunks - 1].m_context;
+
+        for(int s : m_private)
+        {
+            x.m_num[s] = last.m_num[s];
+            x.m_ref[s] = last.m_ref[s];
+        }
+    }
+
+    x.m_num[index] = from + n;
+}
+
+//------------------------------------------------------------------------
+// Tramo de vueltas consecutivas que se ejecuta en un mismo hilo.
+private final class Chunk extends RecursiveAction
+{
+    private static final long serialVersionUID = 1L;
+
+    private final transient ExecutionContext m_parent, m_context;
+    private final transient OutputSink.Memory m_out = OutputSink.memory();
+    private final int  m_index;
+    private final long m_from, m_to;
+    private transient RuntimeException m_error;
+    private transient boolean m_done;
+
+    private Chunk(ExecutionContext parent, ExecutionContext.Shared shared,
+                  int index, long from, long to)
+    {
+        m_parent  = parent;
+        m_context = parent.fork(m_program, m_out, shared);
+        m_index   = index;
+        m_from    = from;
+        m_to      = to;
+
+        for(int r : m_reduce)
+            m_context.m_num[r] = 0;
+    }
+
+    @Override protected void compute()
+    {
+        ExecutionContext x = m_parent, y = m_context;
+
+        try
+        {
+            long i = m_from;
+
+            for(; i < m_to && !y.cancelled(); i++)
+            {
+                // El contexto del bucle no cambia hasta que terminan
+                // todos los tramos.
+                for(int s : m_private)
+                {
+                    y.m_num[s] = x.m_num[s];
+                    y.m_ref[s] = x.m_ref[s];
+                }
+
+                // Sin valor, su DECLARE crea otro vector.
+                for(int s : m_declared)
+                    y.m_ref[s] = null;
+
+                y.m_num[m_index] = i;
+                m_program.execute(y, m_start, m_stop);
+            }
+
+            m_done = i == m_to;
+        }
+        catch(RuntimeException ex)
+        {
+            m_error = ex;
+        }
+        finally
+        {
+            y.release(m_error != null);
+        }
+    }
+}
+
+} // Parallel
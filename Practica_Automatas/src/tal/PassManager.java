@@ -0,0 +1,250 @@
+package tal;
+
+import java.util.*;
+
+/**
+ * Secuencia de pasadas de optimización que se aplican al código
+ * generado.
+ * <p>Las pasadas se indican por su nombre y se ejecutan en orden:
+ * <ul>
+ * <li>{@code inline}: expansión de las llamadas a procedimientos de
+ *     {@link Inliner}, que trabaja sobre la lista de comandos.
+ * <li>{@code copyprop}: propagación de copias en la forma SSA.
+ * <li>{@code fold}: cálculo de las operaciones con operandos constantes.
+ * <li>{@code gvn}: numeración global de valores.
+ * <li>{@code dce}: eliminación de código muerto.
+ * <li>{@code loops}: optimización de los bucles de {@link Optimizer},
+ *     que trabaja sobre la lista de comandos.
+ * </ul>
+ * Las pasadas seguidas sobre la forma SSA comparten la misma
+ * representación ({@link Ir}), que se construye antes de la primera y
+ * se convierte de nuevo en comandos antes de {@code inline} y
+ * {@code loops} o al terminar. Si el programa tiene operaciones con tipos incompatibles no
+ * se puede construir y esas pasadas no hacen nada.
+ * <p>Cada pasada, y también la construcción y la conversión de la
+ * representación, emite un evento {@code tal.Optimize}.
+ */
+public final class PassManager
+{
+/** Nivel de optimización de {@link Code#optimize()}. */
+public static final int DEFAULT_LEVEL = 2;
+
+/** Nivel de optimización más alto. */
+public static final int MAX_LEVEL = 2;
+
+// Pasada sobre la forma SSA. Devuelve el numero de cambios.
+static interface Pass
+{
+    int run(Ir ir);
+}
+
+private static final String INLINE = "inline", LOOPS = "loops";
+
+private static final Map<String,Pass> s_passes = new LinkedHashMap<>();
+
+static
+{
+    register("copyprop", Ir::copyPropagation);
+    register("fold",     Ir::fold);
+    register("gvn",      Ir::gvn);
+    register("dce",      Ir::deadCode);
+}
+
+private final List<String> m_passes = new ArrayList<>();
+
+//------------------------------------------------------------------------
+/**
+ * Construye una secuencia de pasadas.
+ * @param passes Nombres de las pasadas en el orden en que se ejecutan.
+ * @throws IllegalArgumentException si alguna pasada no existe.
+ */
+public PassManager(String... passes)
+{
+    for(String p : passes)
+        add(p);
+}
+
+/**
+ * Obtiene las pasadas de un nivel de optimización. El nivel 0 no hace
+ * nada, el 1 expande los procedimientos y simplifica la forma SSA y el
+ * 2 además elimina subexpresiones repetidas y optimiza los bucles.
+ * @param level Nivel entre 0 y {@link #MAX_LEVEL}.
+ * @return pasadas del nivel.
+ */
+public static PassManager level(int level)
+{
+    switch(level)
+    {
+        case 0:  return new PassManager();
+        case 1:  return new PassManager(INLINE, "copyprop", "fold", "dce");
+        case 2:  return new PassManager(INLINE, "copyprop", "fold", "gvn",
+                                        "copyprop", "dce", LOOPS);
+        default: throw new IllegalArgumentException(
+                     "Nivel de optimizacion incorrecto: "+ level);
+    }
+}
+
+/**
+ * Obtiene las pasadas de una lista separada por comas.
+ * @param list Nombres de las pasadas, por ejemplo {@code "fold,dce"}.
+ * @return pasadas de la lista.
+ */
+public static PassManager parse(String list)
+{
+    PassManager m = new PassManager();
+
+    for(String p : list.split(","))
+    {
+        if(!p.isBlank())
+            m.add(p.trim());
+    }
+
+    return m;
+}
+
+/**
+ * Nombres de las pasadas disponibles.
+ * @return nombres de las pasadas.
+ */
+public static Set<String> available()
+{
+    Set<String> names = new LinkedHashSet<>();
+    names.add(INLINE);
+    names.addAll(s_passes.keySet());
+    names.add(LOOPS);
+    return names;
+}
+
+// Añade una pasada sobre la forma SSA.
+static synchronized void register(String name, Pass pass)
+{
+    s_passes.put(name, pass);
+}
+
+//------------------------------------------------------------------------
+/**
+ * Añade una pasada al final.
+ * @param name Nombre de la pasada.
+ * @return esta misma secuencia.
+ */
+public PassManager add(String name)
+{
+    if(!isCommandPass(name) && !s_passes.containsKey(name))
+        throw new IllegalArgumentException("No existe la pasada: "+ name);
+
+    m_passes.add(name);
+    return this;
+}
+
+/**
+ * Nombres de las pasadas en orden.
+ * @return lista de pasadas.
+ */
+public List<String> passes()
+{
+    return Collections.unmodifiableList(m_passes);
+}
+
+@Override public String toString()
+{
+    return String.join(",", m_passes);
+}
+
+//------------------------------------------------------------------------
+/**
+ * Ejecuta las pasadas sobre el código generado.
+ * @param code Código que se optimiza.
+ */
+void run(Code code)
+{
+    Ir ir = null;
+    boolean failed = false;
+
+    for(String name : m_passes)
+    {
+        if(isCommandPass(name))
+        {
+            if(ir != null)
+            {
+                lower(code, ir);
+                ir = null;
+            }
+
+            Events.Optimize event = begin(code.size());
+
+            if(name.equals(INLINE))
+                new Inliner(code).inline();
+            else
+                new Optimizer(code).loops();
+
+            commit(event, name, code.size());
+
+            // Sin procedimientos quiza se pueda construir la forma SSA.
+            failed = false;
+            continue;
+        }
+
+        if(ir == null)
+        {
+            if(failed)
+                continue;
+
+            Events.Optimize event = begin(code.size());
+            ir = Ir.build(code);
+            failed = ir == null;
+            commit(event, "ssa", failed ? 0 : ir.size());
+
+            if(failed)
+                continue;
+        }
+
+        Events.Optimize event = begin(ir.size());
+        s_passes.get(name).run(ir);
+        commit(event, name, ir.size());
+    }
+
+    if(ir != null)
+        lower(code, ir);
+}
+
+// Pasada sobre la lista de comandos.
+private static boolean isCommandPass(String name)
+{
+    return name.equals(INLINE) || name.equals(LOOPS);
+}
+
+private static void lower(Code code, Ir ir)
+{
+    Events.Optimize event = begin(ir.size());
+    ir.lower();
+    commit(event, "lower", code.size());
+}
+
+//------------------------------------------------------------------------
+private static Events.Optimize begin(int before)
+{
+    Events.Optimize event = new Events.Optimize();
+
+    if(event.isEnabled())
+    {
+        event.allocated = Events.allocated();
+        event.before = before;
+        event.begin();
+    }
+
+    return event;
+}
+
+private static void commit(Events.Optimize event, String pass, int after)
+{
+    if(event.shouldCommit())
+    {
+        event.end();
+        event.pass      = pass;
+        event.after     = after;
+        event.allocated = Events.allocated() - event.allocated;
+        event.commit();
+    }
+}
+
+} // PassManager
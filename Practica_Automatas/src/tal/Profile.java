@@ -0,0 +1,360 @@
+package tal;
+
+import java.io.*;
+import java.util.*;
+
+import tal.Code.Action;
+
+/**
+ * Perfil de ejecución de un {@link Program}: número de veces que se
+ * ejecuta cada instrucción, tiempo acumulado en ella y número de veces
+ * que salta.
+ * <p>Se activa con {@link ExecutionContext#setProfile(Profile)}. Los
+ * datos se pueden ver por instrucción, agrupados por línea del fichero
+ * fuente o exportados en formato de pilas plegadas para herramientas
+ * de gráficos de llamas, donde cada bucle {@code mientras} es un nivel
+ * de la pila.
+ * <p>El perfil se puede guardar y usar al volver a compilar el mismo
+ * programa con {@link Code#applyProfile(Profile)}, que elige las
+ * superinstrucciones y el orden de las ramas de {@code si}.
+ */
+public final class Profile
+{
+// Cabecera de los ficheros de perfil: "TALP".
+private static final int MAGIC = 0x54414C50;
+
+private final Program m_program;
+final long m_count[], m_nanos[], m_jumps[];
+
+/**
+ * Construye un perfil vacío.
+ * @param program Programa que se va a medir.
+ */
+public Profile(Program program)
+{
+    m_program = program;
+    m_count = new long[program.length()];
+    m_nanos = new long[program.length()];
+    m_jumps = new long[program.length()];
+}
+
+/**
+ * Programa al que corresponde el perfil.
+ * @return programa medido.
+ */
+public Program program()
+{
+    return m_program;
+}
+
+/**
+ * Número de veces que se ha ejecutado una instrucción.
+ * @param pc Posición de la instrucción.
+ * @return número de ejecuciones.
+ */
+public long count(int pc)
+{
+    return m_count[pc];
+}
+
+/**
+ * Tiempo acumulado en una instrucción.
+ * @param pc Posición de la instrucción.
+ * @return tiempo en nanosegundos.
+ */
+public long nanos(int pc)
+{
+    return m_nanos[pc];
+}
+
+/**
+ * Número de veces que una instrucción ha saltado en lugar de seguir en
+ * la siguiente. En un {@code IF} son las veces que no se ha cumplido la
+ * condición.
+ * @param pc Posición de la instrucción.
+ * @return número de saltos.
+ */
+public long jumps(int pc)
+{
+    return m_jumps[pc];
+}
+
+/**
+ * Descarta los datos acumulados.
+ */
+public void reset()
+{
+    Arrays.fill(m_count, 0);
+    Arrays.fill(m_nanos, 0);
+    Arrays.fill(m_jumps, 0);
+}
+
+//------------------------------------------------------------------------
+/**
+ * Número de veces que se ha ejecutado cada secuencia de acciones de la
+ * longitud indicada. Solo cuentan las secuencias que se ejecutan
+ * siempre seguidas, que son las que pueden formar una superinstrucción.
+ * @param length Número de instrucciones de la secuencia.
+ * @return ejecuciones de cada secuencia.
+ * @see Program#straight(int)
+ */
+Map<List<Action>,Long> sequences(int length)
+{
+    Map<List<Action>,Long> sequences = new HashMap<>();
+
+    for(int pc = 0; pc < m_count.length; pc++)
+    {
+        if(m_count[pc] == 0 || m_program.straight(pc) < length)
+            continue;
+
+        List<Action> seq = new ArrayList<>(length);
+
+        for(int i = 0; i < length; i++)
+            seq.add(m_program.action(pc + i));
+
+        sequences.merge(seq, m_count[pc], Long::sum);
+    }
+
+    return sequences;
+}
+
+/**
+ * Resumen para la optimización guiada por el perfil: las secuencias
+ * más ejecutadas y la frecuencia con la que salta cada condición.
+ * @param n Número de secuencias de cada longitud.
+ * @return resumen del perfil.
+ */
+public String summary(int n)
+{
+    StringBuilder s = new StringBuilder();
+    s.append(String.format("%12s  %s\n", "veces", "secuencia"));
+
+    for(int length = 2; length <= Program.SUPER_LENGTH; length++)
+    {
+        sequences(length).entrySet().stream()
+            .sorted(Map.Entry.<List<Action>,Long>comparingByValue()
+                             .reversed())
+            .limit(n)
+            .forEach(e -> s.append(String.format("%12d  %s\n",
+                                   e.getValue(), e.getKey())));
+    }
+
+    s.append(String.format("\n%6s %12s %8s\n", "linea", "veces", "% salta"));
+
+    for(int pc = 0; pc < m_count.length; pc++)
+    {
+        if(m_program.action(pc) == Action.IF && m_count[pc] > 0)
+        {
+            s.append(String.format("%6d %12d %8.2f\n", m_program.row(pc),
+                     m_count[pc], 100.0 * m_jumps[pc] / m_count[pc]));
+        }
+    }
+
+    return s.toString();
+}
+
+//------------------------------------------------------------------------
+/**
+ * Guarda el número de ejecuciones y de saltos de cada instrucción. El
+ * tiempo no se guarda.
+ * @param fichero Fichero de destino.
+ * @throws IOException
+ */
+public void write(String fichero) throws IOException
+{
+    try(DataOutputStream out = new DataOutputStream(
+            new BufferedOutputStream(new FileOutputStream(fichero))))
+    {
+        out.writeInt(MAGIC);
+        out.writeInt(Code.VERSION);
+        out.writeLong(m_program.fingerprint());
+        out.writeInt(m_count.length);
+
+        for(int pc = 0; pc < m_count.length; pc++)
+        {
+            out.writeLong(m_count[pc]);
+            out.writeLong(m_jumps[pc]);
+        }
+    }
+}
+
+/**
+ * Carga un perfil guardado con {@link #write(String)}.
+ * @param fichero Fichero del perfil.
+ * @param program Programa al que corresponde, compilado igual que el
+ *                programa del que se obtuvo.
+ * @return perfil del programa.
+ * @throws IOException si el fichero no es correcto o es de otro
+ *         programa.
+ */
+public static Profile read(String fichero, Program program)
+    throws IOException
+{
+    try(DataInputStream in = new DataInputStream(
+            new BufferedInputStream(new FileInputStream(fichero))))
+    {
+        if(in.readInt() != MAGIC)
+            throw new IOException("No es un fichero de perfil.");
+
+        if(in.readInt() != Code.VERSION)
+            throw new IOException("Version incompatible.");
+
+        if(in.readLong() != program.fingerprint() ||
+           in.readInt() != program.length())
+        {
+            throw new IOException("El perfil es de otro programa.");
+        }
+
+        Profile profile = new Profile(program);
+
+        for(int pc = 0; pc < profile.m_count.length; pc++)
+        {
+            profile.m_count[pc] = in.readLong();
+            profile.m_jumps[pc] = in.readLong();
+        }
+
+        return profile;
+    }
+}
+
+//------------------------------------------------------------------------
+/**
+ * Calcula los bucles de un programa. Cada bucle empieza en una
+ * instrucción {@code WHILE} y termina en el {@code GOTO} que vuelve
+ * a ella.
+ * @param p Programa.
+ * @return pares {inicio, fin} ordenados por inicio.
+ */
+static int[][] loops(Program p)
+{
+    List<int[]> loops = new ArrayList<>();
+
+    for(int pc = 0; pc < p.length(); pc++)
+    {
+        int target = (int)p.operand(pc);
+
+        if(p.action(pc) == Action.GOTO && target < pc &&
+           p.action(target) == Action.WHILE)
+        {
+            loops.add(new int[] {target, pc});
+        }
+    }
+
+    loops.sort((a, b) -> a[0] - b[0]);
+    return loops.toArray(new int[0][]);
+}
+
+//------------------------------------------------------------------------
+/**
+ * Obtiene la pila de bucles de cada instrucción, separada por
+ * {@code ';'} como en el formato de pilas plegadas.
+ * @param p Programa.
+ * @return pila de cada instrucción.
+ */
+static String[] stacks(Program p)
+{
+    int loops[][] = loops(p);
+    String stacks[] = new String[p.length()];
+
+    for(int pc = 0; pc < stacks.length; pc++)
+    {
+        StringBuilder s = new StringBuilder("programa");
+
+        for(int l[] : loops)
+        {
+            if(l[0] <= pc && pc <= l[1])
+                s.append(";mientras ").append(p.row(l[0]));
+        }
+
+        stacks[pc] = s.toString();
+    }
+
+    return stacks;
+}
+
+/**
+ * Listado del programa con el número de ejecuciones y el tiempo de
+ * cada instrucción.
+ * @return listado anotado.
+ */
+public String listing()
+{
+    StringBuilder s = new StringBuilder();
+    s.append(String.format("%12s %12s  %s\n", "veces", "ms", "instruccion"));
+
+    for(int pc = 0; pc < m_count.length; pc++)
+    {
+        s.append(String.format("%12d %12.3f  %s\n", m_count[pc],
+                 m_nanos[pc] / 1e6, m_program.instruction(pc)));
+    }
+
+    return s.toString();
+}
+
+/**
+ * Resumen por línea del fichero fuente.
+ * @param source Líneas del fichero fuente, o {@code null} si no se
+ *               deben mostrar.
+ * @return número de instrucciones ejecutadas y tiempo de cada línea.
+ */
+public String lines(List<String> source)
+{
+    SortedMap<Integer,long[]> rows = new TreeMap<>();
+    long total = 0;
+
+    for(int pc = 0; pc < m_count.length; pc++)
+    {
+        long r[] = rows.computeIfAbsent(m_program.row(pc), k -> new long[2]);
+        r[0] += m_count[pc];
+        r[1] += m_nanos[pc];
+        total += m_nanos[pc];
+    }
+
+    StringBuilder s = new StringBuilder();
+    s.append(String.format("%6s %12s %12s %6s  %s\n",
+                           "linea", "instr.", "ms", "%", "fuente"));
+
+    for(Map.Entry<Integer,long[]> e : rows.entrySet())
+    {
+        int row = e.getKey();
+        long r[] = e.getValue();
+        String text = source != null && row >= 1 && row <= source.size()
+                      ? source.get(row - 1) : "";
+
+        s.append(String.format("%6d %12d %12.3f %6.2f  %s\n", row, r[0],
+                 r[1] / 1e6, total == 0 ? 0.0 : 100.0 * r[1] / total, text));
+    }
+
+    return s.toString();
+}
+
+/**
+ * Guarda el tiempo de cada línea en formato de pilas plegadas:
+ * una línea por pila con los niveles separados por {@code ';'}
+ * y el tiempo en nanosegundos.
+ * @param fichero Fichero de destino.
+ * @throws IOException
+ */
+public void writeCollapsed(String fichero) throws IOException
+{
+    String stacks[] = stacks(m_program);
+    Map<String,Long> folded = new LinkedHashMap<>();
+
+    for(int pc = 0; pc < m_count.length; pc++)
+    {
+        if(m_nanos[pc] > 0)
+        {
+            folded.merge(stacks[pc] +";linea "+ m_program.row(pc),
+                         m_nanos[pc], Long::sum);
+        }
+    }
+
+    try(PrintWriter out = new PrintWriter(new BufferedWriter(
+                              new FileWriter(fichero))))
+    {
+        for(Map.Entry<String,Long> e : folded.entrySet())
+            out.println(e.getKey() +" "+ e.getValue());
+    }
+}
+
+} // Profile
@@ -0,0 +1,231 @@
+package tal;
+
+import java.util.*;
+
+import tal.Code.Action;
+import tal.Code.Command;
+import tal.Code.Type;
+
+/**
+ * Optimización guiada por el perfil de una ejecución del programa.
+ * <ul>
+ * <li>Elige las superinstrucciones que más llamadas ahorran entre las
+ *     que admite {@link Program#fusible(int, int)}: cada ejecución de
+ *     una secuencia de {@code n} instrucciones ahorra {@code n - 1}.
+ *     Las secuencias se eligen de una en una sin contar las ejecuciones
+ *     que ya cubren las elegidas, igual que las aplica {@link Program}.
+ * <li>Cambia el orden de las ramas de los {@code si} con {@code sino}
+ *     cuya condición falla más de la mitad de las veces, invirtiendo la
+ *     condición, para que la rama más frecuente siga al {@code IF}.
+ * </ul>
+ * El perfil debe ser del programa que genera el código en ese momento,
+ * de modo que la posición de cada comando es la de su instrucción.
+ */
+final class ProfileGuided
+{
+// Superinstrucciones que se eligen como mucho, y parte de las
+// instrucciones ejecutadas que debe ahorrar cada una.
+private static final int    MAX_SUPER = 8;
+private static final double MIN_SAVED = 0.01;
+
+private final Code m_code;
+private final Program m_program;
+private final Profile m_profile;
+
+//------------------------------------------------------------------------
+ProfileGuided(Code code, Profile profile)
+{
+    m_code    = code;
+    m_program = profile.program();
+    m_profile = profile;
+}
+
+//------------------------------------------------------------------------
+// Devuelve las superinstrucciones y reordena las ramas del codigo.
+byte[][] apply()
+{
+    byte supers[][] = superinstructions();
+    arms();
+    return supers;
+}
+
+//------------------------------------------------------------------------
+private byte[][] superinstructions()
+{
+    int n = m_program.length();
+    boolean used[] = new boolean[n];
+    long total = 0;
+
+    for(int pc = 0; pc < n; pc++)
+        total += m_profile.count(pc);
+
+    List<byte[]> supers = new ArrayList<>();
+
+    while(supers.size() < MAX_SUPER)
+    {
+        Map<List<Byte>,Long> saved = new HashMap<>();
+
+        for(int pc = 0; pc < n; pc++)
+        {
+            long count = m_profile.count(pc);
+
+            if(count == 0 || used[pc])
+                continue;
+
+            int straight = m_program.straight(pc);
+
+            for(int length = 2; length <= straight; length++)
+            {
+                if(used[pc + length - 1])
+                    break;
+
+                if(m_program.fusible(pc, length))
+                {
+                    saved.merge(sequence(pc, length), count * (length - 1),
+                                Long::sum);
+                }
+            }
+        }
+
+        Map.Entry<List<Byte>,Long> best = null;
+
+        for(Map.Entry<List<Byte>,Long> e : saved.entrySet())
+        {
+            if(best == null || e.getValue() > best.getValue())
+                best = e;
+        }
+
+        if(best == null || best.getValue() < MIN_SAVED * total)
+            break;
+
+        byte seq[] = new byte[best.getKey().size()];
+
+        for(int i = 0; i < seq.length; i++)
+            seq[i] = best.getKey().get(i);
+
+        supers.add(seq);
+        cover(seq, used);
+    }
+
+    return supers.toArray(new byte[0][]);
+}
+
+//------------------------------------------------------------------------
+private List<Byte> sequence(int pc, int length)
+{
+    List<Byte> seq = new ArrayList<>(length);
+
+    for(int i = 0; i < length; i++)
+        seq.add((byte)m_program.action(pc + i).ordinal());
+
+    return seq;
+}
+
+//------------------------------------------------------------------------
+// Marca las instrucciones que cubre una superinstruccion, de izquierda
+// a derecha y sin solaparse.
+private void cover(byte seq[], boolean used[])
+{
+    int n = m_program.length();
+
+    for(int pc = 0; pc + seq.length <= n; pc++)
+    {
+        boolean match = true;
+
+        for(int i = 0; match && i < seq.length; i++)
+        {
+            match = !used[pc + i] &&
+                    m_program.action(pc + i).ordinal() == seq[i];
+        }
+
+        if(match && m_program.fusible(pc, seq.length))
+        {
+            Arrays.fill(used, pc, pc + seq.length, true);
+            pc += seq.length - 1;
+        }
+    }
+}
+
+//------------------------------------------------------------------------
+// Un si con sino es IF, rama del si, GOTO, ELSE, rama del sino y END.
+// Si la condicion falla mas de la mitad de las veces se invierte y las
+// ramas se intercambian.
+private void arms()
+{
+    Map<Command,Command> prev = new HashMap<>();
+    List<Command> swap = new ArrayList<>();
+    Command last = null;
+
+    for(Command c = m_code.first(); c != null; last = c, c = c.next)
+    {
+        prev.put(c, last);
+
+        if(c.action == Action.IF && c.value instanceof Command &&
+           ((Command)c.value).action == Action.ELSE &&
+           2 * m_profile.jumps(c.line) > m_profile.count(c.line))
+        {
+            swap.add(c);
+        }
+    }
+
+    if(swap.isEmpty())
+        return;
+
+    for(Command c : swap)
+    {
+        Command sino = (Command)c.value,
+                salto = prev.get(sino),
+                fin = (Command)salto.value;
+
+        invert(c, prev);
+
+        Command si = c.next == salto ? null : c.next,
+                siLast = prev.get(salto),
+                no = sino.next == fin ? null : sino.next,
+                noLast = prev.get(fin);
+
+        c.next = no != null ? no : salto;
+
+        if(no != null)
+            noLast.next = salto;
+
+        sino.next = si != null ? si : fin;
+
+        if(si != null)
+            siLast.next = fin;
+    }
+
+    m_code.relink(m_code.first());
+}
+
+//------------------------------------------------------------------------
+// Invierte la condicion del IF indicado.
+private static void invert(Command c, Map<Command,Command> prev)
+{
+    Command cond = prev.get(c);
+
+    switch(cond.action)
+    {
+        case EQUAL:     cond.action = Action.UNEQUAL;   return;
+        case UNEQUAL:   cond.action = Action.EQUAL;     return;
+        case LESS:      cond.action = Action.GREATEREQ; return;
+        case GREATEREQ: cond.action = Action.LESS;      return;
+        case GREATER:   cond.action = Action.LESSEQ;    return;
+        case LESSEQ:    cond.action = Action.GREATER;   return;
+
+        case NOT:
+            prev.get(cond).next = c;
+            return;
+
+        default:
+            Command not = new Command();
+            not.row    = c.row;
+            not.column = c.column;
+            not.action = Action.NOT;
+            not.type   = Type.VOID;
+            not.next   = c;
+            cond.next  = not;
+    }
+}
+
+} // ProfileGuided
@@ -0,0 +1,2013 @@
+package tal;
+
+import java.io.*;
+import java.lang.invoke.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+
+import tal.Code.Action;
+import tal.Code.Type;
+
+/**
+ * Programa compilado listo para ejecutarse.
+ * <p>Las instrucciones se guardan en tablas que no cambian una vez
+ * construido el programa, y todo el estado de una ejecución está en un
+ * {@link ExecutionContext}. Por eso un mismo programa se puede ejecutar
+ * a la vez desde varios hilos sin sincronización ni recompilación.
+ */
+public final class Program
+{
+// Cabecera de los ficheros compilados: "TALC".
+private static final int MAGIC = 0x54414C43;
+
+private static final byte VOID    = (byte)Type.VOID.ordinal(),
+                          INTEGER = (byte)Type.INTEGER.ordinal(),
+                          STRING  = (byte)Type.STRING.ordinal(),
+                          BOOLEAN = (byte)Type.BOOLEAN.ordinal(),
+                          VECTOR  = (byte)Type.VECTOR.ordinal();
+
+private static final byte CONSTANT_ACTION = (byte)Action.CONSTANT.ordinal();
+
+/** Número máximo de instrucciones de una superinstrucción. */
+static final int SUPER_LENGTH = 5;
+
+private static final Type   TYPES[]   = Type.values();
+private static final Action ACTIONS[] = Action.values();
+
+private interface RunCommand
+{
+    int run(Program p, ExecutionContext x, int pc);
+}
+
+private static final RunCommand RUN[] = new RunCommand[ACTIONS.length];
+
+// Acceso a ExecutionContext.m_pc sin barreras de memoria.
+private static final VarHandle PC;
+
+// Tabla de variables.
+private final String m_names[];
+private final byte   m_slotType[];
+
+// Instrucciones. El operando es la posicion de una variable, el destino
+// de un salto, el valor de una constante entera o la posicion de una
+// constante de tipo cadena en m_strings.
+private final byte   m_action[];
+private final byte   m_type[];
+private final long   m_operand[];
+private final String m_strings[];
+
+// Posicion de cada instruccion en el fichero fuente, que solo se
+// consulta en los errores y al perfilar.
+private final LineTable m_lines;
+
+private final int m_maxStack;
+
+// Bucles paralelos indexados por la posicion de su PARALLEL, o null si
+// el programa no tiene ninguno.
+private final Parallel m_parallel[];
+
+// Instrucciones a las que se llega con un salto. Solo se usan al buscar
+// superinstrucciones y se calculan la primera vez que hacen falta.
+private volatile boolean m_target[];
+
+// Superinstrucciones: secuencias de acciones que se ejecutan con una
+// sola llamada donde forman una de las de fusible().
+private final byte m_super[][];
+
+// Codigo que ejecuta cada instruccion, o la superinstruccion que
+// empieza en ella.
+private final RunCommand m_run[];
+
+//------------------------------------------------------------------------
+Program(String names[], byte slotType[], byte action[], byte type[],
+        long operand[], String strings[], LineTable lines,
+        byte supers[][])
+{
+    m_names    = names;
+    m_slotType = slotType;
+    m_action   = action;
+    m_type     = type;
+    m_operand  = operand;
+    m_strings  = strings;
+    m_lines    = lines;
+    m_maxStack = verify();
+    m_parallel = parallel();
+    m_super    = supers.clone();
+    m_run      = run();
+}
+
+//------------------------------------------------------------------------
+// Comprueba los operandos y calcula la profundidad maxima de la pila.
+// Las sentencias dejan la pila vacia, asi que basta con recorrer las
+// instrucciones en orden.
+private int verify()
+{
+    int depth = 0, max = 0, n = m_action.length;
+
+    for(byte t : m_slotType)
+    {
+        if(t != INTEGER && t != STRING && t != VECTOR)
+            throw new IllegalArgumentException("Tipo incorrecto: "+ t);
+    }
+
+    for(int pc = 0; pc < n; pc++)
+    {
+        long op = m_operand[pc];
+        checkOperand(pc, m_action[pc], ACTIONS.length);
+        checkOperand(pc, m_type[pc], TYPES.length);
+
+        switch(ACTIONS[m_action[pc]])
+        {
+            case DECLARE:
+                checkOperand(pc, op, m_names.length);
+
+                // Los vectores sacan su longitud de la pila.
+                if(m_type[pc] == VECTOR)
+                    depth--;
+                break;
+            case VARIABLE:
+                checkOperand(pc, op, m_names.length);
+                depth++;
+                break;
+            case CONSTANT:
+                if(m_type[pc] == STRING)
+                    checkOperand(pc, op, m_strings.length);
+                depth++;
+                break;
+            case GOTO:
+                checkOperand(pc, op, n + 1);
+                break;
+            case STEP:
+                checkOperand(pc, op, m_names.length - 2);
+
+                for(int i = 0; i < 3; i++)
+                {
+                    if(m_slotType[(int)op + i] != INTEGER)
+                        throw new IllegalArgumentException(
+                            "Tipo incorrecto en "+ pc);
+                }
+                break;
+            case IF:
+                checkOperand(pc, op, n + 1);
+                depth--;
+                break;
+            case PRINT:
+                depth--;
+                break;
+            case READ:
+                checkOperand(pc, op, m_names.length);
+
+                if(m_type[pc] == BOOLEAN)
+                    depth++;
+                else if(m_type[pc] != VOID)
+                    throw new IllegalArgumentException(
+                        "Tipo incorrecto en "+ pc);
+                break;
+            case ASSIGN:
+                depth -= 2;
+                break;
+            case PARALLEL:
+                checkOperand(pc, op, n);
+
+                if(op <= pc || m_action[(int)op] != Action.END.ordinal())
+                    throw new IllegalArgumentException(
+                        "Bucle paralelo incorrecto en "+ pc);
+
+                depth -= 3;
+                break;
+            case REDUCE:
+                checkOperand(pc, op, m_names.length);
+
+                if(m_slotType[(int)op] != INTEGER)
+                    throw new IllegalArgumentException(
+                        "Tipo incorrecto en "+ pc);
+                break;
+            case STORE:
+                depth -= 3;
+                break;
+            case FILL: case COPY:
+                depth -= 2;
+                break;
+            case SORT:
+                depth--;
+                break;
+            case CALL:
+                checkOperand(pc, op, n);
+
+                if(m_action[(int)op] != Action.ENTER.ordinal())
+                    throw new IllegalArgumentException(
+                        "Llamada incorrecta en "+ pc);
+
+                depth -= params((int)op);
+                break;
+            case ENTER:
+                // Los argumentos de la llamada estan en la pila.
+                checkFrame(pc, op);
+                depth += params(pc);
+                break;
+            case PARAM:
+                checkOperand(pc, op, m_names.length);
+                depth--;
+                break;
+            case RETURN:
+                checkFrame(pc, op);
+                break;
+            case ELSE: case WHILE: case END: case NEGATE: case NOT: case SUM:
+                break;
+            default:
+                // Operadores binarios.
+                depth--;
+        }
+
+        if(depth < 0)
+            throw new IllegalArgumentException("Pila vacia en "+ pc);
+
+        max = Math.max(max, depth);
+    }
+
+    return max;
+}
+
+//------------------------------------------------------------------------
+// Numero de parametros del procedimiento que empieza en el ENTER pc.
+private int params(int pc)
+{
+    int i = pc + 1;
+
+    while(i < m_action.length && m_action[i] == Action.PARAM.ordinal())
+        i++;
+
+    return i - pc - 1;
+}
+
+//------------------------------------------------------------------------
+// El operando de ENTER y RETURN indica las variables que guarda un
+// procedimiento recursivo: la primera y, en la parte alta, cuantas son.
+private void checkFrame(int pc, long frame)
+{
+    long first = first(frame), count = count(frame);
+
+    if(first < 0 || first + count > m_names.length)
+    {
+        throw new IllegalArgumentException(
+            "Operando incorrecto en "+ pc +": "+ frame);
+    }
+}
+
+private static int first(long frame)
+{
+    return (int)frame;
+}
+
+private static int count(long frame)
+{
+    return (int)(frame >>> 32);
+}
+
+//------------------------------------------------------------------------
+private Parallel[] parallel()
+{
+    Parallel loops[] = null;
+
+    for(int pc = 0; pc < m_action.length; pc++)
+    {
+        if(m_action[pc] == Action.PARALLEL.ordinal())
+        {
+            if(loops == null)
+                loops = new Parallel[m_action.length];
+
+            loops[pc] = new Parallel(this, pc);
+        }
+    }
+
+    return loops;
+}
+
+//------------------------------------------------------------------------
+private boolean[] targets()
+{
+    boolean targets[] = m_target;
+
+    if(targets == null)
+        m_target = targets = findTargets();
+
+    return targets;
+}
+
+private boolean[] findTargets()
+{
+    int n = m_action.length;
+    boolean targets[] = new boolean[n + 1];
+
+    for(int pc = 0; pc < n; pc++)
+    {
+        int op = (int)m_operand[pc];
+
+        switch(ACTIONS[m_action[pc]])
+        {
+            case GOTO: case IF:
+                targets[op] = true;
+                break;
+            case PARALLEL:
+                targets[op + 1] = true;
+                break;
+            case CALL:
+                targets[op] = true;
+                targets[pc + 1] = true;
+                break;
+            default:
+                break;
+        }
+    }
+
+    return targets;
+}
+
+//------------------------------------------------------------------------
+/**
+ * Número de instrucciones desde la indicada que se ejecutan siempre
+ * seguidas: ninguna salvo la última salta, no se llega con un salto a
+ * ninguna salvo la primera y no hay bucles paralelos ni llamadas.
+ * @param pc Posición de la primera instrucción.
+ * @return número de instrucciones, como mucho {@link #SUPER_LENGTH}.
+ */
+int straight(int pc)
+{
+    int n = 0;
+    boolean target[] = targets();
+
+    while(n < SUPER_LENGTH && pc + n < m_action.length &&
+          (n == 0 || !target[pc + n]))
+    {
+        Action a = ACTIONS[m_action[pc + n]];
+
+        if(a == Action.PARALLEL || a == Action.REDUCE || a == Action.CALL ||
+           a == Action.ENTER || a == Action.RETURN)
+        {
+            break;
+        }
+
+        n++;
+
+        if(a == Action.IF || a == Action.GOTO)
+            break;
+    }
+
+    return n;
+}
+
+//------------------------------------------------------------------------
+/**
+ * Indica si las instrucciones indicadas pueden formar una
+ * superinstrucción. Son secuencias con operandos enteros que se
+ * ejecutan sin pasar los operandos por la pila, donde {@code e} es una
+ * variable o una constante y {@code op} una operación aritmética o una
+ * comparación:
+ * <br><tt>&nbsp; e e op</tt>
+ * <br><tt>&nbsp; e e comparación if</tt>
+ * <br><tt>&nbsp; variable e :=</tt>
+ * <br><tt>&nbsp; variable e e op :=</tt>
+ * @param pc Posición de la primera instrucción.
+ * @param length Número de instrucciones.
+ * @return {@code true} si se pueden ejecutar como una sola.
+ */
+boolean fusible(int pc, int length)
+{
+    return straight(pc) >= length && special(pc, length) != null;
+}
+
+// Codigo de la superinstruccion de las instrucciones indicadas, o null
+// si no forman ninguna.
+private RunCommand special(int pc, int length)
+{
+    switch(length)
+    {
+        case 3:
+            if(value(pc) && value(pc+1) && operator(pc+2))
+                return SUPER_OPERATION;
+            else if(target(pc) && value(pc+1) && is(pc+2, Action.ASSIGN))
+                return SUPER_MOVE;
+            else
+                return null;
+        case 4:
+            return value(pc) && value(pc+1) && comparison(pc+2) &&
+                   is(pc+3, Action.IF) ? SUPER_BRANCH : null;
+        case 5:
+            return target(pc) && value(pc+1) && value(pc+2) &&
+                   operator(pc+3) && !comparison(pc+3) &&
+                   is(pc+4, Action.ASSIGN) ? SUPER_ASSIGN : null;
+        default:
+            return null;
+    }
+}
+
+private boolean is(int pc, Action a)
+{
+    return m_action[pc] == a.ordinal();
+}
+
+// Variable o constante entera.
+private boolean value(int pc)
+{
+    return m_type[pc] == INTEGER &&
+           (is(pc, Action.CONSTANT) ||
+            is(pc, Action.VARIABLE) &&
+            m_slotType[(int)m_operand[pc]] == INTEGER);
+}
+
+// Variable entera de asignacion.
+private boolean target(int pc)
+{
+    return is(pc, Action.VARIABLE) && m_type[pc] == VOID &&
+           m_slotType[(int)m_operand[pc]] == INTEGER;
+}
+
+private boolean operator(int pc)
+{
+    return is(pc, Action.ADD) || is(pc, Action.SUBTRACT) ||
+           is(pc, Action.MULTIPLY) || comparison(pc);
+}
+
+private boolean comparison(int pc)
+{
+    return m_action[pc] >= Action.EQUAL.ordinal() &&
+           m_action[pc] <= Action.GREATEREQ.ordinal();
+}
+
+//------------------------------------------------------------------------
+// Codigo de cada instruccion. Las superinstrucciones se buscan en orden
+// y de izquierda a derecha, sin solaparse.
+private RunCommand[] run()
+{
+    int n = m_action.length;
+    RunCommand run[] = new RunCommand[n];
+
+    for(int pc = 0; pc < n; pc++)
+        run[pc] = RUN[m_action[pc]];
+
+    if(m_super.length == 0)
+        return run;
+
+    boolean used[] = new boolean[n];
+
+    for(byte seq[] : m_super)
+    {
+        boolean valid = seq.length >= 2 && seq.length <= SUPER_LENGTH;
+
+        for(byte a : seq)
+            valid &= a >= 0 && a < ACTIONS.length;
+
+        if(!valid)
+            throw new IllegalArgumentException("Superinstruccion incorrecta");
+
+        for(int pc = 0; pc + seq.length <= n; pc++)
+        {
+            if(matches(seq, pc, used))
+            {
+                run[pc] = special(pc, seq.length);
+                Arrays.fill(used, pc, pc + seq.length, true);
+                pc += seq.length - 1;
+            }
+        }
+    }
+
+    return run;
+}
+
+private boolean matches(byte seq[], int pc, boolean used[])
+{
+    for(int i = 0; i < seq.length; i++)
+    {
+        if(used[pc + i] || m_action[pc + i] != seq[i])
+            return false;
+    }
+
+    return fusible(pc, seq.length);
+}
+
+//------------------------------------------------------------------------
+// Valor de una variable o constante entera de una superinstruccion.
+private long value(ExecutionContext x, int pc)
+{
+    long op = m_operand[pc];
+    return m_action[pc] == CONSTANT_ACTION ? op : x.m_num[(int)op];
+}
+
+// Resultado de la operacion de una superinstruccion.
+private long operate(ExecutionContext x, int pc)
+{
+    long a = value(x, pc), b = value(x, pc+1);
+
+    switch(ACTIONS[m_action[pc+2]])
+    {
+        case ADD:       return a + b;
+        case SUBTRACT:  return a - b;
+        case MULTIPLY:  return a * b;
+        case EQUAL:     return a == b ? 1 : 0;
+        case UNEQUAL:   return a != b ? 1 : 0;
+        case LESS:      return a <  b ? 1 : 0;
+        case LESSEQ:    return a <= b ? 1 : 0;
+        case GREATER:   return a >  b ? 1 : 0;
+        default:        return a >= b ? 1 : 0;
+    }
+}
+
+// e e op
+private static final RunCommand SUPER_OPERATION = (p, x, pc) ->
+{
+    int sp = x.m_sp++;
+    x.m_stackNum[sp]  = p.operate(x, pc);
+    x.m_stackType[sp] = p.comparison(pc+2) ? BOOLEAN : INTEGER;
+    return pc + 3;
+};
+
+// e e comparacion if
+private static final RunCommand SUPER_BRANCH = (p, x, pc) ->
+    p.operate(x, pc) != 0 ? pc + 4 : (int)p.m_operand[pc+3];
+
+// variable e :=
+private static final RunCommand SUPER_MOVE = (p, x, pc) ->
+{
+    x.m_num[(int)p.m_operand[pc]] = p.value(x, pc+1);
+    return pc + 3;
+};
+
+// variable e e op :=
+private static final RunCommand SUPER_ASSIGN = (p, x, pc) ->
+{
+    x.m_num[(int)p.m_operand[pc]] = p.operate(x, pc+1);
+    return pc + 5;
+};
+
+//------------------------------------------------------------------------
+private static void checkOperand(int pc, long op, int limit)
+{
+    if(op < 0 || op >= limit)
+    {
+        throw new IllegalArgumentException(
+            "Operando incorrecto en "+ pc +": "+ op);
+    }
+}
+
+/**
+ * Número de variables del programa.
+ * @return número de variables.
+ */
+public int slots()
+{
+    return m_names.length;
+}
+
+/**
+ * Obtiene la posición de una variable.
+ * @param name Nombre de la variable.
+ * @return posición de la variable o -1 si no existe.
+ */
+public int slot(String name)
+{
+    for(int i = 0; i < m_names.length; i++)
+    {
+        if(m_names[i].equals(name))
+            return i;
+    }
+
+    return -1;
+}
+
+// Indica si la variable es de tipo cadena.
+boolean isString(int slot)
+{
+    return m_slotType[slot] == STRING;
+}
+
+// Indica si la variable es un vector.
+boolean isVector(int slot)
+{
+    return m_slotType[slot] == VECTOR;
+}
+
+/**
+ * Número de instrucciones del programa.
+ * @return número de instrucciones.
+ */
+public int length()
+{
+    return m_action.length;
+}
+
+/**
+ * Número máximo de elementos en la pila durante la ejecución.
+ * @return profundidad máxima de la pila.
+ */
+public int maxStack()
+{
+    return m_maxStack;
+}
+
+/**
+ * Ejecuta el programa con un contexto nuevo.
+ * @param out Destino de la salida de {@code imprimir}.
+ * @return contexto con el estado final de la ejecución.
+ */
+public ExecutionContext run(OutputSink out)
+{
+    ExecutionContext x = new ExecutionContext(this, out);
+    run(x);
+    return x;
+}
+
+/**
+ * Ejecuta el programa. El contexto se puede reutilizar
+ * para varias ejecuciones del mismo programa.
+ * @param x Estado de la ejecución.
+ * @throws ExecutionContext.LimitException si se superan los límites
+ *         de instrucciones o de tiempo del contexto.
+ */
+public void run(ExecutionContext x)
+{
+    Events.Run event = new Events.Run();
+    long written = x.m_out.written();
+
+    if(event.isEnabled())
+    {
+        event.allocated = Events.allocated();
+        event.begin();
+    }
+
+    try
+    {
+        execute(x);
+    }
+    finally
+    {
+        written = x.m_out.written() - written;
+        Metrics.ran(x.m_steps, m_maxStack, written);
+
+        if(event.shouldCommit())
+        {
+            event.end();
+            event.instructions = m_action.length;
+            event.steps        = x.m_steps;
+            event.output       = written;
+            event.allocated    = Events.allocated() - event.allocated;
+            event.commit();
+        }
+    }
+}
+
+//------------------------------------------------------------------------
+// Ejecuta el programa sin emitir eventos ni actualizar los contadores,
+// que en la ejecucion por lotes se actualizan una vez por grupo.
+void execute(ExecutionContext x)
+{
+    if(x.m_profile != null)
+        runProfile(x, x.m_profile);
+    else if(x.m_trace != null)
+        runTrace(x, x.m_trace);
+    else if(x.m_sampled)
+        runSampled(x);
+    else
+        runFast(x);
+}
+
+//------------------------------------------------------------------------
+private void runFast(ExecutionContext x)
+{
+    int n = m_action.length, pc = 0;
+    long steps = 0;
+    x.start();
+
+    try
+    {
+        while(pc < n)
+        {
+            int next = m_run[pc].run(this, x, pc);
+
+            // Las instrucciones ejecutadas se publican en x para que las
+            // operaciones sobre vectores puedan comprobar el limite.
+            x.m_steps = ++steps;
+
+            // Los limites solo se comprueban en los saltos hacia atras.
+            if(next <= pc && steps >= x.m_check)
+                x.check(steps);
+
+            pc = next;
+        }
+    }
+    finally
+    {
+        x.m_steps = steps + x.m_forked;
+        x.m_out.flush();
+    }
+}
+
+//------------------------------------------------------------------------
+// Igual que run() pero midiendo cada instruccion, tambien las que forman
+// superinstrucciones, y contando los saltos. Esta en un bucle aparte
+// para que la ejecucion normal no pague nada por el perfilado.
+private void runProfile(ExecutionContext x, Profile profile)
+{
+    if(profile.program() != this)
+        throw new IllegalArgumentException("El perfil es de otro programa.");
+
+    long count[] = profile.m_count, nanos[] = profile.m_nanos,
+         jumps[] = profile.m_jumps;
+    int n = m_action.length, pc = 0;
+    long steps = 0, time = System.nanoTime();
+    x.start();
+
+    try
+    {
+        while(pc < n)
+        {
+            int next = RUN[m_action[pc]].run(this, x, pc);
+            long now = System.nanoTime();
+            count[pc]++;
+            nanos[pc] += now - time;
+
+            if(next != pc + 1)
+                jumps[pc]++;
+
+            time = now;
+            x.m_steps = ++steps;
+
+            if(next <= pc && steps >= x.m_check)
+                x.check(steps);
+
+            pc = next;
+        }
+    }
+    finally
+    {
+        x.m_steps = steps + x.m_forked;
+        x.m_out.flush();
+    }
+}
+
+//------------------------------------------------------------------------
+// Igual que run() pero registrando cada instruccion, tambien las que
+// forman superinstrucciones, con la cima de la pila que deja. Si falla
+// se vuelca la traza antes de lanzar la excepcion.
+private void runTrace(ExecutionContext x, Trace trace)
+{
+    if(trace.program() != this)
+        throw new IllegalArgumentException("La traza es de otro programa.");
+
+    int n = m_action.length, pc = 0;
+    long steps = 0;
+    x.start();
+
+    try
+    {
+        while(pc < n)
+        {
+            int next = RUN[m_action[pc]].run(this, x, pc),
+                sp   = x.m_sp;
+
+            if(sp > 0)
+                trace.record(pc, sp, x.m_stackType[sp-1], x.m_stackNum[sp-1]);
+            else
+                trace.record(pc, 0, VOID, 0);
+
+            x.m_steps = ++steps;
+
+            if(next <= pc && steps >= x.m_check)
+                x.check(steps);
+
+            pc = next;
+        }
+    }
+    catch(RuntimeException ex)
+    {
+        // El ultimo registro es la instruccion que ha fallado.
+        trace.record(pc, 0, VOID, 0);
+        trace.dumpError(ex);
+        throw ex;
+    }
+    finally
+    {
+        x.m_steps = steps + x.m_forked;
+        x.m_out.flush();
+    }
+}
+
+//------------------------------------------------------------------------
+// Igual que run() pero publicando la instruccion actual para el
+// perfilador por muestreo. La escritura es opaca: no necesita barreras,
+// solo que el otro hilo acabe viendo el valor.
+private void runSampled(ExecutionContext x)
+{
+    int n = m_action.length, pc = 0;
+    long steps = 0;
+    x.start();
+
+    try
+    {
+        while(pc < n)
+        {
+            PC.setOpaque(x, pc);
+            int next = m_run[pc].run(this, x, pc);
+            x.m_steps = ++steps;
+
+            if(next <= pc && steps >= x.m_check)
+                x.check(steps);
+
+            pc = next;
+        }
+    }
+    finally
+    {
+        x.m_pc = -1;
+        x.m_steps = steps + x.m_forked;
+        x.m_out.flush();
+    }
+}
+
+//------------------------------------------------------------------------
+// Ejecuta el cuerpo de un bucle paralelo: las instrucciones desde from
+// hasta llegar a to.
+void execute(ExecutionContext x, int from, int to)
+{
+    int pc = from;
+    long steps = x.m_steps;
+
+    try
+    {
+        while(pc != to)
+        {
+            int next = m_run[pc].run(this, x, pc);
+            x.m_steps = ++steps;
+
+            if(next <= pc && steps >= x.m_check)
+                x.check(steps);
+
+            pc = next;
+        }
+    }
+    finally
+    {
+        x.m_steps = steps;
+    }
+}
+
+//------------------------------------------------------------------------
+// Indica si el programa lee de la entrada.
+boolean reads()
+{
+    for(byte a : m_action)
+    {
+        if(a == Action.READ.ordinal())
+            return true;
+    }
+
+    return false;
+}
+
+//------------------------------------------------------------------------
+Action action(int pc)
+{
+    return ACTIONS[m_action[pc]];
+}
+
+//------------------------------------------------------------------------
+Type type(int pc)
+{
+    return TYPES[m_type[pc]];
+}
+
+//------------------------------------------------------------------------
+long operand(int pc)
+{
+    return m_operand[pc];
+}
+
+//------------------------------------------------------------------------
+@Override public String toString()
+{
+    StringBuilder s = new StringBuilder();
+
+    for(int pc = 0; pc < m_action.length; pc++)
+    {
+        s.append(instruction(pc));
+        s.append("\n");
+    }
+
+    if(m_super.length > 0)
+        s.append("\nSuperinstrucciones:\n");
+
+    for(byte seq[] : m_super)
+    {
+        for(byte a : seq)
+            s.append(" ").append(ACTIONS[a].name().toLowerCase());
+
+        s.append("\n");
+    }
+
+    return s.toString();
+}
+
+//------------------------------------------------------------------------
+/**
+ * Huella de las instrucciones del programa, que permite comprobar que
+ * un perfil guardado corresponde a él.
+ * @return huella de las acciones, los tipos y los operandos.
+ */
+public long fingerprint()
+{
+    // FNV-1a de 64 bits.
+    long h = 0xcbf29ce484222325L;
+
+    for(int pc = 0; pc < m_action.length; pc++)
+    {
+        h = (h ^ m_action[pc]) * 0x100000001b3L;
+        h = (h ^ m_type[pc]) * 0x100000001b3L;
+        h = (h ^ m_operand[pc]) * 0x100000001b3L;
+    }
+
+    return h;
+}
+
+//------------------------------------------------------------------------
+String instruction(int pc)
+{
+    StringBuilder s = new StringBuilder();
+    s.append(String.format("%5d:  ", pc));
+
+    Action action = ACTIONS[m_action[pc]];
+    boolean variable = action == Action.DECLARE ||
+                       action == Action.VARIABLE ||
+                       action == Action.STEP ||
+                       action == Action.READ ||
+                       action == Action.REDUCE;
+    int op = (int)m_operand[pc];
+
+    switch(TYPES[variable && m_type[pc] != BOOLEAN ? m_slotType[op]
+                                                   : m_type[pc]])
+    {
+        case VOID:    s.append("     "); break;
+        case INTEGER: s.append("int  "); break;
+        case STRING:  s.append("str  "); break;
+        case BOOLEAN: s.append("bool "); break;
+        case VECTOR:  s.append("vec  "); break;
+        default: throw new AssertionError();
+    }
+
+    switch(action)
+    {
+        case DECLARE:   s.append("decl  "); break;
+        case ASSIGN:    s.append(":=    "); break;
+        case PRINT:     s.append("print "); break;
+        case READ:      s.append("read  "); break;
+        case IF:        s.append("if    "); break;
+        case ELSE:      s.append("else  "); break;
+        case WHILE:     s.append("while "); break;
+        case PARALLEL:  s.append("par   "); break;
+        case REDUCE:    s.append("red   "); break;
+        case GOTO:      s.append("goto  "); break;
+        case END:       s.append("end   "); break;
+        case VARIABLE:  s.append("var   "); break;
+        case CONSTANT:  s.append("cte   "); break;
+        case ADD:       s.append("+     "); break;
+        case SUBTRACT:  s.append("-     "); break;
+        case NEGATE:    s.append("-1    "); break;
+        case MULTIPLY:  s.append("*     "); break;
+        case DIVIDE:    s.append("/     "); break;
+        case EQUAL:     s.append("==    "); break;
+        case UNEQUAL:   s.append("!=    "); break;
+        case LESS:      s.append("<     "); break;
+        case LESSEQ:    s.append("<=    "); break;
+        case GREATER:   s.append(">     "); break;
+        case GREATEREQ: s.append("<=    "); break;
+        case NOT:       s.append("!     "); break;
+        case OR:        s.append("||    "); break;
+        case AND:       s.append("&&    "); break;
+        case LOAD:      s.append("load  "); break;
+        case STORE:     s.append("store "); break;
+        case FILL:      s.append("fill  "); break;
+        case COPY:      s.append("copy  "); break;
+        case SORT:      s.append("sort  "); break;
+        case SUM:       s.append("sum   "); break;
+        case CALL:      s.append("call  "); break;
+        case ENTER:     s.append("enter "); break;
+        case PARAM:     s.append("param "); break;
+        case RETURN:    s.append("ret   "); break;
+        case STEP:      s.append("step  "); break;
+        default: throw new AssertionError();
+    }
+
+    if(variable)
+        s.append(m_names[op]);
+    else if(action == Action.GOTO || action == Action.IF ||
+            action == Action.PARALLEL || action == Action.CALL)
+        s.append(op);
+    else if(action == Action.PARAM)
+        s.append(m_names[op]);
+    else if(count(m_operand[pc]) > 0 &&
+            (action == Action.ENTER || action == Action.RETURN))
+        s.append(m_names[first(m_operand[pc])] +" +"+ count(m_operand[pc]));
+    else if(m_type[pc] == STRING)
+        s.append("\""+ m_strings[op] +"\"");
+    else if(m_type[pc] == INTEGER)
+        s.append(m_operand[pc]);
+
+    return s.toString();
+}
+
+/**
+ * Fila del fichero fuente de la que procede una instrucción.
+ * @param pc Posición de la instrucción.
+ * @return fila en el fichero fuente.
+ */
+public int row(int pc)
+{
+    return m_lines.row(pc);
+}
+
+/**
+ * Columna del fichero fuente de la que procede una instrucción.
+ * @param pc Posición de la instrucción.
+ * @return columna en el fichero fuente.
+ */
+public int column(int pc)
+{
+    return m_lines.column(pc);
+}
+
+// Posicion de una instruccion para los mensajes de error.
+private String position(int pc)
+{
+    return m_lines.row(pc) +"."+ m_lines.column(pc);
+}
+
+//------------------------------------------------------------------------
+/**
+ * Guarda el programa en un fichero binario que se puede cargar
+ * con {@link #read(String)} sin volver a compilar el programa fuente.
+ * <p>El fichero contiene la tabla de variables, la tabla de constantes,
+ * las instrucciones (acción, tipo y operando), la tabla de posiciones
+ * en el fichero fuente, codificada con diferencias, y las
+ * superinstrucciones.
+ * @param fichero Fichero de destino.
+ * @throws IOException
+ */
+public void write(String fichero) throws IOException
+{
+    try(DataOutputStream out = new DataOutputStream(
+            new BufferedOutputStream(new FileOutputStream(fichero))))
+    {
+        write(out);
+    }
+}
+
+//------------------------------------------------------------------------
+private void write(DataOutputStream out) throws IOException
+{
+    int n = m_action.length;
+    Map<Object,Integer> constants = new HashMap<>();
+    List<Object> pool = new ArrayList<>();
+    int operands[] = new int[n];
+
+    for(int pc = 0; pc < n; pc++)
+    {
+        if(!pooled(m_action[pc]))
+        {
+            operands[pc] = (int)m_operand[pc];
+            continue;
+        }
+
+        Object value = m_type[pc] == STRING
+                       ? (Object)m_strings[(int)m_operand[pc]]
+                       : (Object)m_operand[pc];
+        Integer index = constants.get(value);
+
+        if(index == null)
+        {
+            index = pool.size();
+            constants.put(value, index);
+            pool.add(value);
+        }
+
+        operands[pc] = index;
+    }
+
+    out.writeInt(MAGIC);
+    out.writeInt(Code.VERSION);
+    out.writeInt(m_names.length);
+
+    for(int i = 0; i < m_names.length; i++)
+    {
+        out.writeByte(m_slotType[i]);
+        writeString(out, m_names[i]);
+    }
+
+    out.writeInt(pool.size());
+
+    for(Object value : pool)
+    {
+        if(value instanceof Long)
+        {
+            out.writeByte(INTEGER);
+            out.writeLong((Long)value);
+        }
+        else
+        {
+            out.writeByte(STRING);
+            writeString(out, (String)value);
+        }
+    }
+
+    out.writeInt(n);
+
+    for(int pc = 0; pc < n; pc++)
+    {
+        out.writeByte(m_action[pc]);
+        out.writeByte(m_type[pc]);
+        out.writeInt(operands[pc]);
+    }
+
+    byte lines[] = m_lines.data();
+    out.writeInt(lines.length);
+    out.write(lines);
+
+    out.writeInt(m_super.length);
+
+    for(byte seq[] : m_super)
+    {
+        out.writeByte(seq.length);
+        out.write(seq);
+    }
+}
+
+//------------------------------------------------------------------------
+// Instrucciones cuyo operando se guarda en la tabla de constantes porque
+// no cabe en un int.
+private static boolean pooled(byte action)
+{
+    return action == Action.CONSTANT.ordinal() ||
+           action == Action.ENTER.ordinal() ||
+           action == Action.RETURN.ordinal();
+}
+
+//------------------------------------------------------------------------
+private static void writeString(DataOutputStream out, String s)
+    throws IOException
+{
+    byte b[] = s.getBytes(StandardCharsets.UTF_8);
+    out.writeInt(b.length);
+    out.write(b);
+}
+
+//------------------------------------------------------------------------
+/**
+ * Carga un programa guardado con {@link #write(String)}.
+ * <p>El fichero se proyecta en memoria y se decodifica directamente,
+ * sin pasar por el analizador léxico ni por el sintáctico.
+ * @param fichero Fichero compilado.
+ * @return programa listo para ejecutarse.
+ * @throws IOException
+ */
+public static Program read(String fichero) throws IOException
+{
+    try(FileChannel ch = FileChannel.open(Paths.get(fichero)))
+    {
+        return read(ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size()));
+    }
+}
+
+//------------------------------------------------------------------------
+private static Program read(ByteBuffer in) throws IOException
+{
+    try
+    {
+        if(in.getInt() != MAGIC)
+            throw new IOException("No es un fichero compilado.");
+
+        if(in.getInt() != Code.VERSION)
+            throw new IOException("Version incompatible.");
+
+        String names[] = new String[in.getInt()];
+        byte slotType[] = new byte[names.length];
+
+        for(int i = 0; i < names.length; i++)
+        {
+            slotType[i] = in.get();
+            names[i] = readString(in);
+        }
+
+        Object pool[] = new Object[in.getInt()];
+        int stringIndex[] = new int[pool.length];
+        List<String> strings = new ArrayList<>();
+
+        for(int i = 0; i < pool.length; i++)
+        {
+            if(in.get() == INTEGER)
+            {
+                pool[i] = in.getLong();
+            }
+            else
+            {
+                stringIndex[i] = strings.size();
+                strings.add(readString(in));
+                pool[i] = strings.get(stringIndex[i]);
+            }
+        }
+
+        int n = in.getInt();
+        byte action[] = new byte[n], type[] = new byte[n];
+        long operand[] = new long[n];
+
+        for(int pc = 0; pc < n; pc++)
+        {
+            action[pc] = in.get();
+            type[pc]   = in.get();
+            int op     = in.getInt();
+
+            if(!pooled(action[pc]))
+                operand[pc] = op;
+            else if(pool[op] instanceof Long)
+                operand[pc] = (Long)pool[op];
+            else
+                operand[pc] = stringIndex[op];
+        }
+
+        byte lines[] = new byte[in.getInt()];
+        in.get(lines);
+
+        byte supers[][] = new byte[in.getInt()][];
+
+        for(int i = 0; i < supers.length; i++)
+        {
+            supers[i] = new byte[in.get()];
+            in.get(supers[i]);
+        }
+
+        return new Program(names, slotType, action, type, operand,
+                           strings.toArray(new String[0]),
+                           new LineTable(lines, n), supers);
+    }
+    catch(BufferUnderflowException | IndexOutOfBoundsException |
+          IllegalArgumentException | NegativeArraySizeException ex)
+    {
+        throw new IOException("Fichero compilado incorrecto.", ex);
+    }
+}
+
+//------------------------------------------------------------------------
+private static String readString(ByteBuffer in)
+{
+    int length = in.getInt();
+    ByteBuffer b = in.slice();
+    b.limit(length);
+    in.position(in.position() + length);
+    return StandardCharsets.UTF_8.decode(b).toString();
+}
+
+/**
+ * Cadena construida mediante concatenaciones.
+ * <p>Varias cadenas pueden compartir el mismo {@code StringBuilder}
+ * si una es prefijo de otra: cada una recuerda su longitud y solo la
+ * que llega al final del buffer puede añadir sobre él sin copiarlo.
+ * Así las cadenas de sumas de una expresión y las variables que se
+ * van ampliando dentro de un bucle se construyen en tiempo amortizado
+ * constante por concatenación. La cadena solo se aplana cuando se
+ * imprime o se compara.
+ */
+private static final class Rope implements CharSequence
+{
+    private final StringBuilder buffer;
+    private final int length;
+    private String flat;
+
+    private Rope(StringBuilder buffer)
+    {
+        this.buffer = buffer;
+        this.length = buffer.length();
+    }
+
+    private static Rope of(byte type, long num, Object ref)
+    {
+        if(ref instanceof Rope)
+            return (Rope)ref;
+
+        return new Rope(append(new StringBuilder(), type, num, ref));
+    }
+
+    private Rope append(byte type, long num, Object ref)
+    {
+        StringBuilder b = buffer;
+
+        if(b.length() != length)
+        {
+            // Otra cadena ya ha crecido sobre este buffer.
+            b = new StringBuilder(length + 16).append(b, 0, length);
+        }
+
+        return new Rope(append(b, type, num, ref));
+    }
+
+    private static StringBuilder append(StringBuilder b, byte type,
+                                        long num, Object ref)
+    {
+        if(type == INTEGER)
+            return b.append(num);
+        else if(type == BOOLEAN)
+            return b.append(num != 0);
+        else if(type != VECTOR)
+            return b.append((CharSequence)ref);
+
+        long v[] = (long[])ref;
+
+        for(int i = 0; i < v.length; i++)
+        {
+            if(i > 0)
+                b.append(' ');
+
+            b.append(v[i]);
+        }
+
+        return b;
+    }
+
+    @Override public int length()
+    {
+        return length;
+    }
+
+    @Override public char charAt(int index)
+    {
+        if(index >= length)
+            throw new IndexOutOfBoundsException(index);
+
+        return buffer.charAt(index);
+    }
+
+    @Override public CharSequence subSequence(int start, int end)
+    {
+        return toString().subSequence(start, end);
+    }
+
+    @Override public String toString()
+    {
+        if(flat == null)
+            flat = buffer.substring(0, length);
+
+        return flat;
+    }
+}
+
+//------------------------------------------------------------------------
+private void checkTypes(int pc, byte t1, byte t2)
+{
+    if(t1 != t2)
+    {
+        throw new RuntimeException(
+            "Tipos incompatibles en "+ position(pc));
+    }
+}
+
+//------------------------------------------------------------------------
+// Saca dos operandos del tipo indicado y devuelve la posicion de la pila
+// del primero, donde se debe dejar el resultado.
+private int operands(ExecutionContext x, int pc, byte type)
+{
+    int sp = --x.m_sp - 1;
+    checkTypes(pc, x.m_stackType[sp],   type);
+    checkTypes(pc, x.m_stackType[sp+1], type);
+    return sp;
+}
+
+//------------------------------------------------------------------------
+// Comprueba el indice de un elemento de un vector.
+private int index(int pc, long v[], byte type, long i)
+{
+    checkTypes(pc, type, INTEGER);
+
+    if(i < 0 || i >= v.length)
+    {
+        throw new RuntimeException(
+            "Indice fuera del vector en "+ position(pc) +
+            ": "+ i);
+    }
+
+    return (int)i;
+}
+
+//------------------------------------------------------------------------
+// Saca un vector de la posicion indicada de la pila.
+private long[] vector(ExecutionContext x, int pc, int sp)
+{
+    checkTypes(pc, x.m_stackType[sp], VECTOR);
+    return (long[])x.m_stackRef[sp];
+}
+
+//------------------------------------------------------------------------
+private static RunCommand newRunNext()
+{
+    return (p, x, pc) -> pc + 1;
+}
+
+//------------------------------------------------------------------------
+private static RunCommand newRunDeclare() {return (p, x, pc) ->
+{
+    // Cada ejecucion empieza con las variables a su valor inicial,
+    // salvo las de entrada.
+    int slot = (int)p.m_operand[pc];
+
+    if(p.m_type[pc] == VECTOR)
+    {
+        int sp = --x.m_sp;
+        p.checkTypes(pc, x.m_stackType[sp], INTEGER);
+        long n = x.m_stackNum[sp];
+
+        if(n < 0 || n > x.m_maxVector)
+        {
+            throw new RuntimeException(
+                "Longitud de vector incorrecta en "+
+                p.position(pc) +": "+ n);
+        }
+
+        // Las ejecuciones con el mismo contexto reutilizan el vector.
+        Object v = x.m_ref[slot];
+        x.charge(n);
+
+        if(v instanceof long[] && ((long[])v).length == n)
+            Arrays.fill((long[])v, 0);
+        else
+            x.m_ref[slot] = allocate(p, pc, (int)n);
+    }
+    else if(x.m_bound == null || !x.m_bound[slot])
+    {
+        x.m_num[slot] = 0;
+        x.m_ref[slot] = "";
+    }
+
+    return pc + 1;
+};}
+
+//------------------------------------------------------------------------
+private static RunCommand newRunAssign() {return (p, x, pc) ->
+{
+    int sp = x.m_sp -= 2;
+
+    if(x.m_stackType[sp] != VOID)
+        throw new RuntimeException("No es una variable de asignacion.");
+
+    int slot = (int)x.m_stackNum[sp];
+    byte type = p.m_slotType[slot];
+    p.checkTypes(pc, x.m_stackType[sp+1], type);
+
+    // Los vectores solo se asignan en las llamadas que expande Inliner.
+    if(type == INTEGER)
+        x.m_num[slot] = x.m_stackNum[sp+1];
+    else
+        x.m_ref[slot] = x.m_stackRef[sp+1];
+
+    return pc + 1;
+};}
+
+//------------------------------------------------------------------------
+private static RunCommand newRunPrint() {return (p, x, pc) ->
+{
+    int sp = --x.m_sp;
+    OutputSink out = x.m_out;
+
+    byte type = x.m_stackType[sp];
+
+    if(type == INTEGER)
+    {
+        out.print(x.m_stackNum[sp]);
+    }
+    else if(type == BOOLEAN)
+    {
+        out.print(x.m_stackNum[sp] != 0);
+    }
+    else if(type == VECTOR)
+    {
+        long v[] = (long[])x.m_stackRef[sp];
+
+        for(int i = 0; i < v.length; i++)
+        {
+            if(i > 0)
+                out.print(" ");
+
+            out.print(v[i]);
+        }
+    }
+    else
+    {
+        out.print((CharSequence)x.m_stackRef[sp]);
+    }
+
+    out.println();
+    return pc + 1;
+};}
+
+//------------------------------------------------------------------------
+// Lee el valor de una variable. Dentro de una expresion deja en la pila
+// si quedaban datos; al terminar la entrada la variable vuelve a su
+// valor inicial.
+private static RunCommand newRunRead() {return (p, x, pc) ->
+{
+    int slot = (int)p.m_operand[pc];
+    InputSource in = x.m_in;
+    boolean found = in.hasNext();
+
+    if(found)
+    {
+        if(p.m_slotType[slot] == STRING)
+            x.m_ref[slot] = in.readString();
+        else
+            x.m_num[slot] = in.readInteger();
+    }
+    else if(p.m_type[pc] == VOID)
+    {
+        throw new RuntimeException(
+            "No quedan datos en la entrada en "+
+            p.position(pc));
+    }
+    else
+    {
+        x.m_num[slot] = 0;
+        x.m_ref[slot] = "";
+    }
+
+    if(p.m_type[pc] == BOOLEAN)
+    {
+        int sp = x.m_sp++;
+        x.m_stackType[sp] = BOOLEAN;
+        x.m_stackNum[sp]  = found ? 1 : 0;
+    }
+
+    return pc + 1;
+};}
+
+//------------------------------------------------------------------------
+// Ejecuta un bucle paralelo. En la pila estan la variable del bucle y
+// sus limites, y el operando es el END del final del cuerpo.
+private static RunCommand newRunParallel() {return (p, x, pc) ->
+{
+    int sp = x.m_sp -= 3;
+
+    if(x.m_stackType[sp] != VOID)
+        throw new RuntimeException("No es una variable de asignacion.");
+
+    int slot = (int)x.m_stackNum[sp];
+    p.checkTypes(pc, p.m_slotType[slot], INTEGER);
+    p.checkTypes(pc, x.m_stackType[sp+1], INTEGER);
+    p.checkTypes(pc, x.m_stackType[sp+2], INTEGER);
+
+    // Los hilos comparten las cadenas, que no pueden seguir creciendo
+    // sobre el mismo buffer.
+    Object ref[] = x.m_ref;
+
+    for(int i = 0; i < ref.length; i++)
+    {
+        if(ref[i] instanceof Rope)
+            ref[i] = ref[i].toString();
+    }
+
+    p.m_parallel[pc].run(x, slot, x.m_stackNum[sp+1], x.m_stackNum[sp+2]);
+    return (int)p.m_operand[pc] + 1;
+};}
+
+//------------------------------------------------------------------------
+// Llama a un procedimiento: guarda la direccion de vuelta en la pila de
+// llamadas y salta a su ENTER. Los argumentos quedan en la pila.
+private static RunCommand newRunCall() {return (p, x, pc) ->
+{
+    if(!x.reserve(1))
+    {
+        throw new RuntimeException(
+            "Demasiadas llamadas anidadas en "+
+            p.position(pc));
+    }
+
+    x.m_frameNum[x.m_fp++] = pc + 1;
+    return (int)p.m_operand[pc];
+};}
+
+//------------------------------------------------------------------------
+// Un procedimiento recursivo guarda sus variables, que vuelven a empezar
+// sin valor para que sus vectores no se compartan con la llamada
+// anterior.
+private static RunCommand newRunEnter() {return (p, x, pc) ->
+{
+    long frame = p.m_operand[pc];
+    int first = first(frame), count = count(frame);
+
+    if(count > 0)
+    {
+        if(!x.reserve(count))
+        {
+            throw new RuntimeException(
+                "Demasiadas llamadas anidadas en "+
+                p.position(pc));
+        }
+
+        int fp = x.m_fp;
+        System.arraycopy(x.m_num, first, x.m_frameNum, fp, count);
+        System.arraycopy(x.m_ref, first, x.m_frameRef, fp, count);
+        Arrays.fill(x.m_ref, first, first + count, null);
+        x.m_fp = fp + count;
+    }
+
+    return pc + 1;
+};}
+
+//------------------------------------------------------------------------
+private static RunCommand newRunParam() {return (p, x, pc) ->
+{
+    int sp = --x.m_sp,
+        slot = (int)p.m_operand[pc];
+    byte type = p.m_slotType[slot];
+    p.checkTypes(pc, x.m_stackType[sp], type);
+
+    if(type == INTEGER)
+        x.m_num[slot] = x.m_stackNum[sp];
+    else
+        x.m_ref[slot] = x.m_stackRef[sp];
+
+    return pc + 1;
+};}
+
+//------------------------------------------------------------------------
+// Restaura las variables que guardo el ENTER y vuelve a la instruccion
+// siguiente a la llamada.
+private static RunCommand newRunReturn() {return (p, x, pc) ->
+{
+    long frame = p.m_operand[pc];
+    int first = first(frame), count = count(frame),
+        fp = x.m_fp - count;
+
+    if(count > 0)
+    {
+        System.arraycopy(x.m_frameNum, fp, x.m_num, first, count);
+        System.arraycopy(x.m_frameRef, fp, x.m_ref, first, count);
+        Arrays.fill(x.m_frameRef, fp, fp + count, null);
+    }
+
+    x.m_fp = --fp;
+    return (int)x.m_frameNum[fp];
+};}
+
+//------------------------------------------------------------------------
+private static RunCommand newRunIf() {return (p, x, pc) ->
+{
+    int sp = --x.m_sp;
+    p.checkTypes(pc, x.m_stackType[sp], BOOLEAN);
+    return x.m_stackNum[sp] != 0 ? pc + 1 : (int)p.m_operand[pc];
+};}
+
+//------------------------------------------------------------------------
+private static RunCommand newRunGoto()
+{
+    return (p, x, pc) -> (int)p.m_operand[pc];
+}
+
+//------------------------------------------------------------------------
+private static RunCommand newRunVariable() {return (p, x, pc) ->
+{
+    int slot = (int)p.m_operand[pc],
+        sp   = x.m_sp++;
+
+    if(p.m_type[pc] == VOID)
+    {
+        // Variable de asignacion.
+        x.m_stackType[sp] = VOID;
+        x.m_stackNum[sp]  = slot;
+    }
+    else
+    {
+        // Variable de expresion.
+        x.m_stackType[sp] = p.m_slotType[slot];
+        x.m_stackNum[sp]  = x.m_num[slot];
+        x.m_stackRef[sp]  = x.m_ref[slot];
+    }
+
+    return pc + 1;
+};}
+
+//------------------------------------------------------------------------
+private static RunCommand newRunConstant() {return (p, x, pc) ->
+{
+    int sp = x.m_sp++;
+    byte type = p.m_type[pc];
+    x.m_stackType[sp] = type;
+
+    if(type == STRING)
+        x.m_stackRef[sp] = p.m_strings[(int)p.m_operand[pc]];
+    else
+        x.m_stackNum[sp] = p.m_operand[pc];
+
+    return pc + 1;
+};}
+
+//------------------------------------------------------------------------
+private static RunCommand newRunAdd() {return (p, x, pc) ->
+{
+    int sp = --x.m_sp - 1;
+    byte t1 = x.m_stackType[sp], t2 = x.m_stackType[sp+1];
+
+    if(t1 == STRING || t2 == STRING)
+    {
+        x.m_stackRef[sp] = Rope.of(t1, x.m_stackNum[sp], x.m_stackRef[sp])
+                               .append(t2, x.m_stackNum[sp+1],
+                                           x.m_stackRef[sp+1]);
+        x.m_stackType[sp] = STRING;
+    }
+    else
+    {
+        p.checkTypes(pc, t1, INTEGER);
+        p.checkTypes(pc, t2, INTEGER);
+        x.m_stackNum[sp] += x.m_stackNum[sp+1];
+    }
+
+    return pc + 1;
+};}
+
+//------------------------------------------------------------------------
+private static RunCommand newRunSubtract() {return (p, x, pc) ->
+{
+    int sp = p.operands(x, pc, INTEGER);
+    x.m_stackNum[sp] -= x.m_stackNum[sp+1];
+    return pc + 1;
+};}
+
+//------------------------------------------------------------------------
+private static RunCommand newRunNegate() {return (p, x, pc) ->
+{
+    int sp = x.m_sp - 1;
+    p.checkTypes(pc, x.m_stackType[sp], INTEGER);
+    x.m_stackNum[sp] = -x.m_stackNum[sp];
+    return pc + 1;
+};}
+
+//------------------------------------------------------------------------
+private static RunCommand newRunMultiply() {return (p, x, pc) ->
+{
+    int sp = p.operands(x, pc, INTEGER);
+    x.m_stackNum[sp] *= x.m_stackNum[sp+1];
+    return pc + 1;
+};}
+
+//------------------------------------------------------------------------
+private static RunCommand newRunDivide() {return (p, x, pc) ->
+{
+    int sp = p.operands(x, pc, INTEGER);
+    x.m_stackNum[sp] /= x.m_stackNum[sp+1];
+    return pc + 1;
+};}
+
+//------------------------------------------------------------------------
+private static RunCommand newRunEqual() {return (p, x, pc) ->
+{
+    int sp = p.operands(x, pc, INTEGER);
+    x.m_stackNum[sp]  = x.m_stackNum[sp] == x.m_stackNum[sp+1] ? 1 : 0;
+    x.m_stackType[sp] = BOOLEAN;
+    return pc + 1;
+};}
+
+//------------------------------------------------------------------------
+private static RunCommand newRunUnequal() {return (p, x, pc) ->
+{
+    int sp = p.operands(x, pc, INTEGER);
+    x.m_stackNum[sp]  = x.m_stackNum[sp] != x.m_stackNum[sp+1] ? 1 : 0;
+    x.m_stackType[sp] = BOOLEAN;
+    return pc + 1;
+};}
+
+//------------------------------------------------------------------------
+private static RunCommand newRunLess() {return (p, x, pc) ->
+{
+    int sp = p.operands(x, pc, INTEGER);
+    x.m_stackNum[sp]  = x.m_stackNum[sp] < x.m_stackNum[sp+1] ? 1 : 0;
+    x.m_stackType[sp] = BOOLEAN;
+    return pc + 1;
+};}
+
+//------------------------------------------------------------------------
+private static RunCommand newRunLessEq() {return (p, x, pc) ->
+{
+    int sp = p.operands(x, pc, INTEGER);
+    x.m_stackNum[sp]  = x.m_stackNum[sp] <= x.m_stackNum[sp+1] ? 1 : 0;
+    x.m_stackType[sp] = BOOLEAN;
+    return pc + 1;
+};}
+
+//------------------------------------------------------------------------
+private static RunCommand newRunGreater() {return (p, x, pc) ->
+{
+    int sp = p.operands(x, pc, INTEGER);
+    x.m_stackNum[sp]  = x.m_stackNum[sp] > x.m_stackNum[sp+1] ? 1 : 0;
+    x.m_stackType[sp] = BOOLEAN;
+    return pc + 1;
+};}
+
+//------------------------------------------------------------------------
+private static RunCommand newRunGreaterEq() {return (p, x, pc) ->
+{
+    int sp = p.operands(x, pc, INTEGER);
+    x.m_stackNum[sp]  = x.m_stackNum[sp] >= x.m_stackNum[sp+1] ? 1 : 0;
+    x.m_stackType[sp] = BOOLEAN;
+    return pc + 1;
+};}
+
+//------------------------------------------------------------------------
+private static RunCommand newRunNot() {return (p, x, pc) ->
+{
+    int sp = x.m_sp - 1;
+    p.checkTypes(pc, x.m_stackType[sp], BOOLEAN);
+    x.m_stackNum[sp] ^= 1;
+    return pc + 1;
+};}
+
+//------------------------------------------------------------------------
+private static RunCommand newRunOr() {return (p, x, pc) ->
+{
+    int sp = p.operands(x, pc, BOOLEAN);
+    x.m_stackNum[sp] |= x.m_stackNum[sp+1];
+    return pc + 1;
+};}
+
+//------------------------------------------------------------------------
+private static RunCommand newRunAnd() {return (p, x, pc) ->
+{
+    int sp = p.operands(x, pc, BOOLEAN);
+    x.m_stackNum[sp] &= x.m_stackNum[sp+1];
+    return pc + 1;
+};}
+
+//------------------------------------------------------------------------
+// Elemento de un vector. En la pila estan el vector y el indice.
+private static RunCommand newRunLoad() {return (p, x, pc) ->
+{
+    int sp = --x.m_sp - 1;
+    long v[] = p.vector(x, pc, sp);
+    int i = p.index(pc, v, x.m_stackType[sp+1], x.m_stackNum[sp+1]);
+    x.m_stackType[sp] = INTEGER;
+    x.m_stackNum[sp]  = v[i];
+    return pc + 1;
+};}
+
+//------------------------------------------------------------------------
+// Asigna un elemento de un vector. En la pila estan la variable de
+// asignacion, el indice y el valor.
+private static RunCommand newRunStore() {return (p, x, pc) ->
+{
+    int sp = x.m_sp -= 3;
+
+    if(x.m_stackType[sp] != VOID)
+        throw new RuntimeException("No es una variable de asignacion.");
+
+    int slot = (int)x.m_stackNum[sp];
+    p.checkTypes(pc, p.m_slotType[slot], VECTOR);
+    p.checkTypes(pc, x.m_stackType[sp+2], INTEGER);
+
+    long v[] = (long[])x.m_ref[slot];
+    v[p.index(pc, v, x.m_stackType[sp+1], x.m_stackNum[sp+1])] =
+        x.m_stackNum[sp+2];
+
+    return pc + 1;
+};}
+
+// Un vector que no cabe en memoria es un error de la ejecucion y no de
+// la maquina virtual. Si falla esta reserva el resto de la memoria esta
+// libre.
+private static long[] allocate(Program p, int pc, int n)
+{
+    try
+    {
+        return new long[n];
+    }
+    catch(OutOfMemoryError ex)
+    {
+        throw new RuntimeException(
+            "Memoria insuficiente para el vector en "+
+            p.position(pc) +": "+ n);
+    }
+}
+
+//------------------------------------------------------------------------
+// Las operaciones sobre vectores completos cuentan una instruccion por
+// elemento para el limite de la ejecucion.
+private static RunCommand newRunFill() {return (p, x, pc) ->
+{
+    int sp = x.m_sp -= 2;
+    long v[] = p.vector(x, pc, sp);
+    p.checkTypes(pc, x.m_stackType[sp+1], INTEGER);
+    x.charge(v.length);
+    Arrays.fill(v, x.m_stackNum[sp+1]);
+    return pc + 1;
+};}
+
+//------------------------------------------------------------------------
+// Copia el segundo vector sobre el primero. Si tienen distinta longitud
+// se copian los elementos del mas corto.
+private static RunCommand newRunCopy() {return (p, x, pc) ->
+{
+    int sp = x.m_sp -= 2;
+    long to[] = p.vector(x, pc, sp), from[] = p.vector(x, pc, sp + 1);
+    x.charge(Math.min(from.length, to.length));
+    System.arraycopy(from, 0, to, 0, Math.min(from.length, to.length));
+    return pc + 1;
+};}
+
+//------------------------------------------------------------------------
+private static RunCommand newRunSort() {return (p, x, pc) ->
+{
+    int sp = --x.m_sp;
+    long v[] = p.vector(x, pc, sp);
+    x.charge(v.length);
+    Arrays.sort(v);
+    return pc + 1;
+};}
+
+//------------------------------------------------------------------------
+// Suma de los elementos de un vector. El bucle es el que el compilador
+// JIT convierte en instrucciones vectoriales.
+private static RunCommand newRunSum() {return (p, x, pc) ->
+{
+    int sp = x.m_sp - 1;
+    long v[] = p.vector(x, pc, sp), sum = 0;
+    x.charge(v.length);
+
+    for(int i = 0; i < v.length; i++)
+        sum += v[i];
+
+    x.m_stackType[sp] = INTEGER;
+    x.m_stackNum[sp]  = sum;
+    return pc + 1;
+};}
+
+//------------------------------------------------------------------------
+// Avanza un producto de una variable de induccion: la variable del
+// operando es el producto, la siguiente lo que aumenta en cada paso y
+// la tercera lo que aumenta a su vez ese incremento.
+private static RunCommand newRunStep() {return (p, x, pc) ->
+{
+    int slot = (int)p.m_operand[pc];
+    long num[] = x.m_num;
+    num[slot]     += num[slot + 1];
+    num[slot + 1] += num[slot + 2];
+    return pc + 1;
+};}
+
+//------------------------------------------------------------------------
+static
+{
+    try
+    {
+        PC = MethodHandles.lookup().findVarHandle(
+                 ExecutionContext.class, "m_pc", int.class);
+    }
+    catch(ReflectiveOperationException ex)
+    {
+        throw new ExceptionInInitializerError(ex);
+    }
+
+    RunCommand runNext = newRunNext();
+
+    RUN[Action.DECLARE  .ordinal()] = newRunDeclare();
+    RUN[Action.ASSIGN   .ordinal()] = newRunAssign();
+    RUN[Action.PRINT    .ordinal()] = newRunPrint();
+    RUN[Action.READ     .ordinal()] = newRunRead();
+    RUN[Action.IF       .ordinal()] = newRunIf();
+    RUN[Action.ELSE     .ordinal()] = runNext;
+    RUN[Action.WHILE    .ordinal()] = runNext;
+    RUN[Action.PARALLEL .ordinal()] = newRunParallel();
+    RUN[Action.REDUCE   .ordinal()] = runNext;
+    RUN[Action.GOTO     .ordinal()] = newRunGoto();
+    RUN[Action.END      .ordinal()] = runNext;
+    RUN[Action.VARIABLE .ordinal()] = newRunVariable();
+    RUN[Action.CONSTANT .ordinal()] = newRunConstant();
+    RUN[Action.ADD      .ordinal()] = newRunAdd();
+    RUN[Action.SUBTRACT .ordinal()] = newRunSubtract();
+    RUN[Action.NEGATE   .ordinal()] = newRunNegate();
+    RUN[Action.MULTIPLY .ordinal()] = newRunMultiply();
+    RUN[Action.DIVIDE   .ordinal()] = newRunDivide();
+    RUN[Action.EQUAL    .ordinal()] = newRunEqual();
+    RUN[Action.UNEQUAL  .ordinal()] = newRunUnequal();
+    RUN[Action.LESS     .ordinal()] = newRunLess();
+    RUN[Action.LESSEQ   .ordinal()] = newRunLessEq();
+    RUN[Action.GREATER  .ordinal()] = newRunGreater();
+    RUN[Action.GREATEREQ.ordinal()] = newRunGreaterEq();
+    RUN[Action.NOT      .ordinal()] = newRunNot();
+    RUN[Action.OR       .ordinal()] = newRunOr();
+    RUN[Action.AND      .ordinal()] = newRunAnd();
+    RUN[Action.LOAD     .ordinal()] = newRunLoad();
+    RUN[Action.STORE    .ordinal()] = newRunStore();
+    RUN[Action.FILL     .ordinal()] = newRunFill();
+    RUN[Action.COPY     .ordinal()] = newRunCopy();
+    RUN[Action.SORT     .ordinal()] = newRunSort();
+    RUN[Action.SUM      .ordinal()] = newRunSum();
+    RUN[Action.CALL     .ordinal()] = newRunCall();
+    RUN[Action.ENTER    .ordinal()] = newRunEnter();
+    RUN[Action.PARAM    .ordinal()] = newRunParam();
+    RUN[Action.RETURN   .ordinal()] = newRunReturn();
+    RUN[Action.STEP     .ordinal()] = newRunStep();
+}
+
+} // Program
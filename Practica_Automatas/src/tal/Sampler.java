@@ -0,0 +1,163 @@
+package tal;
+
+import java.util.*;
+import java.util.concurrent.locks.*;
+
+/**
+ * Perfilador por muestreo para programas de larga duración.
+ * <p>El intérprete publica la instrucción que está ejecutando en el
+ * contexto y un hilo en segundo plano la consulta periódicamente. El
+ * coste para la ejecución es una escritura por instrucción, frente a
+ * las dos consultas del reloj del perfil exacto de {@link Profile}.
+ * <p>Las muestras se atribuyen a las líneas del fichero fuente y a los
+ * bucles {@code mientras} que contienen cada instrucción.
+ */
+public final class Sampler
+{
+private final Program m_program;
+private final long m_period;
+private final long m_hits[];
+private long m_samples;
+private ExecutionContext m_context;
+private Thread m_thread;
+private volatile boolean m_running;
+
+/**
+ * Construye un perfilador.
+ * @param program Programa que se va a medir.
+ * @param frecuencia Número de muestras por segundo.
+ */
+public Sampler(Program program, int frecuencia)
+{
+    if(frecuencia < 1 || frecuencia > 1_000_000)
+        throw new IllegalArgumentException("frecuencia: "+ frecuencia);
+
+    m_program = program;
+    m_period  = 1_000_000_000L / frecuencia;
+    m_hits    = new long[program.length()];
+}
+
+/**
+ * Empieza a tomar muestras de la ejecución que use el contexto indicado.
+ * @param x Contexto de la ejecución que se va a medir.
+ */
+public synchronized void start(ExecutionContext x)
+{
+    if(m_thread != null)
+        throw new IllegalStateException("Ya se esta muestreando.");
+
+    m_context = x;
+    x.m_sampled = true;
+    m_running = true;
+    m_thread = new Thread(this::sample, "tal-sampler");
+    m_thread.setDaemon(true);
+    m_thread.start();
+}
+
+/**
+ * Deja de tomar muestras.
+ * @throws InterruptedException
+ */
+public synchronized void stop() throws InterruptedException
+{
+    if(m_thread == null)
+        return;
+
+    m_running = false;
+    m_thread.join();
+    m_thread = null;
+    m_context.m_sampled = false;
+    m_context = null;
+}
+
+//------------------------------------------------------------------------
+private void sample()
+{
+    ExecutionContext x = m_context;
+    long next = System.nanoTime();
+
+    while(m_running)
+    {
+        next += m_period;
+        long wait = next - System.nanoTime();
+
+        if(wait > 0)
+            LockSupport.parkNanos(wait);
+
+        int pc = x.m_pc;
+
+        if(pc >= 0 && pc < m_hits.length)
+        {
+            m_hits[pc]++;
+            m_samples++;
+        }
+    }
+}
+
+/**
+ * Número de muestras tomadas mientras se ejecutaba el programa.
+ * @return número de muestras.
+ */
+public synchronized long samples()
+{
+    return m_samples;
+}
+
+/**
+ * Informe con las líneas y los bucles con más muestras.
+ * @param source Líneas del fichero fuente, o {@code null} si no se
+ *               deben mostrar.
+ * @param max Número máximo de líneas del informe.
+ * @return informe de puntos calientes.
+ */
+public synchronized String report(List<String> source, int max)
+{
+    Map<Integer,Long> rows = new HashMap<>();
+    Map<String,Long> loops = new HashMap<>();
+    String stacks[] = Profile.stacks(m_program);
+
+    for(int pc = 0; pc < m_hits.length; pc++)
+    {
+        if(m_hits[pc] > 0)
+        {
+            rows.merge(m_program.row(pc), m_hits[pc], Long::sum);
+            loops.merge(stacks[pc], m_hits[pc], Long::sum);
+        }
+    }
+
+    StringBuilder s = new StringBuilder();
+    s.append(m_samples).append(" muestras\n\n");
+    s.append(String.format("%6s %10s %6s  %s\n",
+                           "linea", "muestras", "%", "fuente"));
+
+    rows.entrySet().stream()
+        .sorted(Map.Entry.<Integer,Long>comparingByValue().reversed())
+        .limit(max)
+        .forEach(e ->
+    {
+        int row = e.getKey();
+        String text = source != null && row >= 1 && row <= source.size()
+                      ? source.get(row - 1) : "";
+
+        s.append(String.format("%6d %10d %6.2f  %s\n", row, e.getValue(),
+                               percent(e.getValue()), text));
+    });
+
+    s.append(String.format("\n%10s %6s  %s\n", "muestras", "%", "bucles"));
+
+    loops.entrySet().stream()
+        .sorted(Map.Entry.<String,Long>comparingByValue().reversed())
+        .limit(max)
+        .forEach(e -> s.append(String.format("%10d %6.2f  %s\n",
+                     e.getValue(), percent(e.getValue()), e.getKey())));
+
+    return s.toString();
+}
+
+//------------------------------------------------------------------------
+private double percent(long hits)
+{
+    return m_samples == 0 ? 0.0 : 100.0 * hits / m_samples;
+}
+
+} // Sampler
@@ -0,0 +1,235 @@
+package tal;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Servicio para ejecutar muchos programas independientes a la vez
+ * dentro del mismo proceso.
+ * <p>Cada ejecución tiene su propio {@link ExecutionContext} con un
+ * límite de instrucciones y de tiempo, y su salida se captura en
+ * memoria. Si la máquina virtual dispone de hilos virtuales cada
+ * ejecución se lanza en uno de ellos; si no, se usa un hilo por
+ * procesador.
+ */
+public class ScriptService implements AutoCloseable
+{
+/** Forma en la que terminó una ejecución. */
+public static enum Status
+{
+    /** El programa terminó normalmente. */
+    OK,
+    /** Se superó el límite de instrucciones. */
+    BUDGET,
+    /** Se superó el límite de tiempo. */
+    TIMEOUT,
+    /** El programa terminó con un error. */
+    ERROR
+}
+
+/**
+ * Resultado de una ejecución.
+ */
+public static final class Result
+{
+    /** Forma en la que terminó la ejecución. */
+    public final Status status;
+    /** Salida de las sentencias {@code imprimir}, si se ha capturado. */
+    public final String output;
+    /** Mensaje de error, o {@code null} si terminó normalmente. */
+    public final String error;
+    /** Número de instrucciones ejecutadas. */
+    public final long steps;
+    /** Duración de la ejecución en nanosegundos. */
+    public final long nanos;
+
+    private Result(Status status, String output, String error,
+                   long steps, long nanos)
+    {
+        this.status = status;
+        this.output = output;
+        this.error  = error;
+        this.steps  = steps;
+        this.nanos  = nanos;
+    }
+
+    @Override public String toString()
+    {
+        return status +" ("+ steps +" instrucciones, "+
+               nanos / 1000 +" us)"+ (error == null ? "" : ": "+ error);
+    }
+}
+
+private final ExecutorService m_executor;
+private final long m_budget, m_timeout;
+
+/**
+ * Construye un servicio.
+ * @param budget Número máximo de instrucciones de cada ejecución.
+ * @param timeout Tiempo máximo de cada ejecución en milisegundos,
+ *                o 0 para no limitarlo.
+ */
+public ScriptService(long budget, long timeout)
+{
+    this(newExecutor(), budget, timeout);
+}
+
+/**
+ * Construye un servicio que ejecuta los programas en los hilos
+ * indicados.
+ * @param executor Hilos de ejecución.
+ * @param budget Número máximo de instrucciones de cada ejecución.
+ * @param timeout Tiempo máximo de cada ejecución en milisegundos,
+ *                o 0 para no limitarlo.
+ */
+public ScriptService(ExecutorService executor, long budget, long timeout)
+{
+    if(budget < 0 || timeout < 0)
+        throw new IllegalArgumentException();
+
+    m_executor = executor;
+    m_budget   = budget;
+    m_timeout  = TimeUnit.MILLISECONDS.toNanos(timeout);
+}
+
+//------------------------------------------------------------------------
+private static ExecutorService newExecutor()
+{
+    try
+    {
+        return (ExecutorService)Executors.class
+               .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+    }
+    catch(ReflectiveOperationException ex)
+    {
+        return Executors.newFixedThreadPool(
+            Runtime.getRuntime().availableProcessors(), r ->
+        {
+            Thread t = new Thread(r, "tal-script");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+}
+
+/**
+ * Lanza la ejecución de un programa.
+ * @param program Programa que se debe ejecutar.
+ * @return resultado futuro de la ejecución.
+ */
+public Future<Result> submit(Program program)
+{
+    Objects.requireNonNull(program);
+    return m_executor.submit(() -> run(program));
+}
+
+/**
+ * Ejecuta varios programas a la vez y espera a que terminen todos. Un
+ * programa que falla no interrumpe los demás: su resultado es
+ * {@link Status#ERROR}.
+ * @param programs Programas que se deben ejecutar.
+ * @return resultados en el mismo orden que los programas.
+ * @throws InterruptedException
+ */
+public List<Result> runAll(List<Program> programs)
+    throws InterruptedException
+{
+    List<Future<Result>> futures = new ArrayList<>(programs.size());
+
+    for(Program p : programs)
+        futures.add(submit(p));
+
+    List<Result> results = new ArrayList<>(futures.size());
+
+    for(Future<Result> f : futures)
+    {
+        try
+        {
+            results.add(f.get());
+        }
+        catch(ExecutionException ex)
+        {
+            results.add(new Result(Status.ERROR, "",
+                                   String.valueOf(ex.getCause()), 0, 0));
+        }
+    }
+
+    return results;
+}
+
+/**
+ * Ejecuta un programa en el hilo actual con los límites del servicio.
+ * @param program Programa que se debe ejecutar.
+ * @return resultado de la ejecución.
+ */
+public Result run(Program program)
+{
+    OutputSink.Memory out = OutputSink.memory();
+    Result r = run(program, out);
+
+    return new Result(r.status, out.toString(), r.error, r.steps, r.nanos);
+}
+
+/**
+ * Ejecuta un programa en el hilo actual con los límites del servicio
+ * escribiendo la salida en el destino indicado.
+ * @param program Programa que se debe ejecutar.
+ * @param out Destino de la salida.
+ * @return resultado de la ejecución, sin la salida.
+ */
+public Result run(Program program, OutputSink out)
+{
+    ExecutionContext x = new ExecutionContext(program, out);
+    x.setBudget(m_budget);
+    x.setTimeout(m_timeout);
+
+    Status status = Status.OK;
+    String error = null;
+    long start = System.nanoTime();
+
+    try
+    {
+        program.run(x);
+    }
+    catch(ExecutionContext.LimitException ex)
+    {
+        status = ex.isTimeout() ? Status.TIMEOUT : Status.BUDGET;
+        error  = ex.getMessage();
+    }
+    catch(RuntimeException ex)
+    {
+        status = Status.ERROR;
+        error  = ex.getMessage();
+    }
+    catch(OutOfMemoryError | StackOverflowError ex)
+    {
+        // Solo falla este programa. La memoria que ha usado se libera al
+        // descartar su contexto.
+        status = Status.ERROR;
+        error  = ex.toString();
+    }
+
+    return new Result(status, "", error, x.steps(),
+                      System.nanoTime() - start);
+}
+
+/**
+ * Termina el servicio esperando a las ejecuciones pendientes.
+ */
+@Override public void close()
+{
+    m_executor.shutdown();
+
+    try
+    {
+        while(!m_executor.awaitTermination(1, TimeUnit.MINUTES))
+            ;
+    }
+    catch(InterruptedException ex)
+    {
+        m_executor.shutdownNow();
+        Thread.currentThread().interrupt();
+    }
+}
+
+} // ScriptService
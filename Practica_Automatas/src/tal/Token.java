@@ -22,6 +22,12 @@ public static enum Type
     FIN,
     /** Palabra reservada {@code imprimir}. */
     IMPRIMIR,
+    /** Palabra reservada {@code leer}. */
+    LEER,
+    /** Palabra reservada {@code paralelo}. */
+    PARALELO,
+    /** Palabra reservada {@code procedimiento}. */
+    PROCEDIMIENTO,
     /** Identificadores (nombres de variables). */
     ID,
     /** Número entero. */
@@ -49,6 +55,12 @@ public static enum Type
     IPAR,
     /** Paréntesis derecho: {@code )} */
     DPAR,
+    /** Separador de argumentos: {@code ,} */
+    COMA,
+    /** Corchete izquierdo: {@code [} */
+    ICOR,
+    /** Corchete derecho: {@code ]} */
+    DCOR,
     /** Fin de fichero. */
     EOF
 }
@@ -0,0 +1,234 @@
+package tal;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.locks.*;
+
+/**
+ * Analizador léxico que se ejecuta en otro hilo mientras se analiza la
+ * sintaxis.
+ * <p>El hilo del analizador léxico lee los tokens en grupos de
+ * {@value #BATCH} y los publica en un buffer circular de
+ * {@value #SLOTS} grupos con un solo productor y un solo consumidor, sin
+ * bloqueos: cada índice solo lo escribe un hilo y la escritura volátil
+ * del índice publica el grupo. Así el tiempo de compilación se acerca al
+ * de la fase más lenta en lugar de la suma de las dos.
+ * <p>Los errores del analizador léxico se lanzan en el hilo que lee,
+ * cuando llega al token en el que se produjeron, y en todas las lecturas
+ * posteriores.
+ */
+final class TokenPipe implements Runnable
+{
+// Tokens por grupo y grupos del buffer, que debe ser potencia de 2.
+private static final int BATCH = 256, SLOTS = 64, MASK = SLOTS - 1;
+
+// Tamano a partir del que compensa crear el hilo.
+private static final long LARGE = 1 << 16;
+
+private final ALex m_lex;
+private final Token m_ring[][] = new Token[SLOTS][];
+private final Thread m_thread;
+
+// Grupos publicados y grupos leidos. Cada uno lo escribe solo un hilo y
+// estan separados para que no compartan linea de cache.
+private final Index m_head = new Index(), m_tail = new Index();
+
+// Error del analizador lexico, que se publica con un grupo null.
+private volatile RuntimeException m_error;
+private volatile boolean m_closed;
+
+// Estado del hilo que lee.
+private Token m_batch[], m_last;
+private int m_next;
+private long m_tokens;
+
+// Indice con relleno a los lados.
+private static final class Index
+{
+    private long p1, p2, p3, p4, p5, p6, p7;
+    private volatile long value;
+    private long q1, q2, q3, q4, q5, q6, q7;
+}
+
+//------------------------------------------------------------------------
+/**
+ * Indica si compensa analizar el léxico en otro hilo: el texto es
+ * grande y hay más de un procesador.
+ * @param bytes Tamaño del texto.
+ * @return {@code true} si compensa.
+ */
+static boolean worthwhile(long bytes)
+{
+    return bytes >= LARGE && Runtime.getRuntime().availableProcessors() > 1;
+}
+
+//------------------------------------------------------------------------
+/**
+ * Empieza a leer tokens en otro hilo.
+ * @param lex Analizador léxico.
+ */
+TokenPipe(ALex lex)
+{
+    m_lex = lex;
+    m_thread = new Thread(this, "tal-lex");
+    m_thread.setDaemon(true);
+    m_thread.start();
+}
+
+//------------------------------------------------------------------------
+@Override public void run()
+{
+    Token batch[] = new Token[BATCH];
+    int n = 0;
+
+    try
+    {
+        for(;;)
+        {
+            Token t = m_lex.read();
+            batch[n++] = t;
+
+            if(n == BATCH || t.type == Token.Type.EOF)
+            {
+                Token full[] = n == BATCH ? batch : Arrays.copyOf(batch, n);
+
+                if(!publish(full) || t.type == Token.Type.EOF)
+                    return;
+
+                batch = new Token[BATCH];
+                n = 0;
+            }
+        }
+    }
+    catch(IOException ex)
+    {
+        RuntimeException rex = new RuntimeException(ex);
+        rex.setStackTrace(ex.getStackTrace());
+        fail(batch, n, rex);
+    }
+    catch(RuntimeException ex)
+    {
+        fail(batch, n, ex);
+    }
+}
+
+// Publica los tokens leidos antes del error y despues el error.
+private void fail(Token batch[], int n, RuntimeException ex)
+{
+    if(n == 0 || publish(Arrays.copyOf(batch, n)))
+    {
+        m_error = ex;
+        publish(null);
+    }
+}
+
+// Espera a que haya sitio y publica un grupo. Devuelve false si se ha
+// cerrado el analizador, que se comprueba en cada grupo para que el
+// hilo no siga leyendo el fichero cuando la sintaxis se ha detenido
+// antes del final.
+private boolean publish(Token batch[])
+{
+    if(m_closed)
+        return false;
+
+    long head = m_head.value;
+
+    for(int spins = 0; head - m_tail.value == SLOTS; spins++)
+    {
+        if(m_closed)
+            return false;
+
+        pause(spins);
+    }
+
+    m_ring[(int)head & MASK] = batch;
+    m_head.value = head + 1;
+    return true;
+}
+
+//------------------------------------------------------------------------
+/**
+ * Lee el siguiente token. Después del final del fichero siempre
+ * devuelve el mismo token, y después de un error del analizador léxico
+ * siempre lanza la misma excepción.
+ * @return token leído.
+ */
+Token read()
+{
+    if(m_batch == null || m_next == m_batch.length)
+    {
+        if(m_last != null && m_last.type == Token.Type.EOF)
+            return m_last;
+
+        m_batch = take();
+        m_next = 0;
+    }
+
+    m_tokens++;
+    return m_last = m_batch[m_next++];
+}
+
+// Espera al siguiente grupo.
+private Token[] take()
+{
+    long tail = m_tail.value;
+
+    for(int spins = 0; tail == m_head.value; spins++)
+        pause(spins);
+
+    int slot = (int)tail & MASK;
+    Token batch[] = m_ring[slot];
+
+    // El error es el ultimo grupo y se queda en el buffer para lanzarlo
+    // otra vez en las lecturas siguientes.
+    if(batch == null)
+        throw m_error;
+
+    m_ring[slot] = null;
+    m_tail.value = tail + 1;
+    return batch;
+}
+
+// Espera activa breve y despues cede el procesador.
+private static void pause(int spins)
+{
+    if(spins < 128)
+        Thread.onSpinWait();
+    else if(spins < 1024)
+        Thread.yield();
+    else
+        LockSupport.parkNanos(50_000);
+}
+
+//------------------------------------------------------------------------
+/**
+ * Número de tokens leídos hasta ahora.
+ * @return tokens leídos.
+ */
+long tokens()
+{
+    return m_tokens;
+}
+
+/**
+ * Termina el hilo del analizador léxico y cierra el fichero. El hilo
+ * termina después de leer como mucho un grupo más.
+ * @throws IOException
+ */
+void close() throws IOException
+{
+    m_closed = true;
+
+    try
+    {
+        m_thread.join();
+    }
+    catch(InterruptedException ex)
+    {
+        Thread.currentThread().interrupt();
+    }
+
+    m_lex.close();
+}
+
+} // TokenPipe
@@ -0,0 +1,252 @@
+package tal;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+
+/**
+ * Traza de la ejecución de un {@link Program}: las últimas instrucciones
+ * ejecutadas con el valor que dejan en la cima de la pila.
+ * <p>Se activa con {@link ExecutionContext#setTrace(Trace)}. Los
+ * registros se guardan en un buffer circular fuera del montón, de modo
+ * que escribirlos no reserva memoria, y se pueden volcar a un fichero al
+ * terminar o cuando falla la ejecución. {@link #decode(String, Program)}
+ * muestra un volcado con la posición de cada instrucción en el fichero
+ * fuente.
+ * <p>Las vueltas de los bucles {@code paralelo} se ejecutan en otros
+ * contextos y no se registran.
+ */
+public final class Trace
+{
+// Cabecera de los ficheros de traza: "TALT".
+private static final int MAGIC = 0x54414C54;
+
+// Cada registro tiene la instruccion, la altura de la pila con el tipo
+// de su cima en el byte alto y el valor entero de la cima.
+private static final int RECORD = 16;
+
+private static final Code.Type TYPES[] = Code.Type.values();
+
+private final Program m_program;
+private final ByteBuffer m_buffer;
+private final int m_records;
+
+// Siguiente registro que se escribe y registros escritos desde el
+// principio.
+private int m_next;
+private long m_written;
+
+// Fichero donde se vuelca la traza si falla la ejecucion.
+private String m_file;
+
+/**
+ * Construye una traza vacía.
+ * @param program Programa que se va a ejecutar.
+ * @param records Número de registros que se conservan.
+ */
+public Trace(Program program, int records)
+{
+    if(records <= 0 || records > Integer.MAX_VALUE / RECORD)
+        throw new IllegalArgumentException("records: "+ records);
+
+    m_program = program;
+    m_records = records;
+    m_buffer  = ByteBuffer.allocateDirect(records * RECORD);
+}
+
+/**
+ * Programa al que corresponde la traza.
+ * @return programa ejecutado.
+ */
+public Program program()
+{
+    return m_program;
+}
+
+/**
+ * Número de instrucciones registradas desde que se creó la traza, de
+ * las que se conservan como mucho las últimas {@link #records()}.
+ * @return instrucciones registradas.
+ */
+public long written()
+{
+    return m_written;
+}
+
+/**
+ * Número de registros que se conservan.
+ * @return capacidad de la traza.
+ */
+public int records()
+{
+    return m_records;
+}
+
+/**
+ * Indica dónde se vuelca la traza cuando falla una ejecución.
+ * @param fichero Fichero de destino, o {@code null} para no volcarla.
+ */
+public void dumpOnError(String fichero)
+{
+    m_file = fichero;
+}
+
+/**
+ * Descarta los registros.
+ */
+public void reset()
+{
+    m_next = 0;
+    m_written = 0;
+}
+
+//------------------------------------------------------------------------
+// Registra una instruccion ejecutada.
+void record(int pc, int sp, byte type, long top)
+{
+    int at = m_next * RECORD;
+    m_buffer.putLong(at, (long)pc << 32 | type << 24 | sp);
+    m_buffer.putLong(at + 8, top);
+
+    if(++m_next == m_records)
+        m_next = 0;
+
+    m_written++;
+}
+
+//------------------------------------------------------------------------
+// Vuelca la traza al fichero indicado con dumpOnError(), si hay alguno.
+// Los errores al escribir se anaden al de la ejecucion.
+void dumpError(RuntimeException ex)
+{
+    if(m_file == null)
+        return;
+
+    try
+    {
+        dump(m_file);
+    }
+    catch(IOException | RuntimeException e)
+    {
+        ex.addSuppressed(e);
+    }
+}
+
+/**
+ * Guarda los registros en orden de ejecución.
+ * @param fichero Fichero de destino.
+ * @throws IOException
+ */
+public void dump(String fichero) throws IOException
+{
+    int n = (int)Math.min(m_written, m_records),
+        first = n == m_records ? m_next : 0;
+
+    ByteBuffer header = ByteBuffer.allocate(28);
+    header.putInt(MAGIC);
+    header.putInt(Code.VERSION);
+    header.putLong(m_program.fingerprint());
+    header.putLong(m_written);
+    header.putInt(n);
+    header.flip();
+
+    // Si el buffer ha dado la vuelta, los mas antiguos empiezan en el
+    // siguiente que se iba a escribir.
+    ByteBuffer older = m_buffer.duplicate(), newer = m_buffer.duplicate();
+    older.limit(n * RECORD).position(first * RECORD);
+    newer.limit(first * RECORD).position(0);
+
+    try(FileChannel ch = FileChannel.open(Paths.get(fichero),
+                             StandardOpenOption.CREATE,
+                             StandardOpenOption.WRITE,
+                             StandardOpenOption.TRUNCATE_EXISTING))
+    {
+        while(header.hasRemaining())
+            ch.write(header);
+
+        while(older.hasRemaining())
+            ch.write(older);
+
+        while(newer.hasRemaining())
+            ch.write(newer);
+    }
+}
+
+//------------------------------------------------------------------------
+/**
+ * Muestra una traza guardada con {@link #dump(String)}: una línea por
+ * instrucción con su número de orden, su posición en el fichero fuente,
+ * la instrucción y la pila que deja.
+ * @param fichero Fichero de la traza.
+ * @param program Programa al que corresponde, compilado igual que el
+ *                programa que se ejecutó.
+ * @return registros de la traza.
+ * @throws IOException si el fichero no es correcto o es de otro
+ *         programa.
+ */
+public static String decode(String fichero, Program program)
+    throws IOException
+{
+    try(FileChannel ch = FileChannel.open(Paths.get(fichero)))
+    {
+        ByteBuffer b = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+
+        if(b.remaining() < 28 || b.getInt() != MAGIC)
+            throw new IOException("No es un fichero de traza.");
+
+        if(b.getInt() != Code.VERSION)
+            throw new IOException("Version incompatible.");
+
+        if(b.getLong() != program.fingerprint())
+            throw new IOException("La traza es de otro programa.");
+
+        long written = b.getLong();
+        int n = b.getInt();
+
+        if(n < 0 || n > b.remaining() / RECORD)
+            throw new IOException("Fichero de traza truncado.");
+
+        StringBuilder s = new StringBuilder();
+        s.append(String.format("%12s %10s  %-32s %s\n",
+                               "orden", "fila:col", "   instruccion", "pila"));
+
+        for(long k = written - n; k < written; k++)
+        {
+            int pc = b.getInt(), flags = b.getInt(),
+                sp = flags & 0xffffff, type = flags >>> 24;
+            long top = b.getLong();
+
+            if(pc < 0 || pc >= program.length() ||
+               type >= TYPES.length)
+            {
+                throw new IOException("Registro incorrecto: "+ k);
+            }
+
+            s.append(String.format("%12d %10s  %-32s", k,
+                     program.row(pc) +":"+ program.column(pc),
+                     program.instruction(pc)));
+
+            if(sp > 0 && (TYPES[type] == Code.Type.INTEGER ||
+                          TYPES[type] == Code.Type.BOOLEAN))
+            {
+                s.append(String.format(" [%d] %d", sp, top));
+            }
+            else if(sp > 0)
+            {
+                s.append(String.format(" [%d] %s", sp,
+                                       TYPES[type].name().toLowerCase()));
+            }
+
+            s.append("\n");
+        }
+
+        return s.toString();
+    }
+    catch(BufferUnderflowException ex)
+    {
+        throw new IOException("Fichero de traza truncado.", ex);
+    }
+}
+
+} // Trace
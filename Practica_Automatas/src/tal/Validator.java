@@ -0,0 +1,194 @@
+package tal;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Validación de muchos programas sin compilarlos.
+ * <p>Cada fichero se analiza con un {@link ADR} que anota los errores en
+ * un {@link Diagnostics} y continúa en la siguiente sentencia, de modo
+ * que se informa de todos los errores del fichero y no solo del primero.
+ * Los ficheros se reparten entre varios hilos y cada hilo reutiliza el
+ * mismo buffer de errores. Los errores se escriben en el orden en que se
+ * indicaron los ficheros.
+ */
+public final class Validator
+{
+// Errores que se guardan de cada fichero.
+private static final int CAPACITY = 100;
+
+// Resultado de los ficheros sin errores.
+private static final Result VALID = new Result(0, null);
+
+private int m_threads = Runtime.getRuntime().availableProcessors();
+private long m_files, m_failed, m_errors;
+
+// Buffer de errores de cada hilo, que se reutiliza entre ficheros.
+private final ThreadLocal<Diagnostics> m_diagnostics =
+    ThreadLocal.withInitial(() -> new Diagnostics(CAPACITY));
+
+//------------------------------------------------------------------------
+/**
+ * Indica el número de hilos de la validación.
+ * @param threads Número de hilos, 1 para validar en el hilo actual.
+ */
+public void setThreads(int threads)
+{
+    if(threads < 1)
+        throw new IllegalArgumentException("threads: "+ threads);
+
+    m_threads = threads;
+}
+
+/**
+ * Número de ficheros con errores en la última validación.
+ * @return ficheros con errores.
+ */
+public long failed()
+{
+    return m_failed;
+}
+
+/**
+ * Número de errores encontrados en la última validación.
+ * @return errores encontrados.
+ */
+public long errors()
+{
+    return m_errors;
+}
+
+//------------------------------------------------------------------------
+/**
+ * Valida los ficheros indicados.
+ * @param ficheros Ficheros con los programas.
+ * @param out Destino de los errores, una línea por error precedida del
+ *            nombre del fichero.
+ * @return número de ficheros validados.
+ * @throws IOException si se interrumpe la validación.
+ */
+public long run(List<String> ficheros, PrintStream out) throws IOException
+{
+    m_files  = 0;
+    m_failed = 0;
+    m_errors = 0;
+
+    if(m_threads == 1)
+    {
+        for(String f : ficheros)
+            write(validate(f), out);
+
+        return m_files;
+    }
+
+    ExecutorService executor = Executors.newFixedThreadPool(m_threads, r ->
+    {
+        Thread t = new Thread(r, "tal-validator");
+        t.setDaemon(true);
+        return t;
+    });
+
+    try
+    {
+        Deque<Future<Result>> pending = new ArrayDeque<>();
+
+        for(String f : ficheros)
+        {
+            if(pending.size() >= 4 * m_threads)
+                write(get(pending.removeFirst()), out);
+
+            pending.addLast(executor.submit(() -> validate(f)));
+        }
+
+        while(!pending.isEmpty())
+            write(get(pending.removeFirst()), out);
+
+        return m_files;
+    }
+    finally
+    {
+        executor.shutdownNow();
+    }
+}
+
+//------------------------------------------------------------------------
+private Result validate(String fichero)
+{
+    Diagnostics d = m_diagnostics.get();
+    d.reset();
+
+    try
+    {
+        ADR adr = new ADR(new AFD(fichero), d);
+
+        try
+        {
+            adr.programa();
+        }
+        finally
+        {
+            adr.close();
+        }
+    }
+    catch(IOException | RuntimeException ex)
+    {
+        // No se ha podido leer el fichero.
+        return new Result(d.total() + 1,
+                          d.format(fichero) + fichero +": "+ ex +"\n");
+    }
+
+    return d.total() == 0 ? VALID : new Result(d.total(), d.format(fichero));
+}
+
+private static Result get(Future<Result> f) throws IOException
+{
+    try
+    {
+        return f.get();
+    }
+    catch(InterruptedException ex)
+    {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException();
+    }
+    catch(ExecutionException ex)
+    {
+        Throwable t = ex.getCause();
+
+        if(t instanceof RuntimeException)
+            throw (RuntimeException)t;
+        if(t instanceof Error)
+            throw (Error)t;
+
+        throw new AssertionError(t);
+    }
+}
+
+private void write(Result r, PrintStream out)
+{
+    m_files++;
+
+    if(r.errors > 0)
+    {
+        m_failed++;
+        m_errors += r.errors;
+        out.print(r.text);
+    }
+}
+
+//------------------------------------------------------------------------
+// Resultado de un fichero.
+private static final class Result
+{
+    final long errors;
+    final String text;
+
+    Result(long errors, String text)
+    {
+        this.errors = errors;
+        this.text   = text;
+    }
+}
+
+} // Validator